@@ -151,7 +151,8 @@ import java.io.File;
  * </ol>
  * <p>
  * TODO - write up the request and response formats in detail here!
- * JSON, one line per request/response.
+ * JSON, one line per request/response. Optionally, length-prefixed MessagePack,
+ * see {@link Service.Framing}.
  * </p>
  * 
  * @author Curtis Rueden
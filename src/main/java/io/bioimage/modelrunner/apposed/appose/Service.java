@@ -29,18 +29,32 @@
 
 package io.bioimage.modelrunner.apposed.appose;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 
@@ -54,18 +68,54 @@ import java.util.function.Consumer;
  * different process. Using the service, programs create Appose {@link Task}s
  * that run asynchronously in the worker process, which notifies the service of
  * updates via communication over pipes (stdin and stdout).
+ * <p>
+ * By default every message is a line of JSON. A service can instead ask the worker,
+ * with {@link #setFraming(Framing)}, to exchange length-prefixed MessagePack messages,
+ * see {@link Framing#MSGPACK}.
+ * <p>
+ * Scripts that are run over and over again can be registered with {@link #register(String)}
+ * and invoked by handle with {@link #invoke(String, Map)}. The worker compiles them once
+ * and later tasks only send the handle and the inputs.
+ * <p>
+ * Every task exposes a {@link CompletableFuture}, see {@link Task#future()}, so callers can
+ * keep many tasks in flight and chain work to their completion without blocking a thread per task.
  */
 public class Service implements AutoCloseable {
 
 	private static int serviceCount = 0;
 
+	/**
+	 * Environment variable used to ask the worker for a framing of the messages
+	 */
+	public static final String FRAMING_ENV_VAR = "APPOSE_FRAMING";
+
+	/**
+	 * Key of the message the worker sends to acknowledge the framing it uses
+	 */
+	private static final String FRAMING_KEY = "framing";
+
+	/**
+	 * Seconds {@link #start()} waits for the worker to acknowledge the framing of the messages
+	 */
+	private static final long FRAMING_TIMEOUT_SECONDS = 120;
+
+	/**
+	 * Completes the futures of the tasks, so the work chained to them never runs in, nor blocks,
+	 * the threads that read the messages of the workers
+	 */
+	static final ExecutorService COMPLETION_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "Appose-Task-Completion");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	private final File cwd;
 	private final String[] args;
 	private final Map<String, Task> tasks = new ConcurrentHashMap<>();
 	private final int serviceID;
 
 	private Process process;
-	private PrintWriter stdin;
+	private OutputStream stdin;
 	private Thread stdoutThread;
 	private Thread stderrThread;
 	private Thread monitorThread;
@@ -74,6 +124,36 @@ public class Service implements AutoCloseable {
 
 	private Consumer<String> debugListener;
 
+	/**
+	 * Framing asked to the worker when it is launched
+	 */
+	private Framing requestedFraming = Framing.JSON;
+
+	/**
+	 * Framing of the messages exchanged with the worker, JSON until the worker acknowledges another one
+	 */
+	private volatile Framing framing = Framing.JSON;
+
+	/**
+	 * Completed with the framing acknowledged by the worker, or exceptionally if the worker exits before
+	 */
+	private final CompletableFuture<Framing> framingAck = new CompletableFuture<Framing>();
+
+	/**
+	 * Scripts registered with {@link #register(String)}, by handle
+	 */
+	private final Map<String, String> scripts = new ConcurrentHashMap<>();
+
+	/**
+	 * Handles of the registered scripts, by script
+	 */
+	private final Map<String, String> handles = new ConcurrentHashMap<>();
+
+	/**
+	 * Handles of the registered scripts that the worker has already compiled
+	 */
+	private final Set<String> compiledScripts = ConcurrentHashMap.newKeySet();
+
 	public Service(File cwd, String... args) {
 		this.cwd = cwd;
 		this.args = args.clone();
@@ -101,11 +181,37 @@ public class Service implements AutoCloseable {
 		this.envMap.put(key, val);
 	}
 
+	/**
+	 * Set the framing of the messages exchanged with the worker. It has to be set before the
+	 * worker is launched. The worker acknowledges the framing when it starts, and {@link #start()}
+	 * waits for that acknowledgement before any task is sent, so both sides always agree on the
+	 * framing of every request. If the worker does not support the framing, for example because the
+	 * 'msgpack' Python package is not installed, it acknowledges JSON lines instead.
+	 * See {@link #getFraming()} for the framing actually used
+	 * @param framing
+	 * 	the wanted framing
+	 */
+	public void setFraming(Framing framing) {
+		if (process != null)
+			throw new IllegalStateException("The framing of the messages has to be set before the worker is launched.");
+		this.requestedFraming = framing;
+	}
+
+	/**
+	 *
+	 * @return the framing of the messages exchanged with the worker, the one acknowledged by the worker
+	 * 	once it has been started
+	 */
+	public Framing getFraming() {
+		return framing;
+	}
+
 	/**
 	 * Launches the worker process associated with this service.
 	 *
 	 * @return This service object, for chaining method calls (typically with {@link #task}).
-	 * @throws IOException If the process fails to execute; see {@link ProcessBuilder#start()}.
+	 * @throws IOException If the process fails to execute; see {@link ProcessBuilder#start()}, or if
+	 * 	the worker does not acknowledge the framing set with {@link #setFraming(Framing)}.
 	 */
 	public Service start() throws IOException {
 		if (process != null) {
@@ -121,17 +227,40 @@ public class Service implements AutoCloseable {
 			else if (ee.getValue() != null)
 				pb.environment().put(ee.getKey(), ee.getValue());
 		});
+		if (requestedFraming != Framing.JSON)
+			pb.environment().put(FRAMING_ENV_VAR, requestedFraming.toString().toLowerCase());
 		process = pb.start();
-		stdin = new PrintWriter(process.getOutputStream());
+		stdin = new BufferedOutputStream(process.getOutputStream());
 		stdoutThread = new Thread(this::stdoutLoop, prefix + "-Stdout");
 		stderrThread = new Thread(this::stderrLoop, prefix + "-Stderr");
 		monitorThread = new Thread(this::monitorLoop, prefix + "-Monitor");
 		stderrThread.start();
 		stdoutThread.start();
 		monitorThread.start();
+		if (requestedFraming != Framing.JSON)
+			awaitFraming();
 		return this;
 	}
 
+	/**
+	 * Wait until the worker acknowledges the framing, so no request is sent before both sides use it
+	 */
+	private void awaitFraming() throws IOException {
+		try {
+			framingAck.get(FRAMING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new IOException("Interrupted while waiting for the worker to acknowledge the framing of the messages.", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		} catch (TimeoutException e) {
+			close();
+			throw new IOException("The worker did not acknowledge the framing of the messages in "
+					+ FRAMING_TIMEOUT_SECONDS + " seconds.");
+		}
+	}
+
 	/**
 	 * Creates a new task, passing the given script to the worker for execution.
 	 *
@@ -156,35 +285,152 @@ public class Service implements AutoCloseable {
 		return new Task(script, inputs);
 	}
 
+	/**
+	 * Registers a script that is going to be run many times. The script is sent to the
+	 * worker with the first task that invokes it, and the worker compiles it and keeps it.
+	 * The later tasks only send the handle and their inputs, so the varying values have to
+	 * be passed as inputs instead of being written in the script.
+	 * Registering the same script again returns the same handle.
+	 * Workers that do not support registered scripts, older versions of Appose, simply
+	 * receive the whole script with every task.
+	 *
+	 * @param script The script for the worker to execute in its environment.
+	 * @return The handle used to invoke the script with {@link #invoke(String, Map)}.
+	 */
+	public String register(String script) {
+		return handles.computeIfAbsent(script, k -> {
+			String handle = UUID.randomUUID().toString();
+			scripts.put(handle, script);
+			return handle;
+		});
+	}
+
+	/**
+	 * Creates a new task that runs a script registered with {@link #register(String)}.
+	 *
+	 * @param handle The handle of the registered script.
+	 * @param inputs Optional list of key/value pairs to feed into the script as inputs.
+	 * @return The newly created {@link Task} object tracking the execution.
+	 * @throws IOException If something goes wrong communicating with the worker.
+	 */
+	public Task invoke(String handle, Map<String, Object> inputs) throws IOException {
+		String script = scripts.get(handle);
+		if (script == null)
+			throw new IllegalArgumentException("There is no script registered with the handle: " + handle);
+		start();
+		return new Task(script, inputs, handle);
+	}
+
 	/** Closes the worker process's input stream, in order to shut it down. */
 	@Override
 	public void close() {
-		stdin.close();
-		stdin.flush();
+		synchronized (stdin) {
+			try {
+				stdin.close();
+			} catch (IOException exc) {
+				debugService(Types.stackTrace(exc));
+			}
+		}
+	}
+
+	/**
+	 * Send a message to the worker with the framing currently in use
+	 */
+	private void send(Map<String, Object> message) {
+		Framing current = framing;
+		byte[] encoded;
+		if (current == Framing.MSGPACK)
+			encoded = Types.encodeBinary(message);
+		else
+			encoded = (Types.encode(message) + System.lineSeparator()).getBytes(Charset.defaultCharset());
+		try {
+			synchronized (stdin) {
+				if (current == Framing.MSGPACK) {
+					int len = encoded.length;
+					stdin.write(new byte[] {(byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len});
+				}
+				stdin.write(encoded);
+				// NB: Flush is necessary to ensure worker receives the data!
+				stdin.flush();
+			}
+		} catch (IOException exc) {
+			debugService(Types.stackTrace(exc));
+		}
+		if (debugListener != null)
+			debugService(current == Framing.MSGPACK ? Types.encode(message) : new String(encoded, Charset.defaultCharset()).trim());
+	}
+
+	/**
+	 * Read a line of the worker stdout stream, without the line terminator
+	 * @return the line or null if the stream is closed
+	 */
+	private static String readLine(DataInputStream stdout, ByteArrayOutputStream buffer) throws IOException {
+		buffer.reset();
+		int b;
+		while ((b = stdout.read()) != -1 && b != '\n')
+			buffer.write(b);
+		if (b == -1 && buffer.size() == 0)
+			return null;
+		String line = new String(buffer.toByteArray(), Charset.defaultCharset());
+		return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
 	}
 
-	/** Input loop processing lines from the worker stdout stream. */
+	/**
+	 * Read a length-prefixed MessagePack message of the worker stdout stream
+	 * @return the decoded message or null if the stream is closed
+	 */
+	private static Map<String, Object> readFrame(DataInputStream stdout) throws IOException {
+		int len;
+		try {
+			len = stdout.readInt();
+		} catch (EOFException exc) {
+			return null;
+		}
+		if (len < 0)
+			throw new IOException("Invalid length of a message of the worker: " + len);
+		byte[] bytes = new byte[len];
+		stdout.readFully(bytes);
+		return Types.decodeBinary(bytes, 0, len);
+	}
+
+	/** Input loop processing messages from the worker stdout stream. */
 	private void stdoutLoop() {
-		BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		DataInputStream stdout = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 		while (true) {
-			String line;
+			String line = null;
+			Map<String, Object> response = null;
 			try {
-				line = stdout.readLine();
+				if (framing == Framing.MSGPACK)
+					response = readFrame(stdout);
+				else
+					line = readLine(stdout, buffer);
 			}
-			catch (IOException exc) {
-				// Something went wrong reading the line. Panic!
+			catch (IOException | IllegalArgumentException exc) {
+				// Something went wrong reading the message. Panic!
 				debugService(Types.stackTrace(exc));
 				break;
 			}
 
-			if (line == null) {
+			if (line == null && response == null) {
 				debugService("<worker stdout closed>");
 				return;
 			}
 			try {
-				Map<String, Object> response = Types.decode(line);
-				debugService(line); // Echo the line to the debug listener.
+				if (line != null) {
+					response = Types.decode(line);
+					debugService(line); // Echo the line to the debug listener.
+				} else if (debugListener != null) {
+					line = Types.encode(response);
+					debugService(line);
+				}
 				Object uuid = response.get("task");
+				if (uuid == null && response.get(FRAMING_KEY) != null) {
+					// The worker acknowledges the framing, every later message uses it
+					framing = Framing.valueOf(response.get(FRAMING_KEY).toString().toUpperCase());
+					framingAck.complete(framing);
+					continue;
+				}
 				if (uuid == null) {
 					debugService("Invalid service message:" + line);
 					continue;
@@ -224,15 +470,19 @@ public class Service implements AutoCloseable {
 
 	private void monitorLoop() {
 		// Wait until the worker process terminates.
+		// NB: Blocks instead of polling, Process.onExit() needs Java 9.
 		while (process.isAlive()) {
 			try {
-				Thread.sleep(50);
+				process.waitFor();
 			}
 			catch (InterruptedException exc) {
 				debugService(Types.stackTrace(exc));
 			}
 		}
 
+		framingAck.completeExceptionally(
+				new IOException("The worker process exited before acknowledging the framing of the messages."));
+
 		// Do some sanity checks.
 		int exitCode = process.exitValue();
 		if (exitCode != 0) debugService("<worker process terminated with exit code " + exitCode + ">");
@@ -267,6 +517,21 @@ public class Service implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * How the messages exchanged with the worker are delimited and encoded
+	 */
+	public enum Framing {
+		/**
+		 * Every message is a line of JSON. Supported by every worker
+		 */
+		JSON,
+		/**
+		 * Every message is a MessagePack map preceded by its length in bytes, as a 4 byte
+		 * big-endian integer. The worker has to support it and acknowledge it when it starts
+		 */
+		MSGPACK
+	}
+
 	public enum RequestType {
 		EXECUTE, CANCEL
 	}
@@ -283,6 +548,8 @@ public class Service implements AutoCloseable {
 
 		public final String uuid = UUID.randomUUID().toString();
 		public final String script;
+		/** Handle of the registered script, or null if the script is not registered. */
+		public final String handle;
 		private final Map<String, Object> mInputs = new HashMap<>();
 		private final Map<String, Object> mOutputs = new HashMap<>();
 		public final Map<String, Object> inputs = Collections.unmodifiableMap(mInputs);
@@ -296,8 +563,15 @@ public class Service implements AutoCloseable {
 
 		private final List<Consumer<TaskEvent>> listeners = new ArrayList<>();
 
+		private final TaskFuture future = new TaskFuture();
+
 		public Task(String script, Map<String, Object> inputs) {
+			this(script, inputs, null);
+		}
+
+		private Task(String script, Map<String, Object> inputs, String handle) {
 			this.script = script;
+			this.handle = handle;
 			if (inputs != null) mInputs.putAll(inputs);
 			tasks.put(uuid, this);
 		}
@@ -307,7 +581,11 @@ public class Service implements AutoCloseable {
 			status = TaskStatus.QUEUED;
 
 			Map<String, Object> args = new HashMap<>();
-			args.put("script", script);
+			// NB: Once the worker has compiled a registered script, the handle is enough.
+			if (handle == null || !compiledScripts.contains(handle))
+				args.put("script", script);
+			if (handle != null)
+				args.put("handle", handle);
 			args.put("inputs", inputs);
 			request(RequestType.EXECUTE, args);
 
@@ -326,6 +604,19 @@ public class Service implements AutoCloseable {
 			listeners.add(listener);
 		}
 
+		/**
+		 * Future completed once the task finishes. It completes normally with the task when it is
+		 * {@link TaskStatus#COMPLETE}, and exceptionally when the task fails, crashes or is canceled.
+		 * Canceling the future sends a cancelation request to the worker, see {@link #cancel()}.
+		 * The task is started if it has not been started yet
+		 *
+		 * @return the future of the task
+		 */
+		public synchronized CompletableFuture<Task> future() {
+			if (status == TaskStatus.INITIAL) start();
+			return future;
+		}
+
 		public synchronized void waitFor() throws InterruptedException {
 			if (status == TaskStatus.INITIAL) start();
 			if (status != TaskStatus.QUEUED && status != TaskStatus.RUNNING) return;
@@ -343,12 +634,7 @@ public class Service implements AutoCloseable {
 			request.put("task", uuid);
 			request.put("requestType", requestType.toString());
 			if (args != null) request.putAll(args);
-			String encoded = Types.encode(request);
-
-			stdin.println(encoded);
-			// NB: Flush is necessary to ensure worker receives the data!
-			stdin.flush();
-			debugService(encoded);
+			send(request);
 		}
 
 		@SuppressWarnings("hiding")
@@ -362,6 +648,9 @@ public class Service implements AutoCloseable {
 			switch (responseType) {
 				case LAUNCH:
 					status = TaskStatus.RUNNING;
+					// The worker acknowledges that it has compiled the registered script
+					if (handle != null && handle.equals(response.get("handle")))
+						compiledScripts.add(handle);
 					break;
 				case UPDATE:
 					message = (String) response.get("message");
@@ -402,6 +691,7 @@ public class Service implements AutoCloseable {
 				synchronized (this) {
 					notifyAll();
 				}
+				completeFuture();
 			}
 		}
 
@@ -412,6 +702,33 @@ public class Service implements AutoCloseable {
 			synchronized (this) {
 				notifyAll();
 			}
+			completeFuture();
+		}
+
+		private void completeFuture() {
+			COMPLETION_EXECUTOR.execute(() -> {
+				if (status == TaskStatus.COMPLETE)
+					future.complete(this);
+				else if (status == TaskStatus.CANCELED)
+					future.completeExceptionally(new CancellationException("Task canceled"));
+				else if (status == TaskStatus.CRASHED)
+					future.completeExceptionally(new RuntimeException(error == null ? "The worker process died." : error));
+				else
+					future.completeExceptionally(new RuntimeException(error));
+			});
+		}
+
+		/**
+		 * Future of the task whose cancelation is sent to the worker
+		 */
+		private class TaskFuture extends CompletableFuture<Task> {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean canceled = super.cancel(mayInterruptIfRunning);
+				if (canceled && status != TaskStatus.INITIAL)
+					Task.this.cancel();
+				return canceled;
+			}
 		}
 
 		@Override
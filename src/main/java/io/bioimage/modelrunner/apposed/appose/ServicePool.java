@@ -0,0 +1,744 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.apposed.appose;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import io.bioimage.modelrunner.apposed.appose.Service.Task;
+import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
+
+/**
+ * Pool of Appose workers launched from the same {@link Environment}, that runs the tasks in the
+ * first idle worker. A single Python process cannot use every core of big machines for many
+ * models, so running N workers, each of them with its own copy of the model, processes up to N
+ * tasks at the same time, at the cost of N times the memory used by the model.
+ *
+ * The scripts set with {@link #setup(String)}, for example the ones that load the model, are run
+ * in every worker, also in the ones that replace workers that have crashed. The scripts run with
+ * {@link #task(String, Map)} or {@link #invoke(String, Map)} are sent to a single worker, that does
+ * not receive any other task until they finish, so the state left by a task in a worker is only
+ * seen by the later tasks that happen to run in the same worker.
+ *
+ * {@link #taskAsync(String, Map)} and {@link #invokeAsync(String, Map)} queue the tasks instead
+ * of waiting for an idle worker, so many tasks can be kept in flight without blocking any thread.
+ *
+ * The health of every worker is tracked: a worker whose process dies is restarted the next time it
+ * is needed, and it is retired once it has crashed more times than {@link #setMaxRestarts(int)}.
+ * Workers are launched by {@link #setup(String)} or, if they have not been launched yet, when they
+ * receive their first task.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class ServicePool implements AutoCloseable {
+
+	/**
+	 * Creates the services of the workers of a {@link ServicePool}
+	 */
+	public interface ServiceFactory {
+		/**
+		 * Create a new service, that does not need to be started
+		 * @return the service
+		 * @throws IOException if there is any error creating the service
+		 */
+		Service create() throws IOException;
+	}
+
+	/**
+	 * Default number of times a worker can crash before it is retired
+	 */
+	public static final int DEFAULT_MAX_RESTARTS = 3;
+
+	private final ServiceFactory factory;
+
+	private final List<Worker> workers = new ArrayList<Worker>();
+
+	/**
+	 * Workers that are not running any task
+	 */
+	private final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+
+	/**
+	 * Notified every time a worker is given back to the pool, a worker is retired or the pool is closed,
+	 * so the threads waiting for idle workers wake up instead of polling
+	 */
+	private final Object idleLock = new Object();
+
+	/**
+	 * Tasks submitted with {@link #taskAsync(String, Map)} or {@link #invokeAsync(String, Map)}
+	 * that are waiting for an idle worker
+	 */
+	private final ConcurrentLinkedQueue<PendingTask> pending = new ConcurrentLinkedQueue<PendingTask>();
+
+	/**
+	 * Scripts run in every worker before its first task, in order
+	 */
+	private final List<String> setupScripts = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Scripts registered with {@link #register(String)}, by handle
+	 */
+	private final Map<String, String> scripts = new ConcurrentHashMap<String, String>();
+
+	private Consumer<String> debugListener;
+
+	private int maxRestarts = DEFAULT_MAX_RESTARTS;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a pool of workers
+	 * @param size
+	 * 	number of workers
+	 * @param factory
+	 * 	creates the service of every worker, and of the workers that replace the ones that crash
+	 */
+	public ServicePool(int size, ServiceFactory factory) {
+		if (size < 1)
+			throw new IllegalArgumentException("A pool of workers needs at least one worker: " + size);
+		this.factory = factory;
+		for (int i = 0; i < size; i ++) {
+			Worker worker = new Worker(i);
+			workers.add(worker);
+			idle.add(worker);
+		}
+	}
+
+	/**
+	 * Create a pool of Python workers, see {@link Environment#python()}
+	 * @param env
+	 * 	environment where the workers are launched
+	 * @param size
+	 * 	number of workers
+	 * @return the pool
+	 */
+	public static ServicePool python(Environment env, int size) {
+		return new ServicePool(size, env::python);
+	}
+
+	/**
+	 * Registers a callback function to receive the messages describing the activity of
+	 * every worker, see {@link Service#debug(Consumer)}. It has to be set before the workers are launched
+	 * @param debugListener A function that accepts a single string argument.
+	 */
+	public void debug(Consumer<String> debugListener) {
+		this.debugListener = debugListener;
+	}
+
+	/**
+	 * Set the number of times a worker can crash and be restarted before it is retired.
+	 * By default it is {@link #DEFAULT_MAX_RESTARTS}
+	 * @param maxRestarts
+	 * 	maximum number of restarts of every worker
+	 */
+	public void setMaxRestarts(int maxRestarts) {
+		this.maxRestarts = maxRestarts;
+	}
+
+	/**
+	 *
+	 * @return number of workers of the pool, including the retired ones
+	 */
+	public int size() {
+		return workers.size();
+	}
+
+	/**
+	 *
+	 * @return the workers of the pool, to check their health
+	 */
+	public List<Worker> getWorkers() {
+		return Collections.unmodifiableList(workers);
+	}
+
+	/**
+	 *
+	 * @return number of workers that have not been retired
+	 */
+	public int getAvailableWorkers() {
+		return (int) workers.stream().filter(w -> !w.retired).count();
+	}
+
+	/**
+	 * Add a script that is run in every worker before any other task, for example to load the model.
+	 * The workers that are already running run it now, waiting for all of them to finish, and the workers
+	 * launched later, also the ones that replace crashed workers, run it when they are launched
+	 * @param script
+	 * 	the script
+	 * @throws IOException if the script fails in any of the workers
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 */
+	public void setup(String script) throws IOException, InterruptedException {
+		checkOpen();
+		checkAvailable();
+		setupScripts.add(script);
+		List<Worker> acquired = takeAll();
+		ExecutorService launcher = Executors.newFixedThreadPool(acquired.size());
+		try {
+			List<Future<?>> launches = new ArrayList<Future<?>>();
+			for (Worker worker : acquired) {
+				launches.add(launcher.submit(() -> {
+					try {
+						// new workers run every setup script when they are launched
+						if (worker.launched && !worker.crashed)
+							checkTask(worker.service.task(script).start());
+						else
+							worker.ensureLaunched();
+					} catch (IOException | InterruptedException | RuntimeException e) {
+						worker.markCrashed(Types.stackTrace(e));
+						throw e;
+					}
+					return null;
+				}));
+			}
+			for (Future<?> launch : launches)
+				launch.get();
+		} catch (ExecutionException e) {
+			setupScripts.remove(script);
+			throw new IOException(Types.stackTrace(e.getCause()));
+		} finally {
+			launcher.shutdownNow();
+			for (Worker worker : acquired)
+				release(worker);
+		}
+	}
+
+	/**
+	 * Run a script in every worker that has been launched, waiting for all of them to finish.
+	 * The workers that have not been launched yet do not run it
+	 * @param script
+	 * 	the script
+	 * @return the finished tasks, one per launched worker
+	 * @throws IOException if there is any error communicating with the workers
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 */
+	public List<Task> runOnAll(String script) throws IOException, InterruptedException {
+		checkOpen();
+		List<Worker> acquired = takeAll();
+		List<Task> tasks = new ArrayList<Task>();
+		try {
+			for (Worker worker : acquired) {
+				if (worker.launched && !worker.crashed)
+					tasks.add(worker.service.task(script).start());
+			}
+			for (Task task : tasks)
+				task.waitFor();
+		} finally {
+			for (Worker worker : acquired)
+				release(worker);
+		}
+		return tasks;
+	}
+
+	/**
+	 * Run a script in every launched worker that is idle now, waiting for those tasks to finish.
+	 * The workers that are running a task are not waited for and do not run it
+	 * @param script
+	 * 	the script
+	 * @return the finished tasks, one per idle launched worker
+	 * @throws IOException if there is any error communicating with the workers
+	 * @throws InterruptedException if the thread is interrupted while waiting for the tasks
+	 */
+	public List<Task> runOnIdle(String script) throws IOException, InterruptedException {
+		checkOpen();
+		List<Worker> acquired = new ArrayList<Worker>();
+		idle.drainTo(acquired);
+		List<Task> tasks = new ArrayList<Task>();
+		try {
+			for (Worker worker : acquired) {
+				if (worker.launched && !worker.crashed)
+					tasks.add(worker.service.task(script).start());
+			}
+			for (Task task : tasks)
+				task.waitFor();
+		} finally {
+			for (Worker worker : acquired)
+				release(worker);
+		}
+		return tasks;
+	}
+
+	/**
+	 * Run a script in the first idle worker, waiting until one is idle. The worker is given back to
+	 * the pool once the task finishes
+	 * @param script
+	 * 	the script
+	 * @param inputs
+	 * 	optional key/value pairs fed to the script as inputs
+	 * @return the started task
+	 * @throws IOException if there is any error launching the worker or communicating with it
+	 * @throws InterruptedException if the thread is interrupted while waiting for an idle worker
+	 */
+	public Task task(String script, Map<String, Object> inputs) throws IOException, InterruptedException {
+		Worker worker = acquire();
+		try {
+			return worker.run(worker.service.task(script, inputs));
+		} catch (IOException | RuntimeException e) {
+			release(worker);
+			throw e;
+		}
+	}
+
+	/**
+	 * Register a script that is going to be run many times, see {@link Service#register(String)}.
+	 * Every worker compiles it the first time it runs it
+	 * @param script
+	 * 	the script
+	 * @return the handle used to invoke the script with {@link #invoke(String, Map)}
+	 */
+	public String register(String script) {
+		for (Map.Entry<String, String> ee : scripts.entrySet()) {
+			if (ee.getValue().equals(script))
+				return ee.getKey();
+		}
+		String handle = UUID.randomUUID().toString();
+		scripts.put(handle, script);
+		return handle;
+	}
+
+	/**
+	 * Run a script registered with {@link #register(String)} in the first idle worker, waiting until
+	 * one is idle. The worker is given back to the pool once the task finishes
+	 * @param handle
+	 * 	handle of the registered script
+	 * @param inputs
+	 * 	optional key/value pairs fed to the script as inputs
+	 * @return the started task
+	 * @throws IOException if there is any error launching the worker or communicating with it
+	 * @throws InterruptedException if the thread is interrupted while waiting for an idle worker
+	 */
+	public Task invoke(String handle, Map<String, Object> inputs) throws IOException, InterruptedException {
+		String script = scripts.get(handle);
+		if (script == null)
+			throw new IllegalArgumentException("There is no script registered with the handle: " + handle);
+		Worker worker = acquire();
+		try {
+			return worker.run(worker.service.invoke(worker.service.register(script), inputs));
+		} catch (IOException | RuntimeException e) {
+			release(worker);
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue a script to run in the first worker that becomes idle, without waiting for it.
+	 * The worker is given back to the pool once the task finishes
+	 * @param script
+	 * 	the script
+	 * @param inputs
+	 * 	optional key/value pairs fed to the script as inputs
+	 * @return future completed with the task once it finishes, see {@link Task#future()}. Canceling it
+	 * 	removes the task from the queue or cancels it in the worker
+	 */
+	public CompletableFuture<Task> taskAsync(String script, Map<String, Object> inputs) {
+		return submit(new PendingTask(script, false, inputs));
+	}
+
+	/**
+	 * Queue a script registered with {@link #register(String)} to run in the first worker that becomes
+	 * idle, without waiting for it. The worker is given back to the pool once the task finishes
+	 * @param handle
+	 * 	handle of the registered script
+	 * @param inputs
+	 * 	optional key/value pairs fed to the script as inputs
+	 * @return future completed with the task once it finishes, see {@link Task#future()}. Canceling it
+	 * 	removes the task from the queue or cancels it in the worker
+	 */
+	public CompletableFuture<Task> invokeAsync(String handle, Map<String, Object> inputs) {
+		String script = scripts.get(handle);
+		if (script == null)
+			throw new IllegalArgumentException("There is no script registered with the handle: " + handle);
+		return submit(new PendingTask(script, true, inputs));
+	}
+
+	private CompletableFuture<Task> submit(PendingTask task) {
+		checkOpen();
+		checkAvailable();
+		pending.add(task);
+		dispatch();
+		return task.future;
+	}
+
+	/**
+	 * Start the queued tasks in the idle workers
+	 */
+	private void dispatch() {
+		while (!pending.isEmpty()) {
+			Worker worker = idle.poll();
+			if (worker == null)
+				return;
+			PendingTask task = pending.poll();
+			if (task == null) {
+				// another thread took it, check again in case a task was queued meanwhile
+				idle.add(worker);
+				continue;
+			}
+			// NB: launching a worker blocks, so it is never done in the threads that finish the tasks
+			Service.COMPLETION_EXECUTOR.execute(() -> start(worker, task));
+		}
+	}
+
+	/**
+	 * Start a queued task in a worker, launching the worker if needed
+	 */
+	private void start(Worker worker, PendingTask pendingTask) {
+		if (pendingTask.future.isDone()) {
+			release(worker);
+			return;
+		}
+		Task task;
+		try {
+			worker.ensureLaunched();
+			if (pendingTask.registered)
+				task = worker.service.invoke(worker.service.register(pendingTask.script), pendingTask.inputs);
+			else
+				task = worker.service.task(pendingTask.script, pendingTask.inputs);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			worker.markCrashed(Types.stackTrace(e));
+			if (getAvailableWorkers() == 0)
+				pendingTask.future.completeExceptionally(e);
+			else
+				pending.add(pendingTask);
+			release(worker);
+			return;
+		}
+		worker.run(task);
+		task.future().whenComplete((t, exc) -> {
+			if (exc != null)
+				pendingTask.future.completeExceptionally(exc);
+			else
+				pendingTask.future.complete(t);
+		});
+		pendingTask.future.whenComplete((t, exc) -> {
+			if (pendingTask.future.isCancelled())
+				task.future().cancel(true);
+		});
+	}
+
+	/**
+	 * Complete exceptionally every queued task
+	 */
+	private void failPending(String message) {
+		PendingTask task;
+		while ((task = pending.poll()) != null)
+			task.future.completeExceptionally(new IllegalStateException(message));
+	}
+
+	/**
+	 * Take an idle worker, launching it or replacing it if it has crashed
+	 */
+	private Worker acquire() throws IOException, InterruptedException {
+		while (true) {
+			Worker worker = takeIdle();
+			try {
+				worker.ensureLaunched();
+				return worker;
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				worker.markCrashed(Types.stackTrace(e));
+				if (!worker.retired)
+					release(worker);
+				if (e instanceof InterruptedException || getAvailableWorkers() == 0)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Give back a worker to the pool, unless it has been retired
+	 */
+	private void release(Worker worker) {
+		if (!worker.retired)
+			idle.add(worker);
+		else if (getAvailableWorkers() == 0)
+			failPending(retiredMessage());
+		signalIdle();
+		dispatch();
+	}
+
+	/**
+	 * Wake up the threads waiting for idle workers
+	 */
+	private void signalIdle() {
+		synchronized (idleLock) {
+			idleLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Take an idle worker, waiting until one is given back to the pool
+	 */
+	private Worker takeIdle() throws InterruptedException {
+		synchronized (idleLock) {
+			Worker worker;
+			while ((worker = idle.poll()) == null) {
+				checkOpen();
+				checkAvailable();
+				idleLock.wait();
+			}
+			return worker;
+		}
+	}
+
+	/**
+	 * Take every worker that has not been retired, waiting for the busy ones to finish their tasks
+	 */
+	private List<Worker> takeAll() throws InterruptedException {
+		List<Worker> acquired = new ArrayList<Worker>();
+		try {
+			synchronized (idleLock) {
+				while (acquired.size() < getAvailableWorkers()) {
+					Worker worker = idle.poll();
+					if (worker != null) {
+						acquired.add(worker);
+						continue;
+					}
+					checkOpen();
+					idleLock.wait();
+				}
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			for (Worker worker : acquired)
+				release(worker);
+			throw e;
+		}
+		return acquired;
+	}
+
+	private static void checkTask(Task task) throws InterruptedException {
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new RuntimeException("Task canceled");
+		else if (task.status == TaskStatus.FAILED)
+			throw new RuntimeException(task.error);
+		else if (task.status == TaskStatus.CRASHED)
+			throw new RuntimeException(task.error);
+	}
+
+	private void checkAvailable() {
+		if (getAvailableWorkers() == 0)
+			throw new IllegalStateException(retiredMessage());
+	}
+
+	private String retiredMessage() {
+		return "Every worker of the pool has been retired after crashing more than " + maxRestarts + " times.";
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("The pool of workers has already been closed.");
+	}
+
+	/**
+	 * Shut down every worker. Tasks that are running are not waited for, the queued tasks fail and
+	 * the threads waiting for an idle worker are woken up to fail too
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		failPending("The pool of workers has been closed.");
+		signalIdle();
+		for (Worker worker : workers) {
+			if (worker.service != null && worker.launched)
+				worker.service.close();
+		}
+	}
+
+	/**
+	 * Task queued until a worker is idle
+	 */
+	private static class PendingTask {
+
+		private final String script;
+
+		/**
+		 * Whether the script is registered in the workers, see {@link Service#register(String)}
+		 */
+		private final boolean registered;
+
+		private final Map<String, Object> inputs;
+
+		private final CompletableFuture<Task> future = new CompletableFuture<Task>();
+
+		private PendingTask(String script, boolean registered, Map<String, Object> inputs) {
+			this.script = script;
+			this.registered = registered;
+			this.inputs = inputs;
+		}
+	}
+
+	/**
+	 * A worker of the pool and its health
+	 */
+	public class Worker {
+
+		private final int index;
+
+		private Service service;
+
+		private boolean launched = false;
+
+		private volatile boolean crashed = false;
+
+		private volatile boolean retired = false;
+
+		private volatile int crashes = 0;
+
+		private volatile long completedTasks = 0;
+
+		private volatile long failedTasks = 0;
+
+		private volatile String lastError;
+
+		private Worker(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Launch the worker the first time it is used, or a new one if it has crashed, and run the setup scripts
+		 */
+		private void ensureLaunched() throws IOException, InterruptedException {
+			if (launched && !crashed)
+				return;
+			if (service != null)
+				service.close();
+			service = factory.create();
+			if (debugListener != null)
+				service.debug(debugListener);
+			service.start();
+			launched = true;
+			crashed = false;
+			List<String> setup;
+			synchronized (setupScripts) {
+				setup = new ArrayList<String>(setupScripts);
+			}
+			for (String script : setup)
+				checkTask(service.task(script).start());
+		}
+
+		/**
+		 * Record that the process of the worker has died or could not be set up, so it is launched again
+		 * the next time it is needed, unless it has crashed too many times
+		 */
+		private void markCrashed(String error) {
+			crashed = true;
+			crashes ++;
+			lastError = error;
+			if (crashes > maxRestarts) {
+				retired = true;
+				signalIdle();
+			}
+		}
+
+		/**
+		 * Start a task of this worker, that gives the worker back to the pool once it finishes
+		 */
+		private Task run(Task task) {
+			task.listen(event -> {
+				if (!task.status.isFinished())
+					return;
+				if (task.status == TaskStatus.COMPLETE) {
+					completedTasks ++;
+				} else if (task.status == TaskStatus.FAILED) {
+					failedTasks ++;
+					lastError = task.error;
+				} else if (task.status == TaskStatus.CRASHED) {
+					markCrashed(task.error == null ? "The worker process died." : task.error);
+				}
+				release(this);
+			});
+			return task.start();
+		}
+
+		/**
+		 *
+		 * @return position of the worker in the pool
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 *
+		 * @return whether the worker has been launched and has not crashed since
+		 */
+		public boolean isHealthy() {
+			return launched && !crashed && !retired;
+		}
+
+		/**
+		 *
+		 * @return whether the worker has crashed too many times and does not receive tasks anymore
+		 */
+		public boolean isRetired() {
+			return retired;
+		}
+
+		/**
+		 *
+		 * @return number of times the process of the worker has died or failed to launch
+		 */
+		public int getCrashes() {
+			return crashes;
+		}
+
+		/**
+		 *
+		 * @return number of tasks completed by the worker
+		 */
+		public long getCompletedTasks() {
+			return completedTasks;
+		}
+
+		/**
+		 *
+		 * @return number of tasks that have failed in the worker
+		 */
+		public long getFailedTasks() {
+			return failedTasks;
+		}
+
+		/**
+		 *
+		 * @return the error of the last task that failed or crashed, or null
+		 */
+		public String getLastError() {
+			return lastError;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("worker=%d, healthy=%b, retired=%b, crashes=%d, completed=%d, failed=%d",
+					index, isHealthy(), retired, crashes, completedTasks, failedTasks);
+		}
+	}
+}
@@ -28,12 +28,20 @@
  */
 package io.bioimage.modelrunner.apposed.appose;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Type;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 
+import org.msgpack.core.MessagePackException;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
@@ -44,6 +52,20 @@ import com.google.gson.reflect.TypeToken;
 //TODO remove once appose project is released with the needed changes
 public final class Types {
 
+	/**
+	 * Gson is thread safe, so the same instance encodes and decodes every JSON message
+	 */
+	private static final Gson GSON = new Gson();
+
+	private static final Type MAP_TYPE = new TypeToken<HashMap<String, Object>>() {}.getType();
+
+	/**
+	 * Mapper used to encode and decode the MessagePack messages, also thread safe once configured
+	 */
+	private static final ObjectMapper MSGPACK = new ObjectMapper(new MessagePackFactory());
+
+	private static final TypeReference<HashMap<String, Object>> MSGPACK_MAP_TYPE = new TypeReference<HashMap<String, Object>>() {};
+
 	private Types() {
 		// NB: Prevent instantiation of utility class.
 	}
@@ -55,8 +77,7 @@ public final class Types {
 	 * @return string containing the info of the data map
 	 */
 	public static String encode(Map<?, ?> data) {
-		Gson gson = new Gson();
-		return gson.toJson(data);
+		return GSON.toJson(data);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -67,9 +88,60 @@ public final class Types {
 	 * @return a map of with the information of the json
 	 */
 	public static Map<String, Object> decode(String json) {
-		Gson gson = new Gson();
-        Type mapType = new TypeToken<HashMap<String, Object>>() {}.getType();
-        return gson.fromJson(json, mapType);
+        return GSON.fromJson(json, MAP_TYPE);
+	}
+
+	/**
+	 * Encode a Map into a MessagePack message
+	 * @param data
+	 * 	data that wants to be encoded
+	 * @return the bytes of the MessagePack message containing the info of the data map
+	 */
+	public static byte[] encodeBinary(Map<?, ?> data) {
+		try {
+			return MSGPACK.writeValueAsBytes(data);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("The message cannot be encoded with MessagePack: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Convert a MessagePack message into a map. Every number is returned as a {@link Double},
+	 * the same as when the message is decoded from JSON with {@link #decode(String)}, so the
+	 * values do not depend on the framing used to communicate with the worker
+	 * @param bytes
+	 * 	array containing the message
+	 * @param offset
+	 * 	position of the first byte of the message in the array
+	 * @param length
+	 * 	number of bytes of the message
+	 * @return a map with the information of the message
+	 */
+	public static Map<String, Object> decodeBinary(byte[] bytes, int offset, int length) {
+		Map<String, Object> map;
+		try {
+			map = MSGPACK.readValue(bytes, offset, length, MSGPACK_MAP_TYPE);
+		} catch (IOException | MessagePackException e) {
+			throw new IllegalArgumentException("The message cannot be decoded with MessagePack: " + e.getMessage(), e);
+		}
+		for (Map.Entry<String, Object> entry : map.entrySet())
+			entry.setValue(numbersToDouble(entry.getValue()));
+		return map;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object numbersToDouble(Object value) {
+		if (value instanceof Number && !(value instanceof Double)) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof Map) {
+			for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet())
+				entry.setValue(numbersToDouble(entry.getValue()));
+		} else if (value instanceof List) {
+			ListIterator<Object> it = ((List<Object>) value).listIterator();
+			while (it.hasNext())
+				it.set(numbersToDouble(it.next()));
+		}
+		return value;
 	}
 
 	/** Dumps the given exception, including stack trace, to a string. 
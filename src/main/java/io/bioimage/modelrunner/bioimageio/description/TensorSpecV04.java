@@ -50,6 +50,10 @@ public class TensorSpecV04 implements TensorSpec {
      * The description of the tensor
      */
     private final String description;
+    /**
+     * The data type of the tensor, such as 'uint8' or 'float32'
+     */
+    private final String dataType;
     /**
      * The list of pre-processing routines
      */
@@ -79,6 +83,7 @@ public class TensorSpecV04 implements TensorSpec {
         			+ "'. The axes are incorrectly specified. For more info, visit the Bioimage.io docs.");
         axes = new AxesV04(tensorSpecMap, input);
         description = (String) tensorSpecMap.get("description");
+        dataType = parseDataType(tensorSpecMap);
         this.input = input;
 
         List<?> preprocessingTensors = (List<?>) tensorSpecMap.get("preprocessing");
@@ -175,8 +180,16 @@ public class TensorSpecV04 implements TensorSpec {
     }
     
     public String getDataType() {
-    	// TODO 
-    	//return this.data.toString();
+    	return this.dataType;
+    }
+    
+    /**
+     * In 0.4 specs the data type is the field 'data_type' of the tensor. If it is missing, float32 is assumed
+     */
+    private static String parseDataType(Map<String, Object> tensorSpecMap) {
+    	Object type = tensorSpecMap.get("data_type");
+    	if (type instanceof String)
+    		return (String) type;
     	return "float32";
     }
 
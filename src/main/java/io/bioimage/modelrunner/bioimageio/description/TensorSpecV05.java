@@ -50,6 +50,10 @@ public class TensorSpecV05 implements TensorSpec {
      * The description of the tensor
      */
     private final String description;
+    /**
+     * The data type of the tensor, such as 'uint8' or 'float32'
+     */
+    private final String dataType;
     /**
      * The list of pre-processing routines
      */
@@ -82,6 +86,7 @@ public class TensorSpecV05 implements TensorSpec {
         			+ "'. The axes are incorrectly specified. For more info, visit the Bioimage.io docs.");
         axes = new AxesV05((List<Object>) tensorSpecMap.get("axes"));
         description = (String) tensorSpecMap.get("description");
+        dataType = parseDataType(tensorSpecMap);
         this.input = input;
 
         List<?> preprocessingTensors = (List<?>) tensorSpecMap.get("preprocessing");
@@ -181,7 +186,19 @@ public class TensorSpecV05 implements TensorSpec {
     }
     
     public String getDataType() {
-    	// TODO  return this.data.toString();
+    	return this.dataType;
+    }
+    
+    /**
+     * In 0.5 specs the data type is the field 'type' of the 'data' description of the tensor, which
+     * might be a list with one description per channel. If it is missing, float32 is assumed
+     */
+    private static String parseDataType(Map<String, Object> tensorSpecMap) {
+    	Object data = tensorSpecMap.get("data");
+    	if (data instanceof List && ((List<?>) data).size() > 0)
+    		data = ((List<?>) data).get(0);
+    	if (data instanceof Map && ((Map<?, ?>) data).get("type") instanceof String)
+    		return (String) ((Map<?, ?>) data).get("type");
     	return "float32";
     }
 
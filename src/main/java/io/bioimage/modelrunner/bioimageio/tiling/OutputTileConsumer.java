@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.bioimageio.tiling;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Functional interface that receives the output tiles of a tiled inference as soon as each
+ * of them has been processed, so the results can be written to disk, displayed or
+ * passed to another model without waiting for the whole image and without
+ * keeping the whole output image in memory.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ * @param <T>
+ * 	ImgLib2 data type of the output tiles
+ */
+@FunctionalInterface
+public interface OutputTileConsumer<T extends RealType<T> & NativeType<T>> {
+
+	/**
+	 * Receive a finished output tile. The tile only contains the region of interest of the tile,
+	 * the halo has already been removed, so tiles with the same tensor name do not overlap and
+	 * together they cover the whole output image.
+	 * The tile is only valid during the call, its data can be reused afterwards, so it has to be
+	 * copied if it needs to be kept.
+	 *
+	 * @param tensorName
+	 * 	name of the output tensor the tile belongs to
+	 * @param nTile
+	 * 	index of the tile
+	 * @param tile
+	 * 	the output tile, with its minimum at 0
+	 * @param position
+	 * 	position of the first pixel of the tile in the output image
+	 */
+	void accept(String tensorName, int nTile, RandomAccessibleInterval<T> tile, long[] position);
+}
@@ -0,0 +1,315 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.bioimageio.tiling;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.bioimage.modelrunner.tensor.DiskCachedCellImg;
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.util.Intervals;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Class that stitches the output tiles of a model by blending the overlapping regions instead
+ * of cropping the halo of each tile. Every tile is multiplied by a window that gives less weight
+ * to the pixels close to its borders and accumulated into the final image, together with the
+ * sum of the weights used for every pixel. Once every tile has been added, the accumulated image
+ * is normalized by the sum of the weights.
+ *
+ * The window is only applied along the spatial axes (x, y and z), the rest of axes are given a
+ * constant weight.
+ *
+ * The accumulated image and the sum of the weights are stored like the output image: on disk if the
+ * output is a {@link DiskCachedCellImg}, with the factory of the output if it is an {@link Img}, and
+ * otherwise in an array or, if it is too big for an array, in cells.
+ * The image is divided in blocks of the size of a tile, and tiles are accumulated at the same time
+ * as long as they do not cover the same blocks.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class TileBlender {
+
+	/**
+	 * Available window functions to weight the pixels of each tile
+	 */
+	public enum Window {
+		/**
+		 * Gaussian centered in the tile with a sigma of 1/8 of the tile size
+		 */
+		GAUSSIAN,
+		/**
+		 * Raised cosine (Hann) window, that goes to 0 at the borders of the tile
+		 */
+		COSINE
+	}
+
+	/**
+	 * Minimum weight that any pixel of a tile can have, so the pixels at the border of the image
+	 * that are covered by a single tile can always be normalized
+	 */
+	private static final float MIN_WEIGHT = 1e-4f;
+
+	private final String tensorName;
+
+	private final long[] imageDims;
+
+	private final long[] tileDims;
+
+	private final Img<FloatType> window;
+
+	private final Img<FloatType> accumulated;
+
+	private final Img<FloatType> weights;
+
+	/**
+	 * Size of the blocks in which the image is divided to accumulate tiles at the same time
+	 */
+	private final long[] blockDims;
+
+	/**
+	 * Number of blocks along each axis
+	 */
+	private final long[] nBlocks;
+
+	/**
+	 * Lock of every block that has been accumulated, by index of the block
+	 */
+	private final ConcurrentHashMap<Long, Object> blockLocks = new ConcurrentHashMap<Long, Object>();
+
+	private TileBlender(String tensorName, String axesOrder, long[] imageDims, long[] tileDims, Window window,
+			RandomAccessibleInterval<?> output) {
+		if (axesOrder.length() != imageDims.length || axesOrder.length() != tileDims.length)
+			throw new IllegalArgumentException("The axes order, image dimensions and tile dimensions should "
+					+ "have the same length: " + axesOrder + ", " + imageDims.length + ", " + tileDims.length);
+		this.tensorName = tensorName;
+		this.imageDims = imageDims;
+		this.tileDims = tileDims;
+		this.window = createWindow(axesOrder.toLowerCase(), tileDims, window);
+		this.accumulated = createAccumulator(imageDims, output);
+		this.weights = createAccumulator(imageDims, output);
+		this.blockDims = new long[imageDims.length];
+		this.nBlocks = new long[imageDims.length];
+		for (int i = 0; i < imageDims.length; i ++) {
+			blockDims[i] = Math.max(1, Math.min(tileDims[i], imageDims[i]));
+			nBlocks[i] = (imageDims[i] + blockDims[i] - 1) / blockDims[i];
+		}
+	}
+
+	private static Img<FloatType> createAccumulator(long[] imageDims, RandomAccessibleInterval<?> output) {
+		if (output instanceof DiskCachedCellImg) {
+			DiskCachedCellImg<?> disk = (DiskCachedCellImg<?>) output;
+			int[] cellDims = new int[imageDims.length];
+			disk.getCellGrid().cellDimensions(cellDims);
+			try {
+				return DiskCachedCellImg.create(new FloatType(), imageDims, cellDims,
+						disk.getFile().getParentFile(), disk.getMaxCachedCells());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		if (output instanceof Img) {
+			try {
+				ImgFactory<FloatType> factory = ((Img<?>) output).factory().imgFactory(new FloatType());
+				if (factory != null)
+					return factory.create(imageDims);
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				// NB: the output cannot create images of another type, use the default storage
+			}
+		}
+		if (Intervals.numElements(imageDims) <= Integer.MAX_VALUE - 8)
+			return new ArrayImgFactory<FloatType>(new FloatType()).create(imageDims);
+		return new CellImgFactory<FloatType>(new FloatType()).create(imageDims);
+	}
+
+	/**
+	 * Create a {@link TileBlender} for an output image
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @param axesOrder
+	 * 	axes order of the output image and of the tiles
+	 * @param imageDims
+	 * 	size of the final output image
+	 * @param tileDims
+	 * 	size of the output tiles, halo included
+	 * @param window
+	 * 	window function used to weight the pixels of each tile
+	 * @return a {@link TileBlender} ready to accumulate tiles
+	 */
+	public static TileBlender create(String tensorName, String axesOrder, long[] imageDims, long[] tileDims, Window window) {
+		return new TileBlender(tensorName, axesOrder, imageDims, tileDims, window, null);
+	}
+
+	/**
+	 * Create a {@link TileBlender} for one of the output tensors of the tiling strategy
+	 * defined by a {@link TileMaker}
+	 * @param <T>
+	 * 	ImgLib2 data type of the output tensor
+	 * @param maker
+	 * 	the {@link TileMaker} that defines the tiling
+	 * @param tensor
+	 * 	the output tensor where the blended result will be written
+	 * @param window
+	 * 	window function used to weight the pixels of each tile
+	 * @return a {@link TileBlender} ready to accumulate tiles
+	 */
+	public static <T extends NativeType<T> & RealType<T>>
+	TileBlender create(TileMaker maker, Tensor<T> tensor, Window window) {
+		return new TileBlender(tensor.getName(), tensor.getAxesOrderString(),
+				maker.getOutputImageSize(tensor.getName()), maker.getOutputTileSize(tensor.getName()), window,
+				tensor.isEmpty() ? null : tensor.getData());
+	}
+
+	private static Img<FloatType> createWindow(String axesOrder, long[] tileDims, Window window) {
+		float[][] profiles = new float[tileDims.length][];
+		for (int i = 0; i < tileDims.length; i ++) {
+			profiles[i] = new float[(int) tileDims[i]];
+			char ax = axesOrder.charAt(i);
+			boolean spatial = ax == 'x' || ax == 'y' || ax == 'z';
+			for (int j = 0; j < tileDims[i]; j ++) {
+				if (!spatial || tileDims[i] == 1)
+					profiles[i][j] = 1;
+				else if (window == Window.COSINE)
+					profiles[i][j] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * (j + 0.5) / tileDims[i]));
+				else {
+					double sigma = tileDims[i] / 8.0;
+					double dist = j + 0.5 - tileDims[i] / 2.0;
+					profiles[i][j] = (float) Math.exp(- dist * dist / (2 * sigma * sigma));
+				}
+			}
+		}
+		Img<FloatType> img = ArrayImgs.floats(tileDims);
+		Cursor<FloatType> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			float val = 1;
+			for (int i = 0; i < profiles.length; i ++)
+				val *= profiles[i][cursor.getIntPosition(i)];
+			cursor.get().set(Math.max(MIN_WEIGHT, val));
+		}
+		return img;
+	}
+
+	/**
+	 * Add a tile to the accumulated image. The parts of the tile that fall outside of the image
+	 * are discarded.
+	 * Tiles can be added from different threads. The tiles are added one block of the image at a time,
+	 * so only the tiles that cover the same blocks wait for each other.
+	 *
+	 * @param <T>
+	 * 	ImgLib2 data type of the tile
+	 * @param tile
+	 * 	the whole output tile, halo included
+	 * @param position
+	 * 	position of the first pixel of the tile in the output image, can be negative
+	 */
+	public <T extends RealType<T>> void accumulate(RandomAccessibleInterval<T> tile, long[] position) {
+		long[] min = new long[imageDims.length];
+		long[] max = new long[imageDims.length];
+		for (int i = 0; i < imageDims.length; i ++) {
+			if (tile.dimension(i) != tileDims[i])
+				throw new IllegalArgumentException("The tile of tensor '" + tensorName + "' has size "
+						+ tile.dimension(i) + " along axis " + i + " but " + tileDims[i] + " was expected.");
+			min[i] = Math.max(0, position[i]);
+			max[i] = Math.min(imageDims[i], position[i] + tileDims[i]) - 1;
+			if (max[i] < min[i])
+				return;
+		}
+		RandomAccessibleInterval<T> tileView = Views.translate(Views.zeroMin(tile), position);
+		RandomAccessibleInterval<FloatType> windowView = Views.translate(window, position);
+		long[] firstBlock = new long[imageDims.length];
+		long[] lastBlock = new long[imageDims.length];
+		for (int i = 0; i < imageDims.length; i ++) {
+			firstBlock[i] = min[i] / blockDims[i];
+			lastBlock[i] = max[i] / blockDims[i];
+		}
+		long[] block = firstBlock.clone();
+		long[] blockMin = new long[imageDims.length];
+		long[] blockMax = new long[imageDims.length];
+		while (true) {
+			long index = 0;
+			for (int i = imageDims.length - 1; i >= 0; i --) {
+				index = index * nBlocks[i] + block[i];
+				blockMin[i] = Math.max(min[i], block[i] * blockDims[i]);
+				blockMax[i] = Math.min(max[i], (block[i] + 1) * blockDims[i] - 1);
+			}
+			FinalInterval roi = new FinalInterval(blockMin, blockMax);
+			synchronized (blockLocks.computeIfAbsent(index, k -> new Object())) {
+				LoopBuilder.setImages(Views.interval(tileView, roi), Views.interval(windowView, roi),
+						Views.interval(accumulated, roi), Views.interval(weights, roi))
+					.multiThreaded().forEachPixel((t, w, a, s) -> {
+						a.set(a.get() + t.getRealFloat() * w.get());
+						s.set(s.get() + w.get());
+					});
+			}
+			int d = 0;
+			for (; d < imageDims.length; d ++) {
+				if (++ block[d] <= lastBlock[d])
+					break;
+				block[d] = firstBlock[d];
+			}
+			if (d == imageDims.length)
+				return;
+		}
+	}
+
+	/**
+	 * Normalize the accumulated tiles by the sum of the weights and write the result
+	 * into the wanted image. Every tile needs to have been accumulated before. The accumulated
+	 * images are released afterwards, so no more tiles can be added
+	 * @param <T>
+	 * 	ImgLib2 data type of the output image
+	 * @param output
+	 * 	image where the final blended result is written. It must have the size of the output image
+	 */
+	public synchronized <T extends RealType<T>> void finish(RandomAccessibleInterval<T> output) {
+		LoopBuilder.setImages(accumulated, weights, output)
+			.multiThreaded().forEachPixel((a, w, o) -> o.setReal(w.get() > 0 ? a.get() / w.get() : 0));
+		try {
+			if (accumulated instanceof DiskCachedCellImg)
+				((DiskCachedCellImg<?>) accumulated).close();
+			if (weights instanceof DiskCachedCellImg)
+				((DiskCachedCellImg<?>) weights).close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 *
+	 * @return name of the tensor whose tiles are blended
+	 */
+	public String getTensorName() {
+		return this.tensorName;
+	}
+}
@@ -19,11 +19,13 @@
  */
 package io.bioimage.modelrunner.bioimageio.tiling;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
@@ -32,6 +34,7 @@ import io.bioimage.modelrunner.bioimageio.description.Axis;
 import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
 import io.bioimage.modelrunner.bioimageio.description.TensorSpec;
 import io.bioimage.modelrunner.bioimageio.tiling.TileInfo;
+import io.bioimage.modelrunner.system.PlatformDetection;
 import io.bioimage.modelrunner.utils.Constants;
 
 public class TileCalculator {
@@ -39,6 +42,26 @@ public class TileCalculator {
 	private final ModelDescriptor descriptor;
     
     private static final long OPTIMAL_MAX_NUMBER_PIXELS = 4096 * 4096 * 3;
+    
+    /**
+     * Bytes needed per pixel of an input tile: the float copy created before running the model
+     * and the shared memory buffer used to send it to the engine
+     */
+    private static final long INPUT_TILE_BYTES_PER_PIXEL = 4 * 2;
+    
+    /**
+     * Number of copies of each output tile that exist at the same time: the tile buffer
+     * and the shared memory buffer used to receive it from the engine
+     */
+    private static final long OUTPUT_TILE_COPIES = 2;
+    
+    /**
+     * Fraction of the available memory that is used for the tiles when the memory
+     * budget is detected automatically. The rest is left for the full size images
+     */
+    private static final double AUTO_BUDGET_FRACTION = 0.5;
+    
+    private static final String SHM_DIR = "/dev/shm";
 	
 	private TileCalculator(ModelDescriptor descriptor) {
 		this.descriptor = descriptor;
@@ -222,12 +245,306 @@ public class TileCalculator {
 		return null;
 	}
 	
-	public void getTilesForNPixels(String tensorName, long[] dims, String inputAxesOrder) {
+	/**
+	 * Same as {@link #getTilesForMemoryBudget(List, long)} but using as budget a fraction
+	 * of the memory available, as given by {@link #getAvailableMemory()}
+	 * @param inputInfo
+	 * 	information about the size and axes order of every input image
+	 * @return the tile specifications for every input tensor
+	 */
+	public List<TileInfo> getTilesForMemoryBudget(List<ImageInfo> inputInfo) {
+		return getTilesForMemoryBudget(inputInfo, (long) (getAvailableMemory() * AUTO_BUDGET_FRACTION));
+	}
+	
+	/**
+	 * Find the largest tiles allowed by the model specs (min, step and halo) whose processing
+	 * fits in the memory budget provided. The memory estimated per tile accounts for the float copy
+	 * of every input tile, every output tile and the shared memory buffers used to transfer
+	 * both to and from the engine.
+	 * The tiles start covering the whole image and the biggest tiled axis is reduced
+	 * until the estimate fits in the budget.
+	 * @param inputInfo
+	 * 	information about the size and axes order of every input image
+	 * @param memoryBudget
+	 * 	maximum number of bytes that the tiles of a single inference can use
+	 * @return the tile specifications for every input tensor
+	 * @throws IllegalArgumentException if not even the smallest tiles allowed by the model fit in the budget
+	 */
+	public List<TileInfo> getTilesForMemoryBudget(List<ImageInfo> inputInfo, long memoryBudget) {
+		List<TileInfo> tiles = getWholeImageTiles(inputInfo);
+		if (!this.descriptor.isTilingAllowed())
+			return tiles;
+		if (shrinkUntil(tiles, tt -> estimateTileMemory(tt) <= memoryBudget) == null)
+			throw new IllegalArgumentException("Not even the smallest tiles allowed by the model specs fit "
+					+ "in the memory budget of " + memoryBudget + " bytes. Memory needed: " 
+					+ estimateTileMemory(tiles) + " bytes.");
+		return tiles;
+	}
+	
+	/**
+	 * Create the smallest tiles allowed by the model specs that cover the whole image
+	 */
+	private List<TileInfo> getWholeImageTiles(List<ImageInfo> inputInfo) {
+		List<TileInfo> tiles = new ArrayList<TileInfo>();
+		for (TensorSpec tt : this.descriptor.getInputTensors()) {
+			ImageInfo im = inputInfo.stream()
+					.filter(ii -> ii.getTensorName().equals(tt.getName())).findFirst().orElse(null);
+			if (im == null) 
+				throw new IllegalArgumentException("No data was provided for input tensor: " + tt.getName());
+			long[] tileSize = getOptimalTileSize(tt, im.getAxesOrder(), im.getDimensions());
+			for (int i = 0; i < tileSize.length && this.descriptor.isTilingAllowed(); i ++) {
+				Axis ax = tt.getAxesInfo().getAxis(im.getAxesOrder().split("")[i]);
+				if (ax == null || ax.getStep() == 0 || tileSize[i] < ax.getMin())
+					continue;
+				tileSize[i] = ax.getMin() + (long) Math.ceil((tileSize[i] - ax.getMin()) / (double) ax.getStep()) * ax.getStep();
+			}
+			tiles.add(TileInfo.build(tt.getName(), im.getDimensions(), im.getAxesOrder(), tileSize, im.getAxesOrder()));
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Estimate the memory, in bytes, needed to process one tile of every input tensor
+	 * @param inputs
+	 * 	the tile specifications of every input tensor
+	 * @return the estimated number of bytes
+	 */
+	public long estimateTileMemory(List<TileInfo> inputs) {
+		long bytes = 0;
+		for (TileInfo in : inputs)
+			bytes += Arrays.stream(in.getTileDims()).reduce(1L, (x, y) -> x * y) * INPUT_TILE_BYTES_PER_PIXEL;
+		List<TensorSpec> affected = this.descriptor.getOutputTensors().stream()
+				.filter(ot -> ot.getAxesInfo().getAxesList().stream().anyMatch(ax -> ax.getReferenceTensor() != null))
+				.collect(Collectors.toList());
+		for (Long outBytes : calculateByteSizeOfAffectedOutput(affected, inputs))
+			bytes += outBytes * OUTPUT_TILE_COPIES;
+		return bytes;
+	}
+	
+	/**
+	 * Reduce the largest tiled axis, among all the inputs, until the tiles pass the check provided.
+	 * The result is the same as reducing the largest axis one step at a time and checking the tiles after
+	 * each step, but the largest axis is reduced at once down to the size of the second largest
+	 * and the number of steps needed inside that range is found by bisection, so the check,
+	 * that might be expensive, is only run a few times per axis.
+	 * @param tiles
+	 * 	the tiles that are reduced in place
+	 * @param check
+	 * 	condition that the tiles need to meet, it has to keep being true once it is met
+	 * 	and the tiles are reduced further
+	 * @return the last reduction applied to the tiles, {@link Reduction#NONE} if the tiles
+	 * 	already passed the check or null if the tiles cannot be reduced enough to pass it
+	 */
+	private Reduction shrinkUntil(List<TileInfo> tiles, Predicate<List<TileInfo>> check) {
+		Reduction last = Reduction.NONE;
+		while (!check.test(tiles)) {
+			Reduction red = findLargestTileAxis(tiles);
+			if (red == null)
+				return null;
+			long[] dims = red.tile.getTileDims();
+			long original = dims[red.axis];
+			long maxSteps = Math.min(red.maxSteps, 
+					Math.max(1, (long) Math.ceil((original - red.nextLargest) / (double) red.step)));
+			dims[red.axis] = original - maxSteps * red.step;
+			last = red;
+			if (!check.test(tiles))
+				continue;
+			long lo = 1;
+			long hi = maxSteps;
+			while (lo < hi) {
+				long mid = (lo + hi) >>> 1;
+				dims[red.axis] = original - mid * red.step;
+				if (check.test(tiles))
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			dims[red.axis] = original - lo * red.step;
+		}
+		return last;
+	}
+	
+	/**
+	 * Find the largest tiled axis that can still be reduced by at least one step,
+	 * the number of steps it can be reduced and the size of the second largest reducible axis
+	 */
+	private Reduction findLargestTileAxis(List<TileInfo> tiles) {
+		Reduction largest = null;
+		long nextLargest = 0;
+		for (TileInfo tile : tiles) {
+			TensorSpec tt = this.descriptor.findInputTensor(tile.getName());
+			String[] axes = tile.getTileAxesOrder().split("");
+			for (int i = 0; i < axes.length; i ++) {
+				Axis ax = tt.getAxesInfo().getAxis(axes[i]);
+				if (ax == null || ax.getStep() == 0)
+					continue;
+				long size = tile.getTileDims()[i];
+				long lowest = Math.max(ax.getMin(), 2 * ax.getHalo() + 1);
+				long steps = (size - lowest) / ax.getStep();
+				if (size - lowest < 0 || steps == 0)
+					continue;
+				if (largest == null || size > largest.tile.getTileDims()[largest.axis]) {
+					if (largest != null)
+						nextLargest = largest.tile.getTileDims()[largest.axis];
+					largest = new Reduction(tile, i, ax.getStep(), steps);
+				} else {
+					nextLargest = Math.max(nextLargest, size);
+				}
+			}
+		}
+		if (largest != null)
+			largest.nextLargest = nextLargest;
+		return largest;
+	}
+	
+	/**
+	 * Axis of one of the tiles that is reduced by a multiple of its step
+	 */
+	private static final class Reduction {
 		
+		private static final Reduction NONE = new Reduction(null, -1, 0, 0);
+		
+		private final TileInfo tile;
+		private final int axis;
+		private final long step;
+		private final long maxSteps;
+		private long nextLargest;
+		
+		private Reduction(TileInfo tile, int axis, long step, long maxSteps) {
+			this.tile = tile;
+			this.axis = axis;
+			this.step = step;
+			this.maxSteps = maxSteps;
+		}
+	}
+	
+	/**
+	 * Memory available to process the tiles. It is the free memory of the JVM heap and, on Linux,
+	 * it is also limited by the free space in the shared memory filesystem (/dev/shm) used
+	 * to exchange the tensors with the engines that run on separate processes
+	 * @return the number of bytes available
+	 */
+	public static long getAvailableMemory() {
+		Runtime rt = Runtime.getRuntime();
+		long heap = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		File shm = new File(SHM_DIR);
+		if (PlatformDetection.isLinux() && shm.isDirectory())
+			return Math.min(heap, shm.getUsableSpace());
+		return heap;
+	}
+	
+	/**
+	 * Find the largest tiles allowed by the model specs (min, step and halo) that have at most
+	 * {@code nPixels} pixels each. Useful to limit the tile size to the size that the engine
+	 * processes faster.
+	 * @param nPixels
+	 * 	maximum number of pixels that each of the input tiles can have
+	 * @param inputInfo
+	 * 	information about the size and axes order of every input image
+	 * @return the tile specifications for every input tensor
+	 * @throws IllegalArgumentException if not even the smallest tiles allowed by the model have
+	 * 	less than {@code nPixels} pixels
+	 */
+	public List<TileInfo> getTilesForNPixels(long nPixels, List<ImageInfo> inputInfo) {
+		List<TileInfo> tiles = getWholeImageTiles(inputInfo);
+		if (!this.descriptor.isTilingAllowed())
+			return tiles;
+		Predicate<List<TileInfo>> fits = tt -> tt.stream()
+				.allMatch(til -> Arrays.stream(til.getTileDims()).reduce(1L, (x, y) -> x * y) <= nPixels);
+		if (shrinkUntil(tiles, fits) == null)
+			throw new IllegalArgumentException("The smallest tiles allowed by the model specs have more than "
+					+ nPixels + " pixels.");
+		return tiles;
+	}
+	
+	/**
+	 * Same as {@link #getTilesForNPixels(long, List)} for models with a single input.
+	 * The number of pixels is the total number of pixels of the image
+	 * @param tensorName
+	 * 	name of the input tensor
+	 * @param dims
+	 * 	dimensions of the input image
+	 * @param inputAxesOrder
+	 * 	axes order of the input image
+	 * @deprecated use {@link #getTilesForNPixels(long, List)}, which returns the tiles found
+	 */
+	@Deprecated
+	public void getTilesForNPixels(String tensorName, long[] dims, String inputAxesOrder) {
+		getTilesForNPixels(Arrays.stream(dims).reduce(1L, (x, y) -> x * y), 
+				Arrays.asList(new ImageInfo(tensorName, inputAxesOrder, dims)));
 	}
 	
+	/**
+	 * Find the tiles allowed by the model specs (min, step and halo) that divide the images in
+	 * {@code nTiles} tiles. If the exact number of tiles is not reachable, the tiles that produce
+	 * the closest number of tiles are returned. Useful to split an image into as many tiles as
+	 * workers are available.
+	 * @param nTiles
+	 * 	wanted number of tiles
+	 * @param inputInfo
+	 * 	information about the size and axes order of every input image
+	 * @return the tile specifications for every input tensor
+	 */
+	public List<TileInfo> getForNTiles(int nTiles, List<ImageInfo> inputInfo) {
+		List<TileInfo> tiles = getWholeImageTiles(inputInfo);
+		if (!this.descriptor.isTilingAllowed())
+			return tiles;
+		Reduction last = shrinkUntil(tiles, tt -> countTiles(tt) >= nTiles);
+		if (last == null || last == Reduction.NONE)
+			return tiles;
+		// NB: the tiles one step bigger are the last ones that produced less than nTiles tiles
+		List<TileInfo> previous = copyTiles(tiles);
+		previous.get(tiles.indexOf(last.tile)).getTileDims()[last.axis] += last.step;
+		if (nTiles - countTiles(previous) < countTiles(tiles) - nTiles)
+			return previous;
+		return tiles;
+	}
+	
+	/**
+	 * Same as {@link #getForNTiles(int, List)} for models with a single input
+	 * @param nTiles
+	 * 	wanted number of tiles
+	 * @param tensorName
+	 * 	name of the input tensor
+	 * @param dims
+	 * 	dimensions of the input image
+	 * @param inputAxesOrder
+	 * 	axes order of the input image
+	 * @deprecated use {@link #getForNTiles(int, List)}, which returns the tiles found
+	 */
+	@Deprecated
 	public void getForNTiles(int nTiles, String tensorName, long[] dims, String inputAxesOrder) {
-		
+		getForNTiles(nTiles, Arrays.asList(new ImageInfo(tensorName, inputAxesOrder, dims)));
+	}
+	
+	/**
+	 * Number of tiles needed to cover every input image, which is the number of tiles used by
+	 * {@link TileMaker}. Every input is split in the same number of tiles, so the
+	 * input that needs the most tiles sets the number
+	 */
+	private long countTiles(List<TileInfo> tiles) {
+		long count = 0;
+		for (TileInfo tile : tiles) {
+			TensorSpec tt = this.descriptor.findInputTensor(tile.getName());
+			String[] axes = tile.getTileAxesOrder().split("");
+			long[] imDims = TileMaker.arrayToWantedAxesOrderAddOnes(tile.getImageDims(), 
+					tile.getImageAxesOrder(), tile.getTileAxesOrder());
+			long inputCount = 1;
+			for (int i = 0; i < axes.length; i ++) {
+				Axis ax = tt.getAxesInfo().getAxis(axes[i]);
+				long halo = ax == null ? 0 : ax.getHalo();
+				inputCount *= (long) Math.ceil(imDims[i] / (double) (tile.getTileDims()[i] - 2 * halo));
+			}
+			count = Math.max(count, inputCount);
+		}
+		return count;
+	}
+	
+	private static List<TileInfo> copyTiles(List<TileInfo> tiles) {
+		return tiles.stream()
+				.map(tt -> TileInfo.build(tt.getName(), tt.getImageDims(), tt.getImageAxesOrder(), 
+						tt.getTileDims().clone(), tt.getTileAxesOrder()))
+				.collect(Collectors.toList());
 	}
     
     private List<Long> calculateByteSizeOfAffectedOutput(List<TensorSpec> outputTensors, List<TileInfo> inputSize) {
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.bioimageio.tiling;
+
+import java.util.List;
+
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Predicate that decides whether a tile only contains background, in which case the model does not
+ * need to be run on it and its output is filled with a constant value or with the output of another
+ * background tile.
+ *
+ * The built-in filters only look at one pixel out of every {@code subsampling} pixels along each axis,
+ * so checking a tile is much cheaper than running the model on it.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+@FunctionalInterface
+public interface TileFilter {
+
+	/**
+	 * Decide whether the nth tile is background
+	 * @param tiles
+	 * 	the {@link TileMaker} that defines the tiling strategy
+	 * @param nTile
+	 * 	index of the tile
+	 * @param inputTiles
+	 * 	the input tiles, halo included, in the same order as the input tensors
+	 * @return true if the model does not need to be run on the tile
+	 */
+	boolean isBackground(TileMaker tiles, int nTile, List<Tensor<?>> inputTiles);
+
+	/**
+	 * Tiles whose maximum intensity is below a threshold in every input are background
+	 * @param threshold
+	 * 	the intensity threshold
+	 * @param subsampling
+	 * 	only one pixel out of every {@code subsampling} pixels along each axis is checked
+	 * @return the filter
+	 */
+	static TileFilter maxBelow(double threshold, int subsampling) {
+		if (subsampling < 1)
+			throw new IllegalArgumentException("The subsampling step has to be at least 1: " + subsampling);
+		return (tiles, nTile, inputTiles) -> {
+			for (Tensor<?> tt : inputTiles) {
+				for (RealType<?> px : Views.subsample(tt.getData(), subsampling)) {
+					if (px.getRealDouble() >= threshold)
+						return false;
+				}
+			}
+			return true;
+		};
+	}
+
+	/**
+	 * Tiles whose intensity variance is below epsilon in every input are background. This catches
+	 * flat regions with any offset, for example the camera baseline
+	 * @param epsilon
+	 * 	the maximum variance of a background tile
+	 * @param subsampling
+	 * 	only one pixel out of every {@code subsampling} pixels along each axis is checked
+	 * @return the filter
+	 */
+	static TileFilter varianceBelow(double epsilon, int subsampling) {
+		if (subsampling < 1)
+			throw new IllegalArgumentException("The subsampling step has to be at least 1: " + subsampling);
+		return (tiles, nTile, inputTiles) -> {
+			for (Tensor<?> tt : inputTiles) {
+				long n = 0;
+				double mean = 0;
+				double m2 = 0;
+				for (RealType<?> px : Views.subsample(tt.getData(), subsampling)) {
+					double val = px.getRealDouble();
+					n ++;
+					double delta = val - mean;
+					mean += delta / n;
+					m2 += delta * (val - mean);
+				}
+				if (n > 0 && m2 / n >= epsilon)
+					return false;
+			}
+			return true;
+		};
+	}
+
+	/**
+	 * Tiles that do not contain any foreground pixel of a mask are background. The mask has to be
+	 * defined in the coordinates of one of the input images and have its same size
+	 * @param <B>
+	 * 	ImgLib2 data type of the mask
+	 * @param tensorName
+	 * 	name of the input tensor the mask refers to
+	 * @param mask
+	 * 	the mask, true pixels are foreground
+	 * @param subsampling
+	 * 	only one pixel out of every {@code subsampling} pixels along each axis is checked. Masks
+	 * 	with small foreground regions need a small subsampling
+	 * @return the filter
+	 */
+	static <B extends BooleanType<B>> TileFilter outsideMask(String tensorName, RandomAccessibleInterval<B> mask, int subsampling) {
+		if (subsampling < 1)
+			throw new IllegalArgumentException("The subsampling step has to be at least 1: " + subsampling);
+		return (tiles, nTile, inputTiles) -> {
+			long[] start = tiles.getInputInsertionPoints(tensorName, nTile);
+			long[] size = tiles.getInputTileSize(tensorName);
+			if (start.length != mask.numDimensions())
+				throw new IllegalArgumentException("The mask has " + mask.numDimensions() + " dimensions but the "
+						+ "input tensor '" + tensorName + "' has " + start.length + ".");
+			long[] min = new long[start.length];
+			long[] max = new long[start.length];
+			for (int i = 0; i < start.length; i ++) {
+				min[i] = Math.max(mask.min(i), start[i]);
+				max[i] = Math.min(mask.max(i), start[i] + size[i] - 1);
+				if (max[i] < min[i])
+					return true;
+			}
+			RandomAccessibleInterval<B> region = Views.zeroMin(Views.interval(mask, new FinalInterval(min, max)));
+			for (B px : Views.subsample(region, subsampling)) {
+				if (px.get())
+					return false;
+			}
+			return true;
+		};
+	}
+}
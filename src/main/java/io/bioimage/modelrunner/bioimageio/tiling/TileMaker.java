@@ -34,7 +34,6 @@ import io.bioimage.modelrunner.bioimageio.description.TensorSpec;
 import io.bioimage.modelrunner.tensor.Tensor;
 import io.bioimage.modelrunner.utils.Constants;
 import io.bioimage.modelrunner.utils.IndexingUtils;
-import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -63,11 +62,21 @@ public class TileMaker {
 	
 	private final LinkedHashMap<String, TileGrid> outputGrid = new LinkedHashMap<String, TileGrid>();
 	
+	private TilePlan plan;
+	
+	/**
+	 * Per-thread scratch arrays used to read the {@link TilePlan} when cutting tiles, so extracting
+	 * a tile does not allocate intermediate coordinate arrays. {@link Views#interval} copies the
+	 * bounds it is given, so the arrays can be reused right away
+	 */
+	private static final ThreadLocal<long[][]> TILE_BUFFERS = new ThreadLocal<long[][]>();
+	
 	private TileMaker(ModelDescriptor descriptor, List<TileInfo> tileInfoList) {
 		this.descriptor = descriptor;
 		this.inputTileInfo = tileInfoList;
 		validate();
 		calculate();
+		plan = TilePlan.create(inputGrid, outputGrid);
 	}
 	
 	private TileMaker(List<TileInfo> inputTiles, List<TileInfo> outputTiles) {
@@ -85,6 +94,7 @@ public class TileMaker {
 			output.put(tile.getName(), patch);
 			outputGrid.put(tile.getName(), TileGrid.create(patch));
 		}
+		plan = TilePlan.create(inputGrid, outputGrid);
 	}
 	
 	private PatchSpec createPatch(TileInfo tile) {
@@ -421,7 +431,16 @@ public class TileMaker {
      * @return the maximum number of tiles into which any of the input images is going to be tiled
      */
     public int getNumberOfTiles() {
-    	return inputGrid.get(this.descriptor.getInputTensors().get(0).getName()).getRoiPostionsInImage().size();
+    	return plan.getNumberOfTiles();
+    }
+    
+    /**
+     * 
+     * @return the immutable {@link TilePlan} with the precomputed coordinates of every tile. It can be
+     * 	shared between threads and reused for any image of the same size
+     */
+    public TilePlan getTilePlan() {
+    	return plan;
     }
     
     /**
@@ -439,11 +458,13 @@ public class TileMaker {
      * 	name of the tensor as per the Bioimage.io rdf.yaml file
      * @param nTile
      * 	the nth tile for which we want the information, should be smaller than the number of total tiles
+     * @return the position of the first pixel of the tile in the input image. It might be negative
+     * 	as the image is padded on the edges
      */
-	public void getInputInsertionPoints(String tensorName, int nTile) {
-    	TileInfo tile = this.inputTileInfo.stream().filter(t -> t.getName().equals(tensorName)).findFirst().orElse(null);
-    	if (tile == null)
-    		throw new IllegalArgumentException("Input tensor '" + tensorName + "' does not require tiling.");
+	public long[] getInputInsertionPoints(String tensorName, int nTile) {
+		long[] start = new long[plan.getInputNumDimensions(tensorName)];
+		plan.getInputTileStart(tensorName, nTile, start);
+		return start;
 	}
 	
     /**
@@ -453,11 +474,13 @@ public class TileMaker {
      * 	name of the tensor as per the Bioimage.io rdf.yaml file
      * @param nTile
      * 	the nth tile for which we want the information, should be smaller than the number of total tiles
+     * @return the position of the first pixel of the tile, halo included, in the output image. It might
+     * 	be negative as the halo can fall outside of the image
      */
-	public void getOutputInsertionPoints(String tensorName, int nTile) {
-    	TileInfo tile = this.outputTileInfo.stream().filter(t -> t.getName().equals(tensorName)).findFirst().orElse(null);
-    	if (tile == null)
-    		throw new IllegalArgumentException("Output tensor '" + tensorName + "' does not require tiling.");
+	public long[] getOutputInsertionPoints(String tensorName, int nTile) {
+		long[] start = new long[plan.getOutputNumDimensions(tensorName)];
+		plan.getOutputTileStart(tensorName, nTile, start);
+		return start;
 	}
     
     /**
@@ -561,6 +584,15 @@ public class TileMaker {
     	return outputGrid.get(tensorName).getTilePostionsInImage();
     }
     
+    private static long[][] tileBuffers(int nDims) {
+    	long[][] buffers = TILE_BUFFERS.get();
+    	if (buffers == null || buffers[0].length != nDims) {
+    		buffers = new long[4][nDims];
+    		TILE_BUFFERS.set(buffers);
+    	}
+    	return buffers;
+    }
+    
     /**
      * Same as {@link #getInputInsertionPoints(String, int)}, but instead of returning the coordinates where the tile is 
      * cut, it returns the actual tile
@@ -575,17 +607,14 @@ public class TileMaker {
      * @return the wanted tile cut from the image provided
      */
     public <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<T> getNthTileInput(String tensorName, RandomAccessibleInterval<T> rai, int n) {
-    	List<long[]> tiles = this.getTilePostionsInputImage(tensorName);
-    	if (tiles.size() <= n) {
-    		throw new IllegalArgumentException("There are only " + tiles.size() + " tiles. Tile " + n 
-    				+ " is out of bounds.");
-    	}
-    	long[] minLim = tiles.get(n);
-    	long[] size = this.getInputTileSize(tensorName);
-    	long[] maxLim = new long[size.length];
-    	for (int i = 0; i < size.length; i ++) maxLim[i] = minLim[i] + size[i] - 1;
-		RandomAccessibleInterval<T> tileRai = Views.interval(
-				Views.extendMirrorDouble(rai), new FinalInterval( minLim, maxLim ));
+    	int nDims = plan.getInputNumDimensions(tensorName);
+    	long[][] buffers = tileBuffers(nDims);
+    	long[] min = buffers[0];
+    	long[] max = buffers[1];
+    	plan.getInputTileStart(tensorName, n, min);
+    	plan.getInputTileSize(tensorName, max);
+    	for (int i = 0; i < nDims; i ++) max[i] += min[i] - 1;
+		RandomAccessibleInterval<T> tileRai = Views.interval(Views.extendMirrorDouble(rai), min, max);
     	return tileRai;
     }
     
@@ -603,30 +632,23 @@ public class TileMaker {
      * @return the wanted tile cut from the image provided
      */
     public <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<T> getNthTileOutput(String tensorName, RandomAccessibleInterval<T> rai, int n) {
-    	List<long[]> tiles = this.getTilePostionsOutputImage(tensorName);
-    	if (tiles.size() <= n) {
-    		throw new IllegalArgumentException("There are only " + tiles.size() + " tiles. Tile " + n 
-    				+ " is out of bounds.");
-    	}
-    	long[] minLim = tiles.get(n);
-    	int[] rois = this.getOutputRoiSize(tensorName);
-    	long[] size = this.getOutputTileSize(tensorName);
-    	int[][] padding = new int[2][rois.length];
-    	for (int i = 0; i < rois.length; i ++) {
-    		padding[0][i] = (int) Math.ceil((size[i] - rois[i]) / 2.0);
-    		padding[1][i] = (int) (size[i] - rois[i] - padding[0][i]);
+    	int nDims = plan.getOutputNumDimensions(tensorName);
+    	long[][] buffers = tileBuffers(nDims);
+    	long[] min = buffers[0];
+    	long[] max = buffers[1];
+    	long[] roiMin = buffers[2];
+    	long[] roiMax = buffers[3];
+    	plan.getOutputTileStart(tensorName, n, min);
+    	plan.getOutputTileSize(tensorName, max);
+    	plan.getOutputRoiOffset(tensorName, roiMin);
+    	plan.getOutputRoiSize(tensorName, roiMax);
+    	for (int i = 0; i < nDims; i ++) {
+    		roiMin[i] += min[i];
+    		roiMax[i] += roiMin[i] - 1;
+    		max[i] += min[i] - 1;
     	}
-    	long[] maxLim = new long[size.length];
-    	for (int i = 0; i < size.length; i ++) maxLim[i] = minLim[i] + size[i] - 1;
-    	
-    	long[] minLimNoPad = new long[minLim.length];
-    	for (int i = 0; i < size.length; i ++) minLimNoPad[i] = minLim[i] + padding[0][i];
-    	long[] maxLimNoPad = new long[maxLim.length];
-    	for (int i = 0; i < size.length; i ++) maxLimNoPad[i] = maxLim[i] - padding[1][i];
-		RandomAccessibleInterval<T> tileRai = Views.interval(
-				rai, new FinalInterval( minLimNoPad, maxLimNoPad ));
-		RandomAccessibleInterval<T> extendedTileRai = Views.interval(
-				Views.extendZero(tileRai), new FinalInterval( minLim, maxLim ));
+		RandomAccessibleInterval<T> tileRai = Views.interval(rai, roiMin, roiMax);
+		RandomAccessibleInterval<T> extendedTileRai = Views.interval(Views.extendZero(tileRai), min, max);
     	return extendedTileRai;
     }
     
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.bioimageio.tiling;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable and thread-safe description of where every tile of a tiling strategy is cut from
+ * the input images and inserted in the output images.
+ * The coordinates of every tile are precomputed in flat primitive arrays, so the per-tile lookups
+ * do not allocate any memory when a destination array is provided.
+ * A plan only depends on the model and on the size of the input images, thus it can be reused to
+ * process any number of images of the same size.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public final class TilePlan {
+
+	private final int nTiles;
+
+	private final Map<String, TensorPlan> inputs;
+
+	private final Map<String, TensorPlan> outputs;
+
+	private TilePlan(int nTiles, Map<String, TensorPlan> inputs, Map<String, TensorPlan> outputs) {
+		this.nTiles = nTiles;
+		this.inputs = Collections.unmodifiableMap(inputs);
+		this.outputs = Collections.unmodifiableMap(outputs);
+	}
+
+	/**
+	 * Create the plan from the grids calculated for every tensor
+	 * @param inputGrid
+	 * 	the {@link TileGrid} of each of the input tensors
+	 * @param outputGrid
+	 * 	the {@link TileGrid} of each of the output tensors
+	 * @return the plan
+	 */
+	protected static TilePlan create(Map<String, TileGrid> inputGrid, Map<String, TileGrid> outputGrid) {
+		Map<String, TensorPlan> inputs = new HashMap<String, TensorPlan>();
+		Map<String, TensorPlan> outputs = new HashMap<String, TensorPlan>();
+		int nTiles = 0;
+		for (TileGrid grid : inputGrid.values()) {
+			TensorPlan plan = new TensorPlan(grid);
+			if (inputs.isEmpty())
+				nTiles = plan.nTiles;
+			inputs.put(grid.getTensorName(), plan);
+		}
+		for (TileGrid grid : outputGrid.values())
+			outputs.put(grid.getTensorName(), new TensorPlan(grid));
+		return new TilePlan(nTiles, inputs, outputs);
+	}
+
+	/**
+	 *
+	 * @return the number of tiles into which the input images are divided
+	 */
+	public int getNumberOfTiles() {
+		return nTiles;
+	}
+
+	/**
+	 * Whether the plan contains the wanted input tensor
+	 * @param tensorName
+	 * 	name of the tensor
+	 * @return true if the input tensor is tiled by this plan
+	 */
+	public boolean hasInput(String tensorName) {
+		return inputs.containsKey(tensorName);
+	}
+
+	/**
+	 * Whether the plan contains the wanted output tensor
+	 * @param tensorName
+	 * 	name of the tensor
+	 * @return true if the output tensor is tiled by this plan
+	 */
+	public boolean hasOutput(String tensorName) {
+		return outputs.containsKey(tensorName);
+	}
+
+	/**
+	 * Number of dimensions of the tiles of an input tensor
+	 * @param tensorName
+	 * 	name of the input tensor
+	 * @return the number of dimensions
+	 */
+	public int getInputNumDimensions(String tensorName) {
+		return getInput(tensorName).tileSize.length;
+	}
+
+	/**
+	 * Number of dimensions of the tiles of an output tensor
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @return the number of dimensions
+	 */
+	public int getOutputNumDimensions(String tensorName) {
+		return getOutput(tensorName).tileSize.length;
+	}
+
+	/**
+	 * Write the size of the tiles of an input tensor into {@code dest}
+	 * @param tensorName
+	 * 	name of the input tensor
+	 * @param dest
+	 * 	array where the size is written
+	 */
+	public void getInputTileSize(String tensorName, long[] dest) {
+		TensorPlan plan = getInput(tensorName);
+		System.arraycopy(plan.tileSize, 0, dest, 0, plan.tileSize.length);
+	}
+
+	/**
+	 * Write the size of the tiles of an output tensor into {@code dest}
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @param dest
+	 * 	array where the size is written
+	 */
+	public void getOutputTileSize(String tensorName, long[] dest) {
+		TensorPlan plan = getOutput(tensorName);
+		System.arraycopy(plan.tileSize, 0, dest, 0, plan.tileSize.length);
+	}
+
+	/**
+	 * Write the position of the first pixel of the nth tile of an input tensor in the input
+	 * image into {@code dest}. The position might be negative, as the image is padded at the borders
+	 * @param tensorName
+	 * 	name of the input tensor
+	 * @param n
+	 * 	index of the tile
+	 * @param dest
+	 * 	array where the position is written
+	 */
+	public void getInputTileStart(String tensorName, int n, long[] dest) {
+		getInput(tensorName).copy(getInput(tensorName).tileStarts, n, dest);
+	}
+
+	/**
+	 * Write the position of the first pixel of the nth tile of an output tensor in the output
+	 * image into {@code dest}. The position might be negative, as the halo can fall outside of the image
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @param n
+	 * 	index of the tile
+	 * @param dest
+	 * 	array where the position is written
+	 */
+	public void getOutputTileStart(String tensorName, int n, long[] dest) {
+		getOutput(tensorName).copy(getOutput(tensorName).tileStarts, n, dest);
+	}
+
+	/**
+	 * Write the position in the output image where the region of interest of the nth tile of an
+	 * output tensor is inserted into {@code dest}
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @param n
+	 * 	index of the tile
+	 * @param dest
+	 * 	array where the position is written
+	 */
+	public void getOutputRoiStart(String tensorName, int n, long[] dest) {
+		getOutput(tensorName).copy(getOutput(tensorName).roiStarts, n, dest);
+	}
+
+	/**
+	 * Write the offset of the region of interest inside the tiles of an output tensor into {@code dest}
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @param dest
+	 * 	array where the offset is written
+	 */
+	public void getOutputRoiOffset(String tensorName, long[] dest) {
+		TensorPlan plan = getOutput(tensorName);
+		System.arraycopy(plan.roiOffset, 0, dest, 0, plan.roiOffset.length);
+	}
+
+	/**
+	 * Write the size of the region of interest of the tiles of an output tensor into {@code dest}
+	 * @param tensorName
+	 * 	name of the output tensor
+	 * @param dest
+	 * 	array where the size is written
+	 */
+	public void getOutputRoiSize(String tensorName, long[] dest) {
+		TensorPlan plan = getOutput(tensorName);
+		System.arraycopy(plan.roiSize, 0, dest, 0, plan.roiSize.length);
+	}
+
+	private TensorPlan getInput(String tensorName) {
+		TensorPlan plan = inputs.get(tensorName);
+		if (plan == null)
+			throw new IllegalArgumentException("Input tensor '" + tensorName + "' does not require tiling.");
+		return plan;
+	}
+
+	private TensorPlan getOutput(String tensorName) {
+		TensorPlan plan = outputs.get(tensorName);
+		if (plan == null)
+			throw new IllegalArgumentException("Output tensor '" + tensorName + "' does not require tiling.");
+		return plan;
+	}
+
+	/**
+	 * Coordinates of every tile of a single tensor, flattened so that the coordinates of tile n
+	 * start at position n * nDims
+	 */
+	private static final class TensorPlan {
+
+		private final int nTiles;
+
+		private final long[] tileSize;
+
+		private final long[] roiSize;
+
+		private final long[] roiOffset;
+
+		private final long[] tileStarts;
+
+		private final long[] roiStarts;
+
+		private TensorPlan(TileGrid grid) {
+			List<long[]> starts = grid.getTilePostionsInImage();
+			List<long[]> rois = grid.getRoiPostionsInImage();
+			this.nTiles = starts.size();
+			this.tileSize = grid.getTileSize().clone();
+			int nDims = tileSize.length;
+			this.roiSize = new long[nDims];
+			for (int i = 0; i < nDims; i ++)
+				this.roiSize[i] = grid.getRoiSize()[i];
+			this.roiOffset = nTiles == 0 ? new long[nDims] : grid.getRoiPositionsInTile().get(0).clone();
+			this.tileStarts = new long[nTiles * nDims];
+			this.roiStarts = new long[nTiles * nDims];
+			for (int n = 0; n < nTiles; n ++) {
+				System.arraycopy(starts.get(n), 0, tileStarts, n * nDims, nDims);
+				System.arraycopy(rois.get(n), 0, roiStarts, n * nDims, nDims);
+			}
+		}
+
+		private void copy(long[] flat, int n, long[] dest) {
+			if (n < 0 || n >= nTiles)
+				throw new IllegalArgumentException("There are only " + nTiles + " tiles. Tile " + n
+						+ " is out of bounds.");
+			System.arraycopy(flat, n * tileSize.length, dest, 0, tileSize.length);
+		}
+	}
+}
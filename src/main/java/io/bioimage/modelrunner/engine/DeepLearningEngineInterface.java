@@ -20,6 +20,7 @@
 package io.bioimage.modelrunner.engine;
 
 import java.util.List;
+import java.util.Set;
 
 import io.bioimage.modelrunner.tensor.Tensor;
 import net.imglib2.RandomAccessibleInterval;
@@ -86,4 +87,15 @@ public interface DeepLearningEngineInterface
 	 * Closes the model loaded on the class on a particular ClassLoader
 	 */
 	public void closeModel();
+
+	/**
+	 * Data types that the engine accepts for the input tensors without converting them, with the same
+	 * names as the Bioimage.io specs, for example 'uint8' or 'float32'. The inputs of other data types
+	 * are converted to float32 before being given to the engine
+	 * @return the data types accepted by the engine, or null if the engine does not report them, in which
+	 * 	case the data types declared by the model, if any, are trusted
+	 */
+	public default Set<String> getSupportedDataTypes() {
+		return null;
+	}
 }
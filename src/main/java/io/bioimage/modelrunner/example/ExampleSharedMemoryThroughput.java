@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.example;
+
+import java.io.IOException;
+
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Class that measures how fast images are copied into shared memory segments, the step
+ * that sends every tensor to the Python processes.
+ * It copies a float image backed by an array, both in fortran order (bulk copy of the array)
+ * and in c order (parallel chunked copy), and a view of the image.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class ExampleSharedMemoryThroughput {
+
+	/**
+	 * Default size of the image copied, in MB
+	 */
+	private static final int DEFAULT_MB = 512;
+
+	/**
+	 * Number of times each copy is repeated
+	 */
+	private static final int REPEATS = 5;
+
+	/**
+	 * Run the benchmark
+	 * @param args
+	 * 	optionally, the size of the image in MB
+	 * @throws IOException if there is any error closing the shared memory segments
+	 */
+	public static void main(String[] args) throws IOException {
+		long mb = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MB;
+		long nPixels = mb * 1024 * 1024 / 4;
+		long side = (long) Math.sqrt(nPixels / 4);
+		Img<FloatType> img = ArrayImgs.floats(side, side, 4);
+		LoopBuilder.setImages(img).multiThreaded().forEachPixel(px -> px.set((float) Math.random()));
+		measure("ArrayImg, fortran order", img, true);
+		measure("ArrayImg, c order", img, false);
+		measure("View, fortran order", Views.interval(Views.extendBorder(img), img), true);
+	}
+
+	private static void measure(String name, RandomAccessibleInterval<FloatType> rai, boolean isFortran) throws IOException {
+		double bytes = rai.dimensionsAsLongArray()[0] * rai.dimensionsAsLongArray()[1] * rai.dimensionsAsLongArray()[2] * 4;
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < REPEATS; i ++) {
+			long t0 = System.nanoTime();
+			SharedMemoryArray shma = SharedMemoryArray.createSHMAFromRAI(rai, isFortran, true);
+			best = Math.min(best, System.nanoTime() - t0);
+			shma.close();
+		}
+		System.out.println(String.format("%s: %.1f MB in %.1f ms, %.2f GB/s",
+				name, bytes / 1024 / 1024, best / 1e6, bytes / best));
+	}
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import io.bioimage.modelrunner.apposed.appose.Environment;
+import io.bioimage.modelrunner.apposed.appose.Service;
+import io.bioimage.modelrunner.apposed.appose.Service.Framing;
+import io.bioimage.modelrunner.apposed.appose.Service.Task;
+import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
+import io.bioimage.modelrunner.apposed.appose.Types;
+
+/**
+ * Compare the messages per second and the latency of the JSON lines and of the length-prefixed
+ * MessagePack framings of the messages exchanged with the Appose workers.
+ *
+ * Without an environment only the encoding and decoding of the messages is measured, including the
+ * former JSON path that created a new Gson for every message. With the directory of a Python environment
+ * that has the Appose version bundled with JDLL and the 'msgpack' package installed, the round trip of
+ * tasks that echo their inputs is measured too.
+ *
+ * Usage: FramingBenchmark [number of coordinates per message, default 10000] [messages, default 1000]
+ * [directory of the Python environment]
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class FramingBenchmark {
+
+	private static final String ECHO_SCRIPT = "task.outputs['coords'] = coords" + System.lineSeparator()
+			+ "task.outputs['shape'] = shape" + System.lineSeparator()
+			+ "task.outputs['kwargs'] = kwargs" + System.lineSeparator();
+
+	/**
+	 * Run the benchmark and print the messages per second and latency of every framing
+	 * @param args
+	 * 	optional number of coordinates per message, number of messages and directory of a Python environment
+	 * @throws IOException if there is any error launching the worker
+	 * @throws InterruptedException if the benchmark is interrupted while waiting for the worker
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int coords = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		Map<String, Object> inputs = createInputs(coords);
+		Map<String, Object> request = new HashMap<String, Object>();
+		request.put("task", UUID.randomUUID().toString());
+		request.put("requestType", Service.RequestType.EXECUTE.toString());
+		request.put("script", ECHO_SCRIPT);
+		request.put("inputs", inputs);
+		System.out.println("Messages with " + coords + " coordinates, " + messages + " messages, Java "
+				+ System.getProperty("java.version"));
+		System.out.println("JSON message: " + Types.encode(request).length() + " bytes, MessagePack message: "
+				+ Types.encodeBinary(request).length + " bytes");
+		codec("json, new Gson per message", request, messages, Framing.JSON, true);
+		codec("json", request, messages, Framing.JSON, false);
+		codec("msgpack", request, messages, Framing.MSGPACK, false);
+		if (args.length < 3)
+			return;
+		for (Framing framing : Framing.values())
+			roundTrip(args[2], inputs, messages, framing);
+	}
+
+	private static Map<String, Object> createInputs(int coords) {
+		List<Double> coordList = new ArrayList<Double>(coords);
+		for (int i = 0; i < coords; i ++)
+			coordList.add(i * 0.5);
+		Map<String, Object> kwargs = new HashMap<String, Object>();
+		kwargs.put("prob_thresh", 0.479071463157368);
+		kwargs.put("nms_thresh", 0.3);
+		kwargs.put("n_tiles", Arrays.asList(1, 4, 4));
+		kwargs.put("axes", "YXC");
+		Map<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("coords", coordList);
+		inputs.put("shape", Arrays.asList(1, 512, 512, 3));
+		inputs.put("kwargs", kwargs);
+		return inputs;
+	}
+
+	private static void codec(String name, Map<String, Object> message, int messages, Framing framing, boolean newGson) {
+		Type mapType = new TypeToken<HashMap<String, Object>>() {}.getType();
+		long[] latencies = new long[messages];
+		int warmup = Math.max(10, messages / 10);
+		long total = 0;
+		for (int i = - warmup; i < messages; i ++) {
+			long t0 = System.nanoTime();
+			Map<String, Object> decoded;
+			if (framing == Framing.MSGPACK) {
+				byte[] bytes = Types.encodeBinary(message);
+				decoded = Types.decodeBinary(bytes, 0, bytes.length);
+			} else if (newGson) {
+				decoded = new Gson().fromJson(new Gson().toJson(message), mapType);
+			} else {
+				decoded = Types.decode(Types.encode(message));
+			}
+			long t1 = System.nanoTime();
+			if (decoded.size() != message.size())
+				throw new IllegalStateException("The message was not decoded correctly.");
+			if (i < 0)
+				continue;
+			latencies[i] = t1 - t0;
+			total += t1 - t0;
+		}
+		print(name + " (encode + decode)", latencies, total);
+	}
+
+	private static void roundTrip(String envDir, Map<String, Object> inputs, int messages, Framing framing)
+			throws IOException, InterruptedException {
+		String base = new File(envDir).getAbsolutePath();
+		Environment env = new Environment() {
+			@Override public String base() { return base; }
+			};
+		try (Service python = env.python()) {
+			python.setFraming(framing);
+			long[] latencies = new long[messages];
+			int warmup = Math.max(10, messages / 10);
+			long total = 0;
+			for (int i = - warmup; i < messages; i ++) {
+				long t0 = System.nanoTime();
+				Task task = python.task(ECHO_SCRIPT, inputs);
+				task.waitFor();
+				long t1 = System.nanoTime();
+				if (task.status != TaskStatus.COMPLETE)
+					throw new RuntimeException("The benchmark task did not complete: " + task.error);
+				if (i < 0)
+					continue;
+				latencies[i] = t1 - t0;
+				total += t1 - t0;
+			}
+			print(python.getFraming().toString().toLowerCase() + " (task round trip, asked for "
+					+ framing.toString().toLowerCase() + ")", latencies, total);
+		}
+	}
+
+	private static void print(String name, long[] latencies, long total) {
+		Arrays.sort(latencies);
+		int n = latencies.length;
+		System.out.println(String.format("%s: %.1f messages/s, mean %.3f ms, p50 %.3f ms, p99 %.3f ms",
+				name, n / (total / 1e9), total / 1e6 / n, latencies[n / 2] / 1e6,
+				latencies[Math.min(n - 1, (int) (n * 0.99))] / 1e6));
+	}
+}
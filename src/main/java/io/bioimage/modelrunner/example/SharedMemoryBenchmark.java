@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.example;
+
+import java.io.IOException;
+
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryAccess;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Compare the time needed to create, fill and read shared memory segments with the JNA backend and,
+ * if the JVM supports it, with the Foreign Function and Memory API backend of {@link SharedMemoryAccess}.
+ *
+ * Usage: SharedMemoryBenchmark [side of the square float32 image, default 2048] [repetitions, default 10]
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class SharedMemoryBenchmark {
+
+	private static final int WARMUP = 3;
+
+	/**
+	 * Run the benchmark and print the mean time of every operation for each backend
+	 * @param args
+	 * 	optional side of the image and number of repetitions
+	 * @throws IOException if there is any error closing the segments
+	 */
+	public static void main(String[] args) throws IOException {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+		int reps = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		boolean original = SharedMemoryAccess.isForeignMemory();
+		System.out.println("Image of " + side + "x" + side + " float32 (" + (4L * side * side) + " bytes), "
+				+ reps + " repetitions, Java " + System.getProperty("java.version"));
+		try {
+			SharedMemoryAccess.setForeignMemory(false);
+			run("jna", side, reps);
+			if (SharedMemoryAccess.setForeignMemory(true))
+				run("foreign", side, reps);
+			else
+				System.out.println("The Foreign Function and Memory API backend is not available in this JVM.");
+		} finally {
+			SharedMemoryAccess.setForeignMemory(original);
+		}
+	}
+
+	private static void run(String backend, int side, int reps) throws IOException {
+		long[] shape = new long[] {side, side};
+		int n = side * side;
+		float[] array = new float[n];
+		for (int i = 0; i < n; i ++)
+			array[i] = i % 255;
+		// create, fill pixel by pixel, read pixel by pixel, bulk write, bulk read
+		long[] times = new long[5];
+		double checksum = 0;
+		for (int r = 0; r < WARMUP + reps; r ++) {
+			long t0 = System.nanoTime();
+			SharedMemoryArray shma = SharedMemoryArray.create(4L * n);
+			long t1 = System.nanoTime();
+			RandomAccessibleInterval<FloatType> rai = shma.getSharedRAI(shape, new FloatType(), false);
+			float v = 0;
+			for (FloatType px : Views.flatIterable(rai))
+				px.set(v ++);
+			long t2 = System.nanoTime();
+			double sum = 0;
+			Cursor<FloatType> cursor = Views.flatIterable(rai).cursor();
+			while (cursor.hasNext())
+				sum += cursor.next().get();
+			long t3 = System.nanoTime();
+			SharedMemoryAccess.write(shma.getPointer(), 0, array, n);
+			long t4 = System.nanoTime();
+			SharedMemoryAccess.read(shma.getPointer(), 0, array, n);
+			long t5 = System.nanoTime();
+			shma.close();
+			checksum += sum + array[n - 1];
+			if (r < WARMUP)
+				continue;
+			times[0] += t1 - t0;
+			times[1] += t2 - t1;
+			times[2] += t3 - t2;
+			times[3] += t4 - t3;
+			times[4] += t5 - t4;
+		}
+		String[] names = new String[] {"create", "fill", "read", "bulk write", "bulk read"};
+		StringBuilder sb = new StringBuilder(backend + ":");
+		for (int i = 0; i < names.length; i ++)
+			sb.append(String.format(" %s %.3f ms,", names[i], times[i] / 1e6 / reps));
+		sb.append(" checksum ").append(checksum);
+		System.out.println(sb.toString());
+	}
+}
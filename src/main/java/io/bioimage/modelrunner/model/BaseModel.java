@@ -26,7 +26,12 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import io.bioimage.modelrunner.apposed.appose.Types;
 import io.bioimage.modelrunner.bioimageio.description.exceptions.ModelSpecsException;
 import io.bioimage.modelrunner.exceptions.LoadModelException;
 import io.bioimage.modelrunner.exceptions.RunModelException;
@@ -50,6 +55,16 @@ public abstract class BaseModel implements Closeable
 	 * Path to the folder containing the Bioimage.io model
 	 */
 	protected String modelFolder;
+	
+	/**
+	 * Runs the models asynchronously when they do not provide a non-blocking implementation of
+	 * {@link #runAsync(List, List)} and {@link #runAsync(List)}
+	 */
+	protected static final ExecutorService ASYNC_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "JDLL-Model-Run");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	/**
 	 * Load the model wanted to make inference into the particular ClassLoader
@@ -106,6 +121,81 @@ public abstract class BaseModel implements Closeable
 	List<Tensor<T>> run(List<Tensor<R>> inputTensors) 
 			throws RunModelException;
 
+	/**
+	 * Same as {@link #run(List, List)} but without waiting for the model to finish.
+	 * The models that run in a separate process, as the Python ones, do not block any thread while
+	 * the model runs, the rest run in a thread of a shared pool
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param <R>
+	 * 	ImgLib2 data type of the output tensors, it can be the same as in the input
+	 * @param inTensors
+	 *            input tensors containing all the tensor data
+	 * @param outTensors
+	 *            expected output tensors. Their backend data will be rewritten with the result of the inference
+	 * @return future completed once the output tensors have been written, or completed exceptionally with
+	 * 	the {@link RunModelException} if there is any problem running the model
+	 */
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Void> runAsync( List< Tensor < T > > inTensors, List< Tensor < R > > outTensors ) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				run(inTensors, outTensors);
+			} catch (RunModelException e) {
+				throw new CompletionException(e);
+			}
+		}, ASYNC_EXECUTOR);
+	}
+	
+	/**
+	 * Same as {@link #run(List)} but without waiting for the model to finish.
+	 * The models that run in a separate process, as the Python ones, do not block any thread while
+	 * the model runs, the rest run in a thread of a shared pool
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output images
+	 * @param <R>
+	 * 	ImgLib2 data type of the input images
+	 * @param inputTensors
+	 * 	list of the input tensors that are going to be inputed to the model
+	 * @return future completed with the resulting tensors, or completed exceptionally with
+	 * 	the {@link RunModelException} if there is any problem running the model
+	 */
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<List<Tensor<T>>> runAsync(List<Tensor<R>> inputTensors) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return run(inputTensors);
+			} catch (RunModelException e) {
+				throw new CompletionException(e);
+			}
+		}, ASYNC_EXECUTOR);
+	}
+
+	/**
+	 * Complete the future exceptionally with a {@link RunModelException} if it fails
+	 */
+	protected static <V> CompletableFuture<V> toRunModelException(CompletableFuture<V> future) {
+		CompletableFuture<V> result = new CompletableFuture<V>();
+		future.whenComplete((v, exc) -> {
+			if (exc == null) {
+				result.complete(v);
+				return;
+			}
+			Throwable cause = exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc;
+			result.completeExceptionally(cause instanceof RunModelException ? cause 
+					: new RunModelException(Types.stackTrace(cause)));
+		});
+		return result;
+	}
+	
+	protected static <V> CompletableFuture<V> failedFuture(Throwable exc) {
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		future.completeExceptionally(exc);
+		return future;
+	}
+	
 	/**
 	 * Get the folder where this model is located
 	 * 
@@ -28,17 +28,24 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import io.bioimage.modelrunner.bioimageio.tiling.ImageInfo;
 import io.bioimage.modelrunner.bioimageio.tiling.TileCalculator;
+import io.bioimage.modelrunner.bioimageio.description.Axis;
+import io.bioimage.modelrunner.bioimageio.description.AxisV05;
 import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
 import io.bioimage.modelrunner.bioimageio.description.ModelDescriptorFactory;
 import io.bioimage.modelrunner.bioimageio.description.TensorSpec;
 import io.bioimage.modelrunner.bioimageio.description.weights.ModelWeight;
 import io.bioimage.modelrunner.bioimageio.description.weights.WeightFormat;
+import io.bioimage.modelrunner.bioimageio.tiling.OutputTileConsumer;
 import io.bioimage.modelrunner.bioimageio.tiling.TileInfo;
 import io.bioimage.modelrunner.bioimageio.tiling.TileMaker;
 import io.bioimage.modelrunner.engine.EngineInfo;
@@ -47,14 +54,21 @@ import io.bioimage.modelrunner.exceptions.LoadModelException;
 import io.bioimage.modelrunner.exceptions.RunModelException;
 import io.bioimage.modelrunner.model.processing.Processing;
 import io.bioimage.modelrunner.tensor.Tensor;
+import io.bioimage.modelrunner.utils.CommonUtils;
 import io.bioimage.modelrunner.utils.Constants;
 import io.bioimage.modelrunner.versionmanagement.InstalledEngines;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 /**
  * Class that manages a Deep Learning model to load it and run it.
@@ -75,6 +89,29 @@ public class BioimageIoModelJava extends DLModelJava
 	 * Calculates the tile sizes depending on the model specs
 	 */
 	protected TileCalculator tileCalculator;
+	/**
+	 * Memory budget in bytes used to decide the size of the tiles. If it is null the tile size is
+	 * decided by {@link TileCalculator#getOptimalTileSize(List)}, if it is 0 the budget is detected
+	 * automatically from the memory available
+	 */
+	protected Long tileMemoryBudget;
+	/**
+	 * Maximum number of different input sizes whose tiling is kept
+	 */
+	private static final int MAX_CACHED_TILINGS = 16;
+	/**
+	 * Tiling calculated for each of the input sizes already processed, keyed by the name, axes order
+	 * and size of every input. When it is full, the tiling used least recently is dropped
+	 */
+	private final Map<String, TileMaker> tileMakerCache = Collections.synchronizedMap(
+			new LinkedHashMap<String, TileMaker>(MAX_CACHED_TILINGS, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, TileMaker> eldest) {
+					return size() > MAX_CACHED_TILINGS;
+				}
+			});
 
 	/**
 	 * Construct the object model with all the needed information to load a
@@ -323,23 +360,436 @@ public class BioimageIoModelJava extends DLModelJava
 			this.runNoTiles(inputTensors, outs);
 			return outs;
 		}
+		TileMaker maker = getTileMaker(inputTensors);
+		List<Tensor<T>> outTensors = createOutputTensors(maker);
+		return runBMZ(inputTensors, outTensors, maker);
+	}
+	
+	/**
+	 * Streaming variant of {@link #run(List)}. The tiling strategy is calculated from the
+	 * rdf.yaml and every output tile is handed to the consumer as soon as the model has processed it,
+	 * together with its position in the output image. The whole output images are never allocated.
+	 * 
+	 * The pre-processing is applied to the whole input images, but the post-processing cannot be 
+	 * applied, as it might need statistics of the whole output image. The tiles emitted are the raw
+	 * outputs of the model. The halo of each tile is removed before emitting it, tile blending is not applied.
+	 * 
+	 * @param <R>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param inputTensors
+	 * 	list of the input tensors that are going to be inputed to the model
+	 * @param consumer
+	 * 	consumer that receives each finished output tile
+	 * @throws RunModelException if the model has not been loaded or if there is any error running it
+	 */
+	@Override
+	public <R extends RealType<R> & NativeType<R>> 
+	void run(List<Tensor<R>> inputTensors, OutputTileConsumer<FloatType> consumer) throws RunModelException {
+		if (!this.isLoaded())
+			throw new RunModelException("Please first load the model.");
+		TileMaker maker = getTileMaker(inputTensors);
+		List<Tensor<FloatType>> outputTemplates = descriptor.getOutputTensors().stream()
+				.map(tt -> Tensor.<FloatType>buildEmptyTensor(tt.getName(), tt.getAxesOrder()))
+				.collect(Collectors.toList());
+		Processing processing = Processing.init(descriptor);
+		inputTensors = processing.preprocess(inputTensors, false);
+		runTilingStreaming(inputTensors, outputTemplates, maker, consumer);
+	}
+	
+	/**
+	 * Run the model only on some regions of interest of the input images. Every region is expanded by
+	 * the halo of the model and the regions that are close to each other are grouped, so that each group
+	 * is processed in a single run over its bounding box, in which the tiles that do not overlap any region
+	 * are skipped. The outputs are only allocated for the bounding box of each group. Thus the amount of work
+	 * and memory depends on the area of the regions and not on the area of the images or on the distance
+	 * between the regions. The pixels of the image around each region are used as context, the images are
+	 * only mirrored where the expanded regions reach the border of the image.
+	 * 
+	 * The regions are defined in the coordinates of the first input tensor and are applied to the rest
+	 * of inputs on the axes that they share. Along the axes of the outputs that are not in the first input,
+	 * the whole output is kept.
+	 * Note that the pre-processing is computed on the bounding box of each group of expanded regions, thus
+	 * statistics computed per sample refer to that box and are the same for the regions of a group, but not
+	 * to the whole image.
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output images
+	 * @param <R>
+	 * 	ImgLib2 data type of the input images
+	 * @param inputTensors
+	 * 	list of the input tensors that are going to be inputed to the model
+	 * @param rois
+	 * 	regions of interest, in the axes order and coordinates of the first input tensor
+	 * @return for each region of interest, the output tensors cropped to that region
+	 * @throws RunModelException if the model has not been previously loaded or there is any error running it
+	 */
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	List<List<Tensor<T>>> runRois(List<Tensor<R>> inputTensors, List<Interval> rois) throws RunModelException {
+		List<List<Tensor<T>>> results = new ArrayList<List<Tensor<T>>>();
+		for (List<RoiOutput<T>> outs : this.<T, R>runRoiUnion(inputTensors, rois)) {
+			List<Tensor<T>> roiOutputs = new ArrayList<Tensor<T>>();
+			for (RoiOutput<T> out : outs) {
+				Tensor<T> tt = out.tensor;
+				roiOutputs.add(Tensor.build(tt.getName(), tt.getAxesOrderString(), 
+						Views.zeroMin(Views.interval(tt.getData(), out.roi))));
+			}
+			results.add(roiOutputs);
+		}
+		return results;
+	}
+	
+	/**
+	 * Same as {@link #runRois(List, List)}, but the results of every region of interest are written
+	 * in output tensors with the size of the whole output images. The pixels outside of the regions are 0.
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output images
+	 * @param <R>
+	 * 	ImgLib2 data type of the input images
+	 * @param inputTensors
+	 * 	list of the input tensors that are going to be inputed to the model
+	 * @param rois
+	 * 	regions of interest, in the axes order and coordinates of the first input tensor
+	 * @return the output tensors with the size of the whole image
+	 * @throws RunModelException if the model has not been previously loaded or there is any error running it
+	 */
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	List<Tensor<T>> runRoisFullImage(List<Tensor<R>> inputTensors, List<Interval> rois) throws RunModelException {
+		Map<String, Tensor<T>> fullOutputs = new LinkedHashMap<String, Tensor<T>>();
+		for (List<RoiOutput<T>> outs : this.<T, R>runRoiUnion(inputTensors, rois)) {
+			for (RoiOutput<T> out : outs) {
+				Tensor<T> tt = out.tensor;
+				Tensor<T> full = fullOutputs.get(tt.getName());
+				if (full == null) {
+					full = Tensor.buildBlankTensor(tt.getName(), tt.getAxesOrderString(), 
+							out.fullDims, Util.getTypeFromInterval(tt.getData()).createVariable());
+					fullOutputs.put(tt.getName(), full);
+				}
+				RandomAccessibleInterval<T> target = Views.interval(Views.translateInverse(full.getData(), out.fullOffset), out.roi);
+				LoopBuilder.setImages(target, Views.interval(tt.getData(), out.roi))
+					.multiThreaded().forEachPixel((o, r) -> o.set(r));
+			}
+		}
+		return new ArrayList<Tensor<T>>(fullOutputs.values());
+	}
+	
+	/**
+	 * Group the regions of interest expanded by the halo, run the model once on the bounding box of each group,
+	 * skipping the tiles that do not overlap any region, and locate every region of interest in every output tensor
+	 * @return for each region of interest, where it is in each output tensor
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	List<List<RoiOutput<T>>> runRoiUnion(List<Tensor<R>> inputTensors, List<Interval> rois) throws RunModelException {
+		if (!this.isLoaded())
+			throw new RunModelException("Please first load the model.");
+		List<List<RoiOutput<T>>> results = new ArrayList<List<RoiOutput<T>>>();
+		if (rois.size() == 0)
+			return results;
+		Tensor<R> ref = inputTensors.get(0);
+		String refAxes = ref.getAxesOrderString();
+		List<long[][]> contexts = new ArrayList<long[][]>();
+		for (Interval roi : rois) {
+			if (roi.numDimensions() != refAxes.length())
+				throw new IllegalArgumentException("The region of interest has " + roi.numDimensions() + " dimensions, "
+						+ "but the tensor '" + ref.getName() + "' has axes '" + refAxes + "'.");
+			long[][] ctx = new long[2][refAxes.length()];
+			for (int i = 0; i < refAxes.length(); i ++) {
+				if (roi.min(i) < ref.getData().min(i) || roi.max(i) > ref.getData().max(i))
+					throw new IllegalArgumentException("The region of interest " + Arrays.toString(roi.minAsLongArray()) 
+							+ " - " + Arrays.toString(roi.maxAsLongArray()) + " is outside of the tensor '" + ref.getName() + "'.");
+				long halo = getHalo(refAxes.charAt(i));
+				ctx[0][i] = Math.max(ref.getData().min(i), roi.min(i) - halo);
+				ctx[1][i] = Math.min(ref.getData().max(i), roi.max(i) + halo);
+			}
+			contexts.add(ctx);
+		}
+		for (int i = 0; i < rois.size(); i ++)
+			results.add(null);
+		for (List<Integer> group : groupRois(contexts)) {
+			long[] ctxMin = contexts.get(group.get(0))[0].clone();
+			long[] ctxMax = contexts.get(group.get(0))[1].clone();
+			List<Interval> groupRois = new ArrayList<Interval>();
+			for (int r : group) {
+				groupRois.add(rois.get(r));
+				for (int i = 0; i < ctxMin.length; i ++) {
+					ctxMin[i] = Math.min(ctxMin[i], contexts.get(r)[0][i]);
+					ctxMax[i] = Math.max(ctxMax[i], contexts.get(r)[1][i]);
+				}
+			}
+			List<List<RoiOutput<T>>> groupResults = this.<T, R>runRoiGroup(inputTensors, groupRois, ctxMin, ctxMax);
+			for (int r = 0; r < group.size(); r ++)
+				results.set(group.get(r), groupResults.get(r));
+		}
+		return results;
+	}
+	
+	/**
+	 * Group the regions of interest, expanded by the halo, that are worth processing together. Two groups
+	 * are merged while the bounding box of both is not bigger than their two bounding boxes, so regions
+	 * that are close or overlap share their context, but the regions that are far apart are processed
+	 * separately and neither the model runs nor the outputs are allocated for the space between them
+	 * @param contexts
+	 * 	for every region, the minimum and the maximum of the expanded region
+	 * @return the indexes of the regions of each group
+	 */
+	private static List<List<Integer>> groupRois(List<long[][]> contexts) {
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		List<long[][]> boxes = new ArrayList<long[][]>();
+		for (int r = 0; r < contexts.size(); r ++) {
+			groups.add(new ArrayList<Integer>(Arrays.asList(r)));
+			boxes.add(contexts.get(r));
+		}
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int a = 0; a < boxes.size() && !merged; a ++) {
+				for (int b = a + 1; b < boxes.size() && !merged; b ++) {
+					long[][] union = new long[2][boxes.get(a)[0].length];
+					for (int i = 0; i < union[0].length; i ++) {
+						union[0][i] = Math.min(boxes.get(a)[0][i], boxes.get(b)[0][i]);
+						union[1][i] = Math.max(boxes.get(a)[1][i], boxes.get(b)[1][i]);
+					}
+					if (volume(union) > volume(boxes.get(a)) + volume(boxes.get(b)))
+						continue;
+					boxes.set(a, union);
+					boxes.remove(b);
+					groups.get(a).addAll(groups.remove(b));
+					merged = true;
+				}
+			}
+		}
+		return groups;
+	}
+	
+	/**
+	 * Number of pixels of a box, as a double so it does not overflow
+	 */
+	private static double volume(long[][] box) {
+		double volume = 1;
+		for (int i = 0; i < box[0].length; i ++)
+			volume *= box[1][i] - box[0][i] + 1;
+		return volume;
+	}
+	
+	/**
+	 * Run the model once on the bounding box of a group of regions of interest expanded by the halo, skipping
+	 * the tiles that do not overlap any region, and locate every region of interest in every output tensor
+	 * @param ctxMin
+	 * 	minimum of the bounding box of the expanded regions, in the coordinates of the first input
+	 * @param ctxMax
+	 * 	maximum of the bounding box of the expanded regions, in the coordinates of the first input
+	 * @return for each region of interest, where it is in each output tensor
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	List<List<RoiOutput<T>>> runRoiGroup(List<Tensor<R>> inputTensors, List<Interval> rois, 
+			long[] ctxMin, long[] ctxMax) throws RunModelException {
+		List<List<RoiOutput<T>>> results = new ArrayList<List<RoiOutput<T>>>();
+		Tensor<R> ref = inputTensors.get(0);
+		String refAxes = ref.getAxesOrderString();
+		List<Tensor<R>> crops = new ArrayList<Tensor<R>>();
+		for (Tensor<R> tt : inputTensors) {
+			String axes = tt.getAxesOrderString();
+			long[] min = tt.getData().minAsLongArray();
+			long[] max = tt.getData().maxAsLongArray();
+			for (int i = 0; i < axes.length(); i ++) {
+				int ind = refAxes.indexOf(axes.charAt(i));
+				if (ind == -1)
+					continue;
+				min[i] = ctxMin[ind];
+				max[i] = ctxMax[ind];
+			}
+			crops.add(Tensor.build(tt.getName(), axes, Views.zeroMin(Views.interval(tt.getData(), min, max))));
+		}
+		List<Tensor<T>> outputs;
+		if (!this.tiling) {
+			outputs = run(crops);
+		} else {
+			TileMaker maker = getTileMaker(crops);
+			outputs = runBMZ(crops, this.<T>createOutputTensors(maker), maker, 
+					findTilesOutsideRois(maker, ref.getName(), rois, ctxMin));
+		}
+		for (Interval roi : rois) {
+			List<RoiOutput<T>> roiOutputs = new ArrayList<RoiOutput<T>>();
+			for (Tensor<T> tt : outputs) {
+				String axes = tt.getAxesOrderString();
+				long[] min = new long[axes.length()];
+				long[] max = tt.getData().maxAsLongArray();
+				long[] fullDims = tt.getData().dimensionsAsLongArray();
+				long[] fullOffset = new long[axes.length()];
+				for (int i = 0; i < axes.length(); i ++) {
+					int ind = refAxes.indexOf(axes.charAt(i));
+					if (ind == -1)
+						continue;
+					// the output can be scaled with respect to the input, as it happens in super-resolution models
+					double scale = tt.getData().dimension(i) / (double) (ctxMax[ind] - ctxMin[ind] + 1);
+					min[i] = Math.round((roi.min(ind) - ctxMin[ind]) * scale);
+					max[i] = Math.min(max[i], Math.round((roi.max(ind) + 1 - ctxMin[ind]) * scale) - 1);
+					fullDims[i] = Math.round(ref.getData().dimension(ind) * scale);
+					fullOffset[i] = Math.round((ctxMin[ind] - ref.getData().min(ind)) * scale);
+				}
+				roiOutputs.add(new RoiOutput<T>(tt, new FinalInterval(min, max), fullDims, fullOffset));
+			}
+			results.add(roiOutputs);
+		}
+		return results;
+	}
+	
+	/**
+	 * Find the tiles whose input, halo included, does not overlap any region of interest, so they
+	 * do not need to be processed
+	 * @param offset
+	 * 	position of the bounding box that is tiled in the coordinates of the regions of interest
+	 */
+	private static boolean[] findTilesOutsideRois(TileMaker maker, String refName, List<Interval> rois, long[] offset) {
+		boolean[] skipped = new boolean[maker.getNumberOfTiles()];
+		long[] size = maker.getInputTileSize(refName);
+		for (int n = 0; n < skipped.length; n ++) {
+			long[] start = maker.getInputInsertionPoints(refName, n);
+			skipped[n] = true;
+			for (int r = 0; r < rois.size() && skipped[n]; r ++) {
+				Interval roi = rois.get(r);
+				boolean overlaps = true;
+				for (int i = 0; i < start.length && overlaps; i ++)
+					overlaps = start[i] <= roi.max(i) - offset[i] && start[i] + size[i] - 1 >= roi.min(i) - offset[i];
+				skipped[n] = !overlaps;
+			}
+		}
+		return skipped;
+	}
+	
+	/**
+	 * Context needed around every pixel along an axis, the largest halo of the tensors of the model
+	 */
+	private long getHalo(char axis) {
+		long halo = 0;
+		List<TensorSpec> tensors = new ArrayList<TensorSpec>(descriptor.getInputTensors());
+		tensors.addAll(descriptor.getOutputTensors());
+		for (TensorSpec tt : tensors) {
+			Axis ax = tt.getAxesInfo().getAxis(String.valueOf(axis));
+			if (ax != null)
+				halo = Math.max(halo, ax.getHalo());
+		}
+		return halo;
+	}
+	
+	/**
+	 * Output of the model for an expanded region of interest
+	 */
+	private static class RoiOutput<T extends RealType<T> & NativeType<T>> {
+		/**
+		 * Output of the expanded region
+		 */
+		private final Tensor<T> tensor;
+		/**
+		 * Interval of the output that corresponds to the region of interest
+		 */
+		private final Interval roi;
+		/**
+		 * Size of the output for the whole image
+		 */
+		private final long[] fullDims;
+		/**
+		 * Translation from the coordinates of the output of the region to the coordinates of the whole output
+		 */
+		private final long[] fullOffset;
+		
+		private RoiOutput(Tensor<T> tensor, Interval roi, long[] fullDims, long[] fullOffset) {
+			this.tensor = tensor;
+			this.roi = roi;
+			this.fullDims = fullDims;
+			this.fullOffset = fullOffset;
+		}
+	}
+	
+	/**
+	 * Get the {@link TileMaker} for the input images. The tiling only depends on the model and
+	 * the size of the inputs, thus it is only calculated the first time that images of a given size
+	 * are processed and then reused. Tilings planned with the automatic budget are not kept, because
+	 * they depend on the memory that is free at the moment of the call
+	 */
+	private <R extends RealType<R> & NativeType<R>> TileMaker getTileMaker(List<Tensor<R>> inputTensors) {
+		Long budget = tileMemoryBudget;
+		boolean cache = budget == null || budget != 0;
+		String key = inputTensors.stream()
+				.map(tt -> tt.getName() + ":" + tt.getAxesOrderString() + Arrays.toString(tt.getData().dimensionsAsLongArray()))
+				.collect(Collectors.joining(";"));
+		TileMaker maker = cache ? tileMakerCache.get(key) : null;
+		if (maker != null)
+			return maker;
 		List<ImageInfo> imageInfos = inputTensors.stream()
 				.map(tt -> new ImageInfo(tt.getName(), tt.getAxesOrderString(), tt.getData().dimensionsAsLongArray()))
 				.collect(Collectors.toList());
-		List<TileInfo> inputTiles = tileCalculator.getOptimalTileSize(imageInfos);
-		TileMaker maker = TileMaker.build(descriptor, inputTiles);
-		List<Tensor<T>> outTensors = createOutputTensors(maker);
-		return runBMZ(inputTensors, outTensors, maker);
+		maker = TileMaker.build(descriptor, planTiles(imageInfos, budget));
+		if (cache)
+			tileMakerCache.put(key, maker);
+		return maker;
+	}
+	
+	private List<TileInfo> planTiles(List<ImageInfo> imageInfos, Long budget) {
+		if (budget == null)
+			return tileCalculator.getOptimalTileSize(imageInfos);
+		else if (budget == 0)
+			return tileCalculator.getTilesForMemoryBudget(imageInfos);
+		return tileCalculator.getTilesForMemoryBudget(imageInfos, budget);
+	}
+	
+	/**
+	 * Set the memory budget used to decide the size of the tiles. The tiles chosen will be the largest
+	 * allowed by the model that can be processed within the budget, see 
+	 * {@link TileCalculator#getTilesForMemoryBudget(List, long)}.
+	 * @param tileMemoryBudget
+	 * 	number of bytes that the processing of one tile can use. If it is 0, the budget is detected
+	 * 	automatically from the free heap and shared memory. If it is null, the default heuristic is used.
+	 */
+	public void setTileMemoryBudget(Long tileMemoryBudget) {
+		if (tileMemoryBudget != null && tileMemoryBudget < 0)
+			throw new IllegalArgumentException("The memory budget cannot be negative: " + tileMemoryBudget);
+		this.tileMemoryBudget = tileMemoryBudget;
+		this.tileMakerCache.clear();
+	}
+	
+	/**
+	 * An input tensor is given to the engine in its own data type if it is the data type declared
+	 * for it in the rdf.yaml, for example uint8 or uint16 images for models that expect them, and
+	 * the engine supports it. Engines that do not report their data types are trusted to support it
+	 */
+	@Override
+	protected <T extends RealType<T> & NativeType<T>> boolean acceptsNativeType(Tensor<T> tensor) {
+		TensorSpec spec = descriptor.findInputTensor(tensor.getName());
+		String dataType = CommonUtils.getDataTypeFromRAI(tensor.getData());
+		if (spec == null || !spec.getDataType().equals(dataType))
+			return false;
+		Set<String> engineTypes = getEngineDataTypes();
+		return engineTypes == null || engineTypes.contains(dataType);
+	}
+	
+	/**
+	 * The tiles are only stacked along the batch axis if the rdf.yaml lets its size change. In the 0.4
+	 * specs the batch axis of the inputs has a step bigger than 0 and the outputs follow the input they
+	 * reference. In the 0.5 specs the batch axis has no size, while a size of 1 means that it is fixed
+	 */
+	@Override
+	protected boolean acceptsBatch(String tensorName) {
+		TensorSpec spec = descriptor.findInputTensor(tensorName);
+		if (spec == null)
+			spec = descriptor.findOutputTensor(tensorName);
+		Axis ax = spec == null ? null : spec.getAxesInfo().getAxis("b");
+		if (ax == null)
+			return false;
+		if (ax instanceof AxisV05) {
+			Object size = ((AxisV05) ax).getOriginalDescription().get("size");
+			return size == null || (size instanceof Map && (ax.getReferenceTensor() != null || ax.getStep() > 0));
+		}
+		if (ax.getReferenceTensor() != null)
+			return ax.getScale() == 1 && ax.getOffset() == 0;
+		return ax.getStep() > 0;
 	}
 	
 	private <T extends RealType<T> & NativeType<T>> List<Tensor<T>> createOutputTensors(TileMaker maker) {
 		List<Tensor<T>> outputTensors = new ArrayList<Tensor<T>>();
 		for (TensorSpec tt : descriptor.getOutputTensors()) {
 			long[] dims = maker.getOutputImageSize(tt.getName());
-			outputTensors.add((Tensor<T>) Tensor.buildBlankTensor(tt.getName(), 
-																	tt.getAxesOrder(), 
-																	dims, 
-																	(T) new FloatType()));
+			outputTensors.add(createOutputTensor(tt.getName(), tt.getAxesOrder(), dims, maker));
 		}
 		return outputTensors;
 	}
@@ -354,9 +804,15 @@ public class BioimageIoModelJava extends DLModelJava
 	
 	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	List<Tensor<T>> runBMZ(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) throws RunModelException {
+		return runBMZ(inputTensors, outputTensors, tiles, null);
+	}
+	
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	List<Tensor<T>> runBMZ(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles,
+			boolean[] skipped) throws RunModelException {
 		Processing processing = Processing.init(descriptor);
 		inputTensors = processing.preprocess(inputTensors, false);
-		runTiling(inputTensors, outputTensors, tiles);
+		runTiling(inputTensors, outputTensors, tiles, skipped);
 		return processing.postprocess(outputTensors, true);
 	}
 
@@ -368,11 +824,7 @@ public class BioimageIoModelJava extends DLModelJava
 			this.runNoTiles(inputTensors, outputTensors);
 			return;
 		}
-		List<ImageInfo> imageInfos = inputTensors.stream()
-				.map(tt -> new ImageInfo(tt.getName(), tt.getAxesOrderString(), tt.getData().dimensionsAsLongArray()))
-				.collect(Collectors.toList());
-		List<TileInfo> inputTiles = tileCalculator.getOptimalTileSize(imageInfos);
-		TileMaker maker = TileMaker.build(descriptor, inputTiles);
+		TileMaker maker = getTileMaker(inputTensors);
 		for (int i = 0; i < maker.getNumberOfTiles(); i ++) {
 			Tensor<R> tt = outputTensors.get(i);
 			long[] expectedSize = maker.getOutputImageSize(tt.getName());
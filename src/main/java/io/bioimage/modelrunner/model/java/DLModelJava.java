@@ -22,18 +22,34 @@
  */
 package io.bioimage.modelrunner.model.java;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import io.bioimage.modelrunner.apposed.appose.Types;
 import io.bioimage.modelrunner.bioimageio.description.ModelDescriptorFactory;
+import io.bioimage.modelrunner.bioimageio.tiling.OutputTileConsumer;
+import io.bioimage.modelrunner.bioimageio.tiling.TileBlender;
+import io.bioimage.modelrunner.bioimageio.tiling.TileFilter;
 import io.bioimage.modelrunner.bioimageio.tiling.TileInfo;
 import io.bioimage.modelrunner.bioimageio.tiling.TileMaker;
+import io.bioimage.modelrunner.bioimageio.tiling.TilePlan;
 import io.bioimage.modelrunner.engine.DeepLearningEngineInterface;
 import io.bioimage.modelrunner.engine.EngineInfo;
 import io.bioimage.modelrunner.engine.EngineLoader;
@@ -41,14 +57,23 @@ import io.bioimage.modelrunner.exceptions.LoadEngineException;
 import io.bioimage.modelrunner.exceptions.LoadModelException;
 import io.bioimage.modelrunner.exceptions.RunModelException;
 import io.bioimage.modelrunner.model.BaseModel;
+import io.bioimage.modelrunner.tensor.DiskCachedCellImg;
 import io.bioimage.modelrunner.tensor.Tensor;
+import io.bioimage.modelrunner.utils.CommonUtils;
 import io.bioimage.modelrunner.utils.Constants;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
-import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 /**
  * Class that manages a Deep Learning model to load it and run it.
@@ -107,7 +132,50 @@ public class DLModelJava extends BaseModel
 	 * tiles the input images are going to be separated
 	 */
 	protected TilingConsumer tileCounter;
-
+	
+	/**
+	 * Number of tiles that are extracted and converted in advance while the engine
+	 * is processing the current tile. If it is 0, the tiles are extracted, processed
+	 * and written back one after the other
+	 */
+	protected int pipelineDepth = 0;
+	
+	/**
+	 * Maximum number of bytes that the tiles stacked along the batch axis can occupy
+	 * in a single engine call. If it is 0, every tile is sent to the engine separately
+	 */
+	protected long tileBatchMemoryBudget = 0;
+	
+	/**
+	 * Window used to blend the overlapping regions of the output tiles. If it is null, the
+	 * halo of each output tile is cropped and only the region of interest is kept
+	 */
+	protected TileBlender.Window blendingWindow;
+	
+	/**
+	 * Directory where the out-of-core output images are stored. Only used if
+	 * {@link #outOfCoreCacheBytes} is bigger than 0
+	 */
+	protected File outOfCoreDir;
+	
+	/**
+	 * Maximum number of bytes of each out-of-core output image kept in memory. If it is 0,
+	 * the output images are allocated completely in memory
+	 */
+	protected long outOfCoreCacheBytes = 0;
+	
+	/**
+	 * Filter used to detect the background tiles, on which the model is not run. If it is null,
+	 * the model is run on every tile
+	 */
+	protected TileFilter tileFilter;
+	
+	/**
+	 * Value written in the output of the background tiles. If it is null, the output of the model
+	 * for the first background tile is reused for the rest of background tiles
+	 */
+	protected Double backgroundFillValue;
+	
 	/**
 	 * Construct the object model with all the needed information to load a
 	 * model and make inference
@@ -238,21 +306,165 @@ public class DLModelJava extends BaseModel
 			throw new UnsupportedOperationException("Tiling is set to 'true' but the output tiles are not well defined");
 		
 		TileMaker maker = TileMaker.build(inputTiles, outputTiles);
-		List<Tensor<T>> outTensors = createOutputTensors();
+		List<Tensor<T>> outTensors = createOutputTensors(maker);
 		runTiling(inputTensors, outTensors, maker);
 		return outTensors;
 	}
 	
-	private <T extends RealType<T> & NativeType<T>> List<Tensor<T>> createOutputTensors() {
+	/**
+	 * Streaming variant of {@link #run(List)}. Instead of stitching the results into full size
+	 * output tensors, every output tile is handed to the consumer as soon as the model has processed it,
+	 * together with its position in the output image. The whole output images are never allocated.
+	 * The halo of each tile is removed before emitting it, tile blending is not applied.
+	 * 
+	 * @param <R>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param inputTensors
+	 * 	list of the input tensors that are going to be inputed to the model
+	 * @param consumer
+	 * 	consumer that receives each finished output tile
+	 * @throws RunModelException if the model has not been loaded or if there is any error running it
+	 */
+	public <R extends RealType<R> & NativeType<R>> 
+	void run(List<Tensor<R>> inputTensors, OutputTileConsumer<FloatType> consumer) throws RunModelException {
+		if (!this.isLoaded())
+			throw new RunModelException("Please first load the model.");
+		if (this.inputTiles == null || this.inputTiles.size() == 0)
+			throw new UnsupportedOperationException("The input tiles need to be defined to stream the output tiles");
+		else if (this.outputTiles == null || this.outputTiles.size() == 0)
+			throw new UnsupportedOperationException("The output tiles need to be defined to stream the output tiles");
+		TileMaker maker = TileMaker.build(inputTiles, outputTiles);
+		List<Tensor<FloatType>> outputTemplates = this.outputTiles.stream()
+				.map(tt -> Tensor.<FloatType>buildEmptyTensor(tt.getName(), tt.getImageAxesOrder()))
+				.collect(Collectors.toList());
+		runTilingStreaming(inputTensors, outputTemplates, maker, consumer);
+	}
+	
+	/**
+	 * Run every tile through the model and emit the region of interest of each output tile
+	 * to the consumer. The output tile buffers are allocated once and reused for every tile
+	 * 
+	 * @param <R>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param inputTensors
+	 * 	the full size input tensors
+	 * @param outputTemplates
+	 * 	empty tensors with the name and axes order of each output
+	 * @param tiles
+	 * 	the {@link TileMaker} that defines the tiling strategy
+	 * @param consumer
+	 * 	consumer that receives each finished output tile
+	 * @throws RunModelException if there is any error processing the tiles
+	 */
+	protected <R extends RealType<R> & NativeType<R>> 
+	void runTilingStreaming(List<Tensor<R>> inputTensors, List<Tensor<FloatType>> outputTemplates, TileMaker tiles,
+			OutputTileConsumer<FloatType> consumer) throws RunModelException {
+		Objects.requireNonNull(consumer);
+		Map<String, Img<FloatType>> floatScratch = new HashMap<String, Img<FloatType>>();
+		int nTiles = tiles.getNumberOfTiles();
+		reportTileTotal(nTiles);
+		List<Tensor<FloatType>> outputTiles = outputTemplates.stream()
+				.map(tt -> Tensor.buildBlankTensor(tt.getName(), tt.getAxesOrderString(), 
+						tiles.getOutputTileSize(tt.getName()), new FloatType()))
+				.collect(Collectors.toList());
+		boolean[] background = findBackgroundTiles(inputTensors, tiles, null);
+		List<Tensor<FloatType>> backgroundTiles = null;
+		for (int i = 0; i < nTiles; i ++) {
+			int nTile = 0 + i;
+			if (background != null && background[nTile]) {
+				if (backgroundTiles == null)
+					backgroundTiles = createBackgroundTiles(inputTensors, createOutputTiles(outputTiles, tiles), tiles, nTile);
+				for (Tensor<FloatType> tt : backgroundTiles)
+					emitOutputTile(tt.getName(), tt.getData(), tiles, nTile, consumer);
+				continue;
+			}
+			List<Tensor<R>> inputTiles = inputTensors.stream()
+					.map(tt -> tiles.getNthTileInput(tt, nTile)).collect(Collectors.toList());
+			runNoTiles(inputTiles, outputTiles, floatScratch);
+			for (Tensor<FloatType> tt : outputTiles)
+				emitOutputTile(tt.getName(), tt.getData(), tiles, nTile, consumer);
+			reportTileProgress(nTile + 1);
+		}
+	}
+	
+	/**
+	 * Crop the region of interest of an output tile, clipped to the output image, and pass it
+	 * to the consumer with its position in the output image
+	 */
+	private static void emitOutputTile(String name, RandomAccessibleInterval<FloatType> tile, TileMaker tiles, 
+			int nTile, OutputTileConsumer<FloatType> consumer) {
+		TilePlan plan = tiles.getTilePlan();
+		int nDims = plan.getOutputNumDimensions(name);
+		long[] tileStart = new long[nDims];
+		long[] roiOffset = new long[nDims];
+		long[] roiSize = new long[nDims];
+		plan.getOutputTileStart(name, nTile, tileStart);
+		plan.getOutputRoiOffset(name, roiOffset);
+		plan.getOutputRoiSize(name, roiSize);
+		long[] imageSize = tiles.getOutputImageSize(name);
+		long[] position = new long[nDims];
+		long[] min = new long[nDims];
+		long[] max = new long[nDims];
+		for (int i = 0; i < nDims; i ++) {
+			position[i] = Math.max(0, tileStart[i] + roiOffset[i]);
+			long end = Math.min(imageSize[i], tileStart[i] + roiOffset[i] + roiSize[i]);
+			if (end <= position[i])
+				return;
+			min[i] = tile.min(i) + position[i] - tileStart[i];
+			max[i] = min[i] + end - position[i] - 1;
+		}
+		consumer.accept(name, nTile, Views.zeroMin(Views.interval(tile, min, max)), position);
+	}
+	
+	private <T extends RealType<T> & NativeType<T>> List<Tensor<T>> createOutputTensors(TileMaker maker) {
 		List<Tensor<T>> outputTensors = new ArrayList<Tensor<T>>();
 		for (TileInfo tt : this.outputTiles) {
-			outputTensors.add((Tensor<T>) Tensor.buildBlankTensor(tt.getName(), 
-																	tt.getImageAxesOrder(), 
-																	tt.getImageDims(), 
-																	(T) new FloatType()));
+			outputTensors.add(createOutputTensor(tt.getName(), tt.getImageAxesOrder(), tt.getImageDims(), maker));
 		}
 		return outputTensors;
 	}
+	
+	/**
+	 * Create a blank float output tensor for the tiled inference. If out-of-core processing is
+	 * enabled with {@link #setOutOfCore(File, long)}, the tensor is backed by a {@link DiskCachedCellImg}
+	 * whose cells have the size of the region of interest of the output tiles, so every tile
+	 * only touches a few cells. Otherwise the tensor is allocated in memory.
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output tensor
+	 * @param name
+	 * 	name of the output tensor
+	 * @param axesOrder
+	 * 	axes order of the output tensor
+	 * @param dims
+	 * 	dimensions of the output image
+	 * @param maker
+	 * 	the {@link TileMaker} that defines the tiling
+	 * @return the blank output tensor
+	 */
+	protected <T extends RealType<T> & NativeType<T>> Tensor<T> createOutputTensor(String name, String axesOrder,
+			long[] dims, TileMaker maker) {
+		if (outOfCoreCacheBytes <= 0)
+			return Cast.unchecked(Tensor.buildBlankTensor(name, axesOrder, dims, new FloatType()));
+		int[] roi = maker.getOutputRoiSize(name);
+		int[] cellDims = new int[dims.length];
+		long cellBytes = 4;
+		for (int i = 0; i < dims.length; i ++) {
+			cellDims[i] = (int) Math.max(1, Math.min(roi[i], dims[i]));
+			cellBytes *= cellDims[i];
+		}
+		// a region of interest that is not aligned with the cell grid spans up to 2 cells per axis
+		int minCells = 1 << Math.min(dims.length, 16);
+		int maxCells = (int) Math.max(minCells, Math.min(Integer.MAX_VALUE, outOfCoreCacheBytes / cellBytes));
+		try {
+			DiskCachedCellImg<FloatType> img = DiskCachedCellImg.create(new FloatType(), dims, cellDims,
+					outOfCoreDir, maxCells);
+			return Cast.unchecked(Tensor.build(name, axesOrder, img));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to create the out-of-core file for output tensor '"
+					+ name + "' in " + outOfCoreDir + ": " + e.getMessage(), e);
+		}
+	}
 
 	/**
 	 * Run a model on the input tensors and get the output tensors. This just does inference,
@@ -271,29 +483,493 @@ public class DLModelJava extends BaseModel
 	 */
 	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	void runNoTiles( List< Tensor < T > > inTensors, List< Tensor < R > > outTensors ) throws RunModelException
+	{
+		runNoTiles(inTensors, outTensors, null);
+	}
+	
+	/**
+	 * Same as {@link #runNoTiles(List, List)}, but the inputs that have to be converted to float are
+	 * converted into the images of the scratch map, which are reused between calls. Each tiled run
+	 * uses its own map, so several runs can go on at the same time
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	void runNoTiles( List< Tensor < T > > inTensors, List< Tensor < R > > outTensors, 
+			Map<String, Img<FloatType>> floatScratch ) throws RunModelException
 	{
 		DeepLearningEngineInterface engineInstance = engineClassLoader.getEngineInstance();
 		engineClassLoader.setEngineClassLoader();
-		ArrayList<Tensor<FloatType>> inTensorsFloat = new ArrayList<Tensor<FloatType>>();
+		ArrayList<Tensor<T>> inTensorsEngine = new ArrayList<Tensor<T>>();
 		for (Tensor<T> tt : inTensors) {
-			if (Util.getTypeFromInterval(tt.getData()) instanceof FloatType)
-				inTensorsFloat.add(Cast.unchecked(tt));
+			if (tt.getData().getType() instanceof FloatType || acceptsNativeType(tt))
+				inTensorsEngine.add(tt);
 			else
-				inTensorsFloat.add(Tensor.createCopyOfTensorInWantedDataType( tt, new FloatType() ));
+				inTensorsEngine.add(Cast.unchecked(convertToFloat(tt, floatScratch)));
 		}
-		engineInstance.run( inTensorsFloat, outTensors );
+		engineInstance.run( inTensorsEngine, outTensors );
 		engineClassLoader.setBaseClassLoader();
 	}
 	
+	/**
+	 * Whether an input tensor can be given to the engine in its own data type. Tensors that
+	 * are not accepted are converted to float before running the model
+	 * @param <T>
+	 * 	ImgLib2 data type of the tensor
+	 * @param tensor
+	 * 	the input tensor
+	 * @return true if the tensor does not need to be converted. By default the tensors are accepted
+	 * 	if the engine reports that it supports their data type, see {@link #getEngineDataTypes()}
+	 */
+	protected <T extends RealType<T> & NativeType<T>> boolean acceptsNativeType(Tensor<T> tensor) {
+		Set<String> dataTypes = getEngineDataTypes();
+		return dataTypes != null && dataTypes.contains(CommonUtils.getDataTypeFromRAI(tensor.getData()));
+	}
+	
+	/**
+	 * 
+	 * @return the data types that the engine accepts without converting them, see
+	 * 	{@link DeepLearningEngineInterface#getSupportedDataTypes()}, or null if the engine does not report them
+	 */
+	protected Set<String> getEngineDataTypes() {
+		if (engineClassLoader == null || engineClassLoader.getEngineInstance() == null)
+			return null;
+		return engineClassLoader.getEngineInstance().getSupportedDataTypes();
+	}
+	
+	/**
+	 * Convert an input tensor to float. During a tiled run the tile is converted, in the same pass
+	 * that reads it from the input image, into a float image of the scratch map that is reused for
+	 * every tile of the same shape. If there is no scratch map a new float image is created
+	 */
+	private static <T extends RealType<T> & NativeType<T>> 
+	Tensor<FloatType> convertToFloat(Tensor<T> tt, Map<String, Img<FloatType>> floatScratch) {
+		if (floatScratch == null)
+			return Tensor.createCopyOfTensorInWantedDataType( tt, new FloatType() );
+		long[] dims = tt.getData().dimensionsAsLongArray();
+		Img<FloatType> scratch = floatScratch.get(tt.getName());
+		if (scratch == null || !Arrays.equals(scratch.dimensionsAsLongArray(), dims)) {
+			scratch = new ArrayImgFactory<FloatType>(new FloatType()).create(dims);
+			floatScratch.put(tt.getName(), scratch);
+		}
+		Tensor.copyInWantedDataType(tt.getData(), scratch);
+		return Tensor.build(tt.getName(), tt.getAxesOrderString(), scratch);
+	}
+	
 	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	void runTiling(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) throws RunModelException {
-		for (int i = 0; i < tiles.getNumberOfTiles(); i ++) {
+		runTiling(inputTensors, outputTensors, tiles, null);
+	}
+	
+	/**
+	 * Same as {@link #runTiling(List, List, TileMaker)}, but the wanted tiles are neither processed nor
+	 * written, so the output tensors keep their values in the regions only covered by them
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output tensors
+	 * @param <R>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param inputTensors
+	 * 	the full size input tensors
+	 * @param outputTensors
+	 * 	the full size output tensors, where the result of each tile is written
+	 * @param tiles
+	 * 	the {@link TileMaker} that defines the tiling strategy
+	 * @param skipped
+	 * 	which tiles are not needed, or null to process every tile
+	 * @throws RunModelException if there is any error processing the tiles
+	 */
+	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	void runTiling(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles, 
+			boolean[] skipped) throws RunModelException {
+		Map<String, Img<FloatType>> floatScratch = new HashMap<String, Img<FloatType>>();
+		List<TileBlender> blenders = null;
+		if (this.blendingWindow != null)
+			blenders = outputTensors.stream()
+				.map(tt -> TileBlender.create(tiles, tt, blendingWindow)).collect(Collectors.toList());
+		boolean[] background = findBackgroundTiles(inputTensors, tiles, skipped);
+		boolean[] notRun = background;
+		if (skipped != null) {
+			notRun = skipped.clone();
+			for (int i = 0; background != null && i < notRun.length; i ++)
+				notRun[i] |= background[i];
+		}
+		int[] tileIndices = getForegroundTiles(tiles, notRun);
+		reportTileTotal(skipped == null ? tiles.getNumberOfTiles() : getForegroundTiles(tiles, skipped).length);
+		if (this.tileBatchMemoryBudget > 0 && canBatchTiles(inputTensors, outputTensors, tiles)) {
+			runTilingBatched(inputTensors, outputTensors, tiles, blenders, notRun);
+		} else if (this.pipelineDepth > 0) {
+			runTilingPipelined(inputTensors, outputTensors, tiles, blenders, notRun);
+		} else if (blenders == null) {
+			for (int i = 0; i < tileIndices.length; i ++) {
+				int nTile = tileIndices[i];
+				List<Tensor<R>> inputTiles = inputTensors.stream()
+						.map(tt -> tiles.getNthTileInput(tt, nTile)).collect(Collectors.toList());
+				List<Tensor<T>> outputTiles = outputTensors.stream()
+						.map(tt -> tiles.getNthTileOutput(tt, nTile)).collect(Collectors.toList());
+				runNoTiles(inputTiles, outputTiles, floatScratch);
+				reportTileProgress(i + 1);
+			}
+		} else {
+			for (int i = 0; i < tileIndices.length; i ++) {
+				int nTile = tileIndices[i];
+				List<Tensor<R>> inputTiles = inputTensors.stream()
+						.map(tt -> tiles.getNthTileInput(tt, nTile)).collect(Collectors.toList());
+				List<Tensor<T>> outputTiles = createOutputTiles(outputTensors, tiles);
+				runNoTiles(inputTiles, outputTiles, floatScratch);
+				writeOutputTile(outputTiles.stream().map(tt -> tt.getData()).collect(Collectors.toList()), 
+						outputTensors, tiles, nTile, blenders);
+				reportTileProgress(i + 1);
+			}
+		}
+		if (background != null)
+			writeBackgroundTiles(inputTensors, outputTensors, tiles, blenders, background);
+		reportTileProgress(tileIndices.length + countTrue(background));
+		if (blenders == null)
+			return;
+		for (int i = 0; i < outputTensors.size(); i ++)
+			blenders.get(i).finish(outputTensors.get(i).getData());
+	}
+	
+	/**
+	 * Run the tiles through the engine overlapping the CPU work with the inference.
+	 * While tile N is being processed by the engine, the next {@link #pipelineDepth} tiles
+	 * are cut from the input images and converted to float, if needed, in a separate thread, and the
+	 * results of the previous tiles are written back into the output tensors in another one.
+	 * The input tiles are copied into {@link #pipelineDepth} + 1 sets of buffers that are reused
+	 * in turns: one for the tile being run and one for each tile being prepared.
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output tensors
+	 * @param <R>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param inputTensors
+	 * 	the full size input tensors
+	 * @param outputTensors
+	 * 	the full size output tensors, where the result of each tile is written
+	 * @param tiles
+	 * 	the {@link TileMaker} that defines the tiling strategy
+	 * @param blenders
+	 * 	the {@link TileBlender} of each output tensor, or null if the output tiles are cropped
+	 * @param background
+	 * 	which tiles are background and should not be processed, or null to process every tile
+	 * @throws RunModelException if there is any error processing the tiles
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	void runTilingPipelined(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles,
+			List<TileBlender> blenders, boolean[] background) throws RunModelException {
+		int[] tileIndices = getForegroundTiles(tiles, background);
+		int nTiles = tileIndices.length;
+		List<Map<String, Img<?>>> buffers = new ArrayList<Map<String, Img<?>>>();
+		for (int i = 0; i <= pipelineDepth; i ++)
+			buffers.add(new HashMap<String, Img<?>>());
+		ExecutorService prepareExecutor = Executors.newSingleThreadExecutor();
+		ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+		Deque<Future<List<Tensor<R>>>> prepared = new ArrayDeque<Future<List<Tensor<R>>>>();
+		Deque<Future<?>> written = new ArrayDeque<Future<?>>();
+		try {
+			for (int i = 0; i < Math.min(pipelineDepth, nTiles); i ++) {
+				int nTile = tileIndices[i];
+				Map<String, Img<?>> buffer = buffers.get(i % buffers.size());
+				prepared.add(prepareExecutor.submit(() -> prepareInputTile(inputTensors, tiles, nTile, buffer)));
+			}
+			for (int i = 0; i < nTiles; i ++) {
+				int nTile = tileIndices[i];
+				List<Tensor<R>> inputTiles = prepared.poll().get();
+				if (i + pipelineDepth < nTiles) {
+					int nextTile = tileIndices[i + pipelineDepth];
+					// NB: the buffers of tile i - 1 are free because that tile has already been run
+					Map<String, Img<?>> buffer = buffers.get((i + pipelineDepth) % buffers.size());
+					prepared.add(prepareExecutor.submit(() -> prepareInputTile(inputTensors, tiles, nextTile, buffer)));
+				}
+				List<Tensor<T>> outputTiles = createOutputTiles(outputTensors, tiles);
+				runNoTiles(inputTiles, outputTiles);
+				List<RandomAccessibleInterval<T>> results = outputTiles.stream()
+						.map(tt -> tt.getData()).collect(Collectors.toList());
+				while (written.size() >= pipelineDepth)
+					written.poll().get();
+				written.add(writeExecutor.submit(() -> writeOutputTile(results, outputTensors, tiles, nTile, blenders)));
+				reportTileProgress(i + 1);
+			}
+			while (!written.isEmpty())
+				written.poll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RunModelException("Tiled inference interrupted.");
+		} catch (ExecutionException e) {
+			throw new RunModelException(Types.stackTrace(e.getCause()));
+		} finally {
+			prepareExecutor.shutdownNow();
+			writeExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Run the tiles stacking several of them along the batch axis ('b') so the engine
+	 * is called once per group of tiles instead of once per tile. The number of tiles
+	 * per group is the largest that fits in {@link #tileBatchMemoryBudget}.
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the output tensors
+	 * @param <R>
+	 * 	ImgLib2 data type of the input tensors
+	 * @param inputTensors
+	 * 	the full size input tensors
+	 * @param outputTensors
+	 * 	the full size output tensors, where the result of each tile is written
+	 * @param tiles
+	 * 	the {@link TileMaker} that defines the tiling strategy
+	 * @param blenders
+	 * 	the {@link TileBlender} of each output tensor, or null if the output tiles are cropped
+	 * @param background
+	 * 	which tiles are background and should not be processed, or null to process every tile
+	 * @throws RunModelException if there is any error processing the tiles
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	void runTilingBatched(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles,
+			List<TileBlender> blenders, boolean[] background) throws RunModelException {
+		int[] tileIndices = getForegroundTiles(tiles, background);
+		int nTiles = tileIndices.length;
+		int batchSize = calculateTileBatchSize(inputTensors, outputTensors, tiles);
+		for (int start = 0; start < nTiles; start += batchSize) {
+			int nBatch = Math.min(batchSize, nTiles - start);
+			List<Tensor<R>> inputBatch = new ArrayList<Tensor<R>>();
+			for (Tensor<R> tt : inputTensors) {
+				int bInd = tt.getAxesOrderString().indexOf("b");
+				long[] dims = tiles.getInputTileSize(tt.getName()).clone();
+				dims[bInd] = nBatch;
+				R type = tt.getData().getType();
+				RandomAccessibleInterval<R> batch;
+				if (type instanceof FloatType || acceptsNativeType(tt))
+					batch = new ArrayImgFactory<R>(type.createVariable()).create(dims);
+				else
+					batch = Cast.unchecked(ArrayImgs.floats(dims));
+				Converter<RealType<?>, RealType<?>> copy = RealTypeConverters.getConverter(
+						type, batch.getType());
+				for (int j = 0; j < nBatch; j ++) {
+					RandomAccessibleInterval<R> tile = tiles.getNthTileInput(tt.getName(), tt.getData(), tileIndices[start + j]);
+					LoopBuilder.setImages(Views.hyperSlice(tile, bInd, tile.min(bInd)), Views.hyperSlice(batch, bInd, j))
+						.multiThreaded().forEachPixel(copy::convert);
+				}
+				inputBatch.add(Tensor.build(tt.getName(), tt.getAxesOrderString(), batch));
+			}
+			List<Tensor<T>> outputBatch = new ArrayList<Tensor<T>>();
+			for (Tensor<T> tt : outputTensors) {
+				long[] dims = tiles.getOutputTileSize(tt.getName()).clone();
+				dims[tt.getAxesOrderString().indexOf("b")] = nBatch;
+				outputBatch.add(Tensor.buildBlankTensor(tt.getName(), tt.getAxesOrderString(), 
+						dims, tt.getData().getType().createVariable()));
+			}
+			runNoTiles(inputBatch, outputBatch);
+			for (int j = 0; j < nBatch; j ++) {
+				List<RandomAccessibleInterval<T>> results = new ArrayList<RandomAccessibleInterval<T>>();
+				for (Tensor<T> tt : outputBatch) {
+					int bInd = tt.getAxesOrderString().indexOf("b");
+					long[] min = new long[tt.getData().numDimensions()];
+					long[] max = tt.getData().maxAsLongArray();
+					min[bInd] = j;
+					max[bInd] = j;
+					results.add(Views.zeroMin(Views.interval(tt.getData(), new FinalInterval(min, max))));
+				}
+				writeOutputTile(results, outputTensors, tiles, tileIndices[start + j], blenders);
+			}
+			reportTileProgress(start + nBatch);
+		}
+	}
+	
+	/**
+	 * Tiles can only be stacked if every input and output tensor has a batch axis, the tiles
+	 * have size 1 along it and the model accepts other batch sizes, see {@link #acceptsBatch(String)}
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	boolean canBatchTiles(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) {
+		for (Tensor<R> tt : inputTensors) {
+			int bInd = tt.getAxesOrderString().indexOf("b");
+			if (bInd == -1 || tiles.getInputTileSize(tt.getName())[bInd] != 1 || !acceptsBatch(tt.getName()))
+				return false;
+		}
+		for (Tensor<T> tt : outputTensors) {
+			int bInd = tt.getAxesOrderString().indexOf("b");
+			if (bInd == -1 || tiles.getOutputTileSize(tt.getName())[bInd] != 1 || !acceptsBatch(tt.getName()))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Whether the batch axis of a tensor can have any size, so several tiles can be stacked along it.
+	 * If it cannot, the tiles are run one by one
+	 * @param tensorName
+	 * 	name of the input or output tensor
+	 * @return true if the tiles of the tensor can be stacked. By default every tensor with a batch
+	 * 	axis is assumed to accept them, because the model does not declare its batch size
+	 */
+	protected boolean acceptsBatch(String tensorName) {
+		return true;
+	}
+	
+	/**
+	 * Calculate how many tiles fit in {@link #tileBatchMemoryBudget}, taking into account
+	 * the copy of every input tile, in float unless the engine accepts its data type, and every output tile
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	int calculateTileBatchSize(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) {
+		long bytesPerTile = 0;
+		for (Tensor<R> tt : inputTensors) {
+			R type = tt.getData().getType();
+			long bytesPerPixel = 4;
+			if (!(type instanceof FloatType) && acceptsNativeType(tt))
+				bytesPerPixel = Math.max(1, type.getBitsPerPixel() / 8);
+			bytesPerTile += Arrays.stream(tiles.getInputTileSize(tt.getName())).reduce(1L, (a, b) -> a * b) * bytesPerPixel;
+		}
+		for (Tensor<T> tt : outputTensors) {
+			long bytesPerPixel = Math.max(1, tt.getData().getType().getBitsPerPixel() / 8);
+			bytesPerTile += Arrays.stream(tiles.getOutputTileSize(tt.getName())).reduce(1L, (a, b) -> a * b) * bytesPerPixel;
+		}
+		long nTiles = this.tileBatchMemoryBudget / Math.max(1, bytesPerTile);
+		return (int) Math.max(1, Math.min(nTiles, tiles.getNumberOfTiles()));
+	}
+	
+	/**
+	 * Evaluate the {@link #tileFilter} on every tile that is not skipped
+	 * @return which tiles are background, or null if there is no filter
+	 */
+	private <R extends RealType<R> & NativeType<R>> 
+	boolean[] findBackgroundTiles(List<Tensor<R>> inputTensors, TileMaker tiles, boolean[] skipped) {
+		if (tileFilter == null)
+			return null;
+		boolean[] background = new boolean[tiles.getNumberOfTiles()];
+		for (int i = 0; i < background.length; i ++) {
 			int nTile = 0 + i;
-			List<Tensor<R>> inputTiles = inputTensors.stream()
+			if (skipped != null && skipped[nTile])
+				continue;
+			List<Tensor<?>> inputTiles = inputTensors.stream()
 					.map(tt -> tiles.getNthTileInput(tt, nTile)).collect(Collectors.toList());
-			List<Tensor<T>> outputTiles = outputTensors.stream()
-					.map(tt -> tiles.getNthTileOutput(tt, nTile)).collect(Collectors.toList());
-			runNoTiles(inputTiles, outputTiles);
+			background[nTile] = tileFilter.isBackground(tiles, nTile, inputTiles);
+		}
+		return background;
+	}
+	
+	private static int[] getForegroundTiles(TileMaker tiles, boolean[] background) {
+		return IntStream.range(0, tiles.getNumberOfTiles())
+				.filter(n -> background == null || !background[n]).toArray();
+	}
+	
+	/**
+	 * Fill the output tiles used for every background tile. If there is no {@link #backgroundFillValue},
+	 * the model is run once on the wanted background tile and its output is used for every background tile
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	List<Tensor<T>> createBackgroundTiles(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTiles, TileMaker tiles, 
+			int nTile) throws RunModelException {
+		if (backgroundFillValue != null) {
+			for (Tensor<T> tt : outputTiles) {
+				for (T px : tt.getData())
+					px.setReal(backgroundFillValue);
+			}
+			return outputTiles;
+		}
+		List<Tensor<R>> inputTiles = inputTensors.stream()
+				.map(tt -> tiles.getNthTileInput(tt, nTile)).collect(Collectors.toList());
+		runNoTiles(inputTiles, outputTiles);
+		return outputTiles;
+	}
+	
+	/**
+	 * Write the background output in the position of every background tile
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	void writeBackgroundTiles(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles, 
+			List<TileBlender> blenders, boolean[] background) throws RunModelException {
+		int first = 0;
+		while (first < background.length && !background[first])
+			first ++;
+		if (first == background.length)
+			return;
+		List<RandomAccessibleInterval<T>> results = 
+				createBackgroundTiles(inputTensors, createOutputTiles(outputTensors, tiles), tiles, first).stream()
+				.map(tt -> tt.getData()).collect(Collectors.toList());
+		for (int i = first; i < background.length; i ++) {
+			if (background[i])
+				writeOutputTile(results, outputTensors, tiles, i, blenders);
+		}
+	}
+	
+	/**
+	 * Copy the nth tile of every input tensor into the buffers provided, in float if the engine does not
+	 * accept the data type of the tensor, or in its own data type otherwise. The buffers are created
+	 * the first time and reused for the following tiles, which all have the same size
+	 */
+	private <R extends RealType<R> & NativeType<R>> 
+	List<Tensor<R>> prepareInputTile(List<Tensor<R>> inputTensors, TileMaker tiles, int nTile, 
+			Map<String, Img<?>> buffers) {
+		List<Tensor<R>> inputTiles = new ArrayList<Tensor<R>>();
+		for (Tensor<R> tt : inputTensors) {
+			Tensor<R> tile = tiles.getNthTileInput(tt, nTile);
+			long[] dims = tile.getData().dimensionsAsLongArray();
+			Img<R> buffer = Cast.unchecked(buffers.get(tt.getName()));
+			if (buffer == null || !Arrays.equals(buffer.dimensionsAsLongArray(), dims)) {
+				R type = tt.getData().getType();
+				if (type instanceof FloatType || acceptsNativeType(tt))
+					buffer = new ArrayImgFactory<R>(type.createVariable()).create(dims);
+				else
+					buffer = Cast.unchecked(ArrayImgs.floats(dims));
+				buffers.put(tt.getName(), buffer);
+			}
+			Tensor.copyInWantedDataType(tile.getData(), buffer);
+			inputTiles.add(Tensor.build(tt.getName(), tt.getAxesOrderString(), buffer));
+		}
+		return inputTiles;
+	}
+	
+	/**
+	 * Tell the {@link #tileCounter}, if any, how many tiles are going to be processed
+	 */
+	private void reportTileTotal(int nTiles) {
+		if (tileCounter != null)
+			tileCounter.acceptTotal((long) nTiles);
+	}
+	
+	/**
+	 * Tell the {@link #tileCounter}, if any, how many tiles have been processed so far.
+	 * Every tiling path reports through here, counting the tiles run, batched or not, and
+	 * the background tiles once they are written
+	 */
+	private void reportTileProgress(int nProcessed) {
+		if (tileCounter != null)
+			tileCounter.acceptProgress((long) nProcessed);
+	}
+	
+	private static int countTrue(boolean[] flags) {
+		int count = 0;
+		for (int i = 0; flags != null && i < flags.length; i ++)
+			count += flags[i] ? 1 : 0;
+		return count;
+	}
+	
+	private static <T extends RealType<T> & NativeType<T>> 
+	List<Tensor<T>> createOutputTiles(List<Tensor<T>> outputTensors, TileMaker tiles) {
+		return outputTensors.stream()
+				.map(tt -> Tensor.buildBlankTensor(tt.getName(), tt.getAxesOrderString(), 
+						tiles.getOutputTileSize(tt.getName()), tt.getData().getType().createVariable()))
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Write the result of the nth tile into the output tensors. If there are blenders the whole
+	 * tile is accumulated, otherwise only the region of interest of the tile is copied
+	 */
+	private static <T extends RealType<T> & NativeType<T>> 
+	void writeOutputTile(List<RandomAccessibleInterval<T>> outputTiles, List<Tensor<T>> outputTensors, 
+			TileMaker tiles, int nTile, List<TileBlender> blenders) {
+		for (int i = 0; i < outputTensors.size(); i ++) {
+			Tensor<T> tt = outputTensors.get(i);
+			if (blenders != null) {
+				long[] position = tiles.getOutputInsertionPoints(tt.getName(), nTile);
+				blenders.get(i).accumulate(outputTiles.get(i), position);
+				continue;
+			}
+			RandomAccessibleInterval<T> target = tiles.getNthTileOutput(tt.getName(), tt.getData(), nTile);
+			LoopBuilder.setImages(target, outputTiles.get(i))
+				.multiThreaded().forEachPixel((o, r) -> o.set(r));
 		}
 	}
 	
@@ -346,6 +1022,140 @@ public class DLModelJava extends BaseModel
 		this.tiling = true;
 	}
 	
+	/**
+	 * Set how many tiles are extracted and converted in advance while the engine
+	 * runs the current one. The results of the tiles are also written back into the
+	 * output tensors in parallel to the inference of the following tiles.
+	 * A depth of 0 (default) processes the tiles strictly one after the other.
+	 * Each extra tile in the queue keeps one input tile and one output tile in memory.
+	 * 
+	 * @param pipelineDepth
+	 * 	number of tiles that can be prepared in advance
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		if (pipelineDepth < 0)
+			throw new IllegalArgumentException("The pipeline depth cannot be negative: " + pipelineDepth);
+		this.pipelineDepth = pipelineDepth;
+	}
+	
+	/**
+	 * 
+	 * @return number of tiles that are prepared in advance while the engine is busy, 0 if the
+	 * 	tiles are processed sequentially
+	 */
+	public int getPipelineDepth() {
+		return this.pipelineDepth;
+	}
+	
+	/**
+	 * Set the memory budget, in bytes, used to group tiles along the batch axis ('b').
+	 * When it is bigger than 0 and every input and output tensor has a batch axis, as many
+	 * tiles as fit in the budget are stacked into one tensor and sent to the engine in a
+	 * single call. The model needs to accept batch sizes bigger than 1.
+	 * A budget of 0 (default) runs one tile per engine call.
+	 * 
+	 * @param tileBatchMemoryBudget
+	 * 	maximum number of bytes that the input and output tiles of one engine call can occupy
+	 */
+	public void setTileBatchMemoryBudget(long tileBatchMemoryBudget) {
+		if (tileBatchMemoryBudget < 0)
+			throw new IllegalArgumentException("The memory budget cannot be negative: " + tileBatchMemoryBudget);
+		this.tileBatchMemoryBudget = tileBatchMemoryBudget;
+	}
+	
+	/**
+	 * 
+	 * @return the memory budget in bytes used to group tiles along the batch axis, 0 if
+	 * 	tiles are not batched
+	 */
+	public long getTileBatchMemoryBudget() {
+		return this.tileBatchMemoryBudget;
+	}
+	
+	/**
+	 * Set how the output tiles are stitched together. By default (null) the halo of every
+	 * output tile is cropped and only its region of interest is written in the output.
+	 * If a {@link TileBlender.Window} is provided, the whole output tiles are weighted with
+	 * that window and blended in the overlapping regions, which allows using smaller halos
+	 * without seams between tiles. Blending needs two extra float images of the size of each output.
+	 * 
+	 * @param blendingWindow
+	 * 	window used to blend the output tiles, or null to crop them
+	 */
+	public void setTileBlending(TileBlender.Window blendingWindow) {
+		this.blendingWindow = blendingWindow;
+	}
+	
+	/**
+	 * 
+	 * @return the window used to blend the output tiles, null if they are cropped
+	 */
+	public TileBlender.Window getTileBlending() {
+		return this.blendingWindow;
+	}
+	
+	/**
+	 * Enable out-of-core tiled inference. The output images of the tiled inference are stored in
+	 * {@link DiskCachedCellImg} files inside the wanted directory, and only the cells touched by the
+	 * most recent tiles are kept in memory. This allows processing images bigger than the available RAM.
+	 * The inputs are always read tile by tile through views, so disk-backed inputs (for example a
+	 * {@link DiskCachedCellImg} or a lazily loaded image) are never loaded completely in memory.
+	 * 
+	 * Tile blending (see {@link #setTileBlending(TileBlender.Window)}) also keeps its accumulated
+	 * images on disk. Note that pre- and post-processing, when they are run, still work on whole images.
+	 * 
+	 * The output tensors own their files, that are deleted when the tensors are closed with
+	 * {@link Tensor#close()}. Otherwise they are only deleted when the JVM exits.
+	 * 
+	 * @param dir
+	 * 	directory where the output files are created. If it is null, the default temporary directory is used
+	 * @param maxCacheBytes
+	 * 	maximum number of bytes of each output image kept in memory. At least the cells needed to
+	 * 	write one tile are always kept. If it is 0, out-of-core processing is disabled
+	 */
+	public void setOutOfCore(File dir, long maxCacheBytes) {
+		if (maxCacheBytes < 0)
+			throw new IllegalArgumentException("The cache size cannot be negative: " + maxCacheBytes);
+		if (dir != null && !dir.isDirectory())
+			throw new IllegalArgumentException("The out-of-core directory does not exist: " + dir);
+		this.outOfCoreDir = dir;
+		this.outOfCoreCacheBytes = maxCacheBytes;
+	}
+	
+	/**
+	 * 
+	 * @return the number of bytes of each output image kept in memory during out-of-core
+	 * 	inference, 0 if the outputs are allocated in memory
+	 */
+	public long getOutOfCoreCacheBytes() {
+		return this.outOfCoreCacheBytes;
+	}
+	
+	/**
+	 * Set a filter to skip the tiles that only contain background. The model is not run on the
+	 * tiles accepted by the filter, see {@link TileFilter#maxBelow(double, int)}, 
+	 * {@link TileFilter#varianceBelow(double, int)} and 
+	 * {@link TileFilter#outsideMask(String, RandomAccessibleInterval, int)}.
+	 * 
+	 * @param tileFilter
+	 * 	filter that detects the background tiles, or null to process every tile
+	 * @param backgroundFillValue
+	 * 	value written in the output of the background tiles. If it is null, the model is run on the
+	 * 	first background tile and its output is copied to the rest of background tiles
+	 */
+	public void setTileFilter(TileFilter tileFilter, Double backgroundFillValue) {
+		this.tileFilter = tileFilter;
+		this.backgroundFillValue = backgroundFillValue;
+	}
+	
+	/**
+	 * 
+	 * @return the filter used to skip background tiles, null if every tile is processed
+	 */
+	public TileFilter getTileFilter() {
+		return this.tileFilter;
+	}
+	
 	/**
 	 * Set a consumer that can be used to get the number of tiles
 	 * in which the input images will be separated and 
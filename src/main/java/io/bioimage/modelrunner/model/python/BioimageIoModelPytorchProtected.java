@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 
@@ -97,13 +98,31 @@ public class BioimageIoModelPytorchProtected extends DLModelPytorchProtected {
 			this.runNoTiles(inputTensors, outs);
 			return outs;
 		}
+		TileMaker maker = buildTileMaker(inputTensors);
+		List<Tensor<T>> outTensors = createOutputTensors(maker);
+		return runBMZ(inputTensors, outTensors, maker);
+	}
+	
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<List<Tensor<T>>> runAsync(List<Tensor<R>> inputTensors) {
+		if (!this.isLoaded())
+			return failedFuture(new RunModelException("Please first load the model."));
+		if (!this.tiling) {
+			List<Tensor<T>> outs = createOutputTensors();
+			return this.runNoTilesAsync(inputTensors, outs).thenApply(v -> outs);
+		}
+		TileMaker maker = buildTileMaker(inputTensors);
+		List<Tensor<T>> outTensors = createOutputTensors(maker);
+		return runBMZAsync(inputTensors, outTensors, maker);
+	}
+	
+	private <R extends RealType<R> & NativeType<R>> TileMaker buildTileMaker(List<Tensor<R>> inputTensors) {
 		List<ImageInfo> imageInfos = inputTensors.stream()
 				.map(tt -> new ImageInfo(tt.getName(), tt.getAxesOrderString(), tt.getData().dimensionsAsLongArray()))
 				.collect(Collectors.toList());
 		List<TileInfo> inputTiles = tileCalculator.getOptimalTileSize(imageInfos);
-		TileMaker maker = TileMaker.build(descriptor, inputTiles);
-		List<Tensor<T>> outTensors = createOutputTensors(maker);
-		return runBMZ(inputTensors, outTensors, maker);
+		return TileMaker.build(descriptor, inputTiles);
 	}
 	
 	private <T extends RealType<T> & NativeType<T>> List<Tensor<T>> createOutputTensors(TileMaker maker) {
@@ -134,6 +153,18 @@ public class BioimageIoModelPytorchProtected extends DLModelPytorchProtected {
 		return processing.postprocess(outputTensors, true);
 	}
 
+	/**
+	 * Same as {@link #runBMZ(List, List, TileMaker)} but without waiting for the model. The pre-processing
+	 * is executed before returning, the post-processing once every tile has been processed
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<List<Tensor<T>>> runBMZAsync(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) {
+		Processing processing = Processing.init(descriptor);
+		List<Tensor<R>> preprocessed = processing.preprocess(inputTensors, false);
+		return toRunModelException(runTilingAsync(preprocessed, outputTensors, tiles)
+				.thenApply(v -> processing.postprocess(outputTensors, true)));
+	}
+
 	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	void run(List<Tensor<T>> inputTensors, List<Tensor<R>> outputTensors) throws RunModelException {
 		if (!this.isLoaded())
@@ -142,11 +173,24 @@ public class BioimageIoModelPytorchProtected extends DLModelPytorchProtected {
 			this.runNoTiles(inputTensors, outputTensors);
 			return;
 		}
-		List<ImageInfo> imageInfos = inputTensors.stream()
-				.map(tt -> new ImageInfo(tt.getName(), tt.getAxesOrderString(), tt.getData().dimensionsAsLongArray()))
-				.collect(Collectors.toList());
-		List<TileInfo> inputTiles = tileCalculator.getOptimalTileSize(imageInfos);
-		TileMaker maker = TileMaker.build(descriptor, inputTiles);
+		TileMaker maker = buildTileMaker(inputTensors);
+		checkOutputSizes(outputTensors, maker);
+		runBMZ(inputTensors, outputTensors, maker);
+	}
+
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Void> runAsync(List<Tensor<T>> inputTensors, List<Tensor<R>> outputTensors) {
+		if (!this.isLoaded())
+			return failedFuture(new RunModelException("Please first load the model."));
+		if (!this.tiling)
+			return this.runNoTilesAsync(inputTensors, outputTensors);
+		TileMaker maker = buildTileMaker(inputTensors);
+		checkOutputSizes(outputTensors, maker);
+		return runBMZAsync(inputTensors, outputTensors, maker).thenApply(outs -> null);
+	}
+	
+	private <R extends RealType<R> & NativeType<R>> void checkOutputSizes(List<Tensor<R>> outputTensors, TileMaker maker) {
 		for (int i = 0; i < maker.getNumberOfTiles(); i ++) {
 			Tensor<R> tt = outputTensors.get(i);
 			long[] expectedSize = maker.getOutputImageSize(tt.getName());
@@ -158,7 +202,6 @@ public class BioimageIoModelPytorchProtected extends DLModelPytorchProtected {
 						+ " vs " + Arrays.toString(expectedSize) + ".");
 			}
 		}
-		runBMZ(inputTensors, outputTensors, maker);
 	}
 	
 	public List<String> findMissingDependencies() {
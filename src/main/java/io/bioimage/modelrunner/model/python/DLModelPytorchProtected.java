@@ -27,21 +27,27 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import org.apache.commons.compress.archivers.ArchiveException;
 
 import io.bioimage.modelrunner.apposed.appose.Environment;
 import io.bioimage.modelrunner.apposed.appose.Mamba;
 import io.bioimage.modelrunner.apposed.appose.MambaInstallException;
-import io.bioimage.modelrunner.apposed.appose.Service;
+import io.bioimage.modelrunner.apposed.appose.ServicePool;
 import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
 import io.bioimage.modelrunner.bioimageio.tiling.TileInfo;
@@ -51,13 +57,16 @@ import io.bioimage.modelrunner.exceptions.LoadModelException;
 import io.bioimage.modelrunner.exceptions.RunModelException;
 import io.bioimage.modelrunner.model.BaseModel;
 import io.bioimage.modelrunner.model.java.DLModelJava.TilingConsumer;
-import io.bioimage.modelrunner.system.PlatformDetection;
 import io.bioimage.modelrunner.tensor.Tensor;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArrayFile;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryPool;
+import io.bioimage.modelrunner.tensor.shm.WirePrecision;
 import io.bioimage.modelrunner.utils.CommonUtils;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Util;
@@ -74,9 +83,86 @@ public class DLModelPytorchProtected extends BaseModel {
 	
 	protected String envPath;
 	
-	private Service python;
+	/**
+	 * Python workers where the model is loaded, see {@link #setWorkers(int)}
+	 */
+	private ServicePool python;
+
+	private static final Logger LOGGER = Logger.getLogger(DLModelPytorchProtected.class.getName());
+	
+	/**
+	 * Number of Python workers where the model is loaded
+	 */
+	protected int workers = 1;
+	
+	/**
+	 * Handle of the script that runs the model, registered in {@link #python}, see {@link #runModelScript()}
+	 */
+	private String runModelHandle;
 	
 	protected List<SharedMemoryArray> inShmaList = new ArrayList<SharedMemoryArray>();
+	
+	/**
+	 * Reduced precision format of each of the segments of {@link #inShmaList}, null for the segments
+	 * that contain the image in its own data type
+	 */
+	protected List<WirePrecision> inWireList = new ArrayList<WirePrecision>();
+	
+	/**
+	 * Default maximum number of bytes of the shared memory segments that are kept alive between runs
+	 * to be reused, both for the inputs (by Java) and for the outputs (by Python)
+	 */
+	public static final long DEFAULT_SHM_POOL_BYTES = 512L * 1024 * 1024;
+	
+	/**
+	 * Pool of the shared memory segments used to send the inputs to Python
+	 */
+	protected SharedMemoryPool shmPool = SharedMemoryPool.create(DEFAULT_SHM_POOL_BYTES);
+	
+	/**
+	 * Segments created by Python to send the outputs that are mapped by Java, by name. Python reuses
+	 * them between runs, so they are kept mapped until Python destroys them
+	 */
+	private final Map<String, SharedMemoryArray> outShmCache = new ConcurrentHashMap<String, SharedMemoryArray>();
+	
+	/**
+	 * Segments leased by Java where Python writes the outputs of the current run, when they are preallocated
+	 */
+	protected List<SharedMemoryArray> outShmaList = new ArrayList<SharedMemoryArray>();
+	
+	/**
+	 * Output tensors of the current run that correspond to each of the segments of {@link #outShmaList}
+	 */
+	private List<Tensor<?>> preallocatedOutputs = new ArrayList<Tensor<?>>();
+	
+	/**
+	 * Lock held while the inputs of a run are prepared and while the outputs sent by Python are read,
+	 * when several runs are in flight
+	 */
+	private final Object tileLock = new Object();
+	
+	/**
+	 * Last asynchronous run whose outputs are sent in the segments of the Python pool, see {@link #runNoTilesAsync(List, List)}
+	 */
+	private CompletableFuture<?> lastPythonOutputsRun = CompletableFuture.completedFuture(null);
+	
+	/**
+	 * Whether Python writes the outputs directly into shared memory segments allocated by Java for
+	 * the output tensors, when their shape is known
+	 */
+	protected boolean preallocateOutputs = false;
+	
+	/**
+	 * Reduced precision format used to send the floating point tensors between Java and Python,
+	 * null to send them in their own data type
+	 */
+	protected WirePrecision wirePrecision = null;
+	
+	/**
+	 * Maximum error, relative to the largest magnitude of each tensor, allowed when a tensor is sent
+	 * with {@link #wirePrecision}
+	 */
+	protected double maxWireError = 0;
 		
 	private List<String> outShmNames;
 	
@@ -147,22 +233,194 @@ public class DLModelPytorchProtected extends BaseModel {
 	
 	protected static final String DIMS_KEY = "dims_" + UUID.randomUUID().toString().replace("-", "_");
 	
-	protected static final String RECOVER_OUTPUTS_CODE = ""
+	protected static final String EVICTED_KEY = "evicted_" + UUID.randomUUID().toString().replace("-", "_");
+	
+	private static final String IDLE_SHMS_KEY = "idle_shms_" + UUID.randomUUID().toString().replace("-", "_");
+	
+	private static final String INPUT_SHMS_KEY = "input_shms_" + UUID.randomUUID().toString().replace("-", "_");
+	
+	private static final String MAPPED_DIR_KEY = "mapped_dir_" + UUID.randomUUID().toString().replace("-", "_");
+	
+	private static final String WIRE_KEY = "wire_" + UUID.randomUUID().toString().replace("-", "_");
+	
+	private static final String WIRE_ERROR_KEY = "wire_error_" + UUID.randomUUID().toString().replace("-", "_");
+	
+	/**
+	 * Input of the script that runs the model with one [name, size, shape, dtype, wire dtype] entry
+	 * per input segment
+	 */
+	private static final String INPUTS_ARG = "jdll_inputs";
+	
+	/**
+	 * Input of the script that runs the model with one [name, size, shape, dtype] entry per preallocated
+	 * output segment, empty if the outputs are not preallocated
+	 */
+	private static final String TARGETS_ARG = "jdll_targets";
+	
+	/**
+	 * Input of the script that runs the model with the names of the segments used by Java in the run
+	 */
+	private static final String KEEP_ARG = "jdll_keep";
+	
+	private static final String MAX_POOLED_ARG = "jdll_max_pooled";
+	
+	private static final String MAPPED_DIR_ARG = "jdll_mapped_dir";
+	
+	private static final String WIRE_ARG = "jdll_wire";
+	
+	private static final String WIRE_ERROR_ARG = "jdll_wire_error";
+	
+	/**
+	 * Python list with the input arrays of the model in the script that runs the model
+	 */
+	protected static final String INPUT_ARRAYS_VAR = "jdll_arrays";
+	
+	/**
+	 * Python side of the shared memory pool. The segments of the outputs of a run are given back to the pool
+	 * at the beginning of the next run, once Java has read them, and the input segments sent by Java are
+	 * kept open while Java keeps using them. As in {@link SharedMemoryPool}, an idle segment is not reused
+	 * for an array more than {@link SharedMemoryPool#MAX_REUSE_RATIO} times smaller.
+	 * Segments that do not fit in /dev/shm are backed by memory mapped files, see {@link SharedMemoryArrayFile}
+	 */
+	private static final String SHM_POOL_CODE = ""
+			+ "if '" + IDLE_SHMS_KEY + "' not in globals().keys():" + System.lineSeparator()
+			+ "  globals()['" + IDLE_SHMS_KEY + "'] = []" + System.lineSeparator()
+			+ "  globals()['" + INPUT_SHMS_KEY + "'] = {}" + System.lineSeparator()
+			+ SharedMemoryArrayFile.PYTHON_OPEN_CODE
+			+ "if 'uuid' not in globals().keys():" + System.lineSeparator()
+			+ "  import uuid" + System.lineSeparator()
+			+ "  globals()['uuid'] = uuid" + System.lineSeparator()
+			+ "def fits_in_shm(nbytes):" + System.lineSeparator()
+			+ "  if not os.path.isdir('/dev/shm'):" + System.lineSeparator()
+			+ "    return True" + System.lineSeparator()
+			+ "  st = os.statvfs('/dev/shm')" + System.lineSeparator()
+			+ "  return st.f_bavail * st.f_frsize >= nbytes" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def new_shm(nbytes):" + System.lineSeparator()
+			+ "  if globals().get('" + MAPPED_DIR_KEY + "') is not None and not fits_in_shm(nbytes):" + System.lineSeparator()
+			+ "    name = " + MAPPED_DIR_KEY + " + '/" + SharedMemoryArrayFile.FILE_PREFIX + "' + uuid.uuid4().hex + '"
+			+ SharedMemoryArrayFile.FILE_EXTENSION + "'" + System.lineSeparator()
+			+ "    return MappedFile(name, nbytes, create=True)" + System.lineSeparator()
+			+ "  return shared_memory.SharedMemory(create=True, size=nbytes)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def pooled_shm(nbytes):" + System.lineSeparator()
+			+ "  best = None" + System.lineSeparator()
+			+ "  for s in " + IDLE_SHMS_KEY + ":" + System.lineSeparator()
+			+ "    if s.size >= nbytes and s.size // " + SharedMemoryPool.MAX_REUSE_RATIO + " <= nbytes "
+			+ "and (best is None or s.size < best.size):" + System.lineSeparator()
+			+ "      best = s" + System.lineSeparator()
+			+ "  if best is None:" + System.lineSeparator()
+			+ "    return new_shm(max(nbytes, 1))" + System.lineSeparator()
+			+ "  " + IDLE_SHMS_KEY + ".remove(best)" + System.lineSeparator()
+			+ "  return best" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def attach_shm(name, size):" + System.lineSeparator()
+			+ "  if name not in " + INPUT_SHMS_KEY + ":" + System.lineSeparator()
+			+ "    " + INPUT_SHMS_KEY + "[name] = open_shm(name, size)" + System.lineSeparator()
+			+ "  return " + INPUT_SHMS_KEY + "[name]" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def close_shm(s):" + System.lineSeparator()
+			+ "  try:" + System.lineSeparator()
+			+ "    s.close()" + System.lineSeparator()
+			+ "  except BufferError:" + System.lineSeparator()
+			+ "    pass" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def recycle_shms(max_bytes, input_names):" + System.lineSeparator()
+			+ "  for name in list(" + INPUT_SHMS_KEY + ".keys()):" + System.lineSeparator()
+			+ "    if name not in input_names:" + System.lineSeparator()
+			+ "      close_shm(" + INPUT_SHMS_KEY + ".pop(name))" + System.lineSeparator()
+			+ "  if '" + SHMS_KEY + "' in globals().keys():" + System.lineSeparator()
+			+ "    " + IDLE_SHMS_KEY + ".extend(globals()['" + SHMS_KEY + "'])" + System.lineSeparator()
+			+ "    globals()['" + SHMS_KEY + "'] = []" + System.lineSeparator()
+			+ "  total = sum([s.size for s in " + IDLE_SHMS_KEY + "])" + System.lineSeparator()
+			+ "  evicted = []" + System.lineSeparator()
+			+ "  while total > max_bytes and len(" + IDLE_SHMS_KEY + ") > 0:" + System.lineSeparator()
+			+ "    s = " + IDLE_SHMS_KEY + ".pop(0)" + System.lineSeparator()
+			+ "    total -= s.size" + System.lineSeparator()
+			+ "    evicted.append(s.name)" + System.lineSeparator()
+			+ "    close_shm(s)" + System.lineSeparator()
+			+ "    s.unlink()" + System.lineSeparator()
+			+ "  return evicted" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def flatten_outputs(out_list, flat):" + System.lineSeparator()
+			+ "  for outs_i in out_list:" + System.lineSeparator()
+			+ "    if type(outs_i) == tuple or type(outs_i) == list:" + System.lineSeparator()
+			+ "      flatten_outputs(outs_i, flat)" + System.lineSeparator()
+			+ "    else:" + System.lineSeparator()
+			+ "      flat.append(outs_i)" + System.lineSeparator()
+			+ "  return flat" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def write_outputs(out_list, targets):" + System.lineSeparator()
+			+ "  flat = flatten_outputs(out_list, [])" + System.lineSeparator()
+			+ "  if len(flat) < len(targets):" + System.lineSeparator()
+			+ "    raise ValueError('The model returned ' + str(len(flat)) + ' outputs but ' + str(len(targets)) + ' were expected.')" + System.lineSeparator()
+			+ "  for outs_i, (name, size, shape, dtype) in zip(flat, targets):" + System.lineSeparator()
+			+ "    if str(type(outs_i)) == \"<class 'torch.Tensor'>\":" + System.lineSeparator()
+			+ "      outs_i = outs_i.detach().cpu().numpy()" + System.lineSeparator()
+			+ "    outs_i = np.asarray(outs_i)" + System.lineSeparator()
+			+ "    if outs_i.size != int(np.prod(shape)):" + System.lineSeparator()
+			+ "      raise ValueError('Output of shape ' + str(outs_i.shape) + ' does not fit in the output tensor of shape ' + str(shape) + '.')" + System.lineSeparator()
+			+ "    out_np = np.ndarray(shape, dtype=dtype, buffer=attach_shm(name, size).buf)" + System.lineSeparator()
+			+ "    np.copyto(out_np, outs_i.reshape(shape), casting='unsafe')" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def from_wire(arr, wire):" + System.lineSeparator()
+			+ "  if wire == 'bfloat16':" + System.lineSeparator()
+			+ "    return (arr.astype(np.uint32) << 16).view(np.float32)" + System.lineSeparator()
+			+ "  return arr.astype(np.float32)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def to_wire(arr):" + System.lineSeparator()
+			+ "  wire = globals().get('" + WIRE_KEY + "')" + System.lineSeparator()
+			+ "  if wire is None or arr.dtype != np.float32 or arr.size == 0:" + System.lineSeparator()
+			+ "    return arr, str(arr.dtype)" + System.lineSeparator()
+			+ "  if wire == 'bfloat16':" + System.lineSeparator()
+			+ "    bits = np.ascontiguousarray(arr).view(np.uint32).astype(np.uint64)" + System.lineSeparator()
+			+ "    enc = ((bits + 0x7FFF + ((bits >> 16) & 1)) >> 16).astype(np.uint16)" + System.lineSeparator()
+			+ "  else:" + System.lineSeparator()
+			+ "    enc = arr.astype(np.float16)" + System.lineSeparator()
+			+ "  with np.errstate(all='ignore'):" + System.lineSeparator()
+			+ "    err = np.max(np.abs(from_wire(enc, wire) - arr))" + System.lineSeparator()
+			+ "    if err != 0:" + System.lineSeparator()
+			+ "      err = err / np.max(np.abs(arr))" + System.lineSeparator()
+			+ "  if err <= globals()['" + WIRE_ERROR_KEY + "']:" + System.lineSeparator()
+			+ "    return enc, wire" + System.lineSeparator()
+			+ "  return arr, str(arr.dtype)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "globals()['from_wire'] = from_wire" + System.lineSeparator()
+			+ "globals()['to_wire'] = to_wire" + System.lineSeparator()
+			+ "globals()['flatten_outputs'] = flatten_outputs" + System.lineSeparator()
+			+ "globals()['write_outputs'] = write_outputs" + System.lineSeparator()
+			+ "globals()['close_shm'] = close_shm" + System.lineSeparator()
+			+ "globals()['fits_in_shm'] = fits_in_shm" + System.lineSeparator()
+			+ "globals()['new_shm'] = new_shm" + System.lineSeparator()
+			+ "globals()['pooled_shm'] = pooled_shm" + System.lineSeparator()
+			+ "globals()['attach_shm'] = attach_shm" + System.lineSeparator()
+			+ "globals()['recycle_shms'] = recycle_shms" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "" + System.lineSeparator();
+	
+	protected static final String RECOVER_OUTPUTS_CODE = SHM_POOL_CODE
 			+ "def handle_output_list(out_list):" + System.lineSeparator()
 			+ "  for outs_i in out_list:" + System.lineSeparator()
+			+ "    if globals().get('" + WIRE_KEY + "') is not None and str(type(outs_i)) == \"<class 'torch.Tensor'>\" "
+			+ "and outs_i.dtype.name == 'float32':" + System.lineSeparator()
+			+ "      outs_i = outs_i.detach().cpu().numpy()" + System.lineSeparator()
 			+ "    if type(outs_i) == np.ndarray:" + System.lineSeparator()
-			+ "      shm = shared_memory.SharedMemory(create=True, size=outs_i.nbytes)" + System.lineSeparator()
+			+ "      outs_i, dtype = to_wire(outs_i)" + System.lineSeparator()
+			+ "      shm = pooled_shm(outs_i.nbytes)" + System.lineSeparator()
 			+ "      sh_np_array = np.ndarray(outs_i.shape, dtype=outs_i.dtype, buffer=shm.buf)" + System.lineSeparator()
 			+ "      np.copyto(sh_np_array, outs_i)" + System.lineSeparator()
 			+ "      " + SHMS_KEY + ".append(shm)" + System.lineSeparator()
 			+ "      " + SHM_NAMES_KEY + ".append(shm.name)" + System.lineSeparator()
-			+ "      " + DTYPES_KEY + ".append(str(outs_i.dtype))" + System.lineSeparator()
+			+ "      " + DTYPES_KEY + ".append(dtype)" + System.lineSeparator()
 			+ "      " + DIMS_KEY + ".append(outs_i.shape)" + System.lineSeparator()
 			+ "    elif str(type(outs_i)) == \"<class 'torch.Tensor'>\":" + System.lineSeparator()
 			+ "      if 'torch' not in globals().keys():" + System.lineSeparator()
 			+ "        import torch" + System.lineSeparator()
 			+ "        globals()['torch'] = torch" + System.lineSeparator()
-			+ "      shm = shared_memory.SharedMemory(create=True, size=outs_i.numel() * outs_i.element_size())" + System.lineSeparator()
+			+ "      shm = pooled_shm(outs_i.numel() * outs_i.element_size())" + System.lineSeparator()
 			+ "      np_arr = np.ndarray(outs_i.shape, dtype=outs_i.dtype.name, buffer=shm.buf)" + System.lineSeparator()
 			+ "      tensor_np_view = torch.from_numpy(np_arr)" + System.lineSeparator()
 			+ "      tensor_np_view.copy_(outs_i)" + System.lineSeparator()
@@ -171,14 +429,14 @@ public class DLModelPytorchProtected extends BaseModel {
 			+ "      " + DTYPES_KEY + ".append(outs_i.dtype.name)" + System.lineSeparator()
 			+ "      " + DIMS_KEY + ".append(outs_i.shape)" + System.lineSeparator()
 			+ "    elif type(outs_i) == int:" + System.lineSeparator()
-			+ "      shm = shared_memory.SharedMemory(create=True, size=8)" + System.lineSeparator()
+			+ "      shm = pooled_shm(8)" + System.lineSeparator()
 			+ "      shm.buf[:8] = outs_i.to_bytes(8, byteorder='little', signed=True)" + System.lineSeparator()
 			+ "      " + SHMS_KEY + ".append(shm)" + System.lineSeparator()
 			+ "      " + SHM_NAMES_KEY + ".append(shm.name)" + System.lineSeparator()
 			+ "      " + DTYPES_KEY + ".append('int64')" + System.lineSeparator()
 			+ "      " + DIMS_KEY + ".append((1))" + System.lineSeparator()
 			+ "    elif type(outs_i) == float:" + System.lineSeparator()
-			+ "      shm = shared_memory.SharedMemory(create=True, size=8)" + System.lineSeparator()
+			+ "      shm = pooled_shm(8)" + System.lineSeparator()
 			+ "      shm.buf[:8] = outs_i.to_bytes(8, byteorder='little', signed=True)" + System.lineSeparator()
 			+ "      " + SHMS_KEY + ".append(shm)" + System.lineSeparator()
 			+ "      " + SHM_NAMES_KEY + ".append(shm.name)" + System.lineSeparator()
@@ -197,11 +455,8 @@ public class DLModelPytorchProtected extends BaseModel {
 			+ "" + System.lineSeparator();
 
 	private static final String CLEAN_SHM_CODE = ""
-			+ "if '" + SHMS_KEY + "' in globals().keys():" + System.lineSeparator()
-			+ "  for s in " + SHMS_KEY + ":" + System.lineSeparator()
-			+ "    s.close()" + System.lineSeparator()
-			+ "    s.unlink()" + System.lineSeparator()
-			+ "    del s" + System.lineSeparator();
+			+ "if 'recycle_shms' in globals().keys():" + System.lineSeparator()
+			+ "  task.outputs['" + EVICTED_KEY + "'] = recycle_shms(0, [])" + System.lineSeparator();
 	
 	protected DLModelPytorchProtected(String modelFile, String callable, String weightsPath, 
 			Map<String, Object> kwargs) throws IOException {
@@ -233,8 +488,9 @@ public class DLModelPytorchProtected extends BaseModel {
 		Environment env = new Environment() {
 			@Override public String base() { return envPath; }
 			};
-		python = env.python();
+		python = ServicePool.python(env, workers);
 		python.debug(System.err::println);
+		runModelHandle = null;
 	}
 	
 	public String getEnvPath() {
@@ -243,10 +499,144 @@ public class DLModelPytorchProtected extends BaseModel {
 	
 	public void setCustomEnvPath(String envPath) throws IOException {
 		this.envPath = envPath;
-		this.python.close();
+		if (this.python != null)
+			this.python.close();
 		createPythonService();
 	}
 	
+	/**
+	 * Set the number of Python workers where the model is loaded. Every worker is a separate Python
+	 * process with its own copy of the model, so the memory needed grows linearly with the number of
+	 * workers. The tiles of tiled runs are processed by all the workers at the same time, and they are
+	 * always written by Python directly into the output tensors, as with {@link #setPreallocateOutputs(boolean)}.
+	 * Runs without tiles are processed by a single worker.
+	 * The number of workers has to be set before loading the model. By default there is one worker.
+	 * Only the models run by this class use several workers. The StarDist models,
+	 * {@link io.bioimage.modelrunner.model.special.stardist.StardistAbstract}, and the ops run with
+	 * {@link io.bioimage.modelrunner.runmode.RunMode} always use a single Python process: StarDist
+	 * tiles the image itself inside Python and the ops share the Python globals of their process
+	 * @param workers
+	 * 	number of Python workers
+	 * @throws IOException if there is any error creating the workers
+	 */
+	public void setWorkers(int workers) throws IOException {
+		if (workers < 1)
+			throw new IllegalArgumentException("The number of workers has to be at least 1: " + workers);
+		if (loaded)
+			throw new IllegalStateException("The number of workers has to be set before loading the model.");
+		this.workers = workers;
+		if (this.python != null)
+			this.python.close();
+		createPythonService();
+	}
+	
+	/**
+	 * 
+	 * @return number of Python workers where the model is loaded
+	 */
+	public int getWorkers() {
+		return this.workers;
+	}
+	
+	/**
+	 * 
+	 * @return the workers where the model is loaded, to check their health
+	 */
+	public List<ServicePool.Worker> getWorkersStatus() {
+		if (python == null)
+			return new ArrayList<ServicePool.Worker>();
+		return python.getWorkers();
+	}
+	
+	/**
+	 * Set the maximum number of bytes of the shared memory segments that are kept alive between runs
+	 * to be reused, both for the inputs and for the outputs. Once the segments are big enough for the
+	 * tensors of a run, repeating runs of the same or smaller size, for example tiles, does not create
+	 * any new shared memory segment.
+	 * With 0 the segments are destroyed after every run.
+	 * By default it is {@link #DEFAULT_SHM_POOL_BYTES}
+	 * @param maxBytes
+	 * 	maximum number of bytes kept alive in each of the sides, Java and Python
+	 * @throws IOException if there is any error destroying the segments of the previous pool
+	 */
+	public void setSharedMemoryPoolSize(long maxBytes) throws IOException {
+		SharedMemoryPool pool = SharedMemoryPool.create(maxBytes);
+		this.shmPool.close();
+		this.shmPool = pool;
+	}
+	
+	/**
+	 * 
+	 * @return the maximum number of bytes of the shared memory segments that are kept alive between runs
+	 */
+	public long getSharedMemoryPoolSize() {
+		return this.shmPool.getMaxPooledBytes();
+	}
+	
+	/**
+	 * Set whether the outputs are written by Python directly into shared memory segments allocated
+	 * by Java with the shape and data type of the output tensors, instead of being copied into new
+	 * segments created by Python and copied again into new images by Java.
+	 * Only the runs where the shape of every output tensor is known use it, for example tiled runs,
+	 * where the output tiles are defined by the {@link TileMaker}. The model outputs, flattened, are
+	 * written into the output tensors in order and converted to their data type.
+	 * @param preallocate
+	 * 	whether to preallocate the outputs
+	 */
+	public void setPreallocateOutputs(boolean preallocate) {
+		this.preallocateOutputs = preallocate;
+	}
+	
+	/**
+	 * 
+	 * @return whether Python writes the outputs directly into shared memory segments allocated by Java
+	 */
+	public boolean isPreallocateOutputs() {
+		return this.preallocateOutputs;
+	}
+	
+	/**
+	 * Set a reduced precision format to send the floating point tensors between Java and Python, the
+	 * inputs and the outputs that are not preallocated, with 2 bytes per value instead of 4 or 8. This
+	 * halves the bytes written to and read from the shared memory, at the cost of rounding the values.
+	 * Every tensor is checked when it is encoded: if the largest difference between a value and its
+	 * encoded value, divided by the largest magnitude of the tensor, is bigger than the maximum error,
+	 * for example because some values overflow the format, the tensor is sent in its own data type.
+	 * Integer tensors, such as uint8 or uint16 images, are always sent in their own data type.
+	 * Python receives the encoded inputs as float32 numpy arrays and the float32 outputs of the model are
+	 * received by Java as float32 images.
+	 * @param precision
+	 * 	the reduced precision format, or null to send every tensor in its own data type, which is the default
+	 * @param maxError
+	 * 	maximum error allowed. The rounding error is at most {@link WirePrecision#getUnitRoundoff()},
+	 * 	so any bound bigger than it only rejects the tensors with values out of the range of the format
+	 */
+	public void setWirePrecision(WirePrecision precision, double maxError) {
+		if (maxError < 0 || Double.isNaN(maxError))
+			throw new IllegalArgumentException("The maximum error of the reduced precision format has to be "
+					+ "a non negative number: " + maxError);
+		this.wirePrecision = precision;
+		this.maxWireError = maxError;
+	}
+	
+	/**
+	 * 
+	 * @return the reduced precision format used to send the floating point tensors between Java and Python,
+	 * 	or null if they are sent in their own data type
+	 */
+	public WirePrecision getWirePrecision() {
+		return this.wirePrecision;
+	}
+	
+	/**
+	 * 
+	 * @return maximum error, relative to the largest magnitude of each tensor, allowed when a tensor
+	 * 	is sent with the reduced precision format
+	 */
+	public double getMaxWireError() {
+		return this.maxWireError;
+	}
+	
 	public boolean isTiling() {
 		return this.tiling;
 	}
@@ -293,16 +683,11 @@ public class DLModelPytorchProtected extends BaseModel {
 		
 		code += RECOVER_OUTPUTS_CODE;
 
-		Task task;
 		try {
-			task = python.task(code);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException(task.error);
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException(task.error);
+			// the workers of a closed model are created again once it is loaded again
+			if (python == null)
+				createPythonService();
+			python.setup(code);
 		} catch (IOException | InterruptedException e) {
 			throw new LoadModelException(Types.stackTrace(e));
 		}
@@ -350,9 +735,32 @@ public class DLModelPytorchProtected extends BaseModel {
 	public void close() {
 		if (!loaded)
 			return;
-		python.close();
 		loaded = false;
-		
+		ServicePool pool = python;
+		python = null;
+		synchronized (tileLock) {
+			lastPythonOutputsRun.cancel(true);
+			lastPythonOutputsRun = CompletableFuture.completedFuture(null);
+		}
+		try {
+			// NB: the busy workers are not waited for, their segments are freed when their processes exit
+			pool.runOnIdle(CLEAN_SHM_CODE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.WARNING, "Interrupted while freeing the shared memory of the Python workers.", e);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Could not free the shared memory of the Python workers.", e);
+		}
+		// the queued runs fail and the running ones are not waited for
+		pool.close();
+		detachOutputs(new ArrayList<String>(outShmCache.keySet()));
+		try {
+			long maxBytes = shmPool.getMaxPooledBytes();
+			shmPool.close();
+			shmPool = SharedMemoryPool.create(maxBytes);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not close the shared memory pool of the model.", e);
+		}
 	}
 	
 	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
@@ -360,26 +768,16 @@ public class DLModelPytorchProtected extends BaseModel {
 	throws RunModelException {
 		if (!loaded)
 			throw new RuntimeException("Please load the model first.");
-		List<String> names = inTensors.stream()
-				.map(tt -> tt.getName() + "_np").collect(Collectors.toList());
 		List<RandomAccessibleInterval<T>> rais = inTensors.stream().map(tt -> tt.getData()).collect(Collectors.toList());
-		return executeCode(createInputsCode(rais, names));		
+		return executeModel(rais);		
 	}
 	
 	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
-	Map<String, RandomAccessibleInterval<R>> executeCode(String code) 
+	Map<String, RandomAccessibleInterval<R>> executeModel(List<RandomAccessibleInterval<T>> rais) 
 	throws RunModelException {
 		Map<String, RandomAccessibleInterval<R>> outMap;
 		try {
-			Task task = python.task(code);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException(task.error);
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException(task.error);
-			loaded = true;
+			Task task = runTask(createInputsArgs(rais));
 			outMap = reconstructOutputs(task);
 			cleanShm();
 		} catch (IOException | InterruptedException e) {
@@ -393,6 +791,57 @@ public class DLModelPytorchProtected extends BaseModel {
 		return outMap;
 	}
 	
+	/**
+	 * Run the model writing the outputs directly into shared memory segments with the shape and data type
+	 * of the output tensors. The output tensors are filled from the segments, without intermediate copies
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	void executeIntoOutputs(List<Tensor<T>> inTensors, List<Tensor<R>> outTensors) throws RunModelException {
+		if (!loaded)
+			throw new RuntimeException("Please load the model first.");
+		List<RandomAccessibleInterval<T>> rais = inTensors.stream().map(tt -> tt.getData()).collect(Collectors.toList());
+		try {
+			for (Tensor<R> tt : outTensors) {
+				outShmaList.add(shmPool.acquire(SharedMemoryArray.getArrayByteSize(tt.getData().dimensionsAsLongArray(),
+						Util.getTypeFromInterval(tt.getData()))));
+				preallocatedOutputs.add(tt);
+			}
+			Task task = runTask(createInputsArgs(rais));
+			detachEvictedOutputs(task);
+			for (int i = 0; i < outTensors.size(); i ++) {
+				Tensor<R> tt = outTensors.get(i);
+				tt.setData(outShmaList.get(i).getSharedRAI(tt.getData().dimensionsAsLongArray(),
+						Util.getTypeFromInterval(tt.getData()), false));
+			}
+			cleanShm();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			try {
+				cleanShm();
+			} catch (InterruptedException | IOException e1) {
+				throw new RunModelException(Types.stackTrace(e1));
+			}
+			throw new RunModelException(Types.stackTrace(e));
+		}
+	}
+	
+	/**
+	 * Run the model with the script registered in the worker, see {@link #runModelScript()}
+	 */
+	private Task runTask(Map<String, Object> args) throws IOException, InterruptedException {
+		if (runModelHandle == null)
+			runModelHandle = python.register(runModelScript());
+		Task task = python.invoke(runModelHandle, args);
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new RuntimeException("Task canceled");
+		else if (task.status == TaskStatus.FAILED)
+			throw new RuntimeException(task.error);
+		else if (task.status == TaskStatus.CRASHED)
+			throw new RuntimeException(task.error);
+		loaded = true;
+		return task;
+	}
+	
 	/**
 	 * Simply run inference on the images provided. If the dimensions, number, data type or other
 	 * characteristic of the tensor is not correct, an exception will be thrown.
@@ -411,10 +860,7 @@ public class DLModelPytorchProtected extends BaseModel {
 
 		if (!loaded)
 			throw new RuntimeException("Please load the model first.");
-		List<String> names = IntStream.range(0, inputs.size())
-				.mapToObj(i -> "var_" + UUID.randomUUID().toString().replace("-", "_")).collect(Collectors.toList());
-		String code = createInputsCode(inputs, names);
-		Map<String, RandomAccessibleInterval<R>> map = executeCode(code);
+		Map<String, RandomAccessibleInterval<R>> map = executeModel(inputs);
 		List<RandomAccessibleInterval<R>> outRais = new ArrayList<RandomAccessibleInterval<R>>();
 		for (Entry<String, RandomAccessibleInterval<R>> ee : map.entrySet()) {
 			outRais.add(ee.getValue());
@@ -422,47 +868,153 @@ public class DLModelPytorchProtected extends BaseModel {
 		return outRais;
 	}
 	
-	protected <T extends RealType<T> & NativeType<T>> String createInputsCode(List<RandomAccessibleInterval<T>> rais, List<String> names) {
-		String code = "";
-		for (int i = 0; i < rais.size(); i ++) {
-			SharedMemoryArray shma = SharedMemoryArray.createSHMAFromRAI(rais.get(i));
-			code += codeToConvertShmaToPython(shma, names.get(i));
-			inShmaList.add(shma);
-		}
-		code += "print(type(input_torch))" + System.lineSeparator();
-		code += "print(input_torch.shape)" + System.lineSeparator();
-		code += OUTPUT_LIST_KEY + " = " + MODEL_VAR_NAME + "(";
-		for (int i = 0; i < rais.size(); i ++)
-			code += names.get(i) + ", ";
-		code = code.substring(0, code.length() - 2);
-		code += ")" + System.lineSeparator();
+	/**
+	 * Script that runs the model on the images copied into the shared memory segments and sends the outputs
+	 * back to Java. It is registered once in the worker, that compiles it only once, and every run just sends
+	 * the values created by {@link #createInputsArgs(List)}.
+	 * It gives back to the Python pool the output segments of the previous run and closes the input segments
+	 * that are not used in this run, reporting the segments destroyed to keep the pool under its maximum size.
+	 * Then it wraps the inputs with numpy arrays, decoding them if they were sent with a reduced precision
+	 * format, and calls the model with {@link #invocationCode()}.
+	 * If the outputs have been preallocated they are written into the segments of {@link #outShmaList},
+	 * otherwise they are copied into segments of the Python pool
+	 * @return the script
+	 */
+	protected String runModelScript() {
+		String code = ""
+				+ "globals()['" + MAPPED_DIR_KEY + "'] = " + MAPPED_DIR_ARG + System.lineSeparator()
+				+ "globals()['" + WIRE_KEY + "'] = " + WIRE_ARG + " or None" + System.lineSeparator()
+				+ "globals()['" + WIRE_ERROR_KEY + "'] = float(" + WIRE_ERROR_ARG + ")" + System.lineSeparator()
+				+ "task.outputs['" + EVICTED_KEY + "'] = recycle_shms(" + MAX_POOLED_ARG + ", " + KEEP_ARG + ")" + System.lineSeparator()
+				+ INPUT_ARRAYS_VAR + " = []" + System.lineSeparator()
+				+ "for in_name, in_size, in_shape, in_dtype, in_wire in " + INPUTS_ARG + ":" + System.lineSeparator()
+				+ "  in_arr = np.ndarray(in_shape, dtype=in_dtype, buffer=attach_shm(in_name, in_size).buf)" + System.lineSeparator()
+				+ "  " + INPUT_ARRAYS_VAR + ".append(in_arr if in_wire is None else from_wire(in_arr, in_wire))" + System.lineSeparator();
+		code += invocationCode();
 		code += ""
-				+ SHMS_KEY + " = []" + System.lineSeparator()
-				+ SHM_NAMES_KEY + " = []" + System.lineSeparator()
-				+ DTYPES_KEY + " = []" + System.lineSeparator()
-				+ DIMS_KEY + " = []" + System.lineSeparator()
-				+ "globals()['" + SHMS_KEY + "'] = " + SHMS_KEY + System.lineSeparator()
-				+ "globals()['" + SHM_NAMES_KEY + "'] = " + SHM_NAMES_KEY + System.lineSeparator()
-				+ "globals()['" + DTYPES_KEY + "'] = " + DTYPES_KEY + System.lineSeparator()
-				+ "globals()['" + DIMS_KEY + "'] = " + DIMS_KEY + System.lineSeparator();
-		code += "handle_output_list(" + OUTPUT_LIST_KEY + ")" + System.lineSeparator();
-		code += taskOutputsCode();
+				+ "if len(" + TARGETS_ARG + ") > 0:" + System.lineSeparator()
+				+ "  write_outputs(" + OUTPUT_LIST_KEY + ", " + TARGETS_ARG + ")" + System.lineSeparator()
+				+ "else:" + System.lineSeparator()
+				+ "  " + SHMS_KEY + " = []" + System.lineSeparator()
+				+ "  " + SHM_NAMES_KEY + " = []" + System.lineSeparator()
+				+ "  " + DTYPES_KEY + " = []" + System.lineSeparator()
+				+ "  " + DIMS_KEY + " = []" + System.lineSeparator()
+				+ "  globals()['" + SHMS_KEY + "'] = " + SHMS_KEY + System.lineSeparator()
+				+ "  globals()['" + SHM_NAMES_KEY + "'] = " + SHM_NAMES_KEY + System.lineSeparator()
+				+ "  globals()['" + DTYPES_KEY + "'] = " + DTYPES_KEY + System.lineSeparator()
+				+ "  globals()['" + DIMS_KEY + "'] = " + DIMS_KEY + System.lineSeparator()
+				+ "  handle_output_list(" + OUTPUT_LIST_KEY + ")" + System.lineSeparator()
+				+ "  task.outputs['" + SHM_NAMES_KEY + "'] = " + SHM_NAMES_KEY + System.lineSeparator()
+				+ "  task.outputs['" + DTYPES_KEY + "'] = " + DTYPES_KEY + System.lineSeparator()
+				+ "  task.outputs['" + DIMS_KEY + "'] = " + DIMS_KEY + System.lineSeparator();
 		return code;
 	}
 	
-	protected String taskOutputsCode() {
-		String code = ""
-				+ "task.outputs['" + SHM_NAMES_KEY + "'] = " + SHM_NAMES_KEY + System.lineSeparator()
-				+ "task.outputs['" + DTYPES_KEY + "'] = " + DTYPES_KEY + System.lineSeparator()
-				+ "task.outputs['" + DIMS_KEY + "'] = " + DIMS_KEY + System.lineSeparator();
-		return code;
+	/**
+	 * Code of {@link #runModelScript()} that calls the model with the input arrays, stored in the list
+	 * {@link #INPUT_ARRAYS_VAR}, and stores the outputs in the variable {@link #OUTPUT_LIST_KEY}.
+	 * The values that change between runs have to be read from inputs of the task added in
+	 * {@link #createInputsArgs(List)}
+	 * @return the code
+	 */
+	protected String invocationCode() {
+		return OUTPUT_LIST_KEY + " = " + MODEL_VAR_NAME + "(*" + INPUT_ARRAYS_VAR + ")" + System.lineSeparator();
 	}
-
+	
+	/**
+	 * Copy the images into segments of the shared memory pool and create the inputs of the task that
+	 * runs {@link #runModelScript()}
+	 * @param <T>
+	 * 	ImgLib2 data type of the images
+	 * @param rais
+	 * 	the images
+	 * @return the inputs of the task
+	 */
+	protected <T extends RealType<T> & NativeType<T>> Map<String, Object> createInputsArgs(List<RandomAccessibleInterval<T>> rais) {
+		for (int i = 0; i < rais.size(); i ++)
+			acquireInput(rais.get(i));
+		List<Object> ins = new ArrayList<Object>();
+		for (int i = 0; i < rais.size(); i ++) {
+			SharedMemoryArray shma = inShmaList.get(i);
+			WirePrecision wire = inWireList.get(i);
+			String dtype = wire == null ? CommonUtils.getDataTypeFromRAI(Cast.unchecked(rais.get(i))) : wire.getStorageType();
+			ins.add(Arrays.asList(shma.getNameForPython(), shma.getSize(), rais.get(i).dimensionsAsLongArray(), dtype,
+					wire == null ? null : wire.getDataType()));
+		}
+		List<Object> targets = new ArrayList<Object>();
+		for (int i = 0; i < outShmaList.size(); i ++) {
+			RandomAccessibleInterval<?> rai = preallocatedOutputs.get(i).getData();
+			targets.add(Arrays.asList(outShmaList.get(i).getNameForPython(), outShmaList.get(i).getSize(),
+					rai.dimensionsAsLongArray(), CommonUtils.getDataTypeFromRAI(Cast.unchecked(rai))));
+		}
+		List<String> keep = new ArrayList<String>();
+		for (SharedMemoryArray shma : inShmaList)
+			keep.add(shma.getNameForPython());
+		for (SharedMemoryArray shma : outShmaList)
+			keep.add(shma.getNameForPython());
+		Map<String, Object> args = new HashMap<String, Object>();
+		args.put(INPUTS_ARG, ins);
+		args.put(TARGETS_ARG, targets);
+		args.put(KEEP_ARG, keep);
+		args.put(MAX_POOLED_ARG, shmPool.getMaxPooledBytes());
+		args.put(MAPPED_DIR_ARG, SharedMemoryArrayFile.getDirectoryForPython());
+		args.put(WIRE_ARG, wirePrecision == null ? "" : wirePrecision.getDataType());
+		args.put(WIRE_ERROR_ARG, "" + maxWireError);
+		return args;
+	}
+	
+	/**
+	 * Copy an input image into a segment of the shared memory pool and add it to {@link #inShmaList}.
+	 * Floating point images are encoded with {@link #wirePrecision} if it is set and the error is
+	 * within the bound, the rest, and the images whose encoding fails, are copied in their own data type
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param rai
+	 * 	the image
+	 */
+	protected <T extends RealType<T> & NativeType<T>> void acquireInput(RandomAccessibleInterval<T> rai) {
+		SharedMemoryArray shma = null;
+		T type = Util.getTypeFromInterval(rai);
+		if (wirePrecision != null && (type instanceof FloatType || type instanceof DoubleType)) {
+			try {
+				shma = shmPool.acquire(rai, wirePrecision, maxWireError);
+			} catch (IOException | RuntimeException e) {
+				// NB: the pool already gave back the segment, the image is sent in its own data type
+				LOGGER.log(Level.WARNING, "Could not encode the input with " + wirePrecision 
+						+ ", sending it in its own data type.", e);
+			}
+		}
+		inWireList.add(shma == null ? null : wirePrecision);
+		if (shma == null)
+			shma = shmPool.acquire(rai, false);
+		inShmaList.add(shma);
+	}
+	
 	@Override
 	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	List<Tensor<T>> run(List<Tensor<R>> inputTensors) throws RunModelException {
 		if (!this.isLoaded())
 			throw new RunModelException("Please first load the model.");
+		TileMaker maker = buildTileMaker();
+		List<Tensor<T>> outTensors = createOutputTensors();
+		runTiling(inputTensors, outTensors, maker);
+		return outTensors;
+	}
+	
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<List<Tensor<T>>> runAsync(List<Tensor<R>> inputTensors) {
+		if (!this.isLoaded())
+			return failedFuture(new RunModelException("Please first load the model."));
+		TileMaker maker = buildTileMaker();
+		List<Tensor<T>> outTensors = createOutputTensors();
+		return runTilingAsync(inputTensors, outTensors, maker).thenApply(v -> outTensors);
+	}
+	
+	/**
+	 * Create the {@link TileMaker} with the tiling specifications set with {@link #setTileInfo(List, List)}
+	 */
+	private TileMaker buildTileMaker() {
 		if (!this.tiling) {
 			throw new UnsupportedOperationException("Cannot run a DLModel if no information about the outputs is provided."
 					+ " Either try with 'run( List< Tensor < T > > inTensors, List< Tensor < R > > outTensors )'"
@@ -474,11 +1026,7 @@ public class DLModelPytorchProtected extends BaseModel {
 			throw new UnsupportedOperationException("Tiling is set to 'true' but the input tiles are not well defined");
 		else if (this.isTiling() && (this.outputTiles == null || this.outputTiles.size() == 0))
 			throw new UnsupportedOperationException("Tiling is set to 'true' but the output tiles are not well defined");
-		
-		TileMaker maker = TileMaker.build(inputTiles, outputTiles);
-		List<Tensor<T>> outTensors = createOutputTensors();
-		runTiling(inputTensors, outTensors, maker);
-		return outTensors;
+		return TileMaker.build(inputTiles, outputTiles);
 	}
 	
 	private <T extends RealType<T> & NativeType<T>> List<Tensor<T>> createOutputTensors() {
@@ -502,11 +1050,24 @@ public class DLModelPytorchProtected extends BaseModel {
 			this.runNoTiles(inTensors, outTensors);
 			return;
 		}
-		if (this.isTiling() && (inputTiles != null || this.inputTiles.size() == 0))
-			throw new UnsupportedOperationException("Tiling is set to 'true' but the input tiles are not well defined");
-		else if (this.isTiling() && (this.outputTiles == null || this.outputTiles.size() == 0))
-			throw new UnsupportedOperationException("Tiling is set to 'true' but the output tiles are not well defined");
-		TileMaker tiles = TileMaker.build(inputTiles, outputTiles);
+		TileMaker tiles = buildTileMaker();
+		checkOutputSizes(outTensors, tiles);
+		runTiling(inTensors, outTensors, tiles);
+	}
+
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>>
+	CompletableFuture<Void> runAsync(List<Tensor<T>> inTensors, List<Tensor<R>> outTensors) {
+		if (!this.isLoaded())
+			return failedFuture(new RunModelException("Please first load the model."));
+		if (!this.tiling)
+			return runNoTilesAsync(inTensors, outTensors);
+		TileMaker tiles = buildTileMaker();
+		checkOutputSizes(outTensors, tiles);
+		return runTilingAsync(inTensors, outTensors, tiles);
+	}
+	
+	private <R extends RealType<R> & NativeType<R>> void checkOutputSizes(List<Tensor<R>> outTensors, TileMaker tiles) {
 		for (int i = 0; i < tiles.getNumberOfTiles(); i ++) {
 			Tensor<R> tt = outTensors.get(i);
 			long[] expectedSize = tiles.getOutputImageSize(tt.getName());
@@ -518,11 +1079,14 @@ public class DLModelPytorchProtected extends BaseModel {
 						+ " vs " + Arrays.toString(expectedSize) + ".");
 			}
 		}
-		runTiling(inTensors, outTensors, tiles);
 	}
 	
 	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	void runTiling(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) throws RunModelException {
+		if (python.size() > 1 && outputTensors.size() > 0 && outputTensors.stream().allMatch(tt -> !tt.isEmpty())) {
+			join(runTilingAsync(inputTensors, outputTensors, tiles));
+			return;
+		}
 		for (int i = 0; i < tiles.getNumberOfTiles(); i ++) {
 			int nTile = 0 + i;
 			List<Tensor<R>> inputTiles = inputTensors.stream()
@@ -533,9 +1097,127 @@ public class DLModelPytorchProtected extends BaseModel {
 		}
 	}
 
+	/**
+	 * Process the tiles without waiting for them. The tiles are queued in the Python workers, that
+	 * process as many tiles at the same time as workers there are, see {@link #setWorkers(int)}.
+	 * Every worker writes its tile directly into shared memory segments with the shape and data type
+	 * of the output tiles, that are then copied into the output tensors.
+	 * If the output tensors are empty the tiles are processed one by one in a separate thread
+	 * @return future completed once every tile has been written into the output tensors
+	 */
+	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Void> runTilingAsync(List<Tensor<R>> inputTensors, List<Tensor<T>> outputTensors, TileMaker tiles) {
+		if (outputTensors.size() == 0 || !outputTensors.stream().allMatch(tt -> !tt.isEmpty())) {
+			return CompletableFuture.runAsync(() -> {
+				try {
+					runTiling(inputTensors, outputTensors, tiles);
+				} catch (RunModelException e) {
+					throw new CompletionException(e);
+				}
+			}, ASYNC_EXECUTOR);
+		}
+		List<CompletableFuture<?>> runs = new ArrayList<CompletableFuture<?>>();
+		for (int i = 0; i < tiles.getNumberOfTiles(); i ++) {
+			int nTile = 0 + i;
+			List<Tensor<R>> inputTiles = inputTensors.stream()
+					.map(tt -> tiles.getNthTileInput(tt, nTile)).collect(Collectors.toList());
+			List<Tensor<T>> outputTiles = outputTensors.stream()
+					.map(tt -> tiles.getNthTileOutput(tt, nTile)).collect(Collectors.toList());
+			runs.add(runInWorkerAsync(inputTiles, outputTiles));
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[runs.size()]));
+		return toRunModelException(all.thenRun(() -> {
+			try {
+				cleanShm();
+			} catch (IOException | InterruptedException e) {
+				throw new CompletionException(e);
+			}
+		}));
+	}
+	
+	/**
+	 * Run the model in the first idle Python worker without waiting for it. The inputs are copied into
+	 * segments of the shared memory pool and, if output tensors are given, Python writes the outputs
+	 * directly into segments with their shape and data type, that are then copied into them.
+	 * Otherwise the outputs are returned in segments of the Python pool of the worker.
+	 * The lists of segments used by {@link #createInputsArgs(List)} are filled one run at a time, and
+	 * the segments of every run are kept apart until it finishes, so several runs can be in flight
+	 * @return future completed with the outputs of the model, or with an empty map if they have been written
+	 * 	into the output tensors
+	 */
+	private <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Map<String, RandomAccessibleInterval<R>>> runInWorkerAsync(List<Tensor<T>> inTensors, List<Tensor<R>> outTensors) {
+		List<RandomAccessibleInterval<T>> rais = inTensors.stream().map(tt -> tt.getData()).collect(Collectors.toList());
+		List<SharedMemoryArray> ins = new ArrayList<SharedMemoryArray>();
+		List<SharedMemoryArray> outs = new ArrayList<SharedMemoryArray>();
+		CompletableFuture<Task> run;
+		try {
+			Map<String, Object> args;
+			synchronized (tileLock) {
+				try {
+					for (Tensor<R> tt : outTensors) {
+						outShmaList.add(shmPool.acquire(SharedMemoryArray.getArrayByteSize(tt.getData().dimensionsAsLongArray(),
+								Util.getTypeFromInterval(tt.getData()))));
+						preallocatedOutputs.add(tt);
+					}
+					args = createInputsArgs(rais);
+				} finally {
+					ins.addAll(inShmaList);
+					outs.addAll(outShmaList);
+					inShmaList.clear();
+					inWireList.clear();
+					outShmaList.clear();
+					preallocatedOutputs.clear();
+				}
+				if (runModelHandle == null)
+					runModelHandle = python.register(runModelScript());
+			}
+			run = python.invokeAsync(runModelHandle, args);
+		} catch (RuntimeException e) {
+			run = failedFuture(e);
+		}
+		CompletableFuture<Map<String, RandomAccessibleInterval<R>>> outputs = run.thenApply(task -> {
+			if (outTensors.size() == 0) {
+				synchronized (tileLock) {
+					try {
+						return reconstructOutputs(task);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}
+			detachEvictedOutputs(task);
+			for (int i = 0; i < outTensors.size(); i ++) {
+				Tensor<R> tt = outTensors.get(i);
+				tt.setData(outs.get(i).getSharedRAI(tt.getData().dimensionsAsLongArray(),
+						Util.getTypeFromInterval(tt.getData()), false));
+			}
+			return new LinkedHashMap<String, RandomAccessibleInterval<R>>();
+		});
+		return outputs.whenComplete((map, exc) -> {
+			try {
+				for (SharedMemoryArray shma : ins)
+					shmPool.release(shma);
+				for (SharedMemoryArray shma : outs)
+					shmPool.release(shma);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
 	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>>
 	void runNoTiles(List<Tensor<T>> inTensors, List<Tensor<R>> outTensors) throws RunModelException {
+		if (preallocateOutputs && outTensors.size() > 0 && outTensors.stream().allMatch(tt -> !tt.isEmpty())) {
+			executeIntoOutputs(inTensors, outTensors);
+			return;
+		}
 		Map<String, RandomAccessibleInterval<R>> outMap = predictForInputTensors(inTensors);
+		setOutputs(outMap, outTensors);
+	}
+	
+	private <R extends RealType<R> & NativeType<R>> 
+	void setOutputs(Map<String, RandomAccessibleInterval<R>> outMap, List<Tensor<R>> outTensors) {
 		int c = 0;
 		for (Entry<String, RandomAccessibleInterval<R>> ee : outMap.entrySet()) {
 			RandomAccessibleInterval<R> rai = ee.getValue();
@@ -547,23 +1229,102 @@ public class DLModelPytorchProtected extends BaseModel {
 			
 		}
 	}
+
+	/**
+	 * Same as {@link #runNoTiles(List, List)} but without waiting for the model.
+	 * Runs whose outputs are preallocated, see {@link #setPreallocateOutputs(boolean)}, are processed by
+	 * as many workers at the same time as there are. The rest are processed one after the other, because
+	 * every worker reuses the segments of the outputs of a run in the next one
+	 * @return future completed once the outputs have been written into the output tensors
+	 */
+	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>>
+	CompletableFuture<Void> runNoTilesAsync(List<Tensor<T>> inTensors, List<Tensor<R>> outTensors) {
+		if (preallocateOutputs && outTensors.size() > 0 && outTensors.stream().allMatch(tt -> !tt.isEmpty()))
+			return toRunModelException(runInWorkerAsync(inTensors, outTensors).thenRun(this::cleanShmAsync));
+		synchronized (tileLock) {
+			CompletableFuture<Void> run = lastPythonOutputsRun.handle((v, exc) -> null)
+					.thenCompose(v -> runInWorkerAsync(inTensors, new ArrayList<Tensor<R>>()))
+					.thenAccept(outMap -> {
+						setOutputs(outMap, outTensors);
+						cleanShmAsync();
+					});
+			lastPythonOutputsRun = run;
+			return toRunModelException(run);
+		}
+	}
+	
+	private void cleanShmAsync() {
+		try {
+			cleanShm();
+		} catch (IOException | InterruptedException e) {
+			throw new CompletionException(e);
+		}
+	}
+	
+	/**
+	 * Wait for a future completed exceptionally with a {@link RunModelException} if it fails
+	 */
+	private static <V> V join(CompletableFuture<V> future) throws RunModelException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RunModelException("Inference interrupted.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RunModelException)
+				throw (RunModelException) e.getCause();
+			throw new RunModelException(Types.stackTrace(e.getCause()));
+		}
+	}
 	
 	private void closeShm() throws IOException {
 		for (SharedMemoryArray shm : inShmaList) {
-			shm.close();
+			shmPool.release(shm);
+		}
+		for (SharedMemoryArray shm : outShmaList) {
+			shmPool.release(shm);
 		}
+		inShmaList.clear();
+		inWireList.clear();
+		outShmaList.clear();
+		preallocatedOutputs.clear();
 	}
 	
 	private void cleanShm() throws InterruptedException, IOException {
+		ServicePool pool = python;
+		// NB: a closed model has already freed the segments of its workers
+		if (pool != null && shmPool.getMaxPooledBytes() == 0) {
+			pool.runOnAll(CLEAN_SHM_CODE);
+			detachOutputs(new ArrayList<String>(outShmCache.keySet()));
+		}
 		closeShm();
-		if (PlatformDetection.isWindows()) {
-			Task closeSHMTask = python.task(CLEAN_SHM_CODE);
-			closeSHMTask.waitFor();
+	}
+	
+	/**
+	 * Unmap the output segments that have been destroyed by Python
+	 * @param names
+	 * 	names of the segments
+	 */
+	private void detachOutputs(List<String> names) {
+		for (String name : names) {
+			SharedMemoryArray shm = outShmCache.remove(name);
+			if (shm != null)
+				shm.detach();
 		}
 	}
 	
+	private void detachEvictedOutputs(Task task) {
+		if (task.outputs.get(EVICTED_KEY) instanceof List == false)
+			return;
+		List<String> names = new ArrayList<String>();
+		for (Object elem : (List<?>) task.outputs.get(EVICTED_KEY))
+			names.add(String.valueOf(elem));
+		detachOutputs(names);
+	}
+	
 	protected <T extends RealType<T> & NativeType<T>> 
 	Map<String, RandomAccessibleInterval<T>> reconstructOutputs(Task task) throws IOException {
+		detachEvictedOutputs(task);
 		buildOutShmList(task);
 		buildOutDTypesList(task);
 		buildOutDimsList(task);
@@ -638,16 +1399,22 @@ public class DLModelPytorchProtected extends BaseModel {
 	private <T extends RealType<T> & NativeType<T>> 
 	RandomAccessibleInterval<T> reconstruct(String key, String dtype, long[] dims) throws IOException {
 
-		SharedMemoryArray shm = SharedMemoryArray.readOrCreate(key, dims, 
-				Cast.unchecked(CommonUtils.getImgLib2DataType(dtype)), false, false);
+		// the segment belongs to the Python pool and might be bigger than the array
+		SharedMemoryArray shm = outShmCache.get(key);
+		if (shm == null) {
+			shm = SharedMemoryArray.read(key);
+			outShmCache.put(key, shm);
+		}
+		
+		WirePrecision wire = WirePrecision.fromDataType(dtype);
+		if (wire != null)
+			return Cast.unchecked(wire.read(shm.getPointer(), 0, dims));
 		
 		// TODO I do not understand why is complaining when the types align perfectly
-		RandomAccessibleInterval<T> rai = shm.getSharedRAI();
+		RandomAccessibleInterval<T> rai = shm.getSharedRAI(dims, Cast.unchecked(CommonUtils.getImgLib2DataType(dtype)), false);
 		RandomAccessibleInterval<T> raiCopy = Tensor.createCopyOfRaiInWantedDataType(Cast.unchecked(rai), 
 				Util.getTypeFromInterval(Cast.unchecked(rai)));
 		
-		shm.close();
-		
 		return raiCopy;
 	}
 	
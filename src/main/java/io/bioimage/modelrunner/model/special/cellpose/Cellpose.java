@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
@@ -48,7 +49,6 @@ import io.bioimage.modelrunner.exceptions.LoadModelException;
 import io.bioimage.modelrunner.exceptions.RunModelException;
 import io.bioimage.modelrunner.model.python.BioimageIoModelPytorchProtected;
 import io.bioimage.modelrunner.tensor.Tensor;
-import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImg;
@@ -135,6 +135,13 @@ public class Cellpose extends BioimageIoModelPytorchProtected {
 	private static final String TWO_CHANNEL_STR = "ch_0, ch_1";
 	
 	private static final String THREE_CHANNEL_STR = "ch_0, ch_1, ch_3";
+	
+	/**
+	 * Inputs of the script that runs the model with the channels and the diameter passed to 'eval'
+	 */
+	private static final String CHANNELS_ARG = "jdll_channels";
+	
+	private static final String DIAMETER_ARG = "jdll_diameter";
 
 	protected Cellpose(String modelFile, String callable, String weightsPath, 
 			Map<String, Object> kwargs, ModelDescriptor descriptor) throws IOException {
@@ -241,6 +248,20 @@ public class Cellpose extends BioimageIoModelPytorchProtected {
 		createCustomDescriptor(inputTensors);
 		super.run(checkInputTensors(inputTensors), checkOutputTensors(outputTensors));
 	}
+
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<List<Tensor<T>>> runAsync(List<Tensor<R>> inputTensors) {
+		createCustomDescriptor(inputTensors);
+		return super.runAsync(checkInputTensors(inputTensors));
+	}
+
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Void> runAsync(List<Tensor<T>> inputTensors, List<Tensor<R>> outputTensors) {
+		createCustomDescriptor(inputTensors);
+		return super.runAsync(checkInputTensors(inputTensors), checkOutputTensors(outputTensors));
+	}
 	
 	protected String buildModelCode() {
 		if (this.isBMZ)
@@ -251,62 +272,40 @@ public class Cellpose extends BioimageIoModelPytorchProtected {
 		return code;
 	}
 	
+	protected String invocationCode() {
+		if (this.isBMZ)
+			return super.invocationCode();
+		return OUTPUT_LIST_KEY + " = " + MODEL_VAR_NAME + ".eval(" + INPUT_ARRAYS_VAR + "[0], channels=" + CHANNELS_ARG
+				+ ", diameter=" + DIAMETER_ARG + " or None)" + System.lineSeparator();
+	}
+	
 	protected <T extends RealType<T> & NativeType<T>> 
-	String createInputsCode(List<RandomAccessibleInterval<T>> inRais, List<String> names) {
+	Map<String, Object> createInputsArgs(List<RandomAccessibleInterval<T>> inRais) {
+		Map<String, Object> args = super.createInputsArgs(inRais);
 		if (this.isBMZ)
-			return super.createInputsCode(inRais, names);
-		String code = "";
-		for (int i = 0; i < inRais.size(); i ++) {
-			SharedMemoryArray shma = SharedMemoryArray.createSHMAFromRAI(inRais.get(i));
-			code += codeToConvertShmaToPython(shma, names.get(i));
-			inShmaList.add(shma);
-		}
-		code += "print(type(" + names.get(0)  + "))" + System.lineSeparator();
-		code += "print(" + names.get(0) + ".shape)" + System.lineSeparator();
-		code += OUTPUT_LIST_KEY + " = " + MODEL_VAR_NAME + ".eval(";
-		for (int i = 0; i < inRais.size(); i ++)
-			code += names.get(i) + ", channels=" + createChannelsArgCode(inRais.get(i)) +", ";
-		code += "diameter=" + createDiamCode() + ")" + System.lineSeparator();
-		code += ""
-				+ SHMS_KEY + " = []" + System.lineSeparator()
-				+ SHM_NAMES_KEY + " = []" + System.lineSeparator()
-				+ DTYPES_KEY + " = []" + System.lineSeparator()
-				+ DIMS_KEY + " = []" + System.lineSeparator()
-				+ "globals()['" + SHMS_KEY + "'] = " + SHMS_KEY + System.lineSeparator()
-				+ "globals()['" + SHM_NAMES_KEY + "'] = " + SHM_NAMES_KEY + System.lineSeparator()
-				+ "globals()['" + DTYPES_KEY + "'] = " + DTYPES_KEY + System.lineSeparator()
-				+ "globals()['" + DIMS_KEY + "'] = " + DIMS_KEY + System.lineSeparator();
-		code += "handle_output_list(" + OUTPUT_LIST_KEY + ")" + System.lineSeparator();
-		code += taskOutputsCode();
-		return code;
+			return args;
+		args.put(CHANNELS_ARG, createChannelsArg(inRais.get(0)));
+		args.put(DIAMETER_ARG, diameter == null ? 0 : diameter);
+		return args;
 	}
 	
-	protected <T extends RealType<T> & NativeType<T>> String createChannelsArgCode(RandomAccessibleInterval<T> rai) {
+	protected <T extends RealType<T> & NativeType<T>> int[] createChannelsArg(RandomAccessibleInterval<T> rai) {
 		long[] dims = rai.dimensionsAsLongArray();
 		if (channels == null && dims.length == 2)
-			return "[0, 0]";
-		else if (channels == null && dims.length == 3 && dims[2] == 1)
-			return "[0, 0]";
+			return new int[] {0, 0};
 		else if (channels == null && dims.length == 3 && dims[2] == 1)
-			return "[0, 0]";
+			return new int[] {0, 0};
 		else if (channels == null && dims.length == 3 && dims[2] == 3 && isRedChannelEmpty(rai))
-			return "[2, 3]";
+			return new int[] {2, 3};
 		else if (channels == null && dims.length == 3 && dims[2] == 3)
-			return "[2, 1]";
+			return new int[] {2, 1};
 		else if (channels != null)
-			return Arrays.toString(channels);
+			return channels;
 		else
 			throw new IllegalArgumentException("Bad configuration, dims=" + Arrays.toString(dims) 
 			+ ", channels=" + Arrays.toString(channels));
 	}
 	
-	protected String createDiamCode() {
-		if (this.diameter  == null)
-			return "None";
-		else
-			return "" + diameter;
-	}
-	
 	/**
 	 * Initialize a Stardist2D using the format of the Bioiamge.io model zoo.
 	 * @param descriptor
@@ -24,10 +24,14 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -49,6 +53,7 @@ import io.bioimage.modelrunner.model.processing.Processing;
 import io.bioimage.modelrunner.system.PlatformDetection;
 import io.bioimage.modelrunner.tensor.Tensor;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArrayFile;
 import io.bioimage.modelrunner.transformations.ScaleRangeTransformation;
 import io.bioimage.modelrunner.utils.CommonUtils;
 import io.bioimage.modelrunner.utils.Constants;
@@ -82,8 +87,23 @@ public abstract class StardistAbstract extends BaseModel {
 	
 	private ModelDescriptor descriptor;
 		
+	/**
+	 * Single Python process where the model is loaded. StarDist tiles the image inside Python,
+	 * so unlike {@link io.bioimage.modelrunner.model.python.DLModelPytorchProtected#setWorkers(int)}
+	 * there is no pool of workers
+	 */
 	private Service python;
 	
+	/**
+	 * Handle of the script that runs the model, registered in {@link #python}, see {@link #RUN_MODEL_CODE}
+	 */
+	private String runModelHandle;
+	
+	/**
+	 * Last run started with {@link #runAsync(RandomAccessibleInterval)}
+	 */
+	private CompletableFuture<?> lastRun = CompletableFuture.completedFuture(null);
+	
 	/**
 	 * Value used to scale the image wihtin the [0, 1] range.
 	 * Using minimum percentile 0 is equivalent to use the minimum of the image as the max
@@ -133,17 +153,34 @@ public abstract class StardistAbstract extends BaseModel {
 			+ "if 'np' not in globals().keys():" + System.lineSeparator()
 			+ "  import numpy as np" + System.lineSeparator()
 			+ "  globals()['np'] = np" + System.lineSeparator()
-			+ "if 'os' not in globals().keys():" + System.lineSeparator()
-			+ "  import os" + System.lineSeparator()
-			+ "  globals()['os'] = os" + System.lineSeparator()
-			+ "if 'shared_memory' not in globals().keys():" + System.lineSeparator()
-			+ "  from multiprocessing import shared_memory" + System.lineSeparator()
-			+ "  globals()['shared_memory'] = shared_memory" + System.lineSeparator()
+			+ SharedMemoryArrayFile.PYTHON_OPEN_CODE
 			+ "os.environ[\"CUDA_VISIBLE_DEVICES\"] = \"-1\"" + System.lineSeparator()
 			+ "model = %s(None, name='%s', basedir=r\"%s\")" + System.lineSeparator()
 			+ "globals()['model'] = model" + System.lineSeparator();
 	
-	private static final String RUN_MODEL_CODE = ""
+	private static final String SHM_NAME_ARG = "jdll_shm_name";
+	
+	private static final String SHM_SIZE_ARG = "jdll_shm_size";
+	
+	private static final String N_ELEMS_ARG = "jdll_n_elems";
+	
+	private static final String DTYPE_ARG = "jdll_dtype";
+	
+	private static final String SHAPE_ARG = "jdll_shape";
+	
+	/**
+	 * Code that recreates the input image from the shared memory segment described by the inputs
+	 * of the task, see {@link #createEncodeImageArgs()}
+	 */
+	private static final String ENCODE_IMAGE_CODE = ""
+			+ "im_shm = open_shm(" + SHM_NAME_ARG + ", " + SHM_SIZE_ARG + ")" + System.lineSeparator()
+			+ "im = np.ndarray(" + N_ELEMS_ARG + ", dtype=" + DTYPE_ARG + ", buffer=im_shm.buf).reshape(" + SHAPE_ARG + ")" + System.lineSeparator();
+	
+	/**
+	 * Script that runs the model. It is registered once in the worker, that compiles it only once,
+	 * and every run just sends the description of the input segment
+	 */
+	private static final String RUN_MODEL_CODE = ENCODE_IMAGE_CODE
 			+ "output = model.predict_instances(im, return_predict=False)" + System.lineSeparator()
 			+ "if type(output) == np.ndarray:" + System.lineSeparator()
 			+ "  im[:] = output" + System.lineSeparator()
@@ -283,24 +320,26 @@ public abstract class StardistAbstract extends BaseModel {
 			};
 		python = env.python();
 		python.debug(System.err::println);
+		runModelHandle = null;
 	}
 	
-	protected String createEncodeImageScript() {
-		String code = "";
-		// This line wants to recreate the original numpy array. Should look like:
-		// input0_appose_shm = shared_memory.SharedMemory(name=input0)
-		// input0 = np.ndarray(size, dtype="float64", buffer=input0_appose_shm.buf).reshape([64, 64])
-		code += "im_shm = shared_memory.SharedMemory(name='"
-							+ shma.getNameForPython() + "', size=" + shma.getSize() 
-							+ ")" + System.lineSeparator();
+	/**
+	 * Create the inputs of the task that describe the shared memory segment with the input image.
+	 * With them {@link #ENCODE_IMAGE_CODE} recreates the original numpy array, as in:
+	 * im_shm = open_shm('input0', 16384)
+	 * im = np.ndarray(4096, dtype='float32', buffer=im_shm.buf).reshape([64, 64])
+	 * @return the inputs of the task
+	 */
+	protected Map<String, Object> createEncodeImageArgs() {
 		long nElems = 1;
 		for (long elem : shma.getOriginalShape()) nElems *= elem;
-		code += "im = np.ndarray(" + nElems  + ", dtype='" + CommonUtils.getDataTypeFromRAI(Cast.unchecked(shma.getSharedRAI()))
-			  + "', buffer=im_shm.buf).reshape([";
-		for (int i = 0; i < shma.getOriginalShape().length; i ++)
-			code += shma.getOriginalShape()[i] + ", ";
-		code += "])" + System.lineSeparator();
-		return code;
+		Map<String, Object> args = new HashMap<String, Object>();
+		args.put(SHM_NAME_ARG, shma.getNameForPython());
+		args.put(SHM_SIZE_ARG, shma.getSize());
+		args.put(N_ELEMS_ARG, nElems);
+		args.put(DTYPE_ARG, CommonUtils.getDataTypeFromRAI(Cast.unchecked(shma.getSharedRAI())));
+		args.put(SHAPE_ARG, shma.getOriginalShape());
+		return args;
 	}
 	
 	protected <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
@@ -335,21 +374,36 @@ public abstract class StardistAbstract extends BaseModel {
 		preprocess(inTensors);
 		try {
 			Map<String, RandomAccessibleInterval<R>> outputs = run(inTensors.get(0).getData());
-			for (Tensor<R> tensor : outTensors) {
-				Entry<String, RandomAccessibleInterval<R>> entry = outputs.entrySet().stream()
-						.filter(ee -> tensor.getName().equals(ee.getKey())
-								&& Arrays.equals(tensor.getData().dimensionsAsLongArray(), ee.getValue().dimensionsAsLongArray()))
-						.findFirst().orElse(null);
-				if (entry == null 
-						&& Arrays.equals(tensor.getData().dimensionsAsLongArray(), outputs.get(OUTPUT_MASK_KEY).dimensionsAsLongArray()))
-					tensor.setData(outputs.get(OUTPUT_MASK_KEY));
-				else if (entry != null)
-					tensor.setData(entry.getValue());
-			}
+			setOutputs(outputs, outTensors);
 		} catch (IOException | InterruptedException e) {
 			throw new RunModelException(Types.stackTrace(e));
 		}
 	}
+
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Void> runAsync( List< Tensor < T > > inTensors, List< Tensor < R > > outTensors ) {
+		if (inTensors.size() > 1)
+			return failedFuture(new RunModelException("Stardist needs just one input image"));
+		preprocess(inTensors);
+		return toRunModelException(this.<T, R>runAsync(inTensors.get(0).getData())
+				.thenAccept(outputs -> setOutputs(outputs, outTensors)));
+	}
+	
+	private <R extends RealType<R> & NativeType<R>> 
+	void setOutputs(Map<String, RandomAccessibleInterval<R>> outputs, List< Tensor < R > > outTensors) {
+		for (Tensor<R> tensor : outTensors) {
+			Entry<String, RandomAccessibleInterval<R>> entry = outputs.entrySet().stream()
+					.filter(ee -> tensor.getName().equals(ee.getKey())
+							&& Arrays.equals(tensor.getData().dimensionsAsLongArray(), ee.getValue().dimensionsAsLongArray()))
+					.findFirst().orElse(null);
+			if (entry == null 
+					&& Arrays.equals(tensor.getData().dimensionsAsLongArray(), outputs.get(OUTPUT_MASK_KEY).dimensionsAsLongArray()))
+				tensor.setData(outputs.get(OUTPUT_MASK_KEY));
+			else if (entry != null)
+				tensor.setData(entry.getValue());
+		}
+	}
 	
 	@Override
 	public void loadModel() throws LoadModelException {
@@ -383,55 +437,126 @@ public abstract class StardistAbstract extends BaseModel {
 		preprocess(inputTensors);
 		try {
 			Map<String, RandomAccessibleInterval<T>> outputs = run(inputTensors.get(0).getData());
-			List<Tensor<T>> outTensors = new ArrayList<Tensor<T>>();
-			for (Entry<String, RandomAccessibleInterval<T>> entry : outputs.entrySet()) {
-				if (entry.getValue() == null)
-					continue;
-				String axesOrder = "xy";
-				if (entry.getValue().dimensionsAsLongArray().length > 2 && this.is2D())
-					axesOrder += "c";
-				else if (entry.getValue().dimensionsAsLongArray().length == 3 && this.is3D())
-					axesOrder += "z";
-				else if (entry.getValue().dimensionsAsLongArray().length > 3 && this.is3D())
-					axesOrder += "zc";
-				else if (entry.getValue().dimensionsAsLongArray().length == 1)
-					axesOrder = "i";
-				Tensor<T> tt = Tensor.build(entry.getKey(), axesOrder, entry.getValue());
-				// TODO
-				if (tt.getName() != "mask")
-					continue;
-				outTensors.add(tt);
-			}
-			return outTensors;
+			return buildOutputTensors(outputs);
 		} catch (IOException | InterruptedException e) {
 			throw new RunModelException(Types.stackTrace(e));
 		}
 	}
+	
+	@Override
+	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<List<Tensor<T>>> runAsync(List<Tensor<R>> inputTensors) {
+		if (inputTensors.size() > 1)
+			return failedFuture(new RunModelException("Stardist needs just one input image"));
+		preprocess(inputTensors);
+		return toRunModelException(this.<R, T>runAsync(inputTensors.get(0).getData())
+				.thenApply(outputs -> buildOutputTensors(outputs)));
+	}
+	
+	private <T extends RealType<T> & NativeType<T>> 
+	List<Tensor<T>> buildOutputTensors(Map<String, RandomAccessibleInterval<T>> outputs) {
+		List<Tensor<T>> outTensors = new ArrayList<Tensor<T>>();
+		for (Entry<String, RandomAccessibleInterval<T>> entry : outputs.entrySet()) {
+			if (entry.getValue() == null)
+				continue;
+			String axesOrder = "xy";
+			if (entry.getValue().dimensionsAsLongArray().length > 2 && this.is2D())
+				axesOrder += "c";
+			else if (entry.getValue().dimensionsAsLongArray().length == 3 && this.is3D())
+				axesOrder += "z";
+			else if (entry.getValue().dimensionsAsLongArray().length > 3 && this.is3D())
+				axesOrder += "zc";
+			else if (entry.getValue().dimensionsAsLongArray().length == 1)
+				axesOrder = "i";
+			Tensor<T> tt = Tensor.build(entry.getKey(), axesOrder, entry.getValue());
+			// TODO
+			if (tt.getName() != "mask")
+				continue;
+			outTensors.add(tt);
+		}
+		return outTensors;
+	}
 
+	/**
+	 * Run Stardist on an image and wait for the outputs. The run is queued after the runs started with
+	 * {@link #runAsync(RandomAccessibleInterval)}, because all of them share the same shared memory
+	 * segment for the input
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the input image
+	 * @param <R>
+	 * 	ImgLib2 data type of the outputs
+	 * @param img
+	 * 	the input image
+	 * @return the outputs of Stardist
+	 * @throws IOException if there is any error communicating with Python or reading the outputs
+	 * @throws InterruptedException if the thread is interrupted while waiting for the outputs
+	 */
 	public <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
 	Map<String, RandomAccessibleInterval<R>> run(RandomAccessibleInterval<T> img) throws IOException, InterruptedException {
-		checkInput(img);
-		shma = SharedMemoryArray.createSHMAFromRAI(img, false, false);
-		String code = "";
-		if (!loaded) {
-			code += createImportsCode() + System.lineSeparator();
+		try {
+			return this.<T, R>runAsync(img).get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+					? e.getCause().getCause() : e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	/**
+	 * Same as {@link #run(RandomAccessibleInterval)} but without waiting for the model.
+	 * The image is sent to Python once the previous runs have finished, because all of them
+	 * share the same shared memory segment for the input
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 data type of the input image
+	 * @param <R>
+	 * 	ImgLib2 data type of the outputs
+	 * @param img
+	 * 	the input image
+	 * @return future completed with the outputs of Stardist
+	 */
+	public synchronized <T extends RealType<T> & NativeType<T>, R extends RealType<R> & NativeType<R>> 
+	CompletableFuture<Map<String, RandomAccessibleInterval<R>>> runAsync(RandomAccessibleInterval<T> img) {
+		CompletableFuture<Map<String, RandomAccessibleInterval<R>>> run = lastRun.handle((v, exc) -> null)
+				.thenCompose(v -> startRun(img))
+				.thenApply(task -> {
+					loaded = true;
+					try {
+						return reconstructOutputs(task);
+					} catch (IOException | InterruptedException e) {
+						throw new CompletionException(e);
+					}
+				});
+		lastRun = run;
+		return run;
+	}
+	
+	private <T extends RealType<T> & NativeType<T>> CompletableFuture<Task> startRun(RandomAccessibleInterval<T> img) {
+		try {
+			checkInput(img);
+			shma = SharedMemoryArray.createSHMAFromRAI(img, false, false);
+			CompletableFuture<Task> imports = CompletableFuture.completedFuture(null);
+			if (!loaded)
+				imports = python.task(createImportsCode()).future();
+			if (runModelHandle == null)
+				runModelHandle = python.register(RUN_MODEL_CODE);
+			return imports.thenCompose(task -> {
+				try {
+					return python.invoke(runModelHandle, createEncodeImageArgs()).future();
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			return failedFuture(e);
 		}
-		
-		code += createEncodeImageScript() + System.lineSeparator();
-		code += RUN_MODEL_CODE + System.lineSeparator();
-		
-		Task task = python.task(code);
-		task.waitFor();
-		if (task.status == TaskStatus.CANCELED)
-			throw new RuntimeException("Task canceled");
-		else if (task.status == TaskStatus.FAILED)
-			throw new RuntimeException(task.error);
-		else if (task.status == TaskStatus.CRASHED)
-			throw new RuntimeException(task.error);
-		loaded = true;
-		
-		
-		return reconstructOutputs(task);
 	}
 	
 	private <T extends RealType<T> & NativeType<T>> 
@@ -24,11 +24,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 import io.bioimage.modelrunner.apposed.appose.Appose;
@@ -38,6 +45,7 @@ import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
 import io.bioimage.modelrunner.runmode.ops.OpInterface;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArrayFile;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryFile;
 import io.bioimage.modelrunner.tensor.Tensor;
 import io.bioimage.modelrunner.utils.CommonUtils;
@@ -61,7 +69,7 @@ public class RunMode {
 	
 	private static final String IMPORT_SHM = ""
 			+ "t = time()" + System.lineSeparator()
-			+ "from multiprocessing import shared_memory" + System.lineSeparator()
+			+ SharedMemoryArrayFile.PYTHON_OPEN_CODE
 			+ "task.update('multiproc imported: ' + str(time() - t))" + System.lineSeparator();
 	
 	protected static final String APPOSE_SHM_KEY = ("_shm_" + UUID.randomUUID().toString()).replace("-", "_");
@@ -89,8 +97,33 @@ public class RunMode {
 			+ IMPORT_NUMPY;
 	
 	
+	/**
+	 * Default time in milliseconds that the Python process of an op can stay idle before being shut down
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+	
+	/**
+	 * Time in milliseconds that the Python process of an op can stay idle before being shut down
+	 */
+	private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	
+	/**
+	 * Python processes kept alive between calls to {@link #runOP()}, one per conda environment and op module
+	 */
+	private static final Map<String, OpService> SERVICES = new HashMap<String, OpService>();
+	
+	/**
+	 * Shuts down the Python processes that have been idle for longer than {@link #idleTimeout}
+	 */
+	private static final ScheduledExecutorService IDLE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "JDLL-RunMode-Idle");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	private Environment env;
 	private String envFileName;
+	private String setupCode;
 	private String opCode;
 	private OpInterface op;
 	private LinkedHashMap<String, Object> apposeInputMap;
@@ -102,6 +135,12 @@ public class RunMode {
 	private String shmInstancesCode = ""
 			+ "task.update('just started')" + System.lineSeparator()
 			+ "from time import time" + System.lineSeparator()
+			+ "for shm in globals().get('shm_out_list', []):" + System.lineSeparator()
+			+ "  try:" + System.lineSeparator()
+			+ "    shm.close()" + System.lineSeparator()
+			+ "    shm.unlink()" + System.lineSeparator()
+			+ "  except Exception:" + System.lineSeparator()
+			+ "    pass" + System.lineSeparator()
 			+ "shm_out_list = []" + System.lineSeparator()
 			+ "globals()['shm_out_list'] = shm_out_list" + System.lineSeparator()
 			+ "task.update('time imported')" + System.lineSeparator();
@@ -120,9 +159,11 @@ public class RunMode {
 		opExecutionCode();
 		retrieveResultsCode();
 		
-		opCode = shmInstancesCode + System.lineSeparator()
+		// NB: the imports and the conversion methods are executed once per Python process, see OpService
+		setupCode = "from time import time" + System.lineSeparator()
 				+ importsCode + System.lineSeparator()
-				+ RunModeScripts.TYPE_CONVERSION_METHODS_SCRIPT + System.lineSeparator()
+				+ RunModeScripts.TYPE_CONVERSION_METHODS_SCRIPT;
+		opCode = shmInstancesCode + System.lineSeparator()
 				+ tensorRecreationCode + System.lineSeparator()
 				+ opMethodCode + System.lineSeparator()
 				+ retrieveResultsCode + System.lineSeparator()
@@ -141,7 +182,10 @@ public class RunMode {
 	}
 	
 	/**
-	 * Run the Python code
+	 * Run the Python code. The Python process is kept alive after the call and reused by the
+	 * next calls for the same conda environment and op module, so the module is only imported once.
+	 * It is shut down after being idle for {@link #getIdleTimeout()} milliseconds, or with {@link #closeServices()}.
+	 * The shared memory of the outputs is freed as soon as they have been copied into Java
 	 * @return a Map where the keys are the name of the Python variables in the Python scope
 	 * 	and the values are the actual variable values retrieved from the Python process as the 
 	 * 	outputs from the Python OP
@@ -154,17 +198,13 @@ public class RunMode {
 			@Override public boolean useSystemPath() { return false; }
 			};
 		Map<String, Object> outputs = null;
-		try (Service python = env.python()) {
-        	python.debug(line -> {
-        		System.err.println(line);
-        	});
-            Task task = python.task(opCode, apposeInputMap);
-            task.waitFor();
-			if (task.status != TaskStatus.COMPLETE)
-				throw new RuntimeException("Error running Python code: " + task.error);
-            outputs = recreateOutputObjects(task.outputs);
-            // TODO remove Task closeShmTask = python.task(RunModeScripts.UNLINK_AND_CLOSE_SHM, null);
-           // TODO remove  closeShmTask.waitFor();
+		OpService service = acquireService(op.getCondaEnv() + File.pathSeparator + op.getOpDir() + File.pathSeparator + moduleName);
+		try {
+            outputs = service.run(env, setupCode, opCode, apposeInputMap, task -> {
+    			if (task.status != TaskStatus.COMPLETE)
+    				throw new RuntimeException("Error running Python code: " + task.error);
+    			return recreateOutputObjects(task.outputs);
+            });
         } catch (IOException e) {
         	closeShmaList();
         	throw e;
@@ -174,10 +214,72 @@ public class RunMode {
 		} catch (Exception e) {
         	closeShmaList();
         	throw new RuntimeException(e);
+		} finally {
+			releaseService(service);
 		}
 		return outputs;
 	}
 	
+	private static synchronized OpService acquireService(String key) {
+		OpService service = SERVICES.get(key);
+		if (service == null) {
+			service = new OpService();
+			SERVICES.put(key, service);
+		}
+		service.users ++;
+		if (service.shutdown != null) {
+			service.shutdown.cancel(false);
+			service.shutdown = null;
+		}
+		return service;
+	}
+	
+	private static synchronized void releaseService(OpService service) {
+		service.users --;
+		if (service.users > 0)
+			return;
+		service.shutdown = IDLE_EXECUTOR.schedule(() -> closeIdle(service), idleTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	private static synchronized void closeIdle(OpService service) {
+		if (service.users > 0)
+			return;
+		SERVICES.values().remove(service);
+		service.close();
+	}
+	
+	/**
+	 * Shut down all the Python processes kept alive by {@link #runOP()}. The next call will start a new one
+	 */
+	public static synchronized void closeServices() {
+		for (OpService service : SERVICES.values()) {
+			if (service.shutdown != null)
+				service.shutdown.cancel(false);
+			service.close();
+		}
+		SERVICES.clear();
+	}
+	
+	/**
+	 * Set the time that the Python process of an op can stay idle before being shut down, by default
+	 * {@link #DEFAULT_IDLE_TIMEOUT}. The processes that are already idle keep their previous timeout
+	 * @param millis
+	 * 	idle time in milliseconds
+	 */
+	public static void setIdleTimeout(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("The idle timeout cannot be negative: " + millis);
+		idleTimeout = millis;
+	}
+	
+	/**
+	 * 
+	 * @return the time in milliseconds that the Python process of an op can stay idle before being shut down
+	 */
+	public static long getIdleTimeout() {
+		return idleTimeout;
+	}
+	
 	private void closeShmaList() {
 		this.shmaList.stream().forEach(entry ->{
 			try {
@@ -244,7 +346,8 @@ public class RunMode {
 	private void addImports() {
 		importsCode = DEFAULT_IMPORT
 				+ "t = time()" + System.lineSeparator()
-				+ "sys.path.append(r'" + op.getOpDir() + "')" + System.lineSeparator()
+				+ "if r'" + op.getOpDir() + "' not in sys.path:" + System.lineSeparator()
+				+ "  sys.path.append(r'" + op.getOpDir() + "')" + System.lineSeparator()
 				+ "task.update('extra file imported: ' + str(time() - t))" + System.lineSeparator()
 				+ "t = time()" + System.lineSeparator()
 				+ "t2 = time()" + System.lineSeparator()
@@ -379,15 +482,15 @@ public class RunMode {
 		if (!shmInstancesCode.contains(IMPORT_SHM))
 			shmInstancesCode += IMPORT_SHM;
 		// This line wants to recreate the original tensor array. Should look like:
-		// input0_appose_shm = shared_memory.SharedMemory(name=input0)
+		// input0_appose_shm = open_shm('input0', size)
 		// input0 = xr.DataArray(np.ndarray(size, dtype="float64", 
 		// 									buffer=input0_appose_shm.buf).reshape([64, 64]), 
 		// 									dims=["b", "c", "y", "x"], name="input0")
-		shmInstancesCode += ogName + APPOSE_SHM_KEY + " = shared_memory.SharedMemory(name='" 
-						+ shma.getNameForPython() + "', size=" + shma.getSize() + ")" + System.lineSeparator();
+		shmInstancesCode += ogName + APPOSE_SHM_KEY + " = open_shm('" 
+						+ shma.getNameForPython() + "', " + shma.getSize() + ")" + System.lineSeparator();
 		shmInstancesCode += "shm_out_list.append(" + ogName + APPOSE_SHM_KEY + ")" + System.lineSeparator();
 		shmInstancesCode += ogName + APPOSE_SHM_KEY + ".unlink()" + System.lineSeparator();
-		int size = 1;
+		long size = 1;
 		long[] dims = tensor.getData().dimensionsAsLongArray();
 		for (long l : dims) {size *= l;}
 		tensorRecreationCode += ogName + " = xr.DataArray(np.ndarray(" + size + ", dtype='" 
@@ -413,13 +516,13 @@ public class RunMode {
 		if (!shmInstancesCode.contains(IMPORT_SHM))
 			shmInstancesCode += IMPORT_SHM;
 		// This line wants to recreate the original numpy array. Should look like:
-		// input0_appose_shm = shared_memory.SharedMemory(name=input0)
+		// input0_appose_shm = open_shm('input0', size)
 		// input0 = np.ndarray(size, dtype="float64", buffer=input0_appose_shm.buf).reshape([64, 64])
-		shmInstancesCode += ogName + APPOSE_SHM_KEY + " = shared_memory.SharedMemory(name='" 
-							+ shma.getNameForPython() + "', size=" + shma.getSize() + ")" + System.lineSeparator();
+		shmInstancesCode += ogName + APPOSE_SHM_KEY + " = open_shm('" 
+							+ shma.getNameForPython() + "', " + shma.getSize() + ")" + System.lineSeparator();
 		shmInstancesCode += "shm_out_list.append(" + ogName + APPOSE_SHM_KEY + ")" + System.lineSeparator();
 		shmInstancesCode += ogName + APPOSE_SHM_KEY + ".unlink()" + System.lineSeparator();
-		int size = 1;
+		long size = 1;
 		long[] dims = rai.dimensionsAsLongArray();
 		for (long l : dims) {size *= l;}
 		tensorRecreationCode += ogName + " = np.ndarray(" + size + ", dtype='" 
@@ -543,4 +646,78 @@ public class RunMode {
 		 }
 		return nList;
 	}
+	
+	/**
+	 * Python process shared by the calls to {@link #runOP()} with the same conda environment and op module.
+	 * The calls are executed one at a time, because the scripts of the ops share the Python globals
+	 */
+	private static class OpService {
+		
+		private Service python;
+		/**
+		 * Setup scripts, imports and method definitions, already executed in the process
+		 */
+		private final Set<String> setups = new HashSet<String>();
+		/**
+		 * Number of calls using or waiting for the process
+		 */
+		private int users = 0;
+		/**
+		 * Scheduled shutdown of the process, when it is idle
+		 */
+		private ScheduledFuture<?> shutdown;
+		
+		/**
+		 * Run the code of an op, executing its setup code first if it has not been executed yet in the
+		 * process. The outputs are read while the process is still reserved for this call, and then the
+		 * shared memory segments created by Python for them are freed
+		 */
+		private synchronized Map<String, Object> run(Environment env, String setupCode, String code, Map<String, Object> inputs,
+				OutputReader reader) throws IOException, InterruptedException {
+			if (python == null) {
+				python = env.python();
+	        	python.debug(line -> {
+	        		System.err.println(line);
+	        	});
+			}
+			if (!setups.contains(setupCode)) {
+	        	Task setup = python.task(setupCode);
+	        	setup.waitFor();
+				if (setup.status != TaskStatus.COMPLETE) {
+					close();
+					throw new RuntimeException("Error importing the Python op: " + setup.error);
+				}
+				setups.add(setupCode);
+			}
+			Task task = python.task(code, inputs);
+			task.waitFor();
+			if (task.status == TaskStatus.CRASHED) {
+				close();
+				return reader.read(task);
+			}
+			try {
+				return reader.read(task);
+			} finally {
+				Task release = python.task(RunModeScripts.UNLINK_AND_CLOSE_SHM 
+						+ "shm_out_list.clear()" + System.lineSeparator());
+				release.waitFor();
+				if (release.status == TaskStatus.CRASHED)
+					close();
+			}
+		}
+		
+		private synchronized void close() {
+			if (python != null)
+				python.close();
+			python = null;
+			setups.clear();
+		}
+	}
+	
+	/**
+	 * Converts the outputs of the Python task into Java objects
+	 */
+	private interface OutputReader {
+		Map<String, Object> read(Task task) throws IOException;
+	}
 }
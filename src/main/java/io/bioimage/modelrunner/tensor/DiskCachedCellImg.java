@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.PrimitiveType;
+
+/**
+ * Cell image whose cells are stored in a file on disk and only a bounded number of them is kept
+ * in memory at the same time. The cells that are evicted from memory are written back to the file
+ * and read again the next time they are accessed. This allows creating images much bigger than the
+ * available RAM, and bigger than the 2^31 elements limit of the ArrayImgs, with a memory footprint
+ * that only depends on the size of the cells and of the cache.
+ *
+ * A cell is written back to the file as soon as it is evicted from the most recently used ones, and the
+ * image stops referencing its data, so the memory held by the image never goes over the maximum number of
+ * cells. A cursor or a RandomAccess that still points to an evicted cell keeps only that cell alive, and
+ * the next accesses to the cell reuse the same data while it is alive, so both see the same values. The
+ * values written to an evicted cell through such a stale cursor are saved the next time the cell is
+ * accessed, evicted again or flushed, see {@link #flush()}, while the cursor is alive.
+ *
+ * The image owns the file that backs it, that is deleted by {@link #close()}. The tensors built
+ * on these images close them when they are closed, see {@link Tensor#close()}.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ * @param <T>
+ * 	ImgLib2 data type of the image
+ */
+public class DiskCachedCellImg<T extends NativeType<T>> extends LazyCellImg<T, ArrayDataAccess<?>> implements Closeable
+{
+	private final DiskCells cells;
+
+	private DiskCachedCellImg(CellGrid grid, T type, DiskCells cells) {
+		super(grid, type, cells);
+		this.cells = cells;
+	}
+
+	/**
+	 * Create a blank image backed by a temporary file in the wanted directory
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param type
+	 * 	data type of the image
+	 * @param dims
+	 * 	dimensions of the image
+	 * @param cellDims
+	 * 	dimensions of each of the cells in which the image is stored
+	 * @param dir
+	 * 	directory where the file that backs the image is created. If it is null the default temporary
+	 * 	directory is used
+	 * @param maxCachedCells
+	 * 	maximum number of cells kept in memory at the same time
+	 * @return the image
+	 * @throws IOException if there is any error creating the file
+	 */
+	public static <T extends NativeType<T>> DiskCachedCellImg<T> create(T type, long[] dims, int[] cellDims,
+			File dir, int maxCachedCells) throws IOException {
+		PrimitiveType primitive = type.getNativeTypeFactory().getPrimitiveType();
+		if (type.getEntitiesPerPixel().getRatio() != 1 || primitive.getByteCount() == 0)
+			throw new IllegalArgumentException("Data type not supported by disk cached images: "
+					+ type.getClass().getSimpleName());
+		if (maxCachedCells < 1)
+			throw new IllegalArgumentException("At least one cell needs to be kept in memory.");
+		CellGrid grid = new CellGrid(dims, cellDims);
+		File file = File.createTempFile("jdll_cells_", ".raw", dir);
+		file.deleteOnExit();
+		return new DiskCachedCellImg<T>(grid, type, new DiskCells(grid, primitive, file, maxCachedCells));
+	}
+
+	/**
+	 * Write every cell in memory to the file
+	 * @throws IOException if there is any error writing the file
+	 */
+	public void flush() throws IOException {
+		cells.flush();
+	}
+
+	/**
+	 * Release the cells in memory and delete the file that backs the image.
+	 * The image cannot be used afterwards
+	 */
+	@Override
+	public void close() throws IOException {
+		cells.close();
+	}
+
+	/**
+	 *
+	 * @return the maximum number of cells kept in memory when they are not in use
+	 */
+	public int getMaxCachedCells() {
+		return cells.maxCachedCells;
+	}
+
+	/**
+	 *
+	 * @return the file where the cells are stored
+	 */
+	public File getFile() {
+		return cells.file;
+	}
+
+	/**
+	 * Loads and stores the cells of the image, keeping the most recently used ones in memory.
+	 * The cells evicted from the most recently used ones are written to the file right away and then
+	 * only weakly referenced, through their data access, which is the object held by the cursors and
+	 * RandomAccesses of the image, so they are reused while any of them still points to them.
+	 */
+	private static class DiskCells implements LazyCellImg.Get<Cell<ArrayDataAccess<?>>> {
+
+		private final CellGrid grid;
+
+		private final PrimitiveType primitive;
+
+		private final File file;
+
+		private final RandomAccessFile raf;
+
+		private final FileChannel channel;
+
+		private final long cellBytes;
+
+		private final int maxCachedCells;
+
+		private final LinkedHashMap<Long, Cell<ArrayDataAccess<?>>> cache;
+
+		/**
+		 * Cells evicted from {@link #cache} that might still be in use
+		 */
+		private final Map<Long, EvictedCell> evicted = new HashMap<Long, EvictedCell>();
+
+		private final ReferenceQueue<ArrayDataAccess<?>> released = new ReferenceQueue<ArrayDataAccess<?>>();
+
+		private DiskCells(CellGrid grid, PrimitiveType primitive, File file, int maxCachedCells) throws IOException {
+			this.grid = grid;
+			this.primitive = primitive;
+			this.file = file;
+			this.maxCachedCells = maxCachedCells;
+			long cellSize = 1;
+			for (int d : grid.getCellDimensions())
+				cellSize *= d;
+			this.cellBytes = cellSize * primitive.getByteCount();
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.cache = new LinkedHashMap<Long, Cell<ArrayDataAccess<?>>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Entry<Long, Cell<ArrayDataAccess<?>>> eldest) {
+					if (size() <= maxCachedCells)
+						return false;
+					ArrayDataAccess<?> access = eldest.getValue().getData();
+					// NB: the cell is saved now, so only the cursors that still point to it keep it in memory
+					write(eldest.getKey(), access.getCurrentStorageArray());
+					evicted.put(eldest.getKey(), new EvictedCell(eldest.getKey(), access, released));
+					return true;
+				}
+			};
+		}
+
+		@Override
+		public synchronized Cell<ArrayDataAccess<?>> get(long index) {
+			pruneReleased();
+			Cell<ArrayDataAccess<?>> cell = cache.get(index);
+			if (cell != null)
+				return cell;
+			long[] cellMin = new long[grid.numDimensions()];
+			int[] cellDims = new int[grid.numDimensions()];
+			grid.getCellDimensions(index, cellMin, cellDims);
+			int n = 1;
+			for (int d : cellDims)
+				n *= d;
+			EvictedCell old = evicted.remove(index);
+			ArrayDataAccess<?> access = null;
+			if (old != null) {
+				// a cursor still points to the cell, reuse the same data so no write is lost
+				access = old.get();
+				old.clear();
+			}
+			if (access == null)
+				access = wrap(read(index, n));
+			cell = new Cell<ArrayDataAccess<?>>(cellDims, cellMin, access);
+			cache.put(index, cell);
+			return cell;
+		}
+
+		/**
+		 * Forget the evicted cells that are not used anymore, they were saved when they were evicted
+		 */
+		private void pruneReleased() {
+			Reference<? extends ArrayDataAccess<?>> ref;
+			while ((ref = released.poll()) != null) {
+				EvictedCell cell = (EvictedCell) ref;
+				if (evicted.get(cell.index) == cell)
+					evicted.remove(cell.index);
+			}
+		}
+
+		private ArrayDataAccess<?> wrap(Object array) {
+			switch (primitive) {
+				case BYTE:
+					return new ByteArray((byte[]) array);
+				case SHORT:
+					return new ShortArray((short[]) array);
+				case INT:
+					return new IntArray((int[]) array);
+				case LONG:
+					return new LongArray((long[]) array);
+				case FLOAT:
+					return new FloatArray((float[]) array);
+				case DOUBLE:
+					return new DoubleArray((double[]) array);
+				default:
+					throw new IllegalArgumentException("Data type not supported by disk cached images: " + primitive);
+			}
+		}
+
+		private Object read(long index, int n) {
+			ByteBuffer buffer = ByteBuffer.allocate(n * primitive.getByteCount()).order(ByteOrder.nativeOrder());
+			try {
+				long pos = index * cellBytes;
+				while (buffer.hasRemaining() && pos < channel.size()) {
+					int read = channel.read(buffer, pos);
+					if (read < 0)
+						break;
+					pos += read;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			buffer.clear();
+			switch (primitive) {
+				case BYTE:
+					byte[] bytes = new byte[n];
+					buffer.get(bytes);
+					return bytes;
+				case SHORT:
+					short[] shorts = new short[n];
+					buffer.asShortBuffer().get(shorts);
+					return shorts;
+				case INT:
+					int[] ints = new int[n];
+					buffer.asIntBuffer().get(ints);
+					return ints;
+				case LONG:
+					long[] longs = new long[n];
+					buffer.asLongBuffer().get(longs);
+					return longs;
+				case FLOAT:
+					float[] floats = new float[n];
+					buffer.asFloatBuffer().get(floats);
+					return floats;
+				case DOUBLE:
+					double[] doubles = new double[n];
+					buffer.asDoubleBuffer().get(doubles);
+					return doubles;
+				default:
+					throw new IllegalArgumentException("Data type not supported by disk cached images: " + primitive);
+			}
+		}
+
+		private void write(long index, Object data) {
+			int n = Array.getLength(data);
+			ByteBuffer buffer = ByteBuffer.allocate(n * primitive.getByteCount()).order(ByteOrder.nativeOrder());
+			switch (primitive) {
+				case BYTE:
+					buffer.put((byte[]) data);
+					break;
+				case SHORT:
+					buffer.asShortBuffer().put((short[]) data);
+					break;
+				case INT:
+					buffer.asIntBuffer().put((int[]) data);
+					break;
+				case LONG:
+					buffer.asLongBuffer().put((long[]) data);
+					break;
+				case FLOAT:
+					buffer.asFloatBuffer().put((float[]) data);
+					break;
+				case DOUBLE:
+					buffer.asDoubleBuffer().put((double[]) data);
+					break;
+				default:
+					throw new IllegalArgumentException("Data type not supported by disk cached images: " + primitive);
+			}
+			buffer.clear();
+			try {
+				long pos = index * cellBytes;
+				while (buffer.hasRemaining())
+					pos += channel.write(buffer, pos);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private synchronized void flush() throws IOException {
+			try {
+				pruneReleased();
+				for (Entry<Long, Cell<ArrayDataAccess<?>>> ee : cache.entrySet())
+					write(ee.getKey(), ee.getValue().getData().getCurrentStorageArray());
+				// the evicted cells that are still used might have been modified after they were saved
+				for (EvictedCell cell : evicted.values()) {
+					ArrayDataAccess<?> access = cell.get();
+					if (access != null)
+						write(cell.index, access.getCurrentStorageArray());
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			channel.force(false);
+		}
+
+		private synchronized void close() throws IOException {
+			cache.clear();
+			for (EvictedCell cell : evicted.values())
+				cell.clear();
+			evicted.clear();
+			while (released.poll() != null);
+			channel.close();
+			raf.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Weak reference to the data access of a cell evicted from memory, so the cell is reused while
+	 * a cursor or a RandomAccess still points to it
+	 */
+	private static class EvictedCell extends WeakReference<ArrayDataAccess<?>> {
+
+		private final long index;
+
+		private EvictedCell(long index, ArrayDataAccess<?> access, ReferenceQueue<ArrayDataAccess<?>> queue) {
+			super(access, queue);
+			this.index = index;
+		}
+	}
+}
@@ -33,6 +33,7 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
@@ -43,6 +44,11 @@ import net.imglib2.view.Views;
  */
 public final class ImgLib2ToArray
 {
+	/**
+	 * Maximum number of elements of a Java array
+	 */
+	private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
     /**
      * Not used (Utility class).
      */
@@ -80,10 +86,15 @@ public final class ImgLib2ToArray
      * 	{@link RandomAccessibleInterval} to be flattened into a Java array
      * @return a Java flat array of the corresponding primitive type that contains the data of the {@link RandomAccessibleInterval}
      * 	in C-order
-     * @throws IllegalArgumentException If the {@link RandomAccessibleInterval} type is not supported.
+     * @throws IllegalArgumentException If the {@link RandomAccessibleInterval} type is not supported or if it has
+     * 	more elements than a Java array can hold.
      */
     public static < T extends RealType< T > & NativeType< T > > Object build(RandomAccessibleInterval<T> rai) throws IllegalArgumentException
     {
+    	if (Intervals.numElements(rai) > MAX_ARRAY_LENGTH)
+    		throw new IllegalArgumentException("The image has " + Intervals.numElements(rai) + " elements and Java arrays "
+    				+ "cannot hold more than " + MAX_ARRAY_LENGTH + ". Images this big can be shared with other processes "
+    				+ "without flattening them using SharedMemoryArray.createSHMAFromRAI(RandomAccessibleInterval).");
     	if (Util.getTypeFromInterval(rai) instanceof ByteType) {
     		return buildInt8(Cast.unchecked(rai));
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedByteType) {
@@ -116,6 +127,9 @@ public final class ImgLib2ToArray
      */
     private static byte[] buildInt8(RandomAccessibleInterval<ByteType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (byte[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -143,6 +157,9 @@ public final class ImgLib2ToArray
      */
     private static byte[] buildUint8(RandomAccessibleInterval<UnsignedByteType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (byte[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -170,6 +187,9 @@ public final class ImgLib2ToArray
      */
     private static short[] buildInt16(RandomAccessibleInterval<ShortType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (short[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -197,6 +217,9 @@ public final class ImgLib2ToArray
      */
     private static short[] buildUint16(RandomAccessibleInterval<UnsignedShortType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (short[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -224,6 +247,9 @@ public final class ImgLib2ToArray
      */
     private static int[] buildInt32(RandomAccessibleInterval<IntType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (int[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -251,6 +277,9 @@ public final class ImgLib2ToArray
      */
     private static int[] buildUint32(RandomAccessibleInterval<UnsignedIntType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (int[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -278,6 +307,9 @@ public final class ImgLib2ToArray
      */
     private static long[] buildInt64(RandomAccessibleInterval<LongType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (long[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -305,6 +337,9 @@ public final class ImgLib2ToArray
      */
     private static float[] buildFloat32(RandomAccessibleInterval<FloatType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (float[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
@@ -332,6 +367,9 @@ public final class ImgLib2ToArray
      */
     private static double[] buildFloat64(RandomAccessibleInterval<DoubleType> tensor)
     {
+		StridedView view = StridedView.wrap(tensor);
+		if (view != null)
+			return (double[]) view.toArray(false);
 		tensor = Utils.transpose(tensor);
 		long[] tensorShape = tensor.dimensionsAsLongArray();
 		int size = 1;
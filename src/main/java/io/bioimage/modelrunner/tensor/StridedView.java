@@ -0,0 +1,483 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+
+/**
+ * N-dimensional view over a flat buffer defined by a shape, a stride per axis and an offset, in elements.
+ * The same buffer can be seen in c order, in fortran order or with any permutation or crop of its axes,
+ * so reordering axes is a change of metadata and does not move any data.
+ *
+ * When the data has to be physically copied into another layout, {@link #copyTo(StridedView)} walks both
+ * views in blocks along the fastest axis of the source and the fastest axis of the destination, so both
+ * the reads and the writes stay in cache, instead of visiting the pixels in the order of one of them.
+ *
+ * The views can be created from buffers or primitive arrays, or from ImgLib2 images that are backed by a single
+ * array ({@link ArrayImg}), including the permuted, translated or cropped views of them produced by
+ * {@link Utils#transpose(RandomAccessibleInterval)}, {@link Utils#rearangeAxes(RandomAccessibleInterval, int[])} or
+ * {@link net.imglib2.view.Views}.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public final class StridedView {
+
+	/**
+	 * Side, in elements, of the square blocks copied at once when the source and destination are traversed
+	 * along different axes
+	 */
+	private static final int BLOCK = 64;
+
+	/**
+	 * Minimum number of elements copied by each of the parallel tasks
+	 */
+	private static final long MIN_ELEMENTS_PER_TASK = 1 << 16;
+
+	private final Buffer buffer;
+
+	private final long offset;
+
+	private final long[] shape;
+
+	private final long[] strides;
+
+	private StridedView(Buffer buffer, long offset, long[] shape, long[] strides) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.shape = shape;
+		this.strides = strides;
+	}
+
+	/**
+	 * Create a view over a contiguous buffer or primitive array
+	 * @param data
+	 * 	the buffer ({@link ByteBuffer}, {@link ShortBuffer}, {@link IntBuffer}, {@link LongBuffer},
+	 * 	{@link FloatBuffer} or {@link DoubleBuffer}) or the primitive array of any of those types
+	 * @param shape
+	 * 	shape of the array
+	 * @param isFortranOrder
+	 * 	whether the array is flattened in fortran order (first axis changes fastest) or in c order
+	 * @return the view
+	 */
+	public static StridedView of(Object data, long[] shape, boolean isFortranOrder) {
+		long[] strides = new long[shape.length];
+		long stride = 1;
+		for (int i = 0; i < shape.length; i ++) {
+			int d = isFortranOrder ? i : shape.length - 1 - i;
+			strides[d] = stride;
+			stride *= shape[d];
+		}
+		return of(data, 0, shape, strides);
+	}
+
+	/**
+	 * Create a view over a buffer or primitive array with arbitrary strides
+	 * @param data
+	 * 	the buffer ({@link ByteBuffer}, {@link ShortBuffer}, {@link IntBuffer}, {@link LongBuffer},
+	 * 	{@link FloatBuffer} or {@link DoubleBuffer}) or the primitive array of any of those types
+	 * @param offset
+	 * 	position, in elements, of the first element of the view
+	 * @param shape
+	 * 	shape of the view
+	 * @param strides
+	 * 	distance, in elements, between consecutive positions along each axis. It can be negative
+	 * @return the view
+	 */
+	public static StridedView of(Object data, long offset, long[] shape, long[] strides) {
+		if (shape.length != strides.length)
+			throw new IllegalArgumentException("The shape " + Arrays.toString(shape) + " and the strides "
+					+ Arrays.toString(strides) + " need to have the same number of dimensions.");
+		Buffer buffer = asBuffer(data);
+		if (buffer == null)
+			throw new IllegalArgumentException("Unsupported data for a strided view: " + data.getClass().toString());
+		StridedView view = new StridedView(buffer, offset, shape.clone(), strides.clone());
+		if (!view.fitsInBuffer())
+			throw new IllegalArgumentException("A view of shape " + Arrays.toString(shape) + " and strides "
+					+ Arrays.toString(strides) + " starting at " + offset + " does not fit in a buffer of "
+					+ buffer.capacity() + " elements.");
+		return view;
+	}
+
+	/**
+	 * Create a view that references the data of an ImgLib2 image, if the image is an {@link ArrayImg}
+	 * with one entity per pixel, or a view of one that only permutes, inverts, translates, crops or slices
+	 * its axes
+	 * @param rai
+	 * 	the image
+	 * @return the view, or null if the image cannot be expressed as a strided view of a single buffer
+	 */
+	public static StridedView wrap(RandomAccessibleInterval<?> rai) {
+		if (Intervals.numElements(rai) == 0)
+			return null;
+		Object type = Util.getTypeFromInterval(rai);
+		if (!(type instanceof NativeType) || ((NativeType<?>) type).getEntitiesPerPixel().getRatio() != 1)
+			return null;
+		StridedView source = describe(rai);
+		if (source == null || source.strides.length != rai.numDimensions())
+			return null;
+		long offset = source.offset;
+		for (int d = 0; d < rai.numDimensions(); d ++) {
+			// axes added by views repeat the same data
+			if (source.strides[d] == 0 && rai.dimension(d) > 1)
+				return null;
+			offset += rai.min(d) * source.strides[d];
+		}
+		StridedView view = new StridedView(source.buffer, offset, rai.dimensionsAsLongArray(), source.strides);
+		return view.fitsInBuffer() ? view : null;
+	}
+
+	/**
+	 * Strides and offset, in the coordinates of the image, of the buffer that backs a {@link RandomAccessible}
+	 */
+	private static StridedView describe(RandomAccessible<?> ra) {
+		if (ra instanceof ArrayImg) {
+			ArrayImg<?, ?> img = (ArrayImg<?, ?>) ra;
+			Object access = img.update(null);
+			if (!(access instanceof ArrayDataAccess))
+				return null;
+			Buffer buffer = asBuffer(((ArrayDataAccess<?>) access).getCurrentStorageArray());
+			if (buffer == null)
+				return null;
+			long[] strides = new long[img.numDimensions()];
+			long stride = 1;
+			for (int d = 0; d < strides.length; d ++) {
+				strides[d] = stride;
+				stride *= img.dimension(d);
+			}
+			return new StridedView(buffer, 0, null, strides);
+		} else if (ra instanceof IntervalView) {
+			return describe(((IntervalView<?>) ra).getSource());
+		} else if (ra instanceof MixedTransformView) {
+			MixedTransformView<?> view = (MixedTransformView<?>) ra;
+			StridedView source = describe(view.getSource());
+			if (source == null)
+				return null;
+			MixedTransform t = view.getTransformToSource();
+			long offset = source.offset;
+			long[] strides = new long[t.numSourceDimensions()];
+			for (int d = 0; d < t.numTargetDimensions(); d ++) {
+				offset += t.getTranslation(d) * source.strides[d];
+				if (t.getComponentZero(d))
+					continue;
+				int c = t.getComponentMapping(d);
+				if (strides[c] != 0)
+					return null;
+				strides[c] = t.getComponentInversion(d) ? -source.strides[d] : source.strides[d];
+			}
+			return new StridedView(source.buffer, offset, null, strides);
+		}
+		return null;
+	}
+
+	private static Buffer asBuffer(Object data) {
+		if (data instanceof Buffer)
+			return (Buffer) data;
+		else if (data instanceof byte[])
+			return ByteBuffer.wrap((byte[]) data);
+		else if (data instanceof short[])
+			return ShortBuffer.wrap((short[]) data);
+		else if (data instanceof int[])
+			return IntBuffer.wrap((int[]) data);
+		else if (data instanceof long[])
+			return LongBuffer.wrap((long[]) data);
+		else if (data instanceof float[])
+			return FloatBuffer.wrap((float[]) data);
+		else if (data instanceof double[])
+			return DoubleBuffer.wrap((double[]) data);
+		return null;
+	}
+
+	private boolean fitsInBuffer() {
+		long min = offset;
+		long max = offset;
+		for (int d = 0; d < shape.length; d ++) {
+			if (shape[d] == 0)
+				return true;
+			long extent = (shape[d] - 1) * strides[d];
+			if (extent < 0)
+				min += extent;
+			else
+				max += extent;
+		}
+		return min >= 0 && max < buffer.capacity();
+	}
+
+	/**
+	 * Reorder the axes of the view without moving any data
+	 * @param order
+	 * 	for every axis of the new view, the axis of this view it corresponds to
+	 * @return the view with the axes reordered
+	 */
+	public StridedView permute(int[] order) {
+		if (order.length != shape.length)
+			throw new IllegalArgumentException("The permutation " + Arrays.toString(order) + " needs to have "
+					+ shape.length + " axes.");
+		long[] newShape = new long[shape.length];
+		long[] newStrides = new long[shape.length];
+		boolean[] used = new boolean[shape.length];
+		for (int i = 0; i < order.length; i ++) {
+			if (order[i] < 0 || order[i] >= shape.length || used[order[i]])
+				throw new IllegalArgumentException("Invalid permutation of the axes: " + Arrays.toString(order));
+			used[order[i]] = true;
+			newShape[i] = shape[order[i]];
+			newStrides[i] = strides[order[i]];
+		}
+		return new StridedView(buffer, offset, newShape, newStrides);
+	}
+
+	/**
+	 * Reverse the order of the axes without moving any data, the view equivalent to
+	 * {@link Utils#transpose(RandomAccessibleInterval)}
+	 * @return the transposed view
+	 */
+	public StridedView transpose() {
+		int[] order = new int[shape.length];
+		for (int i = 0; i < order.length; i ++)
+			order[i] = shape.length - 1 - i;
+		return permute(order);
+	}
+
+	/**
+	 *
+	 * @return the shape of the view
+	 */
+	public long[] getShape() {
+		return shape.clone();
+	}
+
+	/**
+	 *
+	 * @return the distance, in elements, between consecutive positions along each axis
+	 */
+	public long[] getStrides() {
+		return strides.clone();
+	}
+
+	/**
+	 *
+	 * @return whether the elements of the view are contiguous in c order
+	 */
+	public boolean isCOrder() {
+		return equals(strides, of(buffer, shape, false).strides);
+	}
+
+	/**
+	 *
+	 * @return whether the elements of the view are contiguous in fortran order
+	 */
+	public boolean isFortranOrder() {
+		return equals(strides, of(buffer, shape, true).strides);
+	}
+
+	private boolean equals(long[] strides, long[] contiguous) {
+		for (int d = 0; d < shape.length; d ++) {
+			if (shape[d] > 1 && strides[d] != contiguous[d])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the data of the view into a new primitive array, flattened in the wanted order
+	 * @param isFortranOrder
+	 * 	whether the array is flattened in fortran order (first axis changes fastest) or in c order
+	 * @return the array
+	 */
+	public Object toArray(boolean isFortranOrder) {
+		long n = 1;
+		for (long l : shape)
+			n *= l;
+		if (n > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The view has " + n + " elements, more than a Java array can hold.");
+		Object array;
+		if (buffer instanceof ByteBuffer)
+			array = new byte[(int) n];
+		else if (buffer instanceof ShortBuffer)
+			array = new short[(int) n];
+		else if (buffer instanceof IntBuffer)
+			array = new int[(int) n];
+		else if (buffer instanceof LongBuffer)
+			array = new long[(int) n];
+		else if (buffer instanceof FloatBuffer)
+			array = new float[(int) n];
+		else
+			array = new double[(int) n];
+		copyTo(of(array, shape, isFortranOrder));
+		return array;
+	}
+
+	/**
+	 * Copy the data of this view into another view of the same shape and element type. Both are traversed
+	 * in blocks so the copy is efficient whatever their layouts are, and the work is divided between
+	 * the available processors
+	 * @param dst
+	 * 	the view where the data is copied
+	 */
+	public void copyTo(StridedView dst) {
+		if (!Arrays.equals(shape, dst.shape))
+			throw new IllegalArgumentException("Cannot copy a view of shape " + Arrays.toString(shape)
+					+ " into a view of shape " + Arrays.toString(dst.shape) + ".");
+		Mover mover = getMover(buffer, dst.buffer);
+		int n = shape.length;
+		long total = 1;
+		for (long l : shape)
+			total *= l;
+		if (total == 0)
+			return;
+		// the axis along which the destination is contiguous is copied in runs,
+		// and the one along which the source is contiguous in blocks of runs
+		final int a = fastestAxis(dst.strides, -1);
+		final int b = fastestAxis(strides, a);
+		final long lenA = n == 0 ? 1 : shape[a];
+		final long lenB = b < 0 ? 1 : shape[b];
+		// if both are contiguous along the same axis there is no need to divide the runs
+		boolean sameFastest = b < 0 || Math.abs(strides[a]) <= Math.abs(strides[b]);
+		final long blockA = sameFastest ? lenA : Math.min(lenA, BLOCK);
+		final long blockB = b < 0 ? 1 : Math.min(lenB, BLOCK);
+		final long blocksA = (lenA + blockA - 1) / blockA;
+		final long blocksB = (lenB + blockB - 1) / blockB;
+		final long outer = total / (lenA * lenB);
+		final long nTasks = outer * blocksB;
+		LongStream tasks = LongStream.range(0, nTasks);
+		if (total >= 2 * MIN_ELEMENTS_PER_TASK && nTasks > 1)
+			tasks = tasks.parallel();
+		tasks.forEach(task -> {
+			long rest = task / blocksB;
+			long startB = (task % blocksB) * blockB;
+			long srcPos = offset;
+			long dstPos = dst.offset;
+			for (int d = 0; d < n; d ++) {
+				if (d == a || d == b)
+					continue;
+				long pos = rest % shape[d];
+				rest /= shape[d];
+				srcPos += pos * strides[d];
+				dstPos += pos * dst.strides[d];
+			}
+			long sa = n == 0 ? 0 : strides[a];
+			long da = n == 0 ? 0 : dst.strides[a];
+			long sb = b < 0 ? 0 : strides[b];
+			long db = b < 0 ? 0 : dst.strides[b];
+			long endB = Math.min(lenB, startB + blockB);
+			for (long ba = 0; ba < blocksA; ba ++) {
+				long startA = ba * blockA;
+				int len = (int) (Math.min(lenA, startA + blockA) - startA);
+				for (long j = startB; j < endB; j ++) {
+					mover.move(buffer, (int) (srcPos + j * sb + startA * sa), (int) sa,
+							dst.buffer, (int) (dstPos + j * db + startA * da), (int) da, len);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Axis with the smallest stride in absolute value, among the axes of size bigger than 1
+	 * @param strides
+	 * 	strides of the view
+	 * @param exclude
+	 * 	axis that cannot be chosen
+	 * @return the axis, or -1 if there is none
+	 */
+	private int fastestAxis(long[] strides, int exclude) {
+		int best = -1;
+		for (int d = 0; d < shape.length; d ++) {
+			if (d == exclude || (shape[d] <= 1 && exclude >= 0))
+				continue;
+			if (best < 0 || (shape[best] <= 1 && shape[d] > 1)
+					|| (shape[d] > 1 && Math.abs(strides[d]) < Math.abs(strides[best])))
+				best = d;
+		}
+		return best;
+	}
+
+	/**
+	 * Copies a run of elements between two buffers of the same element type
+	 */
+	private interface Mover {
+		void move(Buffer src, int srcPos, int srcStride, Buffer dst, int dstPos, int dstStride, int len);
+	}
+
+	private static Mover getMover(Buffer src, Buffer dst) {
+		if (src instanceof ByteBuffer && dst instanceof ByteBuffer) {
+			return (s, sp, ss, d, dp, ds, len) -> {
+				ByteBuffer in = (ByteBuffer) s;
+				ByteBuffer out = (ByteBuffer) d;
+				for (int i = 0; i < len; i ++)
+					out.put(dp + i * ds, in.get(sp + i * ss));
+			};
+		} else if (src instanceof ShortBuffer && dst instanceof ShortBuffer) {
+			return (s, sp, ss, d, dp, ds, len) -> {
+				ShortBuffer in = (ShortBuffer) s;
+				ShortBuffer out = (ShortBuffer) d;
+				for (int i = 0; i < len; i ++)
+					out.put(dp + i * ds, in.get(sp + i * ss));
+			};
+		} else if (src instanceof IntBuffer && dst instanceof IntBuffer) {
+			return (s, sp, ss, d, dp, ds, len) -> {
+				IntBuffer in = (IntBuffer) s;
+				IntBuffer out = (IntBuffer) d;
+				for (int i = 0; i < len; i ++)
+					out.put(dp + i * ds, in.get(sp + i * ss));
+			};
+		} else if (src instanceof LongBuffer && dst instanceof LongBuffer) {
+			return (s, sp, ss, d, dp, ds, len) -> {
+				LongBuffer in = (LongBuffer) s;
+				LongBuffer out = (LongBuffer) d;
+				for (int i = 0; i < len; i ++)
+					out.put(dp + i * ds, in.get(sp + i * ss));
+			};
+		} else if (src instanceof FloatBuffer && dst instanceof FloatBuffer) {
+			return (s, sp, ss, d, dp, ds, len) -> {
+				FloatBuffer in = (FloatBuffer) s;
+				FloatBuffer out = (FloatBuffer) d;
+				for (int i = 0; i < len; i ++)
+					out.put(dp + i * ds, in.get(sp + i * ss));
+			};
+		} else if (src instanceof DoubleBuffer && dst instanceof DoubleBuffer) {
+			return (s, sp, ss, d, dp, ds, len) -> {
+				DoubleBuffer in = (DoubleBuffer) s;
+				DoubleBuffer out = (DoubleBuffer) d;
+				for (int i = 0; i < len; i ++)
+					out.put(dp + i * ds, in.get(sp + i * ss));
+			};
+		}
+		throw new IllegalArgumentException("Cannot copy a " + src.getClass().getSimpleName() + " into a "
+				+ dst.getClass().getSimpleName() + ".");
+	}
+}
@@ -229,7 +229,7 @@ public final class Tensor< T extends RealType< T > & NativeType< T > >
 		}
 		if (this.data == null) {
 			this.data = data;
-		} else {
+		} else if ( !copyStrided( data, this.data ) ) {
 			LoopBuilder.setImages( this.data, data )
 				.multiThreaded().forEachPixel( ( i, o ) -> i.set( o ) );
 		}
@@ -307,11 +307,7 @@ public final class Tensor< T extends RealType< T > & NativeType< T > >
 
 		final ImgFactory< R > factory = Util.getArrayOrCellImgFactory( input, type );
 		final Img< R > output = factory.create( input );
-		RealType< ? > s = Util.getTypeFromInterval( input );
-		RealType< ? > d = Util.getTypeFromInterval( output );
-		Converter< RealType< ? >, RealType< ? > > copy = RealTypeConverters.getConverter( s, d );
-		boolean useMultiThreading = Intervals.numElements(output) >= 20_000;
-		LoopBuilder.setImages( input, output ).multiThreaded( useMultiThreading ).forEachPixel( copy::convert );
+		copyInWantedDataType( input, output );
 				return Tensor.build( tt.getName(), tt.getAxesOrderString(), output );
 	}
 
@@ -334,12 +330,54 @@ public final class Tensor< T extends RealType< T > & NativeType< T > >
 	{
 		final ImgFactory< R > factory = Util.getArrayOrCellImgFactory( input, type );
 		final Img< R > output = factory.create( input );
+		copyInWantedDataType( input, output );
+		return output;
+	}
+
+	/**
+	 * Copy the pixels of an image into another image of the same shape, converting them to the data
+	 * type of the output in the same pass. The output can be reused between calls, for example to
+	 * convert the tiles of an image without allocating a new image for each of them
+	 *
+	 * @param <T>
+	 * 			  the possible ImgLib2 datatypes that the input image can have
+	 * @param <R>
+	 * 			  the possible ImgLib2 datatypes that the output image can have
+	 * @param input
+	 *            the image copied
+	 * @param output
+	 *            the image where the converted pixels are written
+	 */
+	public static < T extends RealType< T > & NativeType< T >, R extends RealType< R > & NativeType< R > > void copyInWantedDataType( final RandomAccessibleInterval< T > input, final RandomAccessibleInterval< R > output )
+	{
+		if ( copyStrided( input, output ) )
+			return;
 		RealType< ? > s = Util.getTypeFromInterval( input );
 		RealType< ? > d = Util.getTypeFromInterval( output );
 		Converter< RealType< ? >, RealType< ? > > copy = RealTypeConverters.getConverter( s, d );
 		boolean useMultiThreading = Intervals.numElements(output) >= 20_000;
 		LoopBuilder.setImages( input, output ).multiThreaded( useMultiThreading ).forEachPixel( copy::convert );
-		return output;
+	}
+
+	/**
+	 * Copy the pixels between two images of the same type that are backed by single arrays, possibly
+	 * with their axes permuted or cropped, in blocks that follow the memory layout of both of them
+	 * @param input
+	 * 	the image copied
+	 * @param output
+	 * 	the image where the pixels are copied
+	 * @return true if the pixels were copied, false if the images are not backed by single arrays
+	 */
+	private static boolean copyStrided( final RandomAccessibleInterval< ? > input, final RandomAccessibleInterval< ? > output )
+	{
+		if ( Util.getTypeFromInterval( input ).getClass() != Util.getTypeFromInterval( output ).getClass() )
+			return false;
+		final StridedView src = StridedView.wrap( input );
+		final StridedView dst = src == null ? null : StridedView.wrap( output );
+		if ( dst == null )
+			return false;
+		src.copyTo( dst );
+		return true;
 	}
 
 	/**
@@ -353,7 +391,8 @@ public final class Tensor< T extends RealType< T > & NativeType< T > >
 	}
 
 	/**
-	 * Empty the tensor information
+	 * Empty the tensor information. If the data of the tensor is a {@link DiskCachedCellImg}, as the
+	 * outputs of the out-of-core tiled inference, the image is closed and its file deleted
 	 */
 	public void close()
 	{
@@ -363,9 +402,9 @@ public final class Tensor< T extends RealType< T > & NativeType< T > >
 		{
 			closed = true;
 			axesArray = null;
-			if ( data != null )
+			if ( data instanceof DiskCachedCellImg )
 			{
-				data = null;
+				( ( DiskCachedCellImg< ? > ) data ).close();
 			}
 			this.data = null;
 			this.axesString = null;
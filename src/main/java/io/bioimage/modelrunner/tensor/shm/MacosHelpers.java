@@ -67,7 +67,7 @@ public interface MacosHelpers extends Library {
     }
 
     // Declare methods corresponding to the native functions
-    int create_shared_memory(String name, int size);
+    int create_shared_memory(String name, long size);
     
     void unlink_shared_memory(String name);
     
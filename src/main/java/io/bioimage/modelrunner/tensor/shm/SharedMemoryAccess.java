@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Pointer;
+
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Bulk copies and ImgLib2 accesses over the memory of the shared memory segments.
+ *
+ * This is the implementation used by the JVMs older than Java 22, based on JNA {@link Pointer}s and
+ * {@link ByteBuffer}s. When JDLL is built with the 'foreign-memory' Maven profile (-Pforeign-memory) the
+ * jar is a multi-release jar that contains a second version of this class in META-INF/versions/22 that
+ * uses the Foreign Function and Memory API (java.lang.foreign) instead, which the JVMs that support it
+ * load automatically. That version is only used by default when the JVM is started with
+ * '--enable-native-access=ALL-UNNAMED', see {@link #setForeignMemory(boolean)}.
+ * The segments are still created and mapped with JNA in both cases.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public final class SharedMemoryAccess {
+
+	private SharedMemoryAccess() {
+	}
+
+	/**
+	 *
+	 * @return whether the memory of the segments is accessed with the Foreign Function and Memory API
+	 */
+	public static boolean isForeignMemory() {
+		return false;
+	}
+
+	/**
+	 *
+	 * @return whether the Foreign Function and Memory API can be used in this JVM
+	 */
+	public static boolean isForeignMemoryAvailable() {
+		return false;
+	}
+
+	/**
+	 * Set whether the memory of the segments is accessed with the Foreign Function and Memory API or with
+	 * JNA. The Foreign Function and Memory API is used by default when it is available and native access is
+	 * enabled for JDLL, with '--enable-native-access=ALL-UNNAMED'. It can also be set with the system property
+	 * 'jdll.shm.foreign=true|false'.
+	 * In this JVM the Foreign Function and Memory API is not available, so the call does nothing, JNA is
+	 * always used, see {@link #isForeignMemoryAvailable()}
+	 * @param foreign
+	 * 	whether to use the Foreign Function and Memory API
+	 * @return whether the Foreign Function and Memory API is used after the call, always false here
+	 */
+	public static boolean setForeignMemory(boolean foreign) {
+		return false;
+	}
+
+	/**
+	 * Copy bytes between two regions of the shared memory, or of any native memory
+	 * @param src
+	 * 	pointer to the start of the source memory
+	 * @param srcOffset
+	 * 	position in bytes of the first byte copied
+	 * @param dst
+	 * 	pointer to the start of the destination memory
+	 * @param dstOffset
+	 * 	position in bytes where the first byte is written
+	 * @param bytes
+	 * 	number of bytes copied
+	 */
+	public static void copy(Pointer src, long srcOffset, Pointer dst, long dstOffset, long bytes) {
+		for (long done = 0; done < bytes; done += SharedMemoryCells.MAX_BUFFER_BYTES) {
+			long len = Math.min(SharedMemoryCells.MAX_BUFFER_BYTES, bytes - done);
+			dst.getByteBuffer(dstOffset + done, len).put(src.getByteBuffer(srcOffset + done, len));
+		}
+	}
+
+	/**
+	 * Copy the first elements of a primitive array into the shared memory, in the native byte order
+	 * @param dst
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes where the first element is written
+	 * @param array
+	 * 	byte[], short[], int[], long[], float[] or double[]
+	 * @param length
+	 * 	number of elements copied
+	 * @return false if the array is not of any of the supported types
+	 */
+	public static boolean write(Pointer dst, long offset, Object array, int length) {
+		if (array instanceof byte[])
+			dst.write(offset, (byte[]) array, 0, length);
+		else if (array instanceof short[])
+			dst.write(offset, (short[]) array, 0, length);
+		else if (array instanceof int[])
+			dst.write(offset, (int[]) array, 0, length);
+		else if (array instanceof long[])
+			dst.write(offset, (long[]) array, 0, length);
+		else if (array instanceof float[])
+			dst.write(offset, (float[]) array, 0, length);
+		else if (array instanceof double[])
+			dst.write(offset, (double[]) array, 0, length);
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Copy elements of the shared memory into the first positions of a primitive array, in the native byte order
+	 * @param src
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first element copied
+	 * @param array
+	 * 	byte[], short[], int[], long[], float[] or double[]
+	 * @param length
+	 * 	number of elements copied
+	 * @return false if the array is not of any of the supported types
+	 */
+	public static boolean read(Pointer src, long offset, Object array, int length) {
+		if (array instanceof byte[])
+			src.read(offset, (byte[]) array, 0, length);
+		else if (array instanceof short[])
+			src.read(offset, (short[]) array, 0, length);
+		else if (array instanceof int[])
+			src.read(offset, (int[]) array, 0, length);
+		else if (array instanceof long[])
+			src.read(offset, (long[]) array, 0, length);
+		else if (array instanceof float[])
+			src.read(offset, (float[]) array, 0, length);
+		else if (array instanceof double[])
+			src.read(offset, (double[]) array, 0, length);
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Create the ImgLib2 access of the wanted data type that reads and writes a region of the shared memory
+	 * @param <T>
+	 * 	ImgLib2 data type of the access
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first element of the region
+	 * @param bytes
+	 * 	number of bytes of the region, at most 2^31 - 1
+	 * @param type
+	 * 	data type of the access
+	 * @param order
+	 * 	byte order of the elements
+	 * @return the access that references the shared memory
+	 */
+	static <T extends RealType<T> & NativeType<T>>
+	DataAccess createAccess(Pointer pointer, long offset, long bytes, T type, ByteOrder order) {
+		return SharedMemoryCells.createAccess(SharedMemoryCells.getByteBuffer(pointer, offset, bytes).order(order), type);
+	}
+}
@@ -21,6 +21,7 @@ package io.bioimage.modelrunner.tensor.shm;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.UUID;
@@ -43,6 +44,7 @@ import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
 
 /**
  * TODO separate unlink and close
@@ -128,7 +130,7 @@ public interface SharedMemoryArray extends Closeable {
 	static <T extends RealType<T> & NativeType<T>>
 	SharedMemoryArray readOrCreate(String name, long[] shape, T datatype) throws FileAlreadyExistsException {
 		String strDType = CommonUtils.getDataType(datatype);
-    	int size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
+    	long size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
     	for (long i : shape) {size *= i;}
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.readOrCreate(name, size, shape, strDType, null, false);
@@ -183,9 +185,9 @@ public interface SharedMemoryArray extends Closeable {
 	static <T extends RealType<T> & NativeType<T>>
 	SharedMemoryArray readOrCreate(String name, long[] shape, T datatype, boolean isFortran, boolean isNpy) throws FileAlreadyExistsException {
 		String strDType = CommonUtils.getDataType(datatype);
-    	int size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
+    	long size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
     	for (long i : shape) {size *= i;}
-    	if (isNpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(shape, datatype, isFortran);
+    	if (isNpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(shape, datatype, isFortran);
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.readOrCreate(name, size, shape, strDType, isNpy, isFortran);
     	else if (PlatformDetection.isLinux()) 
@@ -223,7 +225,7 @@ public interface SharedMemoryArray extends Closeable {
 	 * @throws FileAlreadyExistsException if a shared memory array with the same name exists and its byte size
 	 *                                    does not match the wanted size
 	 */
-	static SharedMemoryArray readOrCreate(String name, int size) throws FileAlreadyExistsException {
+	static SharedMemoryArray readOrCreate(String name, long size) throws FileAlreadyExistsException {
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.readOrCreate(name, size);
     	else if (PlatformDetection.isLinux()) 
@@ -256,7 +258,7 @@ public interface SharedMemoryArray extends Closeable {
 	static <T extends RealType<T> & NativeType<T>>
 	SharedMemoryArray create(long[] shape, T datatype) {
 		String strDType = CommonUtils.getDataType(datatype);
-    	int size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
+    	long size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
     	for (long i : shape) {size *= i;}
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.create(size, shape, strDType, true, false);
@@ -279,6 +281,8 @@ public interface SharedMemoryArray extends Closeable {
 	 * An instance of {@link SharedMemoryArray} is created that helps managing the shared memory data.
 	 * 
 	 * 
+	 * If the segment does not fit in the shared memory of the system, it is backed by a memory mapped file
+	 * of the directory set with {@link SharedMemoryArrayFile#setDirectory(String)} instead.
 	 * @param <T>
      * 	possible ImgLib2 data types of the wanted {@link RandomAccessibleInterval}
 	 * @param shape
@@ -298,9 +302,11 @@ public interface SharedMemoryArray extends Closeable {
 	static <T extends RealType<T> & NativeType<T>>
 	SharedMemoryArray create(long[] shape, T datatype, boolean isFortran, boolean isNpy) {
 		String strDType = CommonUtils.getDataType(datatype);
-    	int size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
+    	long size = DecodeNumpy.DATA_TYPES_MAP.get(strDType);
     	for (long i : shape) {size *= i;}
-    	if (isNpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(shape, datatype, isFortran);
+    	if (isNpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(shape, datatype, isFortran);
+    	if (!SharedMemoryArrayFile.fitsInSharedMemory(size))
+    		return SharedMemoryArrayFile.create(shape, datatype, isFortran, isNpy);
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.create(size, shape, strDType, isNpy, isFortran);
     	else if (PlatformDetection.isLinux())
@@ -317,11 +323,15 @@ public interface SharedMemoryArray extends Closeable {
 	 * An instance of {@link SharedMemoryArray} is created that helps managing the shared memory data.
 	 * 
 	 * 
+	 * If the segment does not fit in the shared memory of the system, it is backed by a memory mapped file
+	 * of the directory set with {@link SharedMemoryArrayFile#setDirectory(String)} instead.
 	 * @param size
 	 * 	byte size wanted to allocate
 	 * @return a {@link SharedMemoryArray} instance that helps handling the data written to the shared memory region
 	 */
-	static SharedMemoryArray create(int size) {
+	static SharedMemoryArray create(long size) {
+		if (!SharedMemoryArrayFile.fitsInSharedMemory(size))
+			return SharedMemoryArrayFile.create(size);
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.create(size);
     	else if (PlatformDetection.isLinux()) 
@@ -339,6 +349,9 @@ public interface SharedMemoryArray extends Closeable {
 	 *  
 	 *  The {@link SharedMemoryArray} instance retrieved can be used to modify the underlying shared
 	 *  memory segment
+	 *  
+	 *  Names that are the absolute path of a file created by {@link SharedMemoryArrayFile} are opened
+	 *  as memory mapped files
 	 * 
 	 * 
 	 * @param name
@@ -346,6 +359,8 @@ public interface SharedMemoryArray extends Closeable {
 	 * @return a {@link SharedMemoryArray} instance that helps handling the data written to the shared memory region
 	 */
 	static SharedMemoryArray read(String name) {
+		if (SharedMemoryArrayFile.isMappedFile(name))
+			return SharedMemoryArrayFile.read(name);
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.read(name);
     	else if (PlatformDetection.isLinux()) 
@@ -361,6 +376,8 @@ public interface SharedMemoryArray extends Closeable {
 	 * @return the size in bytes of the shared memory segment of interest
 	 */
 	static long getSize(String name) {
+		if (SharedMemoryArrayFile.isMappedFile(name))
+			return new File(name).length();
         if (PlatformDetection.isWindows()) 
         	return SharedMemoryArrayWin.getSHMSize(name);
     	else if (PlatformDetection.isLinux()) 
@@ -422,6 +439,8 @@ public interface SharedMemoryArray extends Closeable {
 	 * characteristics of the nd array (datatype, dimensions...) at the beginning of the byte array. This
 	 * follows the Numpy npy format.
 	 * 
+	 * If the segment does not fit in the shared memory of the system, it is backed by a memory mapped file
+	 * of the directory set with {@link SharedMemoryArrayFile#setDirectory(String)} instead.
 	 * @param <T>
 	 * 	the possible ImgLib2 data types that the {@link RandomAccessibleInterval} can have
 	 * @param rai
@@ -436,6 +455,11 @@ public interface SharedMemoryArray extends Closeable {
 	 */
 	public static <T extends RealType<T> & NativeType<T>>
 	SharedMemoryArray createSHMAFromRAI(RandomAccessibleInterval<T> rai, boolean isFortranOrder, boolean isNumpy) {
+		long size = SharedMemoryArray.getArrayByteSize(rai.dimensionsAsLongArray(), Util.getTypeFromInterval(rai));
+		if (isNumpy)
+			size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai.dimensionsAsLongArray(), Util.getTypeFromInterval(rai), isFortranOrder);
+		if (!SharedMemoryArrayFile.fitsInSharedMemory(size))
+			return SharedMemoryArrayFile.createSHMAFromRAI(rai, isFortranOrder, isNumpy);
 		try {
 			return createSHMAFromRAI(SharedMemoryArray.createShmName(), rai, isFortranOrder, isNumpy);
 		} catch (FileAlreadyExistsException e) {
@@ -523,7 +547,7 @@ public interface SharedMemoryArray extends Closeable {
 	 * 	ImgLib2 data type of the array
 	 * @return the number of bytes needed to store the nd array
 	 */
-	public static <T extends RealType<T> & NativeType<T>> int getArrayByteSize(long[] shape, T type) {
+	public static <T extends RealType<T> & NativeType<T>> long getArrayByteSize(long[] shape, T type) {
 		return getArrayByteSize(shape, type, false, false);
 	}
     
@@ -541,10 +565,10 @@ public interface SharedMemoryArray extends Closeable {
 	 * 	whether the array is stored as fortran or not. Only relevant for this method if the aisNpy argument is true
 	 * @return the number of bytes needed to store the nd array
 	 */
-	public static <T extends RealType<T> & NativeType<T>> int getArrayByteSize(long[] shape, T type, boolean isNpy, boolean isFortran) {
-		int noByteSize = 1;
-		int headerSize = 0;
-		if (isNpy) headerSize = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(shape, type, isFortran);
+	public static <T extends RealType<T> & NativeType<T>> long getArrayByteSize(long[] shape, T type, boolean isNpy, boolean isFortran) {
+		long noByteSize = 1;
+		long headerSize = 0;
+		if (isNpy) headerSize = DecodeNumpy.calculateNpyStyleByteArrayLength(shape, type, isFortran);
 		for (long l : shape) {noByteSize *= l;}
 		if (type instanceof ByteType || type instanceof UnsignedByteType) {
 			return noByteSize * 1 + headerSize;
@@ -597,7 +621,7 @@ public interface SharedMemoryArray extends Closeable {
      * 
      * @return get number of bytes in the shared memory segment
      */
-    public int getSize();
+    public long getSize();
     
     /**
      * 
@@ -618,6 +642,8 @@ public interface SharedMemoryArray extends Closeable {
      * This method assumes that the shape and data type have already been defined or that the shared memory segment
      * contains a header at the beginning with he info on how to reconstruct the nd array (saved as Numpy npy) format.
      * If that is not the case use {@link #getSharedRAI(long[], RealType)}.
+     * Arrays of more than 2GB are retrieved as cell images, every cell referencing a contiguous region of
+     * the shared memory segment.
      * 
      * IMPORTANT: once the shared memory segment is closed ({@link #close()}, trying to copy or manipulate the 
      * data in the {@link RandomAccessibleInterval} might result in a segmentation error. If you want to close the
@@ -699,4 +725,20 @@ public interface SharedMemoryArray extends Closeable {
 	 * of bytes corresponding to the values of the array, no header
      */
     public boolean isNumpyFormat();
+    
+    /**
+     * Unmap the shared memory segment and release the resources that this process holds on it without
+     * destroying the segment, so other processes can keep using it. Use it instead of {@link #close()}
+     * for segments that are owned by another process, for example segments created by Python.
+     * The instance cannot be used after detaching it.
+     * By default the segment is closed with {@link #close()}, the implementations that can unmap the
+     * segment without destroying it override this method.
+     */
+    public default void detach() {
+    	try {
+    		close();
+    	} catch (IOException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
 }
@@ -0,0 +1,593 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.regex.Matcher;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.platform.win32.WinNT;
+
+import io.bioimage.modelrunner.numpy.DecodeNumpy;
+import io.bioimage.modelrunner.system.PlatformDetection;
+import io.bioimage.modelrunner.utils.CommonUtils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Util;
+
+/**
+ * Class that maps {@link RandomAccessibleInterval} objects to memory mapped files for interprocessing communication.
+ *
+ * It implements the same contract as the POSIX and Windows shared memory segments, but the bytes live in a file
+ * of a configurable directory, for example a fast local disk or a tmpfs mount, that is mapped in memory by
+ * every process that uses it. It is useful where the shared memory of the system is too small for the
+ * images, as in containers where /dev/shm is limited to 64MB by default.
+ *
+ * The name of the segment is the absolute path of the file, always with '/' as separator. Python code
+ * can open them by name with {@link #PYTHON_OPEN_CODE}.
+ *
+ * The files are mapped with the memory mapping of the operating system, mmap or MapViewOfFile, so they
+ * can be bigger than {@link Integer#MAX_VALUE} bytes. Arrays that do not fit in a single {@link ByteBuffer}
+ * are exposed as cell images, see {@link SharedMemoryCells}.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class SharedMemoryArrayFile implements SharedMemoryArray {
+
+	/**
+	 * Prefix of the name of every file created to share arrays, both from Java and from Python
+	 */
+	public static final String FILE_PREFIX = "jdll-shm-";
+	/**
+	 * Extension of the files created to share arrays
+	 */
+	public static final String FILE_EXTENSION = ".dat";
+	/**
+	 * Python code that defines {@code open_shm(name, size)}, which opens a segment by its name whether it is
+	 * a shared memory segment or one of these memory mapped files, and the {@code MappedFile} class that
+	 * wraps the files with the same interface as {@code shared_memory.SharedMemory}
+	 */
+	public static final String PYTHON_OPEN_CODE = ""
+			+ "if 'os' not in globals().keys():" + System.lineSeparator()
+			+ "  import os" + System.lineSeparator()
+			+ "  globals()['os'] = os" + System.lineSeparator()
+			+ "if 'mmap' not in globals().keys():" + System.lineSeparator()
+			+ "  import mmap" + System.lineSeparator()
+			+ "  globals()['mmap'] = mmap" + System.lineSeparator()
+			+ "if 'shared_memory' not in globals().keys():" + System.lineSeparator()
+			+ "  from multiprocessing import shared_memory" + System.lineSeparator()
+			+ "  globals()['shared_memory'] = shared_memory" + System.lineSeparator()
+			+ "class MappedFile:" + System.lineSeparator()
+			+ "  def __init__(self, name, size, create=False):" + System.lineSeparator()
+			+ "    self.name = name" + System.lineSeparator()
+			+ "    self.size = size" + System.lineSeparator()
+			+ "    self._file = open(name, 'w+b' if create else 'r+b')" + System.lineSeparator()
+			+ "    if create:" + System.lineSeparator()
+			+ "      self._file.truncate(size)" + System.lineSeparator()
+			+ "    self._mmap = mmap.mmap(self._file.fileno(), size)" + System.lineSeparator()
+			+ "    self.buf = memoryview(self._mmap)" + System.lineSeparator()
+			+ "  def close(self):" + System.lineSeparator()
+			+ "    self.buf.release()" + System.lineSeparator()
+			+ "    self._mmap.close()" + System.lineSeparator()
+			+ "    self._file.close()" + System.lineSeparator()
+			+ "  def unlink(self):" + System.lineSeparator()
+			+ "    try:" + System.lineSeparator()
+			+ "      os.remove(self.name)" + System.lineSeparator()
+			+ "    except OSError:" + System.lineSeparator()
+			+ "      pass" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def open_shm(name, size):" + System.lineSeparator()
+			+ "  if os.path.isabs(name):" + System.lineSeparator()
+			+ "    return MappedFile(name, size)" + System.lineSeparator()
+			+ "  return shared_memory.SharedMemory(name=name, size=size)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "globals()['MappedFile'] = MappedFile" + System.lineSeparator()
+			+ "globals()['open_shm'] = open_shm" + System.lineSeparator();
+	/**
+	 * Directory where the POSIX shared memory segments are stored in Linux
+	 */
+	private static final String LINUX_SHM_DIR = "/dev/shm";
+	/**
+	 * Directory where the files are created
+	 */
+	private static File directory = new File(System.getProperty("java.io.tmpdir"));
+	/**
+	 * The file that backs the array
+	 */
+	private final File file;
+	/**
+	 * Pointer to the first byte of the region of memory where the file is mapped
+	 */
+	private Pointer pointer;
+	/**
+	 * Size of the file in bytes
+	 */
+	private final long size;
+	/**
+	 * Data type of the array stored in the file
+	 */
+	private String originalDataType;
+	/**
+	 * Shape of the array stored in the file
+	 */
+	private long[] originalDims;
+	/**
+	 * Whether the array stored in the file is preceded by a Numpy npy header
+	 */
+	private Boolean isNumpyFormat = null;
+	/**
+	 * Whether the array stored in the file is flattened in fortran order or not (c order)
+	 */
+	private boolean isFortran = false;
+	/**
+	 * Whether the file has been unmapped
+	 */
+	private boolean unmapped = false;
+
+	private SharedMemoryArrayFile(File file, long size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran, boolean create) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Memory mapped files need at least one byte: " + size);
+		this.file = file;
+		this.size = size;
+		this.originalDataType = dtype;
+		this.originalDims = shape;
+		this.isNumpyFormat = isNumpy;
+		this.isFortran = isFortran;
+		if (create)
+			SharedMemoryRegistry.reserve(size);
+		try {
+			if (create) {
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(size);
+				}
+			}
+			pointer = PlatformDetection.isWindows() ? mapWindows(file, size) : mapPosix(file, size);
+		} catch (IOException e) {
+			if (create) {
+				file.delete();
+				SharedMemoryRegistry.cancel(size);
+			}
+			throw new RuntimeException("Unable to map the file '" + file.getAbsolutePath() + "': " + e.getMessage(), e);
+		}
+		if (create)
+			SharedMemoryRegistry.register(this, size);
+		if (create && Boolean.TRUE.equals(this.isNumpyFormat)) {
+			byte[] header = getNpyHeader(dtype, shape, isFortran);
+			pointer.write(0, header, 0, header.length);
+		}
+	}
+
+	private static Pointer mapPosix(File file, long size) throws IOException {
+		int fd = CLibrary.INSTANCE.open(file.getAbsolutePath(), O_RDWR, 0);
+		if (fd < 0)
+			throw new IOException("open failed, errno: " + Native.getLastError());
+		try {
+			Pointer p = CLibrary.INSTANCE.mmap(Pointer.NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+			if (p == null || Pointer.nativeValue(p) == -1)
+				throw new IOException("mmap failed, errno: " + Native.getLastError());
+			return p;
+		} finally {
+			CLibrary.INSTANCE.close(fd);
+		}
+	}
+
+	private static Pointer mapWindows(File file, long size) throws IOException {
+		WinNT.HANDLE hFile = Kernel32.INSTANCE.CreateFile(file.getAbsolutePath(), WinNT.GENERIC_READ | WinNT.GENERIC_WRITE,
+				WinNT.FILE_SHARE_READ | WinNT.FILE_SHARE_WRITE | WinNT.FILE_SHARE_DELETE, null, WinNT.OPEN_EXISTING,
+				WinNT.FILE_ATTRIBUTE_NORMAL, null);
+		if (WinBase.INVALID_HANDLE_VALUE.equals(hFile))
+			throw new IOException("CreateFile failed with error: " + Kernel32.INSTANCE.GetLastError());
+		try {
+			WinNT.HANDLE hMap = Kernel32.INSTANCE.CreateFileMapping(hFile, null, WinNT.PAGE_READWRITE,
+					(int) (size >>> 32), (int) size, null);
+			if (hMap == null)
+				throw new IOException("CreateFileMapping failed with error: " + Kernel32.INSTANCE.GetLastError());
+			try {
+				Pointer p = Kernel32.INSTANCE.MapViewOfFile(hMap, WinNT.FILE_MAP_WRITE, 0, 0, 0);
+				if (p == null)
+					throw new IOException("MapViewOfFile failed with error: " + Kernel32.INSTANCE.GetLastError());
+				return p;
+			} finally {
+				// NB: the view keeps the mapping alive once it has been created
+				Kernel32.INSTANCE.CloseHandle(hMap);
+			}
+		} finally {
+			Kernel32.INSTANCE.CloseHandle(hFile);
+		}
+	}
+
+	/**
+	 * Set the directory where the files that back the arrays are created. By default it is the temporary
+	 * directory of the system. A directory in a fast local disk or in a tmpfs mount is recommended
+	 * @param dir
+	 * 	the directory
+	 */
+	public static synchronized void setDirectory(String dir) {
+		File f = new File(dir);
+		if (!f.isDirectory())
+			throw new IllegalArgumentException("The directory for the memory mapped files does not exist: " + dir);
+		directory = f.getAbsoluteFile();
+	}
+
+	/**
+	 *
+	 * @return the directory where the files that back the arrays are created
+	 */
+	public static synchronized File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 *
+	 * @return the directory where the files that back the arrays are created, with '/' as separator so
+	 * 	it can be used in Python code
+	 */
+	public static String getDirectoryForPython() {
+		return getDirectory().getAbsolutePath().replace(File.separator, "/");
+	}
+
+	/**
+	 * Whether the shared memory of the system has room for a segment of the wanted size. Only Linux
+	 * limits it, to the free space of {@link #LINUX_SHM_DIR}. Writing past that limit kills the process
+	 * instead of throwing an exception, so the check has to be done before creating the segment
+	 * @param size
+	 * 	number of bytes of the segment
+	 * @return true if the segment fits in the shared memory
+	 */
+	public static boolean fitsInSharedMemory(long size) {
+		if (!PlatformDetection.isLinux())
+			return true;
+		File shmDir = new File(LINUX_SHM_DIR);
+		return !shmDir.isDirectory() || shmDir.getUsableSpace() >= size;
+	}
+
+	/**
+	 * Whether the name of a segment corresponds to a memory mapped file created to share arrays
+	 * @param name
+	 * 	name of the segment
+	 * @return true if it is the path to one of these files
+	 */
+	public static boolean isMappedFile(String name) {
+		File f = new File(name);
+		return f.isAbsolute() && f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(FILE_EXTENSION);
+	}
+
+	/**
+	 * Create a memory mapped file of the wanted size in the directory set with {@link #setDirectory(String)}
+	 * @param size
+	 * 	number of bytes of the file
+	 * @return the {@link SharedMemoryArrayFile} that maps the file
+	 */
+	public static SharedMemoryArrayFile create(long size) {
+		return new SharedMemoryArrayFile(newFile(), size, null, null, null, false, true);
+	}
+
+	/**
+	 * Create a memory mapped file big enough to store an nd array of the wanted shape and data type
+	 * @param <T>
+	 * 	ImgLib2 data type of the array
+	 * @param shape
+	 * 	shape of the array
+	 * @param datatype
+	 * 	data type of the array
+	 * @param isFortran
+	 * 	whether the array is flattened in fortran order or not (c order)
+	 * @param isNpy
+	 * 	whether the array is preceded by a header in the style of Numpy npy files
+	 * @return the {@link SharedMemoryArrayFile} that maps the file
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	SharedMemoryArrayFile create(long[] shape, T datatype, boolean isFortran, boolean isNpy) {
+		long size = SharedMemoryArray.getArrayByteSize(shape, datatype);
+		if (isNpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(shape, datatype, isFortran);
+		return new SharedMemoryArrayFile(newFile(), size, CommonUtils.getDataType(datatype), shape, isNpy, isFortran, true);
+	}
+
+	/**
+	 * Create a memory mapped file and copy an image into it
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param rai
+	 * 	the image
+	 * @param isFortranOrder
+	 * 	whether the image is flattened in fortran order or not (c order)
+	 * @param isNumpy
+	 * 	whether the image is preceded by a header in the style of Numpy npy files
+	 * @return the {@link SharedMemoryArrayFile} that maps the file
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	SharedMemoryArrayFile createSHMAFromRAI(RandomAccessibleInterval<T> rai, boolean isFortranOrder, boolean isNumpy) {
+		SharedMemoryArrayFile shma = create(rai.dimensionsAsLongArray(), Util.getTypeFromInterval(rai), isFortranOrder, isNumpy);
+		long offset = 0;
+		if (isNumpy)
+			offset = shma.size - SharedMemoryArray.getArrayByteSize(rai.dimensionsAsLongArray(), Util.getTypeFromInterval(rai));
+		SharedMemoryWriter.write(shma.pointer, offset, rai, isFortranOrder);
+		return shma;
+	}
+
+	/**
+	 * Map an existing file created to share arrays, for example by Python
+	 * @param name
+	 * 	absolute path to the file
+	 * @return the {@link SharedMemoryArrayFile} that maps the file
+	 */
+	public static SharedMemoryArrayFile read(String name) {
+		File f = new File(name);
+		if (!f.isFile())
+			throw new IllegalArgumentException("The memory mapped file does not exist: " + name);
+		SharedMemoryArrayFile shma = new SharedMemoryArrayFile(f, f.length(), null, null, null, false, false);
+		shma.findNumpyFormat();
+		return shma;
+	}
+
+	private static File newFile() {
+		return new File(getDirectory(), FILE_PREFIX + UUID.randomUUID().toString().replace("-", "") + FILE_EXTENSION);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public Object getSharedMemoryBlockID() {
+		return this.file;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getName() {
+		return this.file.getAbsolutePath().replace(File.separator, "/");
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getNameForPython() {
+		return getName();
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public Pointer getPointer() {
+		return this.pointer;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOriginalDataType() {
+		if (originalDataType == null && this.isNumpyFormat()) findNumpyFormat();
+		return this.originalDataType;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public long[] getOriginalShape() {
+		if (originalDims == null && this.isNumpyFormat()) findNumpyFormat();
+		return this.originalDims;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> getSharedRAI() {
+		if ((this.originalDims == null || this.originalDataType == null) && !this.isNumpyFormat())
+			throw new IllegalArgumentException("The memory mapped file is not stored in Numpy format and the shape and/or "
+					+ "data type are not known. Please provide information about them and use the method "
+					+ "'getSharedRAI(long[] shape, boolean isFortran, T dataType)'.");
+		T type = CommonUtils.getImgLib2DataType(originalDataType);
+		long offset = 0;
+		if (this.isNumpyFormat())
+			offset = size - SharedMemoryArray.getArrayByteSize(originalDims, type);
+		return build(originalDims, type, isFortran, offset);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> getSharedRAI(long[] shape, T dataType) {
+		return build(shape, dataType, isFortran, 0);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> getSharedRAI(long[] shape, T dataType, boolean isFortran) {
+		return build(shape, dataType, isFortran, 0);
+	}
+
+	private <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<T> build(long[] shape, T dataType, boolean isFortran, long offset) {
+		long bytes = SharedMemoryArray.getArrayByteSize(shape, dataType);
+		if (offset + bytes > size)
+			throw new IllegalArgumentException("An array of shape " + Arrays.toString(shape) + " and data type "
+					+ CommonUtils.getDataType(dataType) + " needs " + bytes + " bytes and the memory mapped file only has "
+					+ (size - offset) + " bytes available.");
+		return SharedMemoryCells.wrapArray(pointer, offset, shape, dataType, isFortran, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		if (buffer.capacity() > this.size)
+			throw new IllegalArgumentException("The buffer capacity has to be smaller or equal "
+					+ "than the size of the memory mapped file.");
+		ByteBuffer dup = buffer.duplicate();
+		dup.rewind();
+		pointer.getByteBuffer(0, dup.capacity()).put(dup);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer getDataBuffer() {
+		return pointer.getByteBuffer(0, size);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer getDataBufferNoHeader() {
+		long totSize = SharedMemoryArray.getArrayByteSize(getOriginalShape(),
+				Cast.unchecked(CommonUtils.getImgLib2DataType(getOriginalDataType())));
+		long offset = this.isNumpyFormat() ? size - totSize : 0;
+		return pointer.getByteBuffer(offset, totSize);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isNumpyFormat() {
+		if (this.isNumpyFormat == null)
+			findNumpyFormat();
+		return this.isNumpyFormat;
+	}
+
+	@Override
+	/**
+	 * Unmap the file and delete it
+	 */
+	public void close() throws IOException {
+		if (unmapped && !file.exists())
+			return;
+		detach();
+		file.delete();
+	}
+
+	/**
+	 * Delete the file without unmapping it. Used at shutdown, when other threads might still be using it.
+	 * In Windows files that are mapped cannot be deleted, so they are left in the directory
+	 */
+	void unlink() {
+		file.delete();
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void detach() {
+		if (unmapped)
+			return;
+		unmapped = true;
+		SharedMemoryRegistry.unregister(this);
+		Pointer p = pointer;
+		pointer = null;
+		if (PlatformDetection.isWindows())
+			Kernel32.INSTANCE.UnmapViewOfFile(p);
+		else
+			CLibrary.INSTANCE.munmap(p, size);
+	}
+
+	/**
+	 * Find whether the file is in Numpy npy format or not, reading the shape, data type and order from
+	 * the header if it is
+	 */
+	private void findNumpyFormat() {
+		this.isNumpyFormat = true;
+		try {
+			int offset = 0;
+			byte[] buf = new byte[DecodeNumpy.NUMPY_PREFIX.length];
+			pointer.read(offset, buf, 0, buf.length);
+			if (!Arrays.equals(buf, DecodeNumpy.NUMPY_PREFIX))
+				throw new IllegalArgumentException("Malformed  or unsopported Numpy array");
+			offset = DecodeNumpy.NUMPY_PREFIX.length;
+			byte major = pointer.getByte(offset ++);
+			byte minor = pointer.getByte(offset ++);
+			if (major < 1 || major > 3 || minor != 0)
+				throw new IllegalArgumentException("Unknown numpy version: " + major + '.' + minor);
+			int len = major == 1 ? 2 : 4;
+			ByteBuffer bb = pointer.getByteBuffer(offset, len).order(ByteOrder.LITTLE_ENDIAN);
+			offset += len;
+			len = major == 1 ? bb.getShort() : bb.getInt();
+			buf = new byte[len];
+			pointer.read(offset, buf, 0, len);
+			String header = new String(buf, StandardCharsets.UTF_8);
+			Matcher m = DecodeNumpy.HEADER_PATTERN.matcher(header);
+			if (!m.find())
+				throw new IllegalArgumentException("Invalid numpy header: " + header);
+			String shapeStr = m.group(3);
+			long[] shape = new long[0];
+			if (!shapeStr.isEmpty())
+				shape = Arrays.stream(shapeStr.split(", ?")).mapToLong(Long::parseLong).toArray();
+			this.originalDims = shape;
+			this.originalDataType = DecodeNumpy.getDataType(m.group(1).substring(1));
+			this.isFortran = m.group(2).trim().equals("True");
+		} catch (Exception ex) {
+			this.isNumpyFormat = false;
+		}
+	}
+
+	private static <T extends RealType<T> & NativeType<T>>
+	byte[] getNpyHeader(String dtype, long[] shape, boolean fortranOrder) {
+		T type = CommonUtils.getImgLib2DataType(dtype);
+		String strHeader = "{'descr': '<";
+		strHeader += DecodeNumpy.getDataType(type);
+		strHeader += "', 'fortran_order': " + (fortranOrder ? "True" : "False") + ", 'shape': (";
+		for (long ll : shape) strHeader += ll + ", ";
+		strHeader = strHeader.substring(0, strHeader.length() - 2);
+		strHeader += "), }" + System.lineSeparator();
+		byte[] headerBytes = strHeader.getBytes(StandardCharsets.UTF_8);
+		byte[] total = new byte[DecodeNumpy.NUMPY_PREFIX.length + 4 + headerBytes.length];
+		System.arraycopy(DecodeNumpy.NUMPY_PREFIX, 0, total, 0, DecodeNumpy.NUMPY_PREFIX.length);
+		int c = DecodeNumpy.NUMPY_PREFIX.length;
+		total[c ++] = 1;
+		total[c ++] = 0;
+		total[c ++] = (byte) headerBytes.length;
+		total[c ++] = (byte) (headerBytes.length >> 8);
+		System.arraycopy(headerBytes, 0, total, c, headerBytes.length);
+		return total;
+	}
+}
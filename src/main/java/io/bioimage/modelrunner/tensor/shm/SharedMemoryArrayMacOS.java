@@ -35,7 +35,6 @@ import io.bioimage.modelrunner.utils.CommonUtils;
 
 import com.sun.jna.Native;
 
-import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.ByteAccess;
@@ -63,7 +62,6 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 /**
  * Class that maps {@link RandomAccessibleInterval} objects to the shared memory for interprocessing communication
@@ -98,7 +96,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 	/**
 	 * Size of the shared memory block
 	 */
-	private int size;
+	private long size;
 	/**
 	 * Shared memory segments store bytes. This field represents the original data type of the array that was written
 	 * into the bytes of the shared memory segment. It is helful to retrieve the object later.
@@ -164,7 +162,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 	 * @throws FileAlreadyExistsException if a shared memory array with the same name exists and its byte size
 	 *                                    does not match the specified shape and datatype
 	 */
-    protected SharedMemoryArrayMacOS(int size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
+    protected SharedMemoryArrayMacOS(long size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
     {
     	this(SharedMemoryArray.createShmName(), size, dtype, shape, isNumpy, isFortran);
     }
@@ -206,7 +204,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 	 * @throws FileAlreadyExistsException if a shared memory array with the same name exists and its byte size
 	 *                                    does not match the specified shape and datatype
 	 */
-    protected SharedMemoryArrayMacOS(String name, int size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
+    protected SharedMemoryArrayMacOS(String name, long size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
     {
     	this.originalDataType = dtype;
     	this.originalDims = shape;
@@ -228,8 +226,12 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
     				+ "Size of the existing shared memory segment cannot be smaller than the size of the proposed object. "
     				+ "Size of existing shared memory segment: " + prevSize + ", size of proposed object: " + size);
     	}
+		if (!alreadyExists)
+			SharedMemoryRegistry.reserve(size);
         shmFd = MACOS_INSTANCE.create_shared_memory(memoryName, size);
         if (shmFd < 0) {
+        	if (!alreadyExists)
+        		SharedMemoryRegistry.cancel(size);
             throw new RuntimeException("shm_open failed, errno: " + Native.getLastError());
         }
         /*
@@ -241,12 +243,16 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
         pSharedMemory = INSTANCE.mmap(Pointer.NULL, this.size, PROT_READ | PROT_WRITE, MAP_SHARED, shmFd, 0);
         if (pSharedMemory == Pointer.NULL) {
         	INSTANCE.close(shmFd);
+        	if (!alreadyExists)
+        		SharedMemoryRegistry.cancel(size);
             throw new RuntimeException("mmap failed, errno: " + Native.getLastError());
         }
+        if (!alreadyExists)
+        	SharedMemoryRegistry.register(this, size);
         
 
         
-        if (!alreadyExists && this.isNumpyFormat) {
+        if (!alreadyExists && Boolean.TRUE.equals(this.isNumpyFormat)) {
         	byte[] header = getNpyHeader(dtype, shape, this.isFortran);
         	long offset = 0;
         	for (byte b : header) {
@@ -300,17 +306,17 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 	}
 
 	protected static <T extends RealType<T> & NativeType<T>>
-	SharedMemoryArrayMacOS readOrCreate(String name, int size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException {
+	SharedMemoryArrayMacOS readOrCreate(String name, long size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException {
 		return new SharedMemoryArrayMacOS(name, size, strDType, shape, isNumpy, isFortran);
 	}
 
 	protected static <T extends RealType<T> & NativeType<T>>
-	SharedMemoryArrayMacOS readOrCreate(String name, int size) throws FileAlreadyExistsException {
+	SharedMemoryArrayMacOS readOrCreate(String name, long size) throws FileAlreadyExistsException {
 		return new SharedMemoryArrayMacOS(name, size, null, null, null, false);
 	}
 
 	protected static <T extends RealType<T> & NativeType<T>>
-	SharedMemoryArrayMacOS create(int size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) {
+	SharedMemoryArrayMacOS create(long size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) {
 		try {
 			return new SharedMemoryArrayMacOS(size, strDType, shape, isNumpy, isFortran);
 		} catch (FileAlreadyExistsException e) {
@@ -318,7 +324,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 		}
 	}
 
-	protected static SharedMemoryArrayMacOS create(int size) {
+	protected static SharedMemoryArrayMacOS create(long size) {
 		try {
 			return new SharedMemoryArrayMacOS(size, null, null, null, false);
 		} catch (FileAlreadyExistsException e) {
@@ -334,57 +340,57 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
     		name = "/" + name;
     	SharedMemoryArrayMacOS shma = null;
     	if (Util.getTypeFromInterval(rai) instanceof ByteType) {
-        	int size = 1;
+        	long size = 1;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt8(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedByteType) {
-        	int size = 1;
+        	long size = 1;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildUint8(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof ShortType) {
-        	int size = 2;
+        	long size = 2;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt16(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedShortType) {
-        	int size = 2;
+        	long size = 2;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildUint16(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof IntType) {
-        	int size = 4;
+        	long size = 4;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt32(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedIntType) {
-        	int size = 4;
+        	long size = 4;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildUint32(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof LongType) {
-        	int size = 8;
+        	long size = 8;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt64(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof FloatType) {
-        	int size = 4;
+        	long size = 4;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildFloat32(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof DoubleType) {
-        	int size = 8;
+        	long size = 8;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayMacOS(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildFloat64(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else {
@@ -413,7 +419,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 	    }	    
 
         // Map the shared memory into the process's address space
-        Pointer pSharedMemory = INSTANCE.mmap(null, (int) size, PROT_READ, MAP_SHARED, shmFd, 0);
+        Pointer pSharedMemory = INSTANCE.mmap(null, size, PROT_READ, MAP_SHARED, shmFd, 0);
         if (pSharedMemory == Pointer.NULL) {
             CLibrary.INSTANCE.close(shmFd);
             throw new RuntimeException("Failed to map shared memory. Errmo: " + Native.getLastError());
@@ -422,7 +428,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
         SharedMemoryArrayMacOS shm = new SharedMemoryArrayMacOS(memoryName);
         shm.shmFd = shmFd;
         shm.pSharedMemory = pSharedMemory;
-        shm.size = (int) size;
+        shm.size = size;
         shm.findNumpyFormat();
         return shm;
     }
@@ -442,169 +448,72 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<ByteType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setByte(offset + (i ++), cursor.get().get());
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildUint8(RandomAccessibleInterval<UnsignedByteType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<UnsignedByteType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setByte(offset + (i ++), cursor.get().getByte());
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildInt16(RandomAccessibleInterval<ShortType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<ShortType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setShort(offset + (i * Short.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildUint16(RandomAccessibleInterval<UnsignedShortType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<UnsignedShortType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setShort(offset + (i * Short.BYTES), cursor.get().getShort());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildInt32(RandomAccessibleInterval<IntType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<IntType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setInt(offset + (i * Integer.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildUint32(RandomAccessibleInterval<UnsignedIntType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<UnsignedIntType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setInt(offset + (i * Integer.BYTES), cursor.get().getInt());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildInt64(RandomAccessibleInterval<LongType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<LongType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setLong(offset + (i * Long.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildFloat32(RandomAccessibleInterval<FloatType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<FloatType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setFloat(offset + (i * Float.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
 
     private void buildFloat64(RandomAccessibleInterval<DoubleType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.pSharedMemory.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<DoubleType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.pSharedMemory.setDouble(offset + (i * Double.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.pSharedMemory.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.pSharedMemory, header.length, tensor, isFortranOrder);
     }
     
     @SuppressWarnings("unchecked")
@@ -700,7 +609,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
      * {@inheritDoc}
      */
 	@Override
-    public int getSize() {
+    public long getSize() {
     	return this.size;
     }
 
@@ -809,6 +718,33 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
         // Unlink the shared memory object
         INSTANCE.shm_unlink(this.memoryName);
         unlinked = true;
+        SharedMemoryRegistry.unregister(this);
+	}
+
+	/**
+	 * Remove the name of the segment from the system without unmapping it, so the memory is freed once
+	 * every process that maps it exits. Used at shutdown, when other threads might still be using it
+	 */
+	void unlink() {
+		if (this.unlinked) return;
+        INSTANCE.shm_unlink(this.memoryName);
+        unlinked = true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void detach() {
+		if (this.unlinked) return;
+        if (this.pSharedMemory != Pointer.NULL && INSTANCE.munmap(this.pSharedMemory, size) == -1) {
+            throw new RuntimeException("munmap failed. Errno: " + Native.getLastError());
+        }
+        if (INSTANCE.close(this.shmFd) == -1) {
+            throw new RuntimeException("close failed. Errno: " + Native.getLastError());
+        }
+        unlinked = true;
+        SharedMemoryRegistry.unregister(this);
 	}
     
     /**
@@ -867,7 +803,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
      */
     @Override
     public ByteBuffer getDataBuffer() {
-    	return pSharedMemory.getByteBuffer(0, this.size);
+    	return SharedMemoryCells.getByteBuffer(pSharedMemory, 0, this.size);
     }
 
 	@Override
@@ -884,7 +820,7 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
     		offset =  (int) (npSize - DecodeNumpy.DATA_TYPES_MAP.get(this.originalDataType) * totSize);
     		totSize = npSize;
     	}
-    	return pSharedMemory.getByteBuffer(offset, totSize - offset);
+    	return SharedMemoryCells.getByteBuffer(pSharedMemory, offset, totSize - offset);
 	}
 	
 	private static <T extends RealType<T> & NativeType<T>>
@@ -896,6 +832,10 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
 	private static <T extends RealType<T> & NativeType<T>>
 	RandomAccessibleInterval<T> buildFromSharedMemoryBlock(Pointer pSharedMemory, long[] shape, T dataType, 
 			boolean isFortran, int offset, ByteOrder order) {
+		if (SharedMemoryCells.needsCells(shape, dataType))
+			return SharedMemoryCells.wrap(pSharedMemory, offset, shape, dataType, isFortran, order);
+		if (SharedMemoryAccess.isForeignMemory())
+			return SharedMemoryCells.wrapArray(pSharedMemory, offset, shape, dataType, isFortran, order);
 		long[] transposedShape = new long[shape.length];
 		for (int i = 0; i < shape.length; i ++) {transposedShape[i] = shape[shape.length - i - 1];}
 		if (dataType instanceof ByteType) {
@@ -1051,13 +991,6 @@ public class SharedMemoryArrayMacOS implements SharedMemoryArray
         	new IllegalArgumentException("Not supported ByteOrder for the provided .npy array.");
         }
         String dtype = DecodeNumpy.getDataType(typeStr.substring(1));
-        long numBytes = DecodeNumpy.DATA_TYPES_MAP.get(dtype);
-    	long count;
-    	if (shape.length == 0)
-    		count = 1;
-		else
-			count = Arrays.stream(shape).reduce(Math::multiplyExact).getAsLong();
-        len = Math.toIntExact(count * numBytes);
         
         return buildFromSharedMemoryBlock(this.pSharedMemory, shape, 
         		Cast.unchecked(CommonUtils.getImgLib2DataType(dtype)), fortranOrder.equals("True"), offset, byteOrder);
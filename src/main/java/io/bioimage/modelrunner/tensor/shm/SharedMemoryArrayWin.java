@@ -39,7 +39,6 @@ import com.sun.jna.platform.win32.BaseTSD;
 import io.bioimage.modelrunner.numpy.DecodeNumpy;
 import io.bioimage.modelrunner.tensor.Utils;
 import io.bioimage.modelrunner.utils.CommonUtils;
-import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.ByteAccess;
@@ -67,7 +66,6 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 /**
  * Class that maps {@link RandomAccessibleInterval} objects to the shared memory for interprocessing communication
@@ -97,7 +95,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 	/**
 	 * Size of the shared memory block
 	 */
-	private int size;
+	private long size;
 	/**
 	 * Shared memory segments store bytes. This field represents the original data type of the array that was written
 	 * into the bytes of the shared memory segment. It is helful to retrieve the object later.
@@ -125,9 +123,9 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 	private boolean isFortran = false;
 	private static final int SEC_RESERVE = 0x4000000;
 	/**
-	 * TODO change size to long, this number overflows and becomes negative
+	 * Number of bytes reserved (but not committed) when a shared memory segment is created without a size
 	 */
-	private static final int DEFAULT_RESERVED_MEMORY = 1024 * 1024 * 1024 * 2;
+	private static final long DEFAULT_RESERVED_MEMORY = 1024L * 1024 * 1024 * 2;
 	
 	/**
 	 * This method creates a shared memory segment with the wanted name. The byte size is defined by the
@@ -164,7 +162,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 	 * @throws FileAlreadyExistsException if a shared memory array with the same name exists and its byte size
 	 *                                    does not match the specified shape and datatype
 	 */
-	protected SharedMemoryArrayWin(int size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
+	protected SharedMemoryArrayWin(long size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
     {
     	this(SharedMemoryArray.createShmName(), size, dtype, shape, isNumpy, isFortran);
     }
@@ -206,7 +204,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 	 * @throws FileAlreadyExistsException if a shared memory array with the same name exists and its byte size
 	 *                                    does not match the specified shape and datatype
 	 */
-	protected SharedMemoryArrayWin(String name, int size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
+	protected SharedMemoryArrayWin(String name, long size, String dtype, long[] shape, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException
     {
 		if (size < 0)
 			throw new IllegalArgumentException("The size of a shared memory segment cannot be negative.");
@@ -226,21 +224,26 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
         				+ "Size of existing shared memory segment: " + prevSize + ", size of proposed object: " + size);
     	}
 		
+    	long requestedSize = size;
     	if (size < 1) {
     		flag = WinNT.PAGE_READWRITE | SEC_RESERVE;
     		size = DEFAULT_RESERVED_MEMORY;
     		write = false;
     	}
+    	if (!alreadyExists)
+    		SharedMemoryRegistry.reserve(requestedSize);
         hMapFile = Kernel32.INSTANCE.CreateFileMapping(
                 WinBase.INVALID_HANDLE_VALUE,
                 null,
                 flag,
-                0,
-                size,
+                (int) (size >>> 32),
+                (int) size,
                 memoryName
         );
         
         if (hMapFile == null) {
+        	if (!alreadyExists)
+        		SharedMemoryRegistry.cancel(requestedSize);
             throw new RuntimeException("Error creating shared memory array. CreateFileMapping failed: "
             		+ "" + Kernel32.INSTANCE.GetLastError());
         }
@@ -251,11 +254,13 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
                 WinNT.FILE_MAP_WRITE,
                 0,
                 0,
-                size
+                size > Integer.MAX_VALUE ? 0 : (int) size
         );
         
         if (mappedPointer == null) {
             Kernel32.INSTANCE.CloseHandle(hMapFile);
+        	if (!alreadyExists)
+        		SharedMemoryRegistry.cancel(requestedSize);
             throw new RuntimeException("Error creating shared memory array. "
             		+ "Please check that a shared memory segment with another size has "
             		+ "not previously been created on the same memory region with the same name: " + this.memoryName 
@@ -268,14 +273,18 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
     	    		new BaseTSD.SIZE_T(size), WinNT.MEM_COMMIT, WinNT.PAGE_READWRITE);
     	    if (writePointer == null) {
     	    	close();
+    	    	if (!alreadyExists)
+    	    		SharedMemoryRegistry.cancel(requestedSize);
                 throw new RuntimeException("Error committing to the shared memory pages. Errno: "
                 		+ "" + Kernel32.INSTANCE.GetLastError());
     	    }
         }
+        if (!alreadyExists)
+        	SharedMemoryRegistry.register(this, requestedSize);
         
 
         
-        if (!alreadyExists && this.isNumpyFormat) {
+        if (!alreadyExists && Boolean.TRUE.equals(this.isNumpyFormat)) {
         	byte[] header = getNpyHeader(dtype, shape, this.isFortran);
         	long offset = 0;
         	for (byte b : header) {
@@ -325,7 +334,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
             throw new RuntimeException("Unable to retrieve the size of the shm segment located at '" 
         		+ "'. Errno: " + Kernel32.INSTANCE.GetLastError());
         }
-        int size = mbi.regionSize.intValue();
+        long size = mbi.regionSize.longValue();
 
         Kernel32.INSTANCE.UnmapViewOfFile(pSharedMemory);
     	Kernel32.INSTANCE.CloseHandle(hMapFile);
@@ -344,17 +353,17 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 	}
 
 	protected static <T extends RealType<T> & NativeType<T>>
-	SharedMemoryArrayWin readOrCreate(String name, int size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException {
+	SharedMemoryArrayWin readOrCreate(String name, long size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) throws FileAlreadyExistsException {
 		return new SharedMemoryArrayWin(name, size, strDType, shape, isNumpy, isFortran);
 	}
 
 	protected static <T extends RealType<T> & NativeType<T>>
-	SharedMemoryArrayWin readOrCreate(String name, int size) throws FileAlreadyExistsException {
+	SharedMemoryArrayWin readOrCreate(String name, long size) throws FileAlreadyExistsException {
 		return new SharedMemoryArrayWin(name, size, null, null, null, false);
 	}
 
 	protected static <T extends RealType<T> & NativeType<T>>
-	SharedMemoryArrayWin create(int size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) {
+	SharedMemoryArrayWin create(long size, long[] shape, String strDType, Boolean isNumpy, boolean isFortran) {
 		try {
 			return new SharedMemoryArrayWin(size, strDType, shape, isNumpy, isFortran);
 		} catch (FileAlreadyExistsException e) {
@@ -362,7 +371,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 		}
 	}
 
-	protected static SharedMemoryArrayWin create(int size) {
+	protected static SharedMemoryArrayWin create(long size) {
 		try {
 			return new SharedMemoryArrayWin(size, null, null, null, false);
 		} catch (FileAlreadyExistsException e) {
@@ -379,57 +388,57 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
     		name = "Local" + File.separator+ name;
     	SharedMemoryArrayWin shma = null;
     	if (Util.getTypeFromInterval(rai) instanceof ByteType) {
-        	int size = 1;
+        	long size = 1;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt8(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedByteType) {
-        	int size = 1;
+        	long size = 1;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildUint8(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof ShortType) {
-        	int size = 2;
+        	long size = 2;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt16(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedShortType) {
-        	int size = 2;
+        	long size = 2;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildUint16(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof IntType) {
-        	int size = 4;
+        	long size = 4;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt32(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof UnsignedIntType) {
-        	int size = 4;
+        	long size = 4;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildUint32(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof LongType) {
-        	int size = 8;
+        	long size = 8;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildInt64(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof FloatType) {
-        	int size = 4;
+        	long size = 4;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildFloat32(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else if (Util.getTypeFromInterval(rai) instanceof DoubleType) {
-        	int size = 8;
+        	long size = 8;
         	for (long i : rai.dimensionsAsLongArray()) {size *= i;}
-        	if (isNumpy) size = (int) DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
+        	if (isNumpy) size = DecodeNumpy.calculateNpyStyleByteArrayLength(rai, isFortranOrder);
         	shma = new SharedMemoryArrayWin(name, size, CommonUtils.getDataTypeFromRAI(rai), rai.dimensionsAsLongArray(), isNumpy, isFortranOrder);
         	shma.buildFloat64(Cast.unchecked(rai), isFortranOrder, isNumpy);
     	} else {
@@ -467,7 +476,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
             throw new RuntimeException("Unable to retrieve the size of the shm segment located at '" 
         		+ memoryName + "'. Errno: " + Kernel32.INSTANCE.GetLastError());
         }
-        int size = mbi.regionSize.intValue();
+        long size = mbi.regionSize.longValue();
 
         Pointer writePointer = Kernel32.INSTANCE.VirtualAllocEx(Kernel32.INSTANCE.GetCurrentProcess(), 
         		pSharedMemory, new BaseTSD.SIZE_T(size), WinNT.MEM_COMMIT, WinNT.PAGE_READWRITE);
@@ -480,7 +489,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
         SharedMemoryArrayWin shm = new SharedMemoryArrayWin(memoryName);
         shm.hMapFile = hMapFile;
         shm.writePointer = writePointer;
-        shm.size = (int) size;
+        shm.size = size;
         shm.mappedPointer = pSharedMemory;
         shm.findNumpyFormat();
         return shm;
@@ -558,169 +567,72 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<ByteType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setByte(offset + (i ++), cursor.get().get());
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildUint8(RandomAccessibleInterval<UnsignedByteType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<UnsignedByteType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setByte(offset + (i ++), cursor.get().getByte());
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildInt16(RandomAccessibleInterval<ShortType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<ShortType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setShort(offset + (i * Short.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildUint16(RandomAccessibleInterval<UnsignedShortType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<UnsignedShortType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setShort(offset + (i * Short.BYTES), cursor.get().getShort());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildInt32(RandomAccessibleInterval<IntType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<IntType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setInt(offset + (i * Integer.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildUint32(RandomAccessibleInterval<UnsignedIntType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<UnsignedIntType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setInt(offset + (i * Integer.BYTES), cursor.get().getInt());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildInt64(RandomAccessibleInterval<LongType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<LongType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setLong(offset + (i * Long.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildFloat32(RandomAccessibleInterval<FloatType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<FloatType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setFloat(offset + (i * Float.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     private void buildFloat64(RandomAccessibleInterval<DoubleType> tensor, boolean isFortranOrder, boolean isNumpy)
     {
     	byte[] header = new byte[0];
     	if (isNumpy) header = getNpyHeader(tensor, isFortranOrder);
-    	long offset = 0;
-    	for (byte b : header) {
-			this.mappedPointer.setByte(offset, b);
-    		offset ++;
-    	}
-    	if (!isFortranOrder) tensor = Utils.transpose(tensor);
-		Cursor<DoubleType> cursor = Views.flatIterable(tensor).cursor();
-		long i = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			this.mappedPointer.setDouble(offset + (i * Double.BYTES), cursor.get().get());
-			i ++;
-		}
+    	this.mappedPointer.write(0, header, 0, header.length);
+    	SharedMemoryWriter.write(this.mappedPointer, header.length, tensor, isFortranOrder);
     }
 
     /**
@@ -759,7 +671,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
      * {@inheritDoc}
      */
 	@Override
-    public int getSize() {
+    public long getSize() {
     	return this.size;
     }
 
@@ -802,6 +714,18 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
         Kernel32.INSTANCE.UnmapViewOfFile(mappedPointer);
         Kernel32.INSTANCE.CloseHandle(hMapFile);
         unlinked = true;
+        SharedMemoryRegistry.unregister(this);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * In Windows the segment is destroyed once every process has closed its handles, so detaching
+	 * is the same as closing.
+	 */
+	public void detach() {
+		close();
 	}
 	
 	/**
@@ -918,11 +842,11 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
      */
     @Override
     public ByteBuffer getDataBuffer() {
-    	int len = this.size;
+    	long len = this.size;
     	if (this.isNumpyFormat() || (this.originalDataType != null && this.originalDims != null))
     		len = SharedMemoryArray.getArrayByteSize(originalDims, 
     				Cast.unchecked(CommonUtils.getImgLib2DataType(originalDataType)), false, this.isFortran);
-    	return mappedPointer.getByteBuffer(0, len);
+    	return SharedMemoryCells.getByteBuffer(mappedPointer, 0, len);
     }
 
 	@Override
@@ -939,7 +863,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
     		offset =  (int) (npSize - DecodeNumpy.DATA_TYPES_MAP.get(this.originalDataType) * totSize);
     		totSize = npSize;
     	}
-    	return mappedPointer.getByteBuffer(offset, totSize - offset);
+    	return SharedMemoryCells.getByteBuffer(mappedPointer, offset, totSize - offset);
 	}
 	
 	private static <T extends RealType<T> & NativeType<T>>
@@ -1005,13 +929,6 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
         	new IllegalArgumentException("Not supported ByteOrder for the provided .npy array.");
         }
         String dtype = DecodeNumpy.getDataType(typeStr.substring(1));
-        long numBytes = DecodeNumpy.DATA_TYPES_MAP.get(dtype);
-    	long count;
-    	if (shape.length == 0)
-    		count = 1;
-		else
-			count = Arrays.stream(shape).reduce(Math::multiplyExact).getAsLong();
-        len = Math.toIntExact(count * numBytes);
         
         return buildFromSharedMemoryBlock(this.mappedPointer, shape, 
         		Cast.unchecked(CommonUtils.getImgLib2DataType(dtype)), fortranOrder.equals("True"), offset, byteOrder);
@@ -1020,6 +937,10 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
 	private static <T extends RealType<T> & NativeType<T>>
 	RandomAccessibleInterval<T> buildFromSharedMemoryBlock(Pointer pSharedMemory, long[] shape, T dataType, 
 			boolean isFortran, int offset, ByteOrder order) {
+		if (SharedMemoryCells.needsCells(shape, dataType))
+			return SharedMemoryCells.wrap(pSharedMemory, offset, shape, dataType, isFortran, order);
+		if (SharedMemoryAccess.isForeignMemory())
+			return SharedMemoryCells.wrapArray(pSharedMemory, offset, shape, dataType, isFortran, order);
 		long[] transposedShape = new long[shape.length];
 		for (int i = 0; i < shape.length; i ++) {transposedShape[i] = shape[shape.length - i - 1];}
 		if (dataType instanceof ByteType) {
@@ -1145,7 +1066,7 @@ public class SharedMemoryArrayWin implements SharedMemoryArray
             throw new RuntimeException("Unable to retrieve the size of the shm segment located at '" 
         		+ "'. Errno: " + Kernel32.INSTANCE.GetLastError());
         }
-        int size = mbi.regionSize.intValue();
+        long size = mbi.regionSize.longValue();
 
         Kernel32.INSTANCE.UnmapViewOfFile(pSharedMemory);
     	Kernel32.INSTANCE.CloseHandle(hMapFile);
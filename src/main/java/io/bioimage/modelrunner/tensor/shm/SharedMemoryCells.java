@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Pointer;
+
+import io.bioimage.modelrunner.tensor.Utils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.GenericByteType;
+import net.imglib2.type.numeric.integer.GenericIntType;
+import net.imglib2.type.numeric.integer.GenericShortType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
+
+/**
+ * Maps shared memory segments that are too big to be wrapped by a single {@link ByteBuffer}, that is
+ * segments of more than 2^31 - 1 bytes.
+ *
+ * The array is divided in cells that are contiguous in the shared memory, every one of them wrapped
+ * by its own {@link ByteBuffer}, and exposed as a cell image, so the data is never copied.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+final class SharedMemoryCells {
+
+	/**
+	 * Maximum number of bytes that can be wrapped by a {@link ByteBuffer}
+	 */
+	static final long MAX_BUFFER_BYTES = Integer.MAX_VALUE;
+
+	/**
+	 * Maximum number of bytes of each of the cells of the images that map big shared memory segments
+	 */
+	private static final long MAX_CELL_BYTES = 1024 * 1024 * 1024;
+
+	private SharedMemoryCells() {
+	}
+
+	/**
+	 * Whether an array with the wanted shape and data type needs to be mapped as a cell image
+	 * @param <T>
+	 * 	ImgLib2 data type of the array
+	 * @param shape
+	 * 	shape of the array
+	 * @param type
+	 * 	data type of the array
+	 * @return true if the array has more bytes than a {@link ByteBuffer} can hold
+	 */
+	static <T extends RealType<T> & NativeType<T>> boolean needsCells(long[] shape, T type) {
+		long bytes = type.getBitsPerPixel() / 8;
+		for (long l : shape)
+			bytes = Math.multiplyExact(bytes, l);
+		return bytes > MAX_BUFFER_BYTES;
+	}
+
+	/**
+	 * Get a {@link ByteBuffer} over a region of the shared memory, failing with an explanatory message
+	 * if the region is too big to be wrapped by a single buffer
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	first byte of the region
+	 * @param length
+	 * 	number of bytes of the region
+	 * @return the buffer that wraps the region
+	 */
+	static ByteBuffer getByteBuffer(Pointer pointer, long offset, long length) {
+		if (length > MAX_BUFFER_BYTES)
+			throw new IllegalArgumentException("The shared memory region has " + length + " bytes and "
+					+ "ByteBuffers cannot hold more than " + MAX_BUFFER_BYTES + " bytes. Use "
+					+ "SharedMemoryArray.getSharedRAI() to access segments of more than 2GB.");
+		return pointer.getByteBuffer(offset, length);
+	}
+
+	/**
+	 * Map the array stored in the shared memory as a cell image. Every cell covers a contiguous region
+	 * of the shared memory of at most {@link #MAX_CELL_BYTES} bytes.
+	 * @param <T>
+	 * 	ImgLib2 data type of the array
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first element of the array, for example after the npy header
+	 * @param shape
+	 * 	shape of the array
+	 * @param type
+	 * 	data type of the array
+	 * @param isFortran
+	 * 	whether the array is flattened in fortran order or in c order
+	 * @param order
+	 * 	byte order of the array
+	 * @return an image that references the shared memory
+	 */
+	static <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<T> wrap(Pointer pointer, long offset, long[] shape, T type, boolean isFortran, ByteOrder order) {
+		int n = shape.length;
+		// in the memory order, the first axis is the one that changes fastest
+		long[] dims = new long[n];
+		for (int i = 0; i < n; i ++)
+			dims[i] = isFortran ? shape[i] : shape[n - 1 - i];
+		int bytes = type.getBitsPerPixel() / 8;
+		long[] strides = new long[n];
+		long stride = 1;
+		for (int i = 0; i < n; i ++) {
+			strides[i] = stride;
+			stride *= dims[i];
+		}
+		CellGrid grid = new CellGrid(dims, cellDimensions(dims, MAX_CELL_BYTES / bytes));
+		long nCells = 1;
+		for (long l : grid.getGridDimensions())
+			nCells *= l;
+		@SuppressWarnings("unchecked")
+		Cell<DataAccess>[] cells = new Cell[(int) nCells];
+		for (int c = 0; c < cells.length; c ++) {
+			long[] cellMin = new long[n];
+			int[] cellDims = new int[n];
+			grid.getCellDimensions(c, cellMin, cellDims);
+			long start = 0;
+			long count = 1;
+			for (int i = 0; i < n; i ++) {
+				start += cellMin[i] * strides[i];
+				count *= cellDims[i];
+			}
+			DataAccess access = SharedMemoryAccess.createAccess(pointer, offset + start * bytes, count * bytes, type, order);
+			cells[c] = new Cell<DataAccess>(cellDims, cellMin, access);
+		}
+		LazyCellImg<T, DataAccess> img = new LazyCellImg<T, DataAccess>(grid, type.createVariable(), index -> cells[(int) index]);
+		return isFortran ? img : Utils.transpose(img);
+	}
+
+	/**
+	 * Map an array stored in the shared memory that fits in a single access as an array image
+	 * @param <T>
+	 * 	ImgLib2 data type of the array
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first element of the array, for example after the npy header
+	 * @param shape
+	 * 	shape of the array
+	 * @param type
+	 * 	data type of the array
+	 * @param isFortran
+	 * 	whether the array is flattened in fortran order or in c order
+	 * @param order
+	 * 	byte order of the array
+	 * @return an image that references the shared memory
+	 */
+	static <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<T> wrapArray(Pointer pointer, long offset, long[] shape, T type, boolean isFortran, ByteOrder order) {
+		long[] dims = shape.clone();
+		if (!isFortran) {
+			for (int i = 0; i < shape.length; i ++) {dims[i] = shape[shape.length - i - 1];}
+		}
+		long bytes = type.getBitsPerPixel() / 8;
+		for (long l : shape)
+			bytes *= l;
+		DataAccess access = SharedMemoryAccess.createAccess(pointer, offset, bytes, type, order);
+		ArrayImg<T, DataAccess> img = new ArrayImg<T, DataAccess>(access, dims, type.getEntitiesPerPixel());
+		img.setLinkedType(Cast.unchecked(type.getNativeTypeFactory().createLinkedType(Cast.unchecked(img))));
+		return isFortran ? img : Utils.transpose(img);
+	}
+
+	/**
+	 * Dimensions of cells that are contiguous in memory: the axes that change fastest are complete,
+	 * the next one is divided and every slower axis has size 1
+	 */
+	private static int[] cellDimensions(long[] dims, long maxElements) {
+		int[] cellDims = new int[dims.length];
+		long elements = 1;
+		int i = 0;
+		for (; i < dims.length && elements * dims[i] <= maxElements; i ++) {
+			cellDims[i] = (int) dims[i];
+			elements *= dims[i];
+		}
+		if (i < dims.length)
+			cellDims[i ++] = (int) Math.max(1, maxElements / elements);
+		for (; i < dims.length; i ++)
+			cellDims[i] = 1;
+		return cellDims;
+	}
+
+	/**
+	 * Create the ImgLib2 access of the wanted data type that reads and writes a buffer
+	 * @param <T>
+	 * 	ImgLib2 data type of the access
+	 * @param buffer
+	 * 	the buffer, with the wanted byte order
+	 * @param type
+	 * 	data type of the access
+	 * @return the access that references the buffer
+	 */
+	static <T extends RealType<T> & NativeType<T>> DataAccess createAccess(ByteBuffer buffer, T type) {
+		if (type instanceof GenericByteType)
+			return new ByteBufferAccess(buffer, true);
+		else if (type instanceof GenericShortType)
+			return new ShortBufferAccess(buffer, true);
+		else if (type instanceof GenericIntType)
+			return new IntBufferAccess(buffer, true);
+		else if (type instanceof LongType)
+			return new LongBufferAccess(buffer, true);
+		else if (type instanceof FloatType)
+			return new FloatBufferAccess(buffer, true);
+		else if (type instanceof DoubleType)
+			return new DoubleBufferAccess(buffer, true);
+		throw new IllegalArgumentException("Type not supported: " + type.getClass().toString());
+	}
+}
@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Pool of named shared memory segments that are kept alive between uses, so sending tensors of the
+ * same or smaller size over and over again, for example the tiles of an image, does not create and
+ * destroy a shared memory segment every time.
+ *
+ * Segments are leased with {@link #acquire(long)} and given back with {@link #release(SharedMemoryArray)}.
+ * A leased segment is at least as big as requested, so it might be bigger than the data written to it.
+ * The pool keeps the idle segments until the total bytes of the segments it owns exceed the maximum,
+ * in which case the least recently released idle segments are destroyed. Closing the pool destroys
+ * every segment, leased or not.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class SharedMemoryPool implements Closeable {
+
+	/**
+	 * Idle segments more than this number of times bigger than the requested size are not reused,
+	 * so small requests do not hold big segments that are needed by bigger requests
+	 */
+	public static final long MAX_REUSE_RATIO = 4;
+
+	/**
+	 * Maximum number of bytes of the segments kept by the pool
+	 */
+	private final long maxPooledBytes;
+
+	/**
+	 * Segments that are not being used, the least recently released first
+	 */
+	private final LinkedList<SharedMemoryArray> idle = new LinkedList<SharedMemoryArray>();
+
+	/**
+	 * Segments that are being used
+	 */
+	private final Set<SharedMemoryArray> leased = Collections.newSetFromMap(new IdentityHashMap<SharedMemoryArray, Boolean>());
+
+	/**
+	 * Number of bytes of the segments owned by the pool, leased or idle
+	 */
+	private long pooledBytes = 0;
+
+	private boolean closed = false;
+
+	private SharedMemoryPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 * Create a pool of shared memory segments
+	 * @param maxPooledBytes
+	 * 	maximum number of bytes of the segments kept alive by the pool. Leased segments are
+	 * 	never destroyed, so the pool might own more bytes while they are in use. With 0 every
+	 * 	segment is destroyed once it is released
+	 * @return the pool
+	 */
+	public static SharedMemoryPool create(long maxPooledBytes) {
+		if (maxPooledBytes < 0)
+			throw new IllegalArgumentException("The maximum number of bytes of a shared memory pool cannot be negative: "
+					+ maxPooledBytes);
+		return new SharedMemoryPool(maxPooledBytes);
+	}
+
+	/**
+	 * Lease a shared memory segment of at least the wanted size. The smallest idle segment that
+	 * is big enough is reused, unless it is more than {@link #MAX_REUSE_RATIO} times bigger than the
+	 * wanted size, and if there is none a new one is created. New segments that do not
+	 * fit in the shared memory of the system are backed by a memory mapped file of the directory
+	 * set with {@link SharedMemoryArrayFile#setDirectory(String)}.
+	 * If the new segment does not fit in the maximum set with {@link SharedMemoryRegistry#setMaxBytes(long)},
+	 * the idle segments of the pool are destroyed first to make room. The segment is created without
+	 * holding the lock of the pool, so waiting for room does not block the threads releasing segments
+	 * @param size
+	 * 	minimum number of bytes of the segment
+	 * @return the segment, that has to be given back with {@link #release(SharedMemoryArray)}
+	 */
+	public SharedMemoryArray acquire(long size) {
+		size = Math.max(1, size);
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("The shared memory pool has already been closed.");
+			SharedMemoryArray best = null;
+			for (SharedMemoryArray shma : idle) {
+				if (shma.getSize() >= size && shma.getSize() / MAX_REUSE_RATIO <= size
+						&& (best == null || shma.getSize() < best.getSize()))
+					best = shma;
+			}
+			if (best != null) {
+				idle.remove(best);
+				leased.add(best);
+				return best;
+			}
+			evict(maxPooledBytes - size);
+			while (!idle.isEmpty() && !SharedMemoryRegistry.fits(size))
+				evict(pooledBytes - idle.getFirst().getSize());
+		}
+		SharedMemoryArray shma = SharedMemoryArray.create(size);
+		synchronized (this) {
+			if (!closed) {
+				leased.add(shma);
+				pooledBytes += shma.getSize();
+				return shma;
+			}
+		}
+		try {
+			shma.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		throw new IllegalStateException("The shared memory pool has already been closed.");
+	}
+
+	/**
+	 * Lease a shared memory segment and copy the image into it, without any header. The data starts at
+	 * the first byte of the segment and the segment might be bigger than the image
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param rai
+	 * 	the image
+	 * @param isFortranOrder
+	 * 	whether the array is flattened in fortran order or in c order
+	 * @return the segment, that has to be given back with {@link #release(SharedMemoryArray)}. If the image
+	 * 	cannot be copied the segment is given back before the exception is thrown
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	SharedMemoryArray acquire(RandomAccessibleInterval<T> rai, boolean isFortranOrder) {
+		SharedMemoryArray shma = acquire(SharedMemoryArray.getArrayByteSize(rai.dimensionsAsLongArray(),
+				rai.getType()));
+		try {
+			SharedMemoryWriter.write(shma.getPointer(), 0, rai, isFortranOrder);
+		} catch (RuntimeException e) {
+			releaseAfterFailure(shma, e);
+			throw e;
+		}
+		return shma;
+	}
+
+	/**
+	 * Lease a shared memory segment and copy the image into it in c order, encoded with a reduced precision
+	 * format and without any header. If the error introduced by the encoding is bigger than the wanted
+	 * bound the segment is given back and null is returned, so the image can be sent in its own data type
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param rai
+	 * 	the image
+	 * @param precision
+	 * 	the reduced precision format
+	 * @param maxError
+	 * 	maximum error allowed, relative to the largest magnitude of the image, see
+	 * 	{@link WirePrecision#write(com.sun.jna.Pointer, long, RandomAccessibleInterval)}
+	 * @return the segment, that has to be given back with {@link #release(SharedMemoryArray)}, or null if
+	 * 	the error is too big. If the image cannot be encoded the segment is given back before the
+	 * 	exception is thrown
+	 * @throws IOException if there is any error giving back the segment
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	SharedMemoryArray acquire(RandomAccessibleInterval<T> rai, WirePrecision precision, double maxError) throws IOException {
+		SharedMemoryArray shma = acquire(Intervals.numElements(rai) * 2);
+		double error;
+		try {
+			error = precision.write(shma.getPointer(), 0, rai);
+		} catch (RuntimeException e) {
+			releaseAfterFailure(shma, e);
+			throw e;
+		}
+		if (error <= maxError)
+			return shma;
+		release(shma);
+		return null;
+	}
+
+	/**
+	 * Give back a segment whose data could not be written, so it is not leaked, keeping the error
+	 * that made the write fail as the main one
+	 */
+	private void releaseAfterFailure(SharedMemoryArray shma, RuntimeException cause) {
+		try {
+			release(shma);
+		} catch (IOException | RuntimeException e) {
+			cause.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Give back a segment leased from the pool. The segment is kept for later use unless the pool
+	 * is over its maximum size. If there are threads waiting for room to create new segments, see
+	 * {@link SharedMemoryRegistry#setMaxBytes(long)}, the segment and every idle segment are destroyed
+	 * instead. Releasing segments once the pool has been closed does nothing
+	 * @param shma
+	 * 	the segment
+	 * @throws IOException if there is any error destroying the segments that do not fit in the pool
+	 */
+	public synchronized void release(SharedMemoryArray shma) throws IOException {
+		// the segments were already destroyed when the pool was closed
+		if (closed)
+			return;
+		if (!leased.remove(shma))
+			throw new IllegalArgumentException("The shared memory segment '" + shma.getName()
+					+ "' was not leased from this pool.");
+		if (pooledBytes > maxPooledBytes || SharedMemoryRegistry.hasWaiters()) {
+			pooledBytes -= shma.getSize();
+			shma.close();
+			if (SharedMemoryRegistry.hasWaiters())
+				evict(pooledBytes - idleBytes());
+			return;
+		}
+		idle.addLast(shma);
+		evict(maxPooledBytes);
+	}
+
+	/**
+	 * Destroy the least recently released idle segments until the pool owns at most the wanted bytes
+	 */
+	private void evict(long maxBytes) {
+		Iterator<SharedMemoryArray> it = idle.iterator();
+		while (pooledBytes > maxBytes && it.hasNext()) {
+			SharedMemoryArray shma = it.next();
+			it.remove();
+			pooledBytes -= shma.getSize();
+			try {
+				shma.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private long idleBytes() {
+		long bytes = 0;
+		for (SharedMemoryArray shma : idle)
+			bytes += shma.getSize();
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @return number of bytes of the segments owned by the pool, leased or idle
+	 */
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/**
+	 *
+	 * @return maximum number of bytes of the segments kept alive by the pool
+	 */
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	@Override
+	/**
+	 * Destroy every segment of the pool, also the ones that are leased
+	 */
+	public synchronized void close() throws IOException {
+		closed = true;
+		List<SharedMemoryArray> all = new ArrayList<SharedMemoryArray>(idle);
+		all.addAll(leased);
+		idle.clear();
+		leased.clear();
+		pooledBytes = 0;
+		for (SharedMemoryArray shma : all)
+			shma.close();
+	}
+}
@@ -0,0 +1,474 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of every shared memory segment created by this JVM that has not been closed yet.
+ *
+ * Every {@link SharedMemoryArray} registers itself when it creates a new segment and unregisters when it
+ * is closed or detached, so the registry knows which segments are alive, who created them, how big they
+ * are and for how long they have existed. Segments that are only opened, for example the ones created by
+ * Python, are not tracked.
+ *
+ * The registry can also limit the total bytes of the live segments. Creating a segment that does not fit
+ * waits until other segments are closed, and fails if there is still no room after the maximum wait.
+ * On demand with {@link #reclaim(long)} the segments that are still alive are closed, and at shutdown
+ * their names are removed from the system, so leaked segments do not stay in the system after the JVM has exited.
+ *
+ * The method that created each segment, see {@link Segment#getCreator()}, is only recorded if the system
+ * property 'jdll.shm.debug=true' is set, because it needs the stack trace of the thread.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public final class SharedMemoryRegistry {
+
+	/**
+	 * Information about a live shared memory segment
+	 */
+	public static final class Segment {
+
+		private final String name;
+
+		private final long size;
+
+		private final String creator;
+
+		private final long creationTime;
+
+		private Segment(String name, long size, String creator) {
+			this.name = name;
+			this.size = size;
+			this.creator = creator;
+			this.creationTime = System.currentTimeMillis();
+		}
+
+		/**
+		 *
+		 * @return name of the segment
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 *
+		 * @return number of bytes of the segment
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 *
+		 * @return the method that created the segment, as 'class.method:line', or 'unknown' if the
+		 * 	system property 'jdll.shm.debug' is not set to true
+		 */
+		public String getCreator() {
+			return creator;
+		}
+
+		/**
+		 *
+		 * @return time when the segment was created, in milliseconds since the epoch
+		 */
+		public long getCreationTime() {
+			return creationTime;
+		}
+
+		/**
+		 *
+		 * @return milliseconds since the segment was created
+		 */
+		public long getAgeMillis() {
+			return System.currentTimeMillis() - creationTime;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + size + " bytes, created by " + creator + " " + getAgeMillis() + " ms ago)";
+		}
+	}
+
+	/**
+	 * Live segments and their information
+	 */
+	private static final Map<SharedMemoryArray, Segment> LIVE = new IdentityHashMap<SharedMemoryArray, Segment>();
+
+	private static final Object LOCK = new Object();
+
+	private static final String PACKAGE = SharedMemoryRegistry.class.getPackage().getName() + ".";
+
+	private static final Logger LOGGER = Logger.getLogger(SharedMemoryRegistry.class.getName());
+
+	/**
+	 * Whether the method that created every segment is recorded
+	 */
+	private static final boolean DEBUG = Boolean.getBoolean("jdll.shm.debug");
+
+	/**
+	 * Bytes of the live segments
+	 */
+	private static long liveBytes = 0;
+	/**
+	 * Bytes of the segments that are being created
+	 */
+	private static long reservedBytes = 0;
+	/**
+	 * Number of threads waiting for room to create a segment
+	 */
+	private static int waiting = 0;
+	/**
+	 * Maximum number of bytes that have been alive at the same time
+	 */
+	private static long highWaterBytes = 0;
+	/**
+	 * Number of segments created since the JVM started
+	 */
+	private static long createdCount = 0;
+	/**
+	 * Bytes of all the segments created since the JVM started
+	 */
+	private static long createdBytes = 0;
+	/**
+	 * Maximum number of bytes of the live segments
+	 */
+	private static long maxBytes = Long.MAX_VALUE;
+	/**
+	 * Maximum time that the creation of a segment waits for other segments to be closed
+	 */
+	private static long maxWaitMillis = 30000;
+	/**
+	 * Whether the names of the live segments are removed when the JVM shuts down
+	 */
+	private static boolean reclaimAtShutdown = true;
+
+	private static boolean hookAdded = false;
+
+	private SharedMemoryRegistry() {
+	}
+
+	/**
+	 * Set the maximum number of bytes of the shared memory segments that can be alive at the same time.
+	 * Creating a segment that does not fit waits for other segments to be closed
+	 * @param max
+	 * 	maximum number of bytes, {@link Long#MAX_VALUE} for no limit, which is the default
+	 */
+	public static void setMaxBytes(long max) {
+		if (max < 0)
+			throw new IllegalArgumentException("The maximum number of bytes of the shared memory segments cannot be negative: " + max);
+		synchronized (LOCK) {
+			maxBytes = max;
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 *
+	 * @return maximum number of bytes of the shared memory segments that can be alive at the same time
+	 */
+	public static long getMaxBytes() {
+		synchronized (LOCK) {
+			return maxBytes;
+		}
+	}
+
+	/**
+	 * Set for how long the creation of a segment waits for other segments to be closed when the maximum
+	 * number of bytes has been reached, before failing
+	 * @param millis
+	 * 	maximum wait in milliseconds, 30 seconds by default
+	 */
+	public static void setMaxWaitMillis(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("The maximum wait cannot be negative: " + millis);
+		synchronized (LOCK) {
+			maxWaitMillis = millis;
+		}
+	}
+
+	/**
+	 *
+	 * @return for how long the creation of a segment waits for other segments to be closed, in milliseconds
+	 */
+	public static long getMaxWaitMillis() {
+		synchronized (LOCK) {
+			return maxWaitMillis;
+		}
+	}
+
+	/**
+	 * Set whether the names of the segments that are still alive are removed from the system when the JVM
+	 * shuts down. They are not unmapped, because other threads might still be using them, the memory is
+	 * freed once every process that maps them has exited
+	 * @param reclaim
+	 * 	whether to remove them, true by default
+	 */
+	public static void setReclaimAtShutdown(boolean reclaim) {
+		synchronized (LOCK) {
+			reclaimAtShutdown = reclaim;
+		}
+	}
+
+	/**
+	 *
+	 * @return number of bytes of the live segments
+	 */
+	public static long getLiveBytes() {
+		synchronized (LOCK) {
+			return liveBytes;
+		}
+	}
+
+	/**
+	 *
+	 * @return number of live segments
+	 */
+	public static int getLiveCount() {
+		synchronized (LOCK) {
+			return LIVE.size();
+		}
+	}
+
+	/**
+	 *
+	 * @return maximum number of bytes of the segments that have been alive at the same time
+	 */
+	public static long getHighWaterBytes() {
+		synchronized (LOCK) {
+			return highWaterBytes;
+		}
+	}
+
+	/**
+	 *
+	 * @return number of segments created since the JVM started
+	 */
+	public static long getCreatedCount() {
+		synchronized (LOCK) {
+			return createdCount;
+		}
+	}
+
+	/**
+	 *
+	 * @return number of bytes of all the segments created since the JVM started
+	 */
+	public static long getCreatedBytes() {
+		synchronized (LOCK) {
+			return createdBytes;
+		}
+	}
+
+	/**
+	 *
+	 * @return the information of the live segments, the oldest first
+	 */
+	public static List<Segment> getLiveSegments() {
+		List<Segment> segments;
+		synchronized (LOCK) {
+			segments = new ArrayList<Segment>(LIVE.values());
+		}
+		segments.sort((s1, s2) -> Long.compare(s1.creationTime, s2.creationTime));
+		return segments;
+	}
+
+	/**
+	 * Close the live segments that were created at least the wanted time ago. The segments are closed
+	 * even if they are still in use, so this is meant for segments that have been leaked. Segments that
+	 * cannot be closed are logged and stop being tracked
+	 * @param minAgeMillis
+	 * 	minimum age of the segments closed, in milliseconds. With 0 every live segment is closed
+	 * @return number of segments closed
+	 */
+	public static int reclaim(long minAgeMillis) {
+		List<SharedMemoryArray> old = new ArrayList<SharedMemoryArray>();
+		synchronized (LOCK) {
+			for (Entry<SharedMemoryArray, Segment> ee : LIVE.entrySet()) {
+				if (ee.getValue().getAgeMillis() >= minAgeMillis)
+					old.add(ee.getKey());
+			}
+		}
+		int closed = 0;
+		for (SharedMemoryArray shma : old) {
+			try {
+				shma.close();
+				closed ++;
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Could not close the shared memory segment '" + shma.getName() + "'.", e);
+			}
+			unregister(shma);
+		}
+		return closed;
+	}
+
+	/**
+	 * Whether a new segment of the wanted size fits right now among the live segments, without waiting
+	 * @param size
+	 * 	bytes of the segment
+	 * @return true if creating the segment would not wait for other segments to be closed
+	 */
+	static boolean fits(long size) {
+		synchronized (LOCK) {
+			return liveBytes + reservedBytes + size <= maxBytes;
+		}
+	}
+
+	/**
+	 *
+	 * @return whether there are threads waiting for other segments to be closed to create a new one
+	 */
+	static boolean hasWaiters() {
+		synchronized (LOCK) {
+			return waiting > 0;
+		}
+	}
+
+	/**
+	 * Wait until there is room for a new segment of the wanted size and reserve it. Has to be followed by
+	 * {@link #register(SharedMemoryArray, long)} once the segment exists, or by {@link #cancel(long)} if
+	 * it could not be created
+	 * @param size
+	 * 	bytes of the segment
+	 */
+	static void reserve(long size) {
+		synchronized (LOCK) {
+			if (size > maxBytes)
+				throw new IllegalStateException("Cannot create a shared memory segment of " + size + " bytes because "
+						+ "the maximum number of bytes of the shared memory segments is " + maxBytes + ".");
+			long deadline = System.currentTimeMillis() + maxWaitMillis;
+			while (liveBytes + reservedBytes + size > maxBytes) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					throw new IllegalStateException("Cannot create a shared memory segment of " + size + " bytes because "
+							+ "the live segments already use " + (liveBytes + reservedBytes) + " of the maximum "
+							+ maxBytes + " bytes and none was closed in " + maxWaitMillis + " ms. Live segments: "
+							+ LIVE.values());
+				waiting ++;
+				try {
+					LOCK.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for room for a shared memory segment.", e);
+				} finally {
+					waiting --;
+				}
+			}
+			reservedBytes += size;
+		}
+	}
+
+	/**
+	 * Give back the room reserved for a segment that could not be created
+	 * @param size
+	 * 	bytes of the segment
+	 */
+	static void cancel(long size) {
+		synchronized (LOCK) {
+			reservedBytes -= size;
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 * Track a new segment, whose room was reserved with {@link #reserve(long)}
+	 * @param shma
+	 * 	the segment
+	 * @param size
+	 * 	bytes reserved for the segment
+	 */
+	static void register(SharedMemoryArray shma, long size) {
+		Segment segment = new Segment(shma.getName(), size, findCreator());
+		synchronized (LOCK) {
+			reservedBytes -= size;
+			LIVE.put(shma, segment);
+			liveBytes += size;
+			highWaterBytes = Math.max(highWaterBytes, liveBytes);
+			createdCount ++;
+			createdBytes += size;
+			if (!hookAdded) {
+				Runtime.getRuntime().addShutdownHook(new Thread(SharedMemoryRegistry::reclaimAtShutdown));
+				hookAdded = true;
+			}
+		}
+	}
+
+	/**
+	 * Stop tracking a segment because it has been closed or detached. Does nothing if it is not tracked
+	 * @param shma
+	 * 	the segment
+	 */
+	static void unregister(SharedMemoryArray shma) {
+		synchronized (LOCK) {
+			Segment segment = LIVE.remove(shma);
+			if (segment == null)
+				return;
+			liveBytes -= segment.size;
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 * Remove the names of the live segments from the system without unmapping them, so the threads that
+	 * are still running while the JVM shuts down do not access unmapped memory
+	 */
+	private static void reclaimAtShutdown() {
+		List<SharedMemoryArray> live;
+		synchronized (LOCK) {
+			if (!reclaimAtShutdown)
+				return;
+			live = new ArrayList<SharedMemoryArray>(LIVE.keySet());
+		}
+		for (SharedMemoryArray shma : live) {
+			try {
+				if (shma instanceof SharedMemoryArrayLinux)
+					((SharedMemoryArrayLinux) shma).unlink();
+				else if (shma instanceof SharedMemoryArrayMacOS)
+					((SharedMemoryArrayMacOS) shma).unlink();
+				else if (shma instanceof SharedMemoryArrayFile)
+					((SharedMemoryArrayFile) shma).unlink();
+				// NB: in Windows the segments are destroyed by the system once the process exits
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Could not remove the shared memory segment '" + shma.getName() + "'.", e);
+			}
+		}
+	}
+
+	/**
+	 * The first method of the stack that is not part of the shared memory package
+	 */
+	private static String findCreator() {
+		if (!DEBUG)
+			return "unknown";
+		for (StackTraceElement ee : new Throwable().getStackTrace()) {
+			if (!ee.getClassName().startsWith(PACKAGE))
+				return ee.getClassName() + "." + ee.getMethodName() + ":" + ee.getLineNumber();
+		}
+		return "unknown";
+	}
+}
@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.stream.LongStream;
+
+import com.sun.jna.Pointer;
+
+import io.bioimage.modelrunner.tensor.StridedView;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.GenericByteType;
+import net.imglib2.type.numeric.integer.GenericIntType;
+import net.imglib2.type.numeric.integer.GenericShortType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Copies ImgLib2 images into shared memory segments in bulk.
+ *
+ * Images backed by primitive arrays ({@link ArrayImg} and {@link PlanarImg}) whose memory layout coincides with
+ * the wanted order are copied with a single native memory copy per array. Images backed by a single array that
+ * need to be transposed, or views that permute or crop them, are copied in blocks with {@link StridedView}.
+ * Any other image is divided in chunks that are contiguous in the shared memory and filled in parallel, each
+ * of them through a {@link ByteBuffer} that maps directly the shared memory, so there is no native call per pixel.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+final class SharedMemoryWriter {
+
+	/**
+	 * Approximate number of bytes written by each of the parallel tasks
+	 */
+	private static final long CHUNK_BYTES = 16 * 1024 * 1024;
+
+	private SharedMemoryWriter() {
+	}
+
+	/**
+	 * Write the pixels of an image into the shared memory, in little endian byte order
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes where the first pixel is written, for example after the npy header
+	 * @param rai
+	 * 	the image
+	 * @param isFortranOrder
+	 * 	whether the array is flattened in fortran order (first axis changes fastest) or in c order
+	 */
+	static <T extends RealType<T> & NativeType<T>>
+	void write(Pointer pointer, long offset, RandomAccessibleInterval<T> rai, boolean isFortranOrder) {
+		if (Intervals.numElements(rai) == 0)
+			return;
+		boolean sameOrder = isFortranOrder || countNonSingletonDims(rai) <= 1;
+		if (sameOrder && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN && writeArrays(pointer, offset, rai))
+			return;
+		if (writeStrided(pointer, offset, rai, isFortranOrder))
+			return;
+		writeParallel(pointer, offset, rai, isFortranOrder);
+	}
+
+	private static int countNonSingletonDims(RandomAccessibleInterval<?> rai) {
+		int count = 0;
+		for (long dim : rai.dimensionsAsLongArray())
+			count += dim > 1 ? 1 : 0;
+		return count;
+	}
+
+	/**
+	 * Copy the backing arrays of the image directly, if there are any
+	 * @return true if the image was copied, false if it is not backed by primitive arrays
+	 */
+	private static <T extends RealType<T> & NativeType<T>>
+	boolean writeArrays(Pointer pointer, long offset, RandomAccessibleInterval<T> rai) {
+		if (rai.getType().getEntitiesPerPixel().getRatio() != 1)
+			return false;
+		if (rai instanceof ArrayImg) {
+			Object data = ((ArrayImg<?, ?>) rai).update(null);
+			if (!(data instanceof ArrayDataAccess))
+				return false;
+			return writeArray(pointer, offset, ((ArrayDataAccess<?>) data).getCurrentStorageArray(),
+					Intervals.numElements(rai));
+		} else if (rai instanceof PlanarImg) {
+			PlanarImg<?, ?> planar = (PlanarImg<?, ?>) rai;
+			long planeSize = planar.dimension(0) * (planar.numDimensions() > 1 ? planar.dimension(1) : 1);
+			long bytes = rai.getType().getBitsPerPixel() / 8;
+			for (int i = 0; i < planar.numSlices(); i ++) {
+				Object plane = planar.getPlane(i);
+				if (!(plane instanceof ArrayDataAccess)
+						|| !writeArray(pointer, offset + i * planeSize * bytes,
+								((ArrayDataAccess<?>) plane).getCurrentStorageArray(), planeSize))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy images backed by a single array, or permuted or cropped views of them, with a blocked copy that
+	 * follows both the layout of the array and the wanted layout in the shared memory
+	 * @return true if the image was copied, false if it is not backed by a single array
+	 */
+	private static <T extends RealType<T> & NativeType<T>>
+	boolean writeStrided(Pointer pointer, long offset, RandomAccessibleInterval<T> rai, boolean isFortranOrder) {
+		T type = rai.getType();
+		long bytes = Intervals.numElements(rai) * (type.getBitsPerPixel() / 8);
+		if (bytes > SharedMemoryCells.MAX_BUFFER_BYTES)
+			return false;
+		StridedView view = StridedView.wrap(rai);
+		if (view == null)
+			return false;
+		ByteBuffer buffer = pointer.getByteBuffer(offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+		Buffer typed;
+		if (type instanceof GenericByteType)
+			typed = buffer;
+		else if (type instanceof GenericShortType)
+			typed = buffer.asShortBuffer();
+		else if (type instanceof GenericIntType)
+			typed = buffer.asIntBuffer();
+		else if (type instanceof LongType)
+			typed = buffer.asLongBuffer();
+		else if (type instanceof FloatType)
+			typed = buffer.asFloatBuffer();
+		else if (type instanceof DoubleType)
+			typed = buffer.asDoubleBuffer();
+		else
+			return false;
+		view.copyTo(StridedView.of(typed, rai.dimensionsAsLongArray(), isFortranOrder));
+		return true;
+	}
+
+	private static boolean writeArray(Pointer pointer, long offset, Object array, long n) {
+		return SharedMemoryAccess.write(pointer, offset, array, (int) n);
+	}
+
+	/**
+	 * Divide the image in chunks that are contiguous in the shared memory and fill every chunk in parallel.
+	 * The chunks are slabs along the slowest axis, in the wanted order, whose slices are not bigger than
+	 * {@link #CHUNK_BYTES}, with every slower axis fixed, so each chunk fits in a {@link ByteBuffer} even
+	 * for images of more than 2GB.
+	 * Each chunk is read in the natural order of the image, which is the fastest for ImgLib2 images,
+	 * and every pixel is written at its position in the wanted order
+	 */
+	private static <T extends RealType<T> & NativeType<T>>
+	void writeParallel(Pointer pointer, long offset, RandomAccessibleInterval<T> rai, boolean isFortranOrder) {
+		T type = rai.getType();
+		int bytes = type.getBitsPerPixel() / 8;
+		PixelPutter<T> putter = getPutter(type);
+		long[] dims = rai.dimensionsAsLongArray();
+		int n = dims.length;
+		// axes sorted from the one that changes fastest in memory to the slowest
+		int[] memAxes = new int[n];
+		long[] strides = new long[n];
+		long stride = 1;
+		for (int i = 0; i < n; i ++) {
+			memAxes[i] = isFortranOrder ? i : n - 1 - i;
+			strides[memAxes[i]] = stride;
+			stride *= dims[memAxes[i]];
+		}
+		int chunkPos = n - 1;
+		while (chunkPos > 0 && (dims[memAxes[chunkPos]] == 1 || strides[memAxes[chunkPos]] * bytes > CHUNK_BYTES))
+			chunkPos --;
+		final int chunkAxis = memAxes[chunkPos];
+		long sliceBytes = strides[chunkAxis] * bytes;
+		long slicesPerChunk = Math.max(1, CHUNK_BYTES / sliceBytes);
+		long chunksPerSlab = (dims[chunkAxis] + slicesPerChunk - 1) / slicesPerChunk;
+		long nSlabs = 1;
+		for (int i = chunkPos + 1; i < n; i ++)
+			nSlabs *= dims[memAxes[i]];
+		final int firstSlowPos = chunkPos + 1;
+		LongStream.range(0, nSlabs * chunksPerSlab).parallel().forEach(c -> {
+			long[] min = rai.minAsLongArray();
+			long[] max = rai.maxAsLongArray();
+			long slab = c / chunksPerSlab;
+			for (int i = firstSlowPos; i < n; i ++) {
+				int d = memAxes[i];
+				min[d] += slab % dims[d];
+				max[d] = min[d];
+				slab /= dims[d];
+			}
+			min[chunkAxis] += (c % chunksPerSlab) * slicesPerChunk;
+			max[chunkAxis] = Math.min(max[chunkAxis], min[chunkAxis] + slicesPerChunk - 1);
+			long start = 0;
+			for (int d = 0; d < n; d ++)
+				start += (min[d] - rai.min(d)) * strides[d];
+			long nSlices = max[chunkAxis] - min[chunkAxis] + 1;
+			ByteBuffer buffer = pointer.getByteBuffer(offset + start * bytes, nSlices * sliceBytes)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (isFortranOrder) {
+				// the natural order of the image is the order in memory
+				int position = 0;
+				for (T px : Views.flatIterable(Views.interval(rai, min, max))) {
+					putter.put(buffer, position, px);
+					position += bytes;
+				}
+				return;
+			}
+			Cursor<T> cursor = Views.flatIterable(Views.interval(rai, min, max)).localizingCursor();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				long index = 0;
+				for (int d = 0; d < n; d ++)
+					index += (cursor.getLongPosition(d) - min[d]) * strides[d];
+				putter.put(buffer, (int) (index * bytes), cursor.get());
+			}
+		});
+	}
+
+	/**
+	 * Writes a pixel at an absolute position of a {@link ByteBuffer}
+	 */
+	private interface PixelPutter<T> {
+		void put(ByteBuffer buffer, int position, T pixel);
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> PixelPutter<T> getPutter(T type) {
+		if (type instanceof GenericByteType)
+			return (bb, pos, px) -> bb.put(pos, ((GenericByteType<?>) px).getByte());
+		else if (type instanceof GenericShortType)
+			return (bb, pos, px) -> bb.putShort(pos, ((GenericShortType<?>) px).getShort());
+		else if (type instanceof GenericIntType)
+			return (bb, pos, px) -> bb.putInt(pos, ((GenericIntType<?>) px).getInt());
+		else if (type instanceof LongType)
+			return (bb, pos, px) -> bb.putLong(pos, ((LongType) px).get());
+		else if (type instanceof FloatType)
+			return (bb, pos, px) -> bb.putFloat(pos, ((FloatType) px).get());
+		else if (type instanceof DoubleType)
+			return (bb, pos, px) -> bb.putDouble(pos, ((DoubleType) px).get());
+		throw new IllegalArgumentException("The image has an unsupported type: " + type.getClass().toString());
+	}
+}
@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import com.sun.jna.Pointer;
+
+import io.bioimage.modelrunner.tensor.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Reduced precision formats used to send floating point tensors through the shared memory with 2 bytes
+ * per value instead of 4, halving the memory that has to be written, mapped and read by each process.
+ *
+ * The values are rounded to the nearest representable value, ties to even, as numpy does. Integer tensors
+ * are never encoded, they are sent in their own data type.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public enum WirePrecision {
+
+	/**
+	 * IEEE 754 half precision: 11 significant bits and values up to 65504. Numpy name 'float16'
+	 */
+	FLOAT16("float16", "float16", Math.scalb(1d, -11)) {
+		@Override
+		public short encode(float value) {
+			int bits = Float.floatToRawIntBits(value);
+			int sign = (bits >>> 16) & 0x8000;
+			int abs = bits & 0x7fffffff;
+			// infinity and NaN
+			if (abs >= 0x7f800000)
+				return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 | ((abs >>> 13) & 0x3ff) : 0));
+			// 65520 and above round to infinity
+			if (abs >= 0x477ff000)
+				return (short) (sign | 0x7c00);
+			// below 2^-14 the result is subnormal
+			if (abs < 0x38800000) {
+				if (abs < 0x33000000)
+					return (short) sign;
+				int shift = 126 - (abs >>> 23);
+				int mant = (abs & 0x7fffff) | 0x800000;
+				int q = mant >>> shift;
+				int rem = mant & ((1 << shift) - 1);
+				int half = 1 << (shift - 1);
+				if (rem > half || (rem == half && (q & 1) != 0))
+					q ++;
+				return (short) (sign | q);
+			}
+			int q = (((abs >>> 23) - 112) << 10) | ((abs & 0x7fffff) >>> 13);
+			int rem = abs & 0x1fff;
+			// a carry out of the mantissa correctly increments the exponent
+			if (rem > 0x1000 || (rem == 0x1000 && (q & 1) != 0))
+				q ++;
+			return (short) (sign | q);
+		}
+
+		@Override
+		public float decode(short value) {
+			int h = value & 0xffff;
+			int sign = (h & 0x8000) << 16;
+			int exp = (h >>> 10) & 0x1f;
+			int mant = h & 0x3ff;
+			if (exp == 0x1f)
+				return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+			if (exp == 0) {
+				float v = mant * 0x1p-24f;
+				return sign == 0 ? v : -v;
+			}
+			return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+		}
+	},
+	/**
+	 * Brain floating point: the 16 most significant bits of a float32, so 8 significant bits and the same
+	 * range as float32. Numpy does not support it, so it is stored as 'uint16' and decoded in Python
+	 */
+	BFLOAT16("bfloat16", "uint16", Math.scalb(1d, -8)) {
+		@Override
+		public short encode(float value) {
+			int bits = Float.floatToRawIntBits(value);
+			if (Float.isNaN(value))
+				return (short) ((bits >>> 16) | 0x40);
+			return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+		}
+
+		@Override
+		public float decode(short value) {
+			return Float.intBitsToFloat((value & 0xffff) << 16);
+		}
+	};
+
+	private final String dataType;
+
+	private final String storageType;
+
+	private final double unitRoundoff;
+
+	private WirePrecision(String dataType, String storageType, double unitRoundoff) {
+		this.dataType = dataType;
+		this.storageType = storageType;
+		this.unitRoundoff = unitRoundoff;
+	}
+
+	/**
+	 * Round a float to the nearest value of the format
+	 * @param value
+	 * 	the float
+	 * @return the bits of the encoded value
+	 */
+	public abstract short encode(float value);
+
+	/**
+	 * Convert a value of the format back to float, which is exact
+	 * @param value
+	 * 	the bits of the encoded value
+	 * @return the float
+	 */
+	public abstract float decode(short value);
+
+	/**
+	 *
+	 * @return the name of the format, as reported by Python for the outputs
+	 */
+	public String getDataType() {
+		return dataType;
+	}
+
+	/**
+	 *
+	 * @return the numpy data type used to wrap the bytes of the format
+	 */
+	public String getStorageType() {
+		return storageType;
+	}
+
+	/**
+	 *
+	 * @return maximum relative rounding error of the format for values in its range, which is the smallest
+	 * 	useful error bound
+	 */
+	public double getUnitRoundoff() {
+		return unitRoundoff;
+	}
+
+	/**
+	 * Find the format that corresponds to a data type name
+	 * @param dataType
+	 * 	the name of the data type
+	 * @return the format or null if the data type is not a reduced precision format
+	 */
+	public static WirePrecision fromDataType(String dataType) {
+		for (WirePrecision wp : values()) {
+			if (wp.dataType.equals(dataType))
+				return wp;
+		}
+		return null;
+	}
+
+	/**
+	 * Encode an image into the shared memory, flattened in c order, and measure the error introduced.
+	 * The error is the largest difference between an original value, in double precision, and its encoded
+	 * value divided by the largest magnitude of the image, so it does not grow for values that are small
+	 * compared with the rest of the image. It is infinite or NaN if any value overflows the format or is NaN.
+	 * Images of more than 2GB once encoded are written through consecutive windows of the shared memory
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes where the first value is written
+	 * @param rai
+	 * 	the image
+	 * @return the relative error of the encoded image
+	 */
+	public <T extends RealType<T>> double write(Pointer pointer, long offset, RandomAccessibleInterval<T> rai) {
+		long n = Intervals.numElements(rai);
+		WindowWriter dst = new WindowWriter(pointer, offset, n);
+		short[] chunk = new short[(int) Math.min(n, 8192)];
+		int c = 0;
+		double maxAbs = 0;
+		double maxErr = 0;
+		// the transposed image iterated with its first axis fastest gives the c order of the original
+		Cursor<T> cursor = Views.flatIterable(Utils.transpose(rai)).cursor();
+		while (cursor.hasNext()) {
+			double v = cursor.next().getRealDouble();
+			short h = encode((float) v);
+			double err = Math.abs(decode(h) - v);
+			if (!(err <= maxErr))
+				maxErr = Double.isNaN(err) ? Double.NaN : Math.max(maxErr, err);
+			maxAbs = Math.max(maxAbs, Math.abs(v));
+			chunk[c ++] = h;
+			if (c == chunk.length) {
+				dst.put(chunk, c);
+				c = 0;
+			}
+		}
+		dst.put(chunk, c);
+		if (Double.isNaN(maxErr) || maxErr == 0)
+			return maxErr;
+		return maxErr / maxAbs;
+	}
+
+	/**
+	 * Decode an nd array stored in the shared memory in c order into a new float image
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first value
+	 * @param shape
+	 * 	shape of the array
+	 * @return a float image with the decoded values, that does not reference the shared memory
+	 */
+	public RandomAccessibleInterval<FloatType> read(Pointer pointer, long offset, long[] shape) {
+		long n = 1;
+		for (long l : shape)
+			n *= l;
+		if (n > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Reduced precision arrays of more than " + (Integer.MAX_VALUE - 8)
+					+ " values are not supported.");
+		ShortBuffer src = SharedMemoryCells.getByteBuffer(pointer, offset, n * 2).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		float[] data = new float[(int) n];
+		short[] chunk = new short[(int) Math.min(n, 8192)];
+		for (int i = 0; i < data.length; i += chunk.length) {
+			int len = Math.min(chunk.length, data.length - i);
+			src.get(chunk, 0, len);
+			for (int j = 0; j < len; j ++)
+				data[i + j] = decode(chunk[j]);
+		}
+		long[] transposed = new long[shape.length];
+		for (int i = 0; i < shape.length; i ++)
+			transposed[i] = shape[shape.length - 1 - i];
+		return Utils.transpose(ArrayImgs.floats(data, transposed));
+	}
+
+	/**
+	 * Writes the encoded values, in little endian, through consecutive {@link java.nio.ByteBuffer} windows
+	 * of the shared memory, because a ByteBuffer cannot hold more than 2GB
+	 */
+	private static final class WindowWriter {
+
+		/**
+		 * Maximum number of values of each window, 1GB
+		 */
+		private static final long WINDOW_VALUES = 1L << 29;
+
+		private final Pointer pointer;
+
+		private final long offset;
+
+		private final long total;
+
+		/**
+		 * Number of values of the windows mapped so far
+		 */
+		private long mapped = 0;
+
+		private ShortBuffer window;
+
+		private WindowWriter(Pointer pointer, long offset, long total) {
+			this.pointer = pointer;
+			this.offset = offset;
+			this.total = total;
+		}
+
+		private void put(short[] values, int length) {
+			int done = 0;
+			while (done < length) {
+				if (window == null || !window.hasRemaining()) {
+					long len = Math.min(WINDOW_VALUES, total - mapped);
+					window = SharedMemoryCells.getByteBuffer(pointer, offset + mapped * 2, len * 2)
+							.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+					mapped += len;
+				}
+				int len = Math.min(length - done, window.remaining());
+				window.put(values, done, len);
+				done += len;
+			}
+		}
+	}
+}
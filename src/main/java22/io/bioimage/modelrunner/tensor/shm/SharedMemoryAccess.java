@@ -0,0 +1,396 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Pointer;
+
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.GenericByteType;
+import net.imglib2.type.numeric.integer.GenericIntType;
+import net.imglib2.type.numeric.integer.GenericShortType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Bulk copies and ImgLib2 accesses over the memory of the shared memory segments.
+ *
+ * This is the implementation used by Java 22 and newer, packaged in META-INF/versions/22 of the
+ * multi-release jar. The memory mapped by JNA is wrapped by a {@link MemorySegment}, so every element
+ * access is a plain memory access that the JIT can inline, instead of going through a {@link java.nio.ByteBuffer}
+ * view, and the bulk copies are not limited to 2GB. The segments are still created and mapped with JNA.
+ *
+ * Wrapping native addresses is a restricted operation: the JVM prints a warning, and newer JVMs refuse
+ * it, unless native access is enabled for JDLL, starting the JVM with '--enable-native-access=ALL-UNNAMED'
+ * (or with the name of the module of JDLL), or with the 'Enable-Native-Access: ALL-UNNAMED' entry of the
+ * manifest of the executable jar that is run with 'java -jar'. Thus the Foreign Function and Memory API
+ * is only used by default when native access is enabled, and JNA is used otherwise. The default can be
+ * changed with {@link #setForeignMemory(boolean)} or the system property 'jdll.shm.foreign=true|false'.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public final class SharedMemoryAccess {
+
+	/**
+	 * Whether the restricted methods, such as {@link MemorySegment#reinterpret(long)}, can be called
+	 * without warnings, see the documentation of the class
+	 */
+	private static final boolean NATIVE_ACCESS = SharedMemoryAccess.class.getModule().isNativeAccessEnabled();
+
+	private static volatile boolean foreign = NATIVE_ACCESS ? !"false".equalsIgnoreCase(System.getProperty("jdll.shm.foreign"))
+			: "true".equalsIgnoreCase(System.getProperty("jdll.shm.foreign"));
+
+	private SharedMemoryAccess() {
+	}
+
+	/**
+	 *
+	 * @return whether the memory of the segments is accessed with the Foreign Function and Memory API
+	 */
+	public static boolean isForeignMemory() {
+		return foreign;
+	}
+
+	/**
+	 *
+	 * @return whether the Foreign Function and Memory API can be used in this JVM
+	 */
+	public static boolean isForeignMemoryAvailable() {
+		return true;
+	}
+
+	/**
+	 * Set whether the memory of the segments is accessed with the Foreign Function and Memory API or with
+	 * JNA. The Foreign Function and Memory API is used by default when native access is enabled, see the
+	 * documentation of the class. It can also be set with the system property 'jdll.shm.foreign=true|false'.
+	 * Only the images created after the call are affected
+	 * @param foreign
+	 * 	whether to use the Foreign Function and Memory API
+	 * @return whether the Foreign Function and Memory API is used after the call
+	 */
+	public static boolean setForeignMemory(boolean foreign) {
+		SharedMemoryAccess.foreign = foreign;
+		return foreign;
+	}
+
+	/**
+	 * Copy bytes between two regions of the shared memory, or of any native memory
+	 * @param src
+	 * 	pointer to the start of the source memory
+	 * @param srcOffset
+	 * 	position in bytes of the first byte copied
+	 * @param dst
+	 * 	pointer to the start of the destination memory
+	 * @param dstOffset
+	 * 	position in bytes where the first byte is written
+	 * @param bytes
+	 * 	number of bytes copied
+	 */
+	public static void copy(Pointer src, long srcOffset, Pointer dst, long dstOffset, long bytes) {
+		if (!foreign) {
+			for (long done = 0; done < bytes; done += SharedMemoryCells.MAX_BUFFER_BYTES) {
+				long len = Math.min(SharedMemoryCells.MAX_BUFFER_BYTES, bytes - done);
+				dst.getByteBuffer(dstOffset + done, len).put(src.getByteBuffer(srcOffset + done, len));
+			}
+			return;
+		}
+		MemorySegment.copy(segment(src, srcOffset, bytes), 0, segment(dst, dstOffset, bytes), 0, bytes);
+	}
+
+	/**
+	 * Copy the first elements of a primitive array into the shared memory, in the native byte order
+	 * @param dst
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes where the first element is written
+	 * @param array
+	 * 	byte[], short[], int[], long[], float[] or double[]
+	 * @param length
+	 * 	number of elements copied
+	 * @return false if the array is not of any of the supported types
+	 */
+	public static boolean write(Pointer dst, long offset, Object array, int length) {
+		ValueLayout layout = layout(array);
+		if (layout == null)
+			return false;
+		if (!foreign)
+			return writeJna(dst, offset, array, length);
+		MemorySegment.copy(array, 0, segment(dst, offset, length * layout.byteSize()), layout, 0, length);
+		return true;
+	}
+
+	/**
+	 * Copy elements of the shared memory into the first positions of a primitive array, in the native byte order
+	 * @param src
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first element copied
+	 * @param array
+	 * 	byte[], short[], int[], long[], float[] or double[]
+	 * @param length
+	 * 	number of elements copied
+	 * @return false if the array is not of any of the supported types
+	 */
+	public static boolean read(Pointer src, long offset, Object array, int length) {
+		ValueLayout layout = layout(array);
+		if (layout == null)
+			return false;
+		if (!foreign)
+			return readJna(src, offset, array, length);
+		MemorySegment.copy(segment(src, offset, length * layout.byteSize()), layout, 0, array, 0, length);
+		return true;
+	}
+
+	/**
+	 * Create the ImgLib2 access of the wanted data type that reads and writes a region of the shared memory
+	 * @param <T>
+	 * 	ImgLib2 data type of the access
+	 * @param pointer
+	 * 	pointer to the start of the shared memory segment
+	 * @param offset
+	 * 	position in bytes of the first element of the region
+	 * @param bytes
+	 * 	number of bytes of the region
+	 * @param type
+	 * 	data type of the access
+	 * @param order
+	 * 	byte order of the elements
+	 * @return the access that references the shared memory
+	 */
+	static <T extends RealType<T> & NativeType<T>>
+	DataAccess createAccess(Pointer pointer, long offset, long bytes, T type, ByteOrder order) {
+		if (!foreign)
+			return SharedMemoryCells.createAccess(SharedMemoryCells.getByteBuffer(pointer, offset, bytes).order(order), type);
+		MemorySegment segment = segment(pointer, offset, bytes);
+		if (type instanceof GenericByteType)
+			return new SegmentByteAccess(segment);
+		else if (type instanceof GenericShortType)
+			return new SegmentShortAccess(segment, ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(order));
+		else if (type instanceof GenericIntType)
+			return new SegmentIntAccess(segment, ValueLayout.JAVA_INT_UNALIGNED.withOrder(order));
+		else if (type instanceof LongType)
+			return new SegmentLongAccess(segment, ValueLayout.JAVA_LONG_UNALIGNED.withOrder(order));
+		else if (type instanceof FloatType)
+			return new SegmentFloatAccess(segment, ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(order));
+		else if (type instanceof DoubleType)
+			return new SegmentDoubleAccess(segment, ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(order));
+		throw new IllegalArgumentException("Type not supported: " + type.getClass().toString());
+	}
+
+	/**
+	 * Wrap a region of native memory referenced by a JNA pointer
+	 */
+	private static MemorySegment segment(Pointer pointer, long offset, long bytes) {
+		return MemorySegment.ofAddress(Pointer.nativeValue(pointer) + offset).reinterpret(bytes);
+	}
+
+	private static ValueLayout layout(Object array) {
+		if (array instanceof byte[])
+			return ValueLayout.JAVA_BYTE;
+		else if (array instanceof short[])
+			return ValueLayout.JAVA_SHORT_UNALIGNED;
+		else if (array instanceof int[])
+			return ValueLayout.JAVA_INT_UNALIGNED;
+		else if (array instanceof long[])
+			return ValueLayout.JAVA_LONG_UNALIGNED;
+		else if (array instanceof float[])
+			return ValueLayout.JAVA_FLOAT_UNALIGNED;
+		else if (array instanceof double[])
+			return ValueLayout.JAVA_DOUBLE_UNALIGNED;
+		return null;
+	}
+
+	private static boolean writeJna(Pointer dst, long offset, Object array, int length) {
+		if (array instanceof byte[])
+			dst.write(offset, (byte[]) array, 0, length);
+		else if (array instanceof short[])
+			dst.write(offset, (short[]) array, 0, length);
+		else if (array instanceof int[])
+			dst.write(offset, (int[]) array, 0, length);
+		else if (array instanceof long[])
+			dst.write(offset, (long[]) array, 0, length);
+		else if (array instanceof float[])
+			dst.write(offset, (float[]) array, 0, length);
+		else if (array instanceof double[])
+			dst.write(offset, (double[]) array, 0, length);
+		else
+			return false;
+		return true;
+	}
+
+	private static boolean readJna(Pointer src, long offset, Object array, int length) {
+		if (array instanceof byte[])
+			src.read(offset, (byte[]) array, 0, length);
+		else if (array instanceof short[])
+			src.read(offset, (short[]) array, 0, length);
+		else if (array instanceof int[])
+			src.read(offset, (int[]) array, 0, length);
+		else if (array instanceof long[])
+			src.read(offset, (long[]) array, 0, length);
+		else if (array instanceof float[])
+			src.read(offset, (float[]) array, 0, length);
+		else if (array instanceof double[])
+			src.read(offset, (double[]) array, 0, length);
+		else
+			return false;
+		return true;
+	}
+
+	private static final class SegmentByteAccess implements ByteAccess {
+
+		private final MemorySegment segment;
+
+		private SegmentByteAccess(MemorySegment segment) {
+			this.segment = segment;
+		}
+
+		@Override
+		public byte getValue(int index) {
+			return segment.get(ValueLayout.JAVA_BYTE, index);
+		}
+
+		@Override
+		public void setValue(int index, byte value) {
+			segment.set(ValueLayout.JAVA_BYTE, index, value);
+		}
+	}
+
+	private static final class SegmentShortAccess implements ShortAccess {
+
+		private final MemorySegment segment;
+
+		private final ValueLayout.OfShort layout;
+
+		private SegmentShortAccess(MemorySegment segment, ValueLayout.OfShort layout) {
+			this.segment = segment;
+			this.layout = layout;
+		}
+
+		@Override
+		public short getValue(int index) {
+			return segment.getAtIndex(layout, index);
+		}
+
+		@Override
+		public void setValue(int index, short value) {
+			segment.setAtIndex(layout, index, value);
+		}
+	}
+
+	private static final class SegmentIntAccess implements IntAccess {
+
+		private final MemorySegment segment;
+
+		private final ValueLayout.OfInt layout;
+
+		private SegmentIntAccess(MemorySegment segment, ValueLayout.OfInt layout) {
+			this.segment = segment;
+			this.layout = layout;
+		}
+
+		@Override
+		public int getValue(int index) {
+			return segment.getAtIndex(layout, index);
+		}
+
+		@Override
+		public void setValue(int index, int value) {
+			segment.setAtIndex(layout, index, value);
+		}
+	}
+
+	private static final class SegmentLongAccess implements LongAccess {
+
+		private final MemorySegment segment;
+
+		private final ValueLayout.OfLong layout;
+
+		private SegmentLongAccess(MemorySegment segment, ValueLayout.OfLong layout) {
+			this.segment = segment;
+			this.layout = layout;
+		}
+
+		@Override
+		public long getValue(int index) {
+			return segment.getAtIndex(layout, index);
+		}
+
+		@Override
+		public void setValue(int index, long value) {
+			segment.setAtIndex(layout, index, value);
+		}
+	}
+
+	private static final class SegmentFloatAccess implements FloatAccess {
+
+		private final MemorySegment segment;
+
+		private final ValueLayout.OfFloat layout;
+
+		private SegmentFloatAccess(MemorySegment segment, ValueLayout.OfFloat layout) {
+			this.segment = segment;
+			this.layout = layout;
+		}
+
+		@Override
+		public float getValue(int index) {
+			return segment.getAtIndex(layout, index);
+		}
+
+		@Override
+		public void setValue(int index, float value) {
+			segment.setAtIndex(layout, index, value);
+		}
+	}
+
+	private static final class SegmentDoubleAccess implements DoubleAccess {
+
+		private final MemorySegment segment;
+
+		private final ValueLayout.OfDouble layout;
+
+		private SegmentDoubleAccess(MemorySegment segment, ValueLayout.OfDouble layout) {
+			this.segment = segment;
+			this.layout = layout;
+		}
+
+		@Override
+		public double getValue(int index) {
+			return segment.getAtIndex(layout, index);
+		}
+
+		@Override
+		public void setValue(int index, double value) {
+			segment.setAtIndex(layout, index, value);
+		}
+	}
+}
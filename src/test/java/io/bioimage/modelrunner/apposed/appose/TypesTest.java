@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.apposed.appose;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the MessagePack messages of {@link Types#encodeBinary(Map)} and {@link Types#decodeBinary(byte[], int, int)}
+ * carry the same information, with the same Java types, as the JSON messages of {@link Types#encode(Map)}
+ * and {@link Types#decode(String)}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class TypesTest {
+
+	private static Map<String, Object> message() {
+		Map<String, Object> inputs = new LinkedHashMap<String, Object>();
+		inputs.put("name", "input0");
+		inputs.put("shape", Arrays.asList(1, 3, 512, 512));
+		inputs.put("size", 3L * 512 * 512 * 4);
+		inputs.put("fortran", false);
+		inputs.put("scale", 0.5f);
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("task", "2f6b1c62-7d3e-4b0e-a3c4-2c0b2e0f3a11");
+		data.put("requestType", "EXECUTE");
+		data.put("script", "import numpy as np\ntask.outputs['out'] = np.zeros((2, 2)) # ünïcode");
+		data.put("inputs", inputs);
+		data.put("tiles", Arrays.asList(Arrays.asList(0, 0), Arrays.asList(-16, 496)));
+		data.put("progress", 0.25);
+		data.put("big", 1L << 52);
+		data.put("negative", -7);
+		data.put("empty", Arrays.asList());
+		data.put("missing", null);
+		return data;
+	}
+
+	@Test
+	public void testRoundTripMatchesJson() {
+		Map<String, Object> data = message();
+		byte[] bytes = Types.encodeBinary(data);
+		Map<String, Object> binary = Types.decodeBinary(bytes, 0, bytes.length);
+		Map<String, Object> json = Types.decode(Types.encode(data));
+		// gson drops the null values
+		binary.remove("missing");
+		assertEquals(json, binary);
+	}
+
+	@Test
+	public void testNumbersAreDoubles() {
+		byte[] bytes = Types.encodeBinary(message());
+		Map<String, Object> map = Types.decodeBinary(bytes, 0, bytes.length);
+		assertEquals(-7d, map.get("negative"));
+		assertEquals(0.25, map.get("progress"));
+		assertEquals((double) (1L << 52), map.get("big"));
+		assertEquals(Arrays.asList(-16d, 496d), ((List<?>) map.get("tiles")).get(1));
+		Map<?, ?> inputs = (Map<?, ?>) map.get("inputs");
+		assertEquals(Arrays.asList(1d, 3d, 512d, 512d), inputs.get("shape"));
+		assertEquals(0.5, inputs.get("scale"));
+		assertEquals(Boolean.FALSE, inputs.get("fortran"));
+		assertTrue(map.containsKey("missing"));
+		assertEquals(null, map.get("missing"));
+	}
+
+	@Test
+	public void testDecodeFromOffset() {
+		byte[] bytes = Types.encodeBinary(message());
+		byte[] framed = new byte[bytes.length + 11];
+		Arrays.fill(framed, (byte) 0xc1);
+		System.arraycopy(bytes, 0, framed, 7, bytes.length);
+		assertEquals(Types.decodeBinary(bytes, 0, bytes.length), Types.decodeBinary(framed, 7, bytes.length));
+	}
+
+	@Test
+	public void testInvalidMessage() {
+		byte[] bytes = Types.encodeBinary(message());
+		assertThrows(IllegalArgumentException.class, () -> Types.decodeBinary(bytes, 0, bytes.length / 2));
+		assertThrows(IllegalArgumentException.class, () -> Types.decodeBinary(new byte[] {(byte) 0xc1}, 0, 1));
+	}
+}
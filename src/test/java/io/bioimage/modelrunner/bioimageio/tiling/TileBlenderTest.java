@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.bioimageio.tiling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import io.bioimage.modelrunner.bioimageio.tiling.TileBlender.Window;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests of {@link TileBlender}. The normalized weights of the tiles that cover a pixel must sum to 1,
+ * so blending tiles cut from the same image gives back that image, whatever the overlap.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class TileBlenderTest {
+
+	private static final long[] IMAGE = new long[] {50, 37};
+
+	private static final long[] TILE = new long[] {16, 12};
+
+	private static final long[] STEP = new long[] {11, 7};
+
+	@Test
+	public void testConstantTilesGiveTheConstant() {
+		for (Window window : Window.values()) {
+			TileBlender blender = TileBlender.create("out", "xy", IMAGE, TILE, window);
+			for (long[] pos : positions(new long[] {-3, -2})) {
+				Img<FloatType> tile = ArrayImgs.floats(TILE);
+				for (FloatType px : tile)
+					px.set(5);
+				blender.accumulate(tile, pos);
+			}
+			Img<FloatType> out = ArrayImgs.floats(IMAGE);
+			blender.finish(out);
+			for (FloatType px : out)
+				assertEquals(5, px.get(), 1e-4, window.toString());
+		}
+	}
+
+	@Test
+	public void testTilesOfTheSameImageGiveTheImage() {
+		Img<FloatType> image = ramp();
+		for (Window window : Window.values()) {
+			TileBlender blender = TileBlender.create("out", "xy", IMAGE, TILE, window);
+			for (long[] pos : positions(new long[] {0, 0}))
+				blender.accumulate(cut(image, pos), pos);
+			Img<FloatType> out = ArrayImgs.floats(IMAGE);
+			blender.finish(out);
+			assertSame(image, out, 1e-3);
+		}
+	}
+
+	@Test
+	public void testConcurrentAccumulation() throws Exception {
+		Img<FloatType> image = ramp();
+		TileBlender blender = TileBlender.create("out", "xy", IMAGE, TILE, Window.COSINE);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (long[] pos : positions(new long[] {-5, -5}))
+				futures.add(pool.submit(() -> blender.accumulate(cut(image, pos), pos)));
+			for (Future<?> ff : futures)
+				ff.get();
+		} finally {
+			pool.shutdown();
+		}
+		Img<FloatType> out = ArrayImgs.floats(IMAGE);
+		blender.finish(out);
+		assertSame(image, out, 1e-3);
+	}
+
+	/**
+	 * Positions of overlapping tiles that cover the whole image, starting at the wanted position
+	 */
+	private static List<long[]> positions(long[] start) {
+		List<long[]> positions = new ArrayList<long[]>();
+		for (long x = start[0]; x < IMAGE[0]; x += STEP[0]) {
+			for (long y = start[1]; y < IMAGE[1]; y += STEP[1])
+				positions.add(new long[] {x, y});
+		}
+		return positions;
+	}
+
+	private static Img<FloatType> ramp() {
+		Img<FloatType> image = ArrayImgs.floats(IMAGE);
+		Cursor<FloatType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(cursor.getIntPosition(0) * 100 + cursor.getIntPosition(1));
+		}
+		return image;
+	}
+
+	/**
+	 * Tile of the image at the wanted position, padded with zeros outside of the image
+	 */
+	private static Img<FloatType> cut(Img<FloatType> image, long[] pos) {
+		Img<FloatType> tile = ArrayImgs.floats(TILE);
+		RandomAccessibleInterval<FloatType> src = Views.offsetInterval(Views.extendZero(image), pos, TILE);
+		Cursor<FloatType> in = Views.flatIterable(src).cursor();
+		Cursor<FloatType> out = Views.flatIterable(tile).cursor();
+		while (out.hasNext())
+			out.next().set(in.next());
+		return tile;
+	}
+
+	private static void assertSame(Img<FloatType> expected, Img<FloatType> actual, double tolerance) {
+		Cursor<FloatType> ee = expected.cursor();
+		Cursor<FloatType> aa = actual.cursor();
+		while (ee.hasNext())
+			assertEquals(ee.next().get(), aa.next().get(), tolerance * Math.max(1, Math.abs(ee.get().get())));
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.bioimageio.tiling;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests of the {@link TilePlan} of a {@link TileMaker}: the tiles cut and pasted with the plan rebuild
+ * the image, and the tile views do not change when the scratch arrays used to create them are reused
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class TilePlanTest {
+
+	private static TileMaker maker(long[] imageDims, long[] tileDims, long[] halo) {
+		TileInfo in = TileInfo.build("in", imageDims, "xy", tileDims, "xy");
+		TileInfo out = TileInfo.build("out", imageDims, "xy", tileDims, "xy");
+		in.setHalo(halo, "xy");
+		out.setHalo(halo, "xy");
+		return TileMaker.build(Arrays.asList(in), Arrays.asList(out));
+	}
+
+	@Test
+	public void testRoundTripRebuildsTheImage() {
+		long[] dims = new long[] {61, 45};
+		TileMaker maker = maker(dims, new long[] {24, 20}, new long[] {4, 3});
+		TilePlan plan = maker.getTilePlan();
+		Img<FloatType> image = ArrayImgs.floats(dims);
+		Cursor<FloatType> c = image.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().set(c.getIntPosition(0) * 1000 + c.getIntPosition(1));
+		}
+		Img<FloatType> rebuilt = ArrayImgs.floats(dims);
+		Img<IntType> coverage = ArrayImgs.ints(dims);
+		long[] tileStart = new long[2];
+		long[] roiOffset = new long[2];
+		long[] roiSize = new long[2];
+		long[] roiStart = new long[2];
+		plan.getOutputRoiOffset("out", roiOffset);
+		plan.getOutputRoiSize("out", roiSize);
+		for (int n = 0; n < plan.getNumberOfTiles(); n ++) {
+			// identity model: the output tile is the input tile
+			RandomAccessibleInterval<FloatType> tile = Views.zeroMin(maker.getNthTileInput("in", image, n));
+			plan.getOutputTileStart("out", n, tileStart);
+			plan.getOutputRoiStart("out", n, roiStart);
+			assertArrayEquals(new long[] {tileStart[0] + roiOffset[0], tileStart[1] + roiOffset[1]}, roiStart);
+			RandomAccess<FloatType> ra = tile.randomAccess();
+			RandomAccess<IntType> cov = coverage.randomAccess();
+			RandomAccess<FloatType> dst = rebuilt.randomAccess();
+			for (long x = roiOffset[0]; x < roiOffset[0] + roiSize[0]; x ++) {
+				for (long y = roiOffset[1]; y < roiOffset[1] + roiSize[1]; y ++) {
+					long[] pos = new long[] {tileStart[0] + x, tileStart[1] + y};
+					if (pos[0] < 0 || pos[1] < 0 || pos[0] >= dims[0] || pos[1] >= dims[1])
+						continue;
+					ra.setPosition(new long[] {x, y});
+					dst.setPosition(pos);
+					dst.get().set(ra.get());
+					cov.setPosition(pos);
+					cov.get().inc();
+				}
+			}
+		}
+		// NB: the last tile of each axis is shifted back inside the image, so its roi can overlap the previous one
+		for (IntType px : coverage)
+			assertTrue(px.get() >= 1, "every pixel is written by at least one tile");
+		Cursor<FloatType> ee = image.cursor();
+		Cursor<FloatType> aa = rebuilt.cursor();
+		while (ee.hasNext())
+			assertEquals(ee.next().get(), aa.next().get());
+	}
+
+	@Test
+	public void testPlanMatchesTheGrid() {
+		TileMaker maker = maker(new long[] {100, 70}, new long[] {32, 32}, new long[] {2, 2});
+		TilePlan plan = maker.getTilePlan();
+		List<long[]> starts = maker.getTilePostionsInputImage("in");
+		assertEquals(starts.size(), plan.getNumberOfTiles());
+		long[] dest = new long[2];
+		for (int n = 0; n < plan.getNumberOfTiles(); n ++) {
+			plan.getInputTileStart("in", n, dest);
+			assertArrayEquals(starts.get(n), dest);
+			// the arrays returned to the caller are copies, modifying them does not change the plan
+			dest[0] = -12345;
+			assertArrayEquals(starts.get(n), maker.getInputInsertionPoints("in", n));
+		}
+		assertThrows(IllegalArgumentException.class, () -> plan.getInputTileStart("in", plan.getNumberOfTiles(), dest));
+		assertThrows(IllegalArgumentException.class, () -> plan.getInputTileStart("missing", 0, dest));
+	}
+
+	@Test
+	public void testPlanDependsOnTheImageSize() {
+		TilePlan small = maker(new long[] {64, 64}, new long[] {32, 32}, new long[] {0, 0}).getTilePlan();
+		TilePlan big = maker(new long[] {128, 64}, new long[] {32, 32}, new long[] {0, 0}).getTilePlan();
+		assertEquals(4, small.getNumberOfTiles());
+		assertEquals(8, big.getNumberOfTiles());
+		assertNotEquals(small, big);
+		long[] dest = new long[2];
+		assertThrows(IllegalArgumentException.class, () -> small.getInputTileStart("in", 4, dest));
+		big.getInputTileStart("in", 4, dest);
+	}
+
+	@Test
+	public void testTileViewsDoNotShareTheScratchArrays() {
+		TileMaker maker2d = maker(new long[] {64, 64}, new long[] {32, 32}, new long[] {0, 0});
+		Img<FloatType> image = ArrayImgs.floats(64, 64);
+		RandomAccessibleInterval<FloatType> first = maker2d.getNthTileInput("in", image, 0);
+		long[] min = first.minAsLongArray();
+		long[] max = first.maxAsLongArray();
+		// cut other tiles, also of images with another number of dimensions, in the same thread
+		maker2d.getNthTileInput("in", image, 3);
+		maker2d.getNthTileOutput("out", image, 2);
+		TileInfo in3d = TileInfo.build("in", new long[] {16, 16, 4}, "xyz", new long[] {8, 8, 4}, "xyz");
+		TileInfo out3d = TileInfo.build("out", new long[] {16, 16, 4}, "xyz", new long[] {8, 8, 4}, "xyz");
+		in3d.setHalo(new long[3], "xyz");
+		out3d.setHalo(new long[3], "xyz");
+		TileMaker.build(Arrays.asList(in3d), Arrays.asList(out3d)).getNthTileInput("in", ArrayImgs.floats(16, 16, 4), 1);
+		assertArrayEquals(min, first.minAsLongArray());
+		assertArrayEquals(max, first.maxAsLongArray());
+	}
+}
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Tests that {@link StridedView#copyTo(StridedView)} copies the same values, in the same positions, as
+ * a plain cursor copy, for {@link ArrayImg}s and for the {@link IntervalView}s and
+ * {@link MixedTransformView}s of them
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class StridedViewTest {
+
+	/**
+	 * Big enough for the copy to be divided between several tasks
+	 */
+	private static final long[] DIMS = new long[] {70, 131, 33};
+
+	private static ArrayImg<IntType, IntArray> source() {
+		ArrayImg<IntType, IntArray> img = ArrayImgs.ints(DIMS);
+		int i = 0;
+		for (IntType px : img)
+			px.set(i ++);
+		return img;
+	}
+
+	/**
+	 * Copy the image with {@link StridedView#copyTo(StridedView)} and with a cursor and check that the results match
+	 */
+	private static void assertCopyMatchesCursor(RandomAccessibleInterval<IntType> rai) {
+		StridedView src = StridedView.wrap(rai);
+		assertNotNull(src, "the view should be backed by a single array");
+		ArrayImg<IntType, IntArray> strided = ArrayImgs.ints(rai.dimensionsAsLongArray());
+		src.copyTo(StridedView.wrap(strided));
+		ArrayImg<IntType, IntArray> cursor = ArrayImgs.ints(rai.dimensionsAsLongArray());
+		Cursor<IntType> in = Views.flatIterable(rai).cursor();
+		Cursor<IntType> out = cursor.cursor();
+		while (in.hasNext())
+			out.next().set(in.next());
+		assertArrayEquals(cursor.update(null).getCurrentStorageArray(), strided.update(null).getCurrentStorageArray());
+	}
+
+	@Test
+	public void testArrayImg() {
+		assertCopyMatchesCursor(source());
+	}
+
+	@Test
+	public void testIntervalView() {
+		IntervalView<IntType> crop = Views.interval(source(), new long[] {3, 10, 1}, new long[] {66, 120, 30});
+		assertCopyMatchesCursor(crop);
+		assertCopyMatchesCursor(Views.offsetInterval(source(), new long[] {5, 0, 2}, new long[] {17, 131, 9}));
+	}
+
+	@Test
+	public void testMixedTransformView() {
+		ArrayImg<IntType, IntArray> img = source();
+		// the views of an interval are IntervalViews wrapping the MixedTransformView
+		IntervalView<IntType> permuted = Views.permute(img, 0, 2);
+		assertTrue(permuted.getSource() instanceof MixedTransformView);
+		assertCopyMatchesCursor(permuted);
+		assertCopyMatchesCursor(Views.invertAxis(img, 1));
+		assertCopyMatchesCursor(Views.hyperSlice(img, 1, 40));
+		assertCopyMatchesCursor(Views.translate(img, -4, 7, 100));
+		assertCopyMatchesCursor(Views.zeroMin(Views.interval(Views.permute(Views.invertAxis(img, 0), 1, 2),
+				new long[] {-60, 2, 4}, new long[] {-10, 30, 100})));
+	}
+
+	@Test
+	public void testIntoPermutedDestination() {
+		ArrayImg<IntType, IntArray> img = source();
+		// copy into a destination that is traversed along another axis than the source
+		ArrayImg<IntType, IntArray> dst = ArrayImgs.ints(DIMS[2], DIMS[1], DIMS[0]);
+		StridedView.wrap(img).copyTo(StridedView.wrap(Views.permute(dst, 0, 2)));
+		Cursor<IntType> c = img.localizingCursor();
+		RandomAccess<IntType> ra = dst.randomAccess();
+		while (c.hasNext()) {
+			c.fwd();
+			ra.setPosition(new long[] {c.getLongPosition(2), c.getLongPosition(1), c.getLongPosition(0)});
+			assertEquals(c.get().get(), ra.get().get());
+		}
+	}
+
+	@Test
+	public void testToArrayOrder() {
+		RandomAccessibleInterval<IntType> crop = Views.interval(source(), new long[] {1, 2, 3}, new long[] {20, 40, 10});
+		int[] fortran = (int[]) StridedView.wrap(crop).toArray(true);
+		int i = 0;
+		for (IntType px : Views.flatIterable(crop))
+			assertEquals(px.get(), fortran[i ++]);
+		int[] c = (int[]) StridedView.wrap(crop).toArray(false);
+		i = 0;
+		for (IntType px : Views.flatIterable(Views.permute(crop, 0, 2)))
+			assertEquals(px.get(), c[i ++]);
+		assertEquals(Intervals.numElements(crop), c.length);
+	}
+
+	@Test
+	public void testViewsThatCannotBeWrapped() {
+		ArrayImg<IntType, IntArray> img = source();
+		assertNull(StridedView.wrap(Views.interval(Views.extendZero(img), new long[] {-1, 0, 0}, new long[] {10, 10, 10})));
+		assertNull(StridedView.wrap(Views.subsample(img, 2)));
+		assertNull(StridedView.wrap(Views.addDimension(img, 0, 3)));
+	}
+}
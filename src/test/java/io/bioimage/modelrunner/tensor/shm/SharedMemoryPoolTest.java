@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests of the bookkeeping of the {@link SharedMemoryPool}: the bytes owned by the pool when segments are
+ * leased, given back and evicted, which idle segments are reused, and {@link SharedMemoryPool#MAX_REUSE_RATIO}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class SharedMemoryPoolTest {
+
+	@Test
+	public void testAcquireAndRelease() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(10000)) {
+			SharedMemoryArray a = pool.acquire(1000);
+			assertTrue(a.getSize() >= 1000);
+			assertEquals(a.getSize(), pool.getPooledBytes());
+			SharedMemoryArray b = pool.acquire(1000);
+			assertNotSame(a, b);
+			assertEquals(a.getSize() + b.getSize(), pool.getPooledBytes());
+			pool.release(a);
+			// idle segments still belong to the pool
+			assertEquals(a.getSize() + b.getSize(), pool.getPooledBytes());
+			assertSame(a, pool.acquire(900));
+			try (SharedMemoryArray foreign = SharedMemoryArray.create(10)) {
+				assertThrows(IllegalArgumentException.class, () -> pool.release(foreign));
+			}
+			pool.release(a);
+			assertThrows(IllegalArgumentException.class, () -> pool.release(a));
+			pool.release(b);
+		}
+	}
+
+	@Test
+	public void testSmallestIdleSegmentIsReused() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(10000)) {
+			SharedMemoryArray big = pool.acquire(2000);
+			SharedMemoryArray small = pool.acquire(1000);
+			pool.release(big);
+			pool.release(small);
+			assertSame(small, pool.acquire(1000));
+			assertSame(big, pool.acquire(1000));
+		}
+	}
+
+	@Test
+	public void testMaxReuseRatio() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(100000)) {
+			SharedMemoryArray big = pool.acquire(4000);
+			pool.release(big);
+			SharedMemoryArray tooSmall = pool.acquire(4000 / SharedMemoryPool.MAX_REUSE_RATIO - 1);
+			assertNotSame(big, tooSmall);
+			pool.release(tooSmall);
+			assertSame(big, pool.acquire(4000 / SharedMemoryPool.MAX_REUSE_RATIO));
+		}
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(3000)) {
+			SharedMemoryArray first = pool.acquire(1000);
+			SharedMemoryArray second = pool.acquire(1000);
+			SharedMemoryArray third = pool.acquire(1000);
+			pool.release(first);
+			pool.release(second);
+			pool.release(third);
+			assertEquals(3000, pool.getPooledBytes());
+			// making room for the new segment destroys the least recently released idle segments
+			SharedMemoryArray big = pool.acquire(2000);
+			assertEquals(3000, pool.getPooledBytes());
+			pool.release(big);
+			assertSame(third, pool.acquire(1000));
+			// the first two segments were destroyed, so the only idle segment left is reused
+			assertSame(big, pool.acquire(1000));
+			assertEquals(3000, pool.getPooledBytes());
+			assertNotSame(first, pool.acquire(1000));
+			assertNotSame(second, pool.acquire(1000));
+			assertEquals(5000, pool.getPooledBytes());
+		}
+	}
+
+	@Test
+	public void testPoolOverItsMaximum() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(0)) {
+			SharedMemoryArray a = pool.acquire(1000);
+			assertEquals(a.getSize(), pool.getPooledBytes());
+			pool.release(a);
+			assertEquals(0, pool.getPooledBytes());
+			assertNotSame(a, pool.acquire(1000));
+		}
+	}
+
+	@Test
+	public void testReleaseWhenTheErrorIsTooBig() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(10000)) {
+			Img<FloatType> img = ArrayImgs.floats(new float[] {1, 1.0001f, 3, 4}, 2, 2);
+			assertNull(pool.acquire(img, WirePrecision.BFLOAT16, 1e-6));
+			assertEquals(8, pool.getPooledBytes());
+			SharedMemoryArray shma = pool.acquire(img, WirePrecision.FLOAT16, 1e-3);
+			// the segment given back is reused
+			assertEquals(8, pool.getPooledBytes());
+			pool.release(shma);
+		}
+	}
+
+	@Test
+	public void testReleaseWhenTheWriteFails() throws IOException {
+		try (SharedMemoryPool pool = SharedMemoryPool.create(10000)) {
+			RandomAccessibleInterval<FloatType> failing = Converters.convert((RandomAccessibleInterval<FloatType>) ArrayImgs.floats(10, 10),
+					(i, o) -> {
+						throw new IllegalStateException("cannot read the image");
+					}, new FloatType());
+			assertThrows(IllegalStateException.class, () -> pool.acquire(failing, WirePrecision.FLOAT16, 1));
+			assertEquals(200, pool.getPooledBytes());
+			assertThrows(IllegalStateException.class, () -> pool.acquire(failing, false));
+			assertEquals(200 + 400, pool.getPooledBytes());
+			// both segments were given back, so they are reused instead of leaked
+			SharedMemoryArray a = pool.acquire(400);
+			SharedMemoryArray b = pool.acquire(200);
+			assertEquals(200 + 400, pool.getPooledBytes());
+			pool.release(a);
+			pool.release(b);
+		}
+	}
+
+	@Test
+	public void testClose() throws IOException {
+		SharedMemoryPool pool = SharedMemoryPool.create(10000);
+		SharedMemoryArray leased = pool.acquire(1000);
+		pool.release(pool.acquire(500));
+		pool.close();
+		assertEquals(0, pool.getPooledBytes());
+		assertThrows(IllegalStateException.class, () -> pool.acquire(10));
+		// giving back segments once the pool is closed does nothing
+		pool.release(leased);
+	}
+}
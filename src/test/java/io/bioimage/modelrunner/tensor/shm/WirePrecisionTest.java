@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Use deep learning frameworks from Java in an agnostic and isolated way.
+ * %%
+ * Copyright (C) 2022 - 2024 Institut Pasteur and BioImage.IO developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.tensor.shm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.jna.Memory;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Tests of the {@link WirePrecision} formats: every value of the format survives a round trip, values in
+ * between two representable values round to the nearest one with ties to even, and subnormals, infinities
+ * and NaN are encoded as numpy does
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class WirePrecisionTest {
+
+	private static void assertBits(int expected, short actual) {
+		assertEquals(expected & 0xffff, actual & 0xffff, "expected 0x" + Integer.toHexString(expected & 0xffff)
+				+ " but was 0x" + Integer.toHexString(actual & 0xffff));
+	}
+
+	@Test
+	public void testEveryValueRoundTrips() {
+		for (WirePrecision wp : WirePrecision.values()) {
+			for (int h = 0; h < 0x10000; h ++) {
+				float f = wp.decode((short) h);
+				if (Float.isNaN(f))
+					assertTrue(Float.isNaN(wp.decode(wp.encode(f))));
+				else
+					assertBits(h, wp.encode(f));
+			}
+		}
+	}
+
+	@Test
+	public void testTiesRoundToEven() {
+		// consecutive positive values, from the subnormals to the largest finite value
+		for (WirePrecision wp : WirePrecision.values()) {
+			int maxFinite = wp == WirePrecision.FLOAT16 ? 0x7bff : 0x7f7f;
+			for (int h = 0; h < maxFinite; h ++) {
+				float lo = wp.decode((short) h);
+				float hi = wp.decode((short) (h + 1));
+				float mid = (float) (((double) lo + hi) / 2);
+				assertEquals((lo + (double) hi) / 2, mid, 0, "the midpoint is a float");
+				assertBits((h & 1) == 0 ? h : h + 1, wp.encode(mid));
+				assertBits(h, wp.encode(Math.nextDown(mid)));
+				assertBits(h + 1, wp.encode(Math.nextUp(mid)));
+				assertBits(h | 0x8000, wp.encode(-Math.nextDown(mid)));
+			}
+		}
+	}
+
+	@Test
+	public void testFloat16SpecialValues() {
+		WirePrecision wp = WirePrecision.FLOAT16;
+		assertBits(0x3c00, wp.encode(1f));
+		assertBits(0xc000, wp.encode(-2f));
+		assertBits(0x2e66, wp.encode(0.1f));
+		assertBits(0x8000, wp.encode(-0f));
+		assertBits(0x7bff, wp.encode(65504f));
+		assertBits(0x7bff, wp.encode(65519.99f));
+		// halfway between the largest value and 65536 rounds to infinity
+		assertBits(0x7c00, wp.encode(65520f));
+		assertBits(0x7c00, wp.encode(1e10f));
+		assertBits(0xfc00, wp.encode(-1e10f));
+		assertBits(0x7c00, wp.encode(Float.POSITIVE_INFINITY));
+		assertBits(0xfc00, wp.encode(Float.NEGATIVE_INFINITY));
+		// smallest normal and subnormals
+		assertBits(0x0400, wp.encode(0x1p-14f));
+		assertBits(0x03ff, wp.encode(0x1p-14f - 0x1p-24f));
+		assertBits(0x0001, wp.encode(0x1p-24f));
+		// half of the smallest subnormal rounds to zero, anything above to the smallest subnormal
+		assertBits(0x0000, wp.encode(0x1p-25f));
+		assertBits(0x0001, wp.encode(Math.nextUp(0x1p-25f)));
+		assertBits(0x0000, wp.encode(Float.MIN_VALUE));
+		assertEquals(0x1p-24f, wp.decode((short) 0x0001));
+		assertEquals(Float.POSITIVE_INFINITY, wp.decode((short) 0x7c00));
+		assertEquals(Float.NEGATIVE_INFINITY, wp.decode((short) 0xfc00));
+		assertTrue(Float.isNaN(wp.decode(wp.encode(Float.NaN))));
+		// NaN whose payload is lost in the encoding stays NaN
+		assertTrue(Float.isNaN(wp.decode(wp.encode(Float.intBitsToFloat(0x7f800001)))));
+		assertTrue(Float.isNaN(wp.decode(wp.encode(Float.intBitsToFloat(0xff800001)))));
+	}
+
+	@Test
+	public void testBFloat16SpecialValues() {
+		WirePrecision wp = WirePrecision.BFLOAT16;
+		assertBits(0x3f80, wp.encode(1f));
+		assertBits(0xc000, wp.encode(-2f));
+		assertBits(0x3dcd, wp.encode(0.1f));
+		assertBits(0x7f80, wp.encode(Float.POSITIVE_INFINITY));
+		assertBits(0xff80, wp.encode(Float.NEGATIVE_INFINITY));
+		// the largest float rounds to infinity, as in the other round to nearest implementations
+		assertBits(0x7f80, wp.encode(Float.MAX_VALUE));
+		assertBits(0x0001, wp.encode(Float.intBitsToFloat(0x00010000)));
+		assertBits(0x0000, wp.encode(Float.intBitsToFloat(0x00008000)));
+		assertBits(0x0002, wp.encode(Float.intBitsToFloat(0x00018000)));
+		assertTrue(Float.isNaN(wp.decode(wp.encode(Float.NaN))));
+		assertTrue(Float.isNaN(wp.decode(wp.encode(Float.intBitsToFloat(0x7f800001)))));
+		assertTrue(Float.isNaN(wp.decode(wp.encode(Float.intBitsToFloat(0xffffffff)))));
+	}
+
+	@Test
+	public void testWriteAndRead() {
+		long[] dims = new long[] {37, 21, 5};
+		Img<FloatType> img = ArrayImgs.floats(dims);
+		Cursor<FloatType> c = img.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().set(c.getIntPosition(0) - 10.1f + 0.25f * c.getIntPosition(1) + 100 * c.getIntPosition(2));
+		}
+		long n = Intervals.numElements(img);
+		for (WirePrecision wp : WirePrecision.values()) {
+			Memory memory = new Memory(8 + n * 2);
+			double error = wp.write(memory, 8, img);
+			assertTrue(error > 0 && error <= wp.getUnitRoundoff(), wp + " error " + error);
+			RandomAccessibleInterval<FloatType> read = wp.read(memory, 8, dims);
+			RandomAccess<FloatType> ra = read.randomAccess();
+			c.reset();
+			while (c.hasNext()) {
+				c.fwd();
+				short expected = wp.encode(c.get().get());
+				// the values are stored in c order
+				long index = (c.getLongPosition(0) * dims[1] + c.getLongPosition(1)) * dims[2] + c.getLongPosition(2);
+				assertBits(expected, memory.getShort(8 + 2 * index));
+				ra.setPosition(c);
+				assertEquals(wp.decode(expected), ra.get().get());
+			}
+		}
+	}
+
+	@Test
+	public void testErrorIsMeasuredAgainstTheOriginalDoubles() {
+		// 0.1 rounded to float is already 1.5e-9 away from 0.1, which the error has to include
+		Img<DoubleType> img = ArrayImgs.doubles(new double[] {0.1, -0.05}, 2);
+		Memory memory = new Memory(4);
+		for (WirePrecision wp : WirePrecision.values()) {
+			double expected = Math.abs(wp.decode(wp.encode(0.1f)) - 0.1);
+			expected = Math.max(expected, Math.abs(wp.decode(wp.encode(-0.05f)) + 0.05));
+			assertEquals(expected / 0.1, wp.write(memory, 0, img));
+		}
+	}
+}